@@ -54,16 +54,14 @@ public class ClientConfig extends MetricConfig {
 				Measurement end = endEntry.getMeasurement();
 				
 				if(start != null && end != null){
-					// children's identifiers (e.g., grid0, grid1, grid2, etc.)
-					Set<String> keys = start.getChildValues().keySet();
-					
 					/*
-					 * In case "keys" is empty, the levels's value should be the one
-					 * measured by the child itself
+					 * In case there are no children's values, the levels's value
+					 * should be the one measured by the child itself
 					 */
-					if(!keys.isEmpty()){
-						for (String key: keys) {
-							long temp = end.getChildValues().get(key) - start.getChildValues().get(key);
+					if(start.getChildCount() > 0){
+						// children's ordinals (e.g., grid0, grid1, grid2, etc.)
+						for (int i = start.nextChildIndex(0); i >= 0; i = start.nextChildIndex(i + 1)) {
+							long temp = end.getChildValue(i) - start.getChildValue(i);
 							if(temp > value){
 								value = temp;
 							}
@@ -116,16 +114,14 @@ public class ClientConfig extends MetricConfig {
 				Measurement end = endEntry.getMeasurement();
 				
 				if(start != null && end != null){
-					// children's identifiers (e.g., grid0, grid1, grid2, etc.)
-					Set<String> keys = start.getChildValues().keySet();
-					
 					/*
-					 * In case "keys" is empty, the levels's value should be the one
-					 * measured by the child itself
+					 * In case there are no children's values, the levels's value
+					 * should be the one measured by the child itself
 					 */
-					if(!keys.isEmpty()){
-						for (String key: keys) {
-							long temp = end.getChildValues().get(key) - start.getChildValues().get(key);
+					if(start.getChildCount() > 0){
+						// children's ordinals (e.g., grid0, grid1, grid2, etc.)
+						for (int i = start.nextChildIndex(0); i >= 0; i = start.nextChildIndex(i + 1)) {
+							long temp = end.getChildValue(i) - start.getChildValue(i);
 							if(temp > value){
 								value = temp;
 							}
@@ -173,16 +169,14 @@ public class ClientConfig extends MetricConfig {
 					Measurement end = endEntry.getMeasurement();
 					
 					if(start != null && end != null){
-						// children's identifiers (e.g., grid0, grid1, grid2, etc.)
-						Set<String> keys = start.getChildValues().keySet();
-						
 						/*
-						 * In case "keys" is empty, the level's value should be the one
-						 * measured by the child itself
+						 * In case there are no children's values, the level's value
+						 * should be the one measured by the child itself
 						 */
-						if(!keys.isEmpty()){
-							for (String key: keys) {
-								long temp = end.getChildValues().get(key) - start.getChildValues().get(key);
+						if(start.getChildCount() > 0){
+							// children's ordinals (e.g., grid0, grid1, grid2, etc.)
+							for (int i = start.nextChildIndex(0); i >= 0; i = start.nextChildIndex(i + 1)) {
+								long temp = end.getChildValue(i) - start.getChildValue(i);
 								if(temp > value){
 									value = temp;
 								}
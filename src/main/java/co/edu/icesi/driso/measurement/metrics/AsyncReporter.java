@@ -0,0 +1,421 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class generates reports off the caller's thread. The caller takes a
+ * snapshot of the metric tree (it encodes the whole tree with MetricCodec,
+ * which costs about half of a synchronous report); validating it, computing
+ * the phases' values and writing the report are done by a dedicated
+ * background thread, in the order the reports were requested. Pending
+ * reports are kept in a bounded queue; what happens when it is full depends
+ * on the overflow policy. Reports to the same file (or sink) are written one
+ * at a time and in order, even when the caller writes one itself. A caller
+ * waiting for room in the queue, or writing a report itself, does not hold
+ * up the callers requesting other reports.
+ *
+ * The snapshot reads the tree as a synchronous report does: metrics not
+ * stored as Storage.CONCURRENT must not be changed by other threads while
+ * their report is requested. Changes made to a metric after requesting its
+ * report are not reported. Validation and I/O errors are reported through
+ * the returned futures.
+ *
+ * This class is thread-safe.
+ *
+ * @see Metric#report(File, boolean)
+ * @see ReportSink
+ */
+public final class AsyncReporter implements Closeable {
+
+	/**
+	 * What to do with a report requested while the queue is full
+	 */
+	public enum OverflowPolicy {
+
+		/**
+		 * The caller waits until there is room in the queue
+		 */
+		BLOCK,
+
+		/**
+		 * The new report is discarded (its future fails with a
+		 * RejectedExecutionException)
+		 */
+		DISCARD_NEWEST,
+
+		/**
+		 * The oldest pending report is discarded (its future is cancelled)
+		 */
+		DISCARD_OLDEST,
+
+		/**
+		 * The report is generated on the caller's thread, once the pending
+		 * reports to the same file (or sink) are written
+		 */
+		CALLER_RUNS
+	}
+
+	/**
+	 * Default number of pending reports
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * A requested report: the snapshot and where to write it
+	 */
+	private abstract class Task implements Runnable {
+
+		private final Object target;
+		private final byte[] snapshot;
+		private final MetricConfig config;
+		private final CompletableFuture<Void> future;
+
+		/**
+		 * The previous report to the same target, which must be written
+		 * first (it is only pending on the caller's thread with CALLER_RUNS)
+		 */
+		private Task previous;
+
+		/**
+		 * Whether the report holds one of the queue's permits (it is queued)
+		 */
+		private boolean queued;
+
+		/**
+		 * @param metric	The root metric
+		 * @param target	The file (or sink) in which the report is written
+		 */
+		private Task(Metric metric, Object target){
+			this.target = target;
+			this.snapshot = MetricCodec.toByteArray(metric);
+			this.config = metric.getConfig();
+			this.future = new CompletableFuture<Void>();
+		}
+
+		@Override
+		public void run(){
+			// Out of the queue
+			release();
+
+			try {
+				if(future.isDone() || !awaitPrevious()){
+					return;
+				}
+
+				Metric copy = MetricCodec.decode(new ByteArrayInputStream(snapshot), config);
+				copy.validate();
+				write(copy);
+				future.complete(null);
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			} finally {
+				previous = null;
+				lastTasks.remove(target, this);
+			}
+		}
+
+		/**
+		 * @return	Whether the previous report to the same target was
+		 * 			written (or failed, or was discarded)
+		 */
+		private boolean awaitPrevious(){
+			if(previous == null){
+				return true;
+			}
+
+			try {
+				previous.future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				future.completeExceptionally(e);
+				return false;
+			} catch (ExecutionException e) {
+				// Its outcome does not matter, only that it is over
+			} catch (CancellationException e) {
+				// Discarded
+			}
+
+			return true;
+		}
+
+		/**
+		 * Gives back the queue's permit, if the report holds it.
+		 */
+		private void release(){
+			if(queued){
+				queued = false;
+				permits.release();
+			}
+		}
+
+		/**
+		 * Drops a report taken out of the queue, or not queued.
+		 */
+		private void discard(Throwable cause){
+			release();
+
+			if(cause == null){
+				future.cancel(false);
+			}else{
+				future.completeExceptionally(cause);
+			}
+
+			previous = null;
+			lastTasks.remove(target, this);
+		}
+
+		abstract void write(Metric copy) throws MetricException, IOException;
+	}
+
+	/**
+	 * Rejects the reports requested once the reporter is closed (the queue
+	 * itself is not bounded: the permits bound it)
+	 */
+	private final class Rejection implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+			((Task) runnable).discard(new RejectedExecutionException("The reporter is closed"));
+		}
+	}
+
+	private final OverflowPolicy policy;
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong discarded;
+
+	/**
+	 * One permit per report that can be queued. They are taken before the
+	 * submit lock, so a caller waiting for one does not hold the lock
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * The last report requested to each target, while it is not written
+	 */
+	private final ConcurrentHashMap<Object, Task> lastTasks;
+
+	/**
+	 * Makes requesting a report (chaining it after the previous one to its
+	 * target, and queueing it) atomic, so the chains follow the queue's order.
+	 * Nothing else is done while holding it
+	 */
+	private final Object submitLock;
+
+	/**
+	 * Creates a reporter with the default capacity, whose callers wait when
+	 * the queue is full.
+	 */
+	public AsyncReporter(){
+		this(DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * @param capacity		The maximum number of pending reports
+	 * @param policy		What to do with a report requested while there are
+	 * 						capacity pending reports
+	 */
+	public AsyncReporter(int capacity, OverflowPolicy policy){
+		if(capacity <= 0){
+			throw new IllegalArgumentException("The capacity must be positive");
+		}
+
+		this.policy = policy;
+		this.discarded = new AtomicLong();
+		this.permits = new Semaphore(capacity);
+		this.lastTasks = new ConcurrentHashMap<Object, Task>();
+		this.submitLock = new Object();
+		this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "metric-reporter");
+						thread.setDaemon(true);
+						return thread;
+					}
+				},
+				new Rejection());
+	}
+
+	/**
+	 * Requests the report of a metric and all of its descendants, as
+	 * Metric.report(File, boolean) does. The tree is encoded on the caller's
+	 * thread.
+	 *
+	 * @param metric	The root metric
+	 * @param file		The file in which the report must be written
+	 * @param append	Whether the report must be appended to the file
+	 * @return			A future completed when the report is written. It fails
+	 * 					with a MetricException when there are stages in the
+	 * 					Metric object without a value
+	 */
+	public CompletableFuture<Void> report(Metric metric, final File file, final boolean append){
+		final Date date = new Date();
+
+		return submit(new Task(metric, file.getAbsoluteFile()) {
+			@Override
+			void write(Metric copy) throws IOException {
+				ReportWriter writer = new ReportWriter(
+						new BufferedWriter(new FileWriter(file, append)));
+
+				try {
+					writer.writeComment(date.toString());
+					writer.writeHeading(copy.getConfig());
+					writer.writeRows(copy);
+				} finally {
+					writer.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Requests the report of a metric and all of its descendants to a sink.
+	 * The tree is encoded on the caller's thread.
+	 *
+	 * @param metric	The root metric
+	 * @param sink		The sink in which the report must be appended
+	 * @return			A future completed when the rows are in the sink. It
+	 * 					fails with a MetricException when there are stages in
+	 * 					the Metric object without a value
+	 */
+	public CompletableFuture<Void> report(Metric metric, final ReportSink sink){
+		return submit(new Task(metric, sink) {
+			@Override
+			void write(Metric copy) throws MetricException, IOException {
+				sink.write(copy);
+			}
+		});
+	}
+
+	private CompletableFuture<Void> submit(Task task){
+		if(!acquire(task)){
+			return task.future;
+		}
+
+		// Once queued, the task is the background thread's
+		boolean queued = task.queued;
+
+		synchronized (submitLock) {
+			task.previous = lastTasks.put(task.target, task);
+
+			if(queued){
+				executor.execute(task);
+			}
+		}
+
+		if(!queued){
+			// CALLER_RUNS with a full queue: after the previous reports to the target
+			task.run();
+		}
+
+		return task.future;
+	}
+
+	/**
+	 * Takes a permit for a report, as the overflow policy says when there
+	 * are none left. It is called without holding the submit lock.
+	 *
+	 * @return	Whether the report must be chained (queued, if it holds a
+	 * 			permit, or run by the caller otherwise)
+	 */
+	private boolean acquire(Task task){
+		if(executor.isShutdown()){
+			task.discard(new RejectedExecutionException("The reporter is closed"));
+			return false;
+		}
+
+		if(permits.tryAcquire()){
+			task.queued = true;
+			return true;
+		}
+
+		switch (policy) {
+		case BLOCK:
+			try {
+				permits.acquire();
+				task.queued = true;
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				task.discard(e);
+				return false;
+			}
+		case DISCARD_NEWEST:
+			discarded.incrementAndGet();
+			task.discard(new RejectedExecutionException("The report queue is full"));
+			return false;
+		case DISCARD_OLDEST:
+			while(!permits.tryAcquire()){
+				Task oldest = (Task) executor.getQueue().poll();
+
+				if(oldest != null){
+					discarded.incrementAndGet();
+					oldest.discard(null);
+				}else{
+					// The permits are held by reports being queued
+					Thread.yield();
+				}
+			}
+
+			task.queued = true;
+			return true;
+		default:
+			// CALLER_RUNS
+			return true;
+		}
+	}
+
+	/**
+	 * @return	The number of reports discarded because the queue was full
+	 */
+	public long getDiscardedCount(){
+		return discarded.get();
+	}
+
+	/**
+	 * @return	The number of reports waiting to be generated
+	 */
+	public int getPendingCount(){
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Stops accepting reports and waits until the pending ones are written.
+	 *
+	 * @throws IOException	It's thrown when the caller is interrupted while
+	 * 						waiting
+	 */
+	@Override
+	public void close() throws IOException {
+		executor.shutdown();
+
+		try {
+			while(!executor.awaitTermination(1, TimeUnit.SECONDS)){
+				// Keep waiting for the pending reports
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the pending reports", e);
+		}
+	}
+
+}
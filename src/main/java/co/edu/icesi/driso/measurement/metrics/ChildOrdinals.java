@@ -0,0 +1,71 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class assigns an ordinal to each child identifier of a father metric,
+ * in the order they are first merged. All the father's measurements share the
+ * same ordinals, so children's values can be stored in primitive arrays
+ * aligned with them.
+ */
+final class ChildOrdinals implements Serializable {
+
+	/**
+	 * Default serial version UID
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The identifiers, indexed by ordinal (created when the first child is
+	 * registered)
+	 */
+	private List<String> identifiers;
+	private HashMap<String, Integer> ordinals;
+
+	/**
+	 * @param identifier	The child's identifier
+	 * @return				The child's ordinal, assigning a new one if the
+	 * 						identifier was not registered before
+	 */
+	synchronized int register(String identifier){
+		if(ordinals == null){
+			identifiers = new ArrayList<String>();
+			ordinals = new HashMap<String, Integer>();
+		}
+		
+		Integer ordinal = ordinals.get(identifier);
+
+		if(ordinal == null){
+			ordinal = identifiers.size();
+			identifiers.add(identifier);
+			ordinals.put(identifier, ordinal);
+		}
+
+		return ordinal;
+	}
+
+	/**
+	 * @param identifier	The child's identifier
+	 * @return				The child's ordinal, or -1 if it is not registered
+	 */
+	synchronized int ordinalOf(String identifier){
+		Integer ordinal = ordinals == null ? null : ordinals.get(identifier);
+		return ordinal == null ? -1 : ordinal;
+	}
+
+	/**
+	 * @param ordinal	A child's ordinal
+	 * @return			The child's identifier
+	 */
+	synchronized String identifierOf(int ordinal){
+		return identifiers.get(ordinal);
+	}
+
+	synchronized int size(){
+		return identifiers == null ? 0 : identifiers.size();
+	}
+
+}
@@ -0,0 +1,185 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * This class holds the estimated offset and drift of a child's clock with
+ * respect to its father's, so that the timestamps taken on the child's node
+ * can be translated to the father's clock. Estimates are computed from
+ * round-trip exchanges, as NTP does: the child sends its time t1, the father
+ * receives the request at t2 and replies at t3 (both in its own clock), and
+ * the child receives the reply at t4. Each exchange gives an offset,
+ * ((t2 - t1) + (t3 - t4)) / 2, accurate within half its round-trip delay,
+ * (t4 - t1) - (t3 - t2). The exchanges with the shortest delays are kept, and
+ * the drift is the slope of their offsets over time (only when they span a
+ * long time compared to their delays, as the slope is too noisy otherwise).
+ *
+ * Instances are immutable.
+ *
+ * @see Metric#setClockEstimate(ClockEstimate)
+ * @see MetricPublisher#synchronizeClock(MetricClock, int)
+ */
+public final class ClockEstimate implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The minimum time spanned by the exchanges to estimate the drift, in
+	 * round-trip delays
+	 */
+	private static final int DRIFT_SPAN = 1000;
+
+	private final long offset;
+	private final double drift;
+	private final long reference;
+	private final long delay;
+
+	/**
+	 * @param offset		The father's time minus the child's, at the
+	 * 						reference time
+	 * @param drift			How much the offset grows per unit of the child's
+	 * 						time (e.g., 1e-5 for a child's clock running 10 ppm
+	 * 						slower than the father's)
+	 * @param reference		The child's time at which the offset was estimated
+	 * @param delay			The round-trip delay of the best exchange (the
+	 * 						offset is accurate within half of it)
+	 */
+	public ClockEstimate(long offset, double drift, long reference, long delay){
+		this.offset = offset;
+		this.drift = drift;
+		this.reference = reference;
+		this.delay = delay;
+	}
+
+	/**
+	 * Estimates the offset and drift of a child's clock from round-trip
+	 * exchanges (at least one).
+	 *
+	 * @param sent		The child's times at which the requests were sent (t1)
+	 * @param received	The father's times at which they were received (t2)
+	 * @param replied	The father's times at which they were answered (t3)
+	 * @param returned	The child's times at which the replies arrived (t4)
+	 * @return			The estimate
+	 */
+	public static ClockEstimate estimate(long[] sent, long[] received, long[] replied,
+			long[] returned){
+
+		int count = sent.length;
+
+		if(count == 0){
+			throw new IllegalArgumentException("At least one exchange is needed");
+		}
+
+		long[] delays = new long[count];
+
+		for (int i = 0; i < count; i++) {
+			delays[i] = (returned[i] - sent[i]) - (replied[i] - received[i]);
+		}
+
+		// Keep the exchanges delayed the least: queuing only adds error
+		long[] sorted = delays.clone();
+		Arrays.sort(sorted);
+		long cutoff = sorted[(count - 1) / 2];
+		long base = sent[0];
+		double sumTime = 0;
+		double sumOffset = 0;
+		double first = Double.MAX_VALUE;
+		double last = -Double.MAX_VALUE;
+		int kept = 0;
+
+		for (int i = 0; i < count; i++) {
+			if(delays[i] <= cutoff){
+				double time = time(sent[i], returned[i], base);
+				first = Math.min(first, time);
+				last = Math.max(last, time);
+				sumTime += time;
+				sumOffset += offset(sent[i], received[i], replied[i], returned[i]);
+				kept++;
+			}
+		}
+
+		double meanTime = sumTime / kept;
+		double meanOffset = sumOffset / kept;
+		double covariance = 0;
+		double variance = 0;
+
+		for (int i = 0; i < count; i++) {
+			if(delays[i] <= cutoff){
+				double time = time(sent[i], returned[i], base) - meanTime;
+				covariance += time * (offset(sent[i], received[i], replied[i], returned[i])
+						- meanOffset);
+				variance += time * time;
+			}
+		}
+
+		boolean hasDrift = variance > 0 && last - first >= (double) DRIFT_SPAN * sorted[0];
+
+		return new ClockEstimate(Math.round(meanOffset),
+				hasDrift ? covariance / variance : 0,
+				base + Math.round(meanTime), sorted[0]);
+	}
+
+	/**
+	 * @return	The child's time in the middle of an exchange, relative to base
+	 */
+	private static double time(long sent, long returned, long base){
+		return (sent - base) + (returned - sent) / 2.0;
+	}
+
+	private static double offset(long sent, long received, long replied, long returned){
+		return ((received - sent) + (replied - returned)) / 2.0;
+	}
+
+	/**
+	 * @param childTime		A timestamp taken with the child's clock
+	 * @return				The same instant, in the father's clock
+	 */
+	public long toFatherTime(long childTime){
+		return childTime + offset + Math.round(drift * (childTime - reference));
+	}
+
+	/**
+	 * @param childSum		The sum of timestamps taken with the child's clock
+	 * @param count			The number of timestamps
+	 * @return				The sum of the same instants, in the father's clock
+	 */
+	long toFatherSum(long childSum, long count){
+		return childSum + count * offset + Math.round(drift * (childSum - (double) count * reference));
+	}
+
+	/**
+	 * @return	The father's time minus the child's, at the reference time
+	 */
+	public long getOffset(){
+		return offset;
+	}
+
+	/**
+	 * @return	How much the offset grows per unit of the child's time
+	 */
+	public double getDrift(){
+		return drift;
+	}
+
+	/**
+	 * @return	The child's time at which the offset was estimated
+	 */
+	public long getReference(){
+		return reference;
+	}
+
+	/**
+	 * @return	The round-trip delay of the best exchange
+	 */
+	public long getDelay(){
+		return delay;
+	}
+
+	@Override
+	public String toString(){
+		return "offset=" + offset + " drift=" + drift + " reference=" + reference
+				+ " delay=" + delay;
+	}
+
+}
@@ -0,0 +1,330 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class writes a whole metric tree in a binary, column-oriented format
+ * that can be queried without reading the rest of the file (see
+ * ColumnarDumpReader). Nodes are numbered in depth-first order (the root is
+ * node 0). The file contains, in this order (big-endian):
+ *
+ * <ul>
+ * <li>A header: magic number, format version, node count, slot count,
+ * attribute count, string count, configuration identifier and the offset of
+ * each section</li>
+ * <li>One long column per phase-level-stage with the nodes' own values, and
+ * another one with the value each node's father holds for it</li>
+ * <li>One presence bitmap per phase-level-stage, for each of the previous
+ * columns</li>
+ * <li>Int columns with the nodes' identifiers, fathers and subtree ends</li>
+ * <li>The attribute names, and one int column per attribute</li>
+ * <li>The phase, level and stage names of each phase-level-stage</li>
+ * <li>A dictionary with all the strings referenced by the int columns</li>
+ * </ul>
+ *
+ * Attribute values are stored as strings.
+ *
+ * @see ColumnarDumpReader
+ */
+public final class ColumnarDump {
+
+	static final int MAGIC = 0x504D4344;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 128;
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final List<Metric> nodes;
+	private final List<Integer> parents;
+	private final List<Integer> subtreeEnds;
+	private final Map<String, Integer> strings;
+
+	private ColumnarDump(){
+		nodes = new ArrayList<Metric>();
+		parents = new ArrayList<Integer>();
+		subtreeEnds = new ArrayList<Integer>();
+		strings = new LinkedHashMap<String, Integer>();
+	}
+
+	/**
+	 * Writes a metric tree on the specified file.
+	 *
+	 * @param root			The root metric
+	 * @param file			The file in which the tree must be written
+	 * 						(it is overwritten)
+	 * @throws IOException	It's thrown when something went bad at writing, or
+	 * 						the dump would be larger than 2 GB (which
+	 * 						ColumnarDumpReader cannot read)
+	 */
+	public static void write(Metric root, File file) throws IOException {
+		ColumnarDump dump = new ColumnarDump();
+		dump.collect(root, -1);
+
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+
+		try {
+			dump.write(root.getConfig(), out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void collect(Metric metric, int parent){
+		int node = nodes.size();
+
+		nodes.add(metric);
+		parents.add(parent);
+		subtreeEnds.add(-1);
+
+		for (int i = 0; i < metric.getChildren().size(); i++) {
+			collect(metric.getChildren().get(i), node);
+		}
+
+		subtreeEnds.set(node, nodes.size());
+	}
+
+	private int string(String value){
+		if(value == null){
+			return -1;
+		}
+
+		Integer index = strings.get(value);
+
+		if(index == null){
+			index = strings.size();
+			strings.put(value, index);
+		}
+
+		return index;
+	}
+
+	private void write(MetricConfig config, DataOutputStream out) throws IOException {
+		MetricSchema schema = config.getSchema();
+		String[] attributes = config.getAttributes();
+		int nodeCount = nodes.size();
+		int slotCount = schema.getSlotCount();
+		int words = (nodeCount + 63) >>> 6;
+
+		// Intern the strings referenced by the int columns
+		int configIdentifier = string(config.getIdentifier());
+		int[] identifiers = new int[nodeCount];
+		int[][] attributeValues = new int[attributes.length][nodeCount];
+
+		for (int node = 0; node < nodeCount; node++) {
+			identifiers[node] = string(nodes.get(node).getIdentifier());
+		}
+
+		for (int a = 0; a < attributes.length; a++) {
+			string(attributes[a]);
+
+			for (int node = 0; node < nodeCount; node++) {
+				Object value = nodes.get(node).getAttribute(attributes[a]);
+				attributeValues[a][node] = value == null ? -1 : string(String.valueOf(value));
+			}
+		}
+
+		for (int slot = 0; slot < slotCount; slot++) {
+			MetricSchema.StageHandle handle = schema.getHandle(slot);
+			string(handle.getPhase().getName());
+			string(handle.getLevel().getName());
+			string(handle.getStage().getName());
+		}
+
+		// Section offsets
+		long valuesOffset = HEADER_SIZE;
+		long childValuesOffset = valuesOffset + 8L * slotCount * nodeCount;
+		long presentOffset = childValuesOffset + 8L * slotCount * nodeCount;
+		long childPresentOffset = presentOffset + 8L * slotCount * words;
+		long identifiersOffset = childPresentOffset + 8L * slotCount * words;
+		long parentsOffset = identifiersOffset + 4L * nodeCount;
+		long subtreeEndsOffset = parentsOffset + 4L * nodeCount;
+		long attributeNamesOffset = subtreeEndsOffset + 4L * nodeCount;
+		long attributesOffset = attributeNamesOffset + 4L * attributes.length;
+		long slotNamesOffset = attributesOffset + 4L * attributes.length * nodeCount;
+		long dictionaryOffset = slotNamesOffset + 12L * slotCount;
+
+		// Dictionary: end offsets (relative to the first string), then the strings
+		byte[][] encoded = new byte[strings.size()][];
+		long size = dictionaryOffset + 4L * strings.size();
+		int i = 0;
+
+		for (String value : strings.keySet()) {
+			encoded[i] = value.getBytes(UTF_8);
+			size += encoded[i].length;
+			i++;
+		}
+
+		if(size > Integer.MAX_VALUE){
+			throw new IOException("The dump of " + nodeCount + " metrics would have "
+					+ size + " bytes, and dumps are limited to 2 GB");
+		}
+
+		// Header
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(nodeCount);
+		out.writeInt(slotCount);
+		out.writeInt(attributes.length);
+		out.writeInt(strings.size());
+		out.writeInt(configIdentifier);
+		out.writeInt(0);
+		out.writeLong(valuesOffset);
+		out.writeLong(childValuesOffset);
+		out.writeLong(presentOffset);
+		out.writeLong(childPresentOffset);
+		out.writeLong(identifiersOffset);
+		out.writeLong(parentsOffset);
+		out.writeLong(subtreeEndsOffset);
+		out.writeLong(attributeNamesOffset);
+		out.writeLong(attributesOffset);
+		out.writeLong(slotNamesOffset);
+		out.writeLong(dictionaryOffset);
+		out.writeLong(0);
+
+		// Own values and the values held by the fathers
+		int[] ordinals = childOrdinals();
+		long[] present = new long[words];
+		long[] childPresent = new long[words];
+		long[][] presentColumns = new long[slotCount][];
+		long[][] childPresentColumns = new long[slotCount][];
+
+		for (int slot = 0; slot < slotCount; slot++) {
+			Arrays.fill(present, 0);
+
+			for (int node = 0; node < nodeCount; node++) {
+				MeasurementStore measurements = nodes.get(node).measurements();
+				long value = 0;
+
+				if(measurements.hasValue(slot)){
+					value = measurements.getOwnValue(slot);
+					present[node >>> 6] |= 1L << node;
+				}
+
+				out.writeLong(value);
+			}
+
+			presentColumns[slot] = present.clone();
+		}
+
+		for (int slot = 0; slot < slotCount; slot++) {
+			Arrays.fill(childPresent, 0);
+
+			for (int node = 0; node < nodeCount; node++) {
+				Long value = childValue(node, ordinals[node], slot);
+
+				if(value != null){
+					childPresent[node >>> 6] |= 1L << node;
+				}
+
+				out.writeLong(value == null ? 0 : value);
+			}
+
+			childPresentColumns[slot] = childPresent.clone();
+		}
+
+		for (int slot = 0; slot < slotCount; slot++) {
+			for (int w = 0; w < words; w++) {
+				out.writeLong(presentColumns[slot][w]);
+			}
+		}
+
+		for (int slot = 0; slot < slotCount; slot++) {
+			for (int w = 0; w < words; w++) {
+				out.writeLong(childPresentColumns[slot][w]);
+			}
+		}
+
+		// Tree structure
+		for (int node = 0; node < nodeCount; node++) {
+			out.writeInt(identifiers[node]);
+		}
+
+		for (int node = 0; node < nodeCount; node++) {
+			out.writeInt(parents.get(node));
+		}
+
+		for (int node = 0; node < nodeCount; node++) {
+			out.writeInt(subtreeEnds.get(node));
+		}
+
+		// Attributes
+		for (int a = 0; a < attributes.length; a++) {
+			out.writeInt(strings.get(attributes[a]));
+		}
+
+		for (int a = 0; a < attributes.length; a++) {
+			for (int node = 0; node < nodeCount; node++) {
+				out.writeInt(attributeValues[a][node]);
+			}
+		}
+
+		// Phase-level-stage names
+		for (int slot = 0; slot < slotCount; slot++) {
+			MetricSchema.StageHandle handle = schema.getHandle(slot);
+			out.writeInt(strings.get(handle.getPhase().getName()));
+			out.writeInt(strings.get(handle.getLevel().getName()));
+			out.writeInt(strings.get(handle.getStage().getName()));
+		}
+
+		// Dictionary
+		int end = 0;
+
+		for (int j = 0; j < encoded.length; j++) {
+			end += encoded[j].length;
+			out.writeInt(end);
+		}
+
+		for (int j = 0; j < encoded.length; j++) {
+			out.write(encoded[j]);
+		}
+	}
+
+	/**
+	 * @return	Each node's ordinal in its father (or -1 for the root, or if
+	 * 			the father has no ordinal for it)
+	 */
+	private int[] childOrdinals(){
+		int[] ordinals = new int[nodes.size()];
+
+		for (int node = 0; node < ordinals.length; node++) {
+			int parent = parents.get(node);
+			ordinals[node] = parent < 0 ? -1 :
+				nodes.get(parent).childOrdinals().ordinalOf(nodes.get(node).getIdentifier());
+		}
+
+		return ordinals;
+	}
+
+	/**
+	 * @return	The value the node's father holds for the node in a slot, or
+	 * 			null if there is none
+	 */
+	private Long childValue(int node, int ordinal, int slot){
+		int parent = parents.get(node);
+
+		if(parent < 0 || !nodes.get(parent).measurements().isSet(slot)){
+			return null;
+		}
+
+		Metric father = nodes.get(parent);
+		Measurement measurement = father.measurements().get(slot);
+
+		if(measurement.isBoundTo(father.childOrdinals())){
+			return ordinal >= 0 && measurement.hasChildValue(ordinal) ?
+					measurement.getChildValue(ordinal) : null;
+		}
+
+		return measurement.getChildValues().get(nodes.get(node).getIdentifier());
+	}
+
+}
@@ -0,0 +1,367 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class reads the files written by ColumnarDump. The file is mapped
+ * into memory and each query only touches the bytes it needs: reading a
+ * node's value in a stage, or a whole stage column, does not read nor decode
+ * the rest of the file. Files are limited to 2 GB (a single mapping, with
+ * int positions): larger files are rejected when they are opened.
+ *
+ * Nodes are identified by their depth-first position (the root is node 0),
+ * and phase-level-stages by their schema slot.
+ *
+ * @see ColumnarDump
+ */
+public final class ColumnarDumpReader implements Closeable {
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final int nodeCount;
+	private final int slotCount;
+	private final int attributeCount;
+	private final int stringCount;
+	private final int configIdentifier;
+	private final int words;
+	private final int valuesOffset;
+	private final int childValuesOffset;
+	private final int presentOffset;
+	private final int childPresentOffset;
+	private final int identifiersOffset;
+	private final int parentsOffset;
+	private final int subtreeEndsOffset;
+	private final int attributeNamesOffset;
+	private final int attributesOffset;
+	private final int slotNamesOffset;
+	private final int dictionaryOffset;
+
+	/**
+	 * @param source		The dump file
+	 * @throws IOException	It's thrown when the file cannot be mapped, it is
+	 * 						not a dump file, or it is larger than 2 GB
+	 */
+	public ColumnarDumpReader(File source) throws IOException {
+		file = new RandomAccessFile(source, "r");
+
+		try {
+			long length = file.length();
+
+			if(length > Integer.MAX_VALUE){
+				throw new IOException(source + " has " + length
+						+ " bytes, and dumps larger than 2 GB cannot be read");
+			}
+
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+
+		if(buffer.capacity() < ColumnarDump.HEADER_SIZE
+				|| buffer.getInt(0) != ColumnarDump.MAGIC){
+			file.close();
+			throw new IOException(source + " is not a metrics dump file");
+		}
+
+		if(buffer.getInt(4) != ColumnarDump.VERSION){
+			file.close();
+			throw new IOException("Unsupported dump version " + buffer.getInt(4));
+		}
+
+		nodeCount = buffer.getInt(8);
+		slotCount = buffer.getInt(12);
+		attributeCount = buffer.getInt(16);
+		stringCount = buffer.getInt(20);
+		configIdentifier = buffer.getInt(24);
+		words = (nodeCount + 63) >>> 6;
+
+		// The sections follow each other, within the file
+		long previous = ColumnarDump.HEADER_SIZE;
+
+		for (int position = 32; position <= 112; position += 8) {
+			long offset = buffer.getLong(position);
+
+			if(offset < previous || offset > buffer.capacity()){
+				file.close();
+				throw new IOException(source + " is truncated or corrupted (section at "
+						+ offset + " of " + buffer.capacity() + " bytes)");
+			}
+
+			previous = offset;
+		}
+
+		valuesOffset = (int) buffer.getLong(32);
+		childValuesOffset = (int) buffer.getLong(40);
+		presentOffset = (int) buffer.getLong(48);
+		childPresentOffset = (int) buffer.getLong(56);
+		identifiersOffset = (int) buffer.getLong(64);
+		parentsOffset = (int) buffer.getLong(72);
+		subtreeEndsOffset = (int) buffer.getLong(80);
+		attributeNamesOffset = (int) buffer.getLong(88);
+		attributesOffset = (int) buffer.getLong(96);
+		slotNamesOffset = (int) buffer.getLong(104);
+		dictionaryOffset = (int) buffer.getLong(112);
+	}
+
+	public int getNodeCount(){
+		return nodeCount;
+	}
+
+	public int getSlotCount(){
+		return slotCount;
+	}
+
+	public int getAttributeCount(){
+		return attributeCount;
+	}
+
+	/**
+	 * @return	The identifier of the configuration the metrics were
+	 * 			configured with
+	 */
+	public String getConfigIdentifier(){
+		return string(configIdentifier);
+	}
+
+	/**
+	 * @param node	The node
+	 * @return		The node's metric identifier
+	 */
+	public String getIdentifier(int node){
+		return string(buffer.getInt(identifiersOffset + 4 * node));
+	}
+
+	/**
+	 * Finds a node by its metric identifier (only the identifiers column is
+	 * read).
+	 *
+	 * @param identifier	The metric identifier
+	 * @return				The first node with that identifier, or -1 if
+	 * 						there is none
+	 */
+	public int findNode(String identifier){
+		int index = findString(identifier);
+
+		for (int node = 0; index >= 0 && node < nodeCount; node++) {
+			if(buffer.getInt(identifiersOffset + 4 * node) == index){
+				return node;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @param node	The node
+	 * @return		The node's father, or -1 for the root
+	 */
+	public int getParent(int node){
+		return buffer.getInt(parentsOffset + 4 * node);
+	}
+
+	/**
+	 * @param node	The node
+	 * @return		The node's children, in the order they were added
+	 */
+	public int[] getChildren(int node){
+		int end = buffer.getInt(subtreeEndsOffset + 4 * node);
+		int count = 0;
+
+		for (int child = node + 1; child < end; child = buffer.getInt(subtreeEndsOffset + 4 * child)) {
+			count++;
+		}
+
+		int[] children = new int[count];
+		count = 0;
+
+		for (int child = node + 1; child < end; child = buffer.getInt(subtreeEndsOffset + 4 * child)) {
+			children[count++] = child;
+		}
+
+		return children;
+	}
+
+	/**
+	 * @param node	The node
+	 * @return		The position right after the last node of the node's
+	 * 				subtree (i.e., its descendants are the nodes in between)
+	 */
+	public int getSubtreeEnd(int node){
+		return buffer.getInt(subtreeEndsOffset + 4 * node);
+	}
+
+	/**
+	 * @param attribute		The attribute's position in the configuration
+	 * @return				The attribute's name
+	 */
+	public String getAttributeName(int attribute){
+		return string(buffer.getInt(attributeNamesOffset + 4 * attribute));
+	}
+
+	/**
+	 * @param node			The node
+	 * @param attribute		The attribute's position in the configuration
+	 * @return				The attribute's value (as a string), or null if it
+	 * 						was not set
+	 */
+	public String getAttribute(int node, int attribute){
+		return string(buffer.getInt(attributesOffset + 4 * (attribute * nodeCount + node)));
+	}
+
+	/**
+	 * Finds the slot of a phase-level-stage.
+	 *
+	 * @param phase		The measurement phase
+	 * @param level		The measurement level
+	 * @param stage		The specific stage
+	 * @return			The slot, or -1 if it was not configured
+	 */
+	public int findSlot(String phase, String level, String stage){
+		int phaseIndex = findString(phase);
+		int levelIndex = findString(level);
+		int stageIndex = findString(stage);
+
+		for (int slot = 0; slot < slotCount; slot++) {
+			int offset = slotNamesOffset + 12 * slot;
+
+			if(buffer.getInt(offset) == phaseIndex
+					&& buffer.getInt(offset + 4) == levelIndex
+					&& buffer.getInt(offset + 8) == stageIndex){
+				return slot;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @param slot	The schema slot
+	 * @return		The phase, level and stage names of the slot
+	 */
+	public String[] getSlotNames(int slot){
+		int offset = slotNamesOffset + 12 * slot;
+		return new String[]{
+				string(buffer.getInt(offset)),
+				string(buffer.getInt(offset + 4)),
+				string(buffer.getInt(offset + 8))};
+	}
+
+	/**
+	 * @param node	The node
+	 * @param slot	The schema slot
+	 * @return		Whether the node had an own value in the slot
+	 */
+	public boolean hasValue(int node, int slot){
+		return isPresent(presentOffset, node, slot);
+	}
+
+	/**
+	 * @param node	The node
+	 * @param slot	The schema slot
+	 * @return		The node's own value in the slot (0 if there is none)
+	 */
+	public long getValue(int node, int slot){
+		return buffer.getLong(valuesOffset + 8 * (slot * nodeCount + node));
+	}
+
+	/**
+	 * @param node	The node
+	 * @param slot	The schema slot
+	 * @return		Whether the node's father held a value for the node
+	 */
+	public boolean hasChildValue(int node, int slot){
+		return isPresent(childPresentOffset, node, slot);
+	}
+
+	/**
+	 * @param node	The node
+	 * @param slot	The schema slot
+	 * @return		The value the node's father held for the node (0 if there
+	 * 				is none)
+	 */
+	public long getChildValue(int node, int slot){
+		return buffer.getLong(childValuesOffset + 8 * (slot * nodeCount + node));
+	}
+
+	/**
+	 * Returns the own values of all the nodes in a slot, without copying
+	 * them (nodes without a value have 0; see hasValue).
+	 *
+	 * @param slot	The schema slot
+	 * @return		A read-only view of the slot's column, indexed by node
+	 */
+	public LongBuffer getValues(int slot){
+		ByteBuffer column = buffer.duplicate();
+		column.position(valuesOffset + 8 * slot * nodeCount);
+		column.limit(valuesOffset + 8 * (slot + 1) * nodeCount);
+		return column.slice().asLongBuffer().asReadOnlyBuffer();
+	}
+
+	private boolean isPresent(int offset, int node, int slot){
+		long word = buffer.getLong(offset + 8 * (slot * words + (node >>> 6)));
+		return (word & (1L << node)) != 0;
+	}
+
+	/**
+	 * @param value		A string
+	 * @return			The string's dictionary index, or -1 if it is not in
+	 * 					the dictionary
+	 */
+	private int findString(String value){
+		byte[] encoded = value.getBytes(ColumnarDump.UTF_8);
+
+		for (int index = 0; index < stringCount; index++) {
+			int start = stringStart(index);
+			int end = dictionaryOffset + 4 * stringCount + buffer.getInt(dictionaryOffset + 4 * index);
+
+			if(end - start == encoded.length){
+				boolean equal = true;
+
+				for (int i = 0; equal && i < encoded.length; i++) {
+					equal = buffer.get(start + i) == encoded[i];
+				}
+
+				if(equal){
+					return index;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	private int stringStart(int index){
+		int strings = dictionaryOffset + 4 * stringCount;
+		return index == 0 ? strings : strings + buffer.getInt(dictionaryOffset + 4 * (index - 1));
+	}
+
+	private String string(int index){
+		if(index < 0){
+			return null;
+		}
+
+		int start = stringStart(index);
+		int end = dictionaryOffset + 4 * stringCount + buffer.getInt(dictionaryOffset + 4 * index);
+		byte[] encoded = new byte[end - start];
+
+		for (int i = 0; i < encoded.length; i++) {
+			encoded[i] = buffer.get(start + i);
+		}
+
+		return new String(encoded, ColumnarDump.UTF_8);
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+}
@@ -0,0 +1,286 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * This class accumulates recorded values into a fixed number of log-linear
+ * buckets: values are grouped by their power of two, and each power of two is
+ * split into 2^precision linear sub-buckets. Recording takes constant time
+ * and memory does not depend on the number of recorded values. Count,
+ * minimum, maximum and mean are exact; percentiles are accurate within a
+ * relative error of 2^-precision. Negative values are counted in the first
+ * bucket.
+ *
+ * This class is not thread-safe.
+ */
+public class LatencyHistogram implements Serializable {
+
+	/**
+	 * Default serial version UID
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default number of bits used to split each power of two (i.e., a
+	 * relative error of about 3%)
+	 */
+	public static final int DEFAULT_PRECISION = 5;
+
+	private final int precision;
+	private final long[] counts;
+	private long count;
+	private long min;
+	private long max;
+	private long sum;
+
+	public LatencyHistogram(){
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * @param precision		The number of bits used to split each power of two
+	 * 						(between 1 and 10)
+	 */
+	public LatencyHistogram(int precision){
+		if(precision < 1 || precision > 10){
+			throw new IllegalArgumentException("The precision must be between 1 "
+					+ "and 10. " + precision + " was found");
+		}
+
+		this.precision = precision;
+		this.counts = new long[(64 - precision) << precision];
+		this.min = Long.MAX_VALUE;
+		this.max = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param value		The value to record
+	 */
+	public void record(long value){
+		counts[bucketOf(value)]++;
+		count++;
+		sum += value;
+
+		if(value < min) min = value;
+		if(value > max) max = value;
+	}
+
+	/**
+	 * Records a value several times.
+	 *
+	 * @param value		The value to record
+	 * @param times		The number of times it is recorded
+	 */
+	public void record(long value, long times){
+		if(times <= 0){
+			return;
+		}
+
+		counts[bucketOf(value)] += times;
+		count += times;
+		sum += value * times;
+
+		if(value < min) min = value;
+		if(value > max) max = value;
+	}
+
+	/**
+	 * Adds all the values recorded in another histogram with the same
+	 * precision.
+	 *
+	 * @param other		The histogram to add
+	 */
+	public void add(LatencyHistogram other){
+		if(other.precision != precision){
+			throw new IllegalArgumentException("Cannot add histograms with "
+					+ "different precision (" + precision + " and "
+					+ other.precision + ")");
+		}
+
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+
+		count += other.count;
+		sum += other.sum;
+
+		if(other.min < min) min = other.min;
+		if(other.max > max) max = other.max;
+	}
+
+	/**
+	 * Returns (an approximation of) the value below which the given percentage
+	 * of the recorded values fall.
+	 *
+	 * @param percentile	The percentile, between 0 and 100
+	 * @return				The value at the percentile, or 0 if there are no
+	 * 						recorded values
+	 */
+	public long getPercentile(double percentile){
+		if(count == 0){
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * count);
+		long accumulated = 0;
+
+		if(rank < 1) rank = 1;
+
+		for (int i = 0; i < counts.length; i++) {
+			accumulated += counts[i];
+
+			if(accumulated >= rank){
+				return Math.max(min, Math.min(max, highestValueOf(i)));
+			}
+		}
+
+		return max;
+	}
+
+	/**
+	 * @param value		A recorded value
+	 * @return			The bucket in which the value is counted
+	 */
+	private int bucketOf(long value){
+		if(value < 0){
+			return 0;
+		}
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - precision;
+
+		if(shift < 0){
+			return (int) value;
+		}
+
+		return ((shift + 1) << precision) + (int) ((value >>> shift) & ((1 << precision) - 1));
+	}
+
+	/**
+	 * @param bucket	A bucket index
+	 * @return			The highest value counted in the bucket
+	 */
+	private long highestValueOf(int bucket){
+		int shift = (bucket >>> precision) - 1;
+
+		if(shift < 0){
+			return bucket;
+		}
+
+		long lowest = ((long) ((bucket & ((1 << precision) - 1)) + (1 << precision))) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Writes this histogram in a compact form: the precision, the exact 
+	 * statistics and only the non-empty buckets.
+	 *
+	 * @param out			The output
+	 * @throws IOException	It's thrown when something went bad at writing
+	 * @see MetricCodec
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		int buckets = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+			if(counts[i] != 0) buckets++;
+		}
+
+		out.writeByte(precision);
+		out.writeLong(count);
+		out.writeLong(min);
+		out.writeLong(max);
+		out.writeLong(sum);
+		out.writeInt(buckets);
+
+		for (int i = 0; i < counts.length; i++) {
+			if(counts[i] != 0){
+				out.writeShort(i);
+				out.writeLong(counts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads a histogram written by writeTo(DataOutput).
+	 *
+	 * @param in			The input
+	 * @return				The histogram
+	 * @throws IOException	It's thrown when something went bad at reading
+	 */
+	static LatencyHistogram readFrom(DataInput in) throws IOException {
+		int precision = in.readByte();
+		LatencyHistogram histogram;
+
+		try {
+			histogram = new LatencyHistogram(precision);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Malformed histogram precision " + precision, e);
+		}
+
+		histogram.count = in.readLong();
+		histogram.min = in.readLong();
+		histogram.max = in.readLong();
+		histogram.sum = in.readLong();
+
+		int buckets = in.readInt();
+
+		for (int i = 0; i < buckets; i++) {
+			int bucket = in.readUnsignedShort();
+
+			if(bucket >= histogram.counts.length){
+				throw new IOException("Malformed histogram bucket " + bucket);
+			}
+
+			histogram.counts[bucket] = in.readLong();
+		}
+
+		return histogram;
+	}
+
+	public long getCount(){
+		return count;
+	}
+
+	/**
+	 * @return	The lowest recorded value, or 0 if there are no recorded values
+	 */
+	public long getMin(){
+		return count == 0 ? 0 : min;
+	}
+
+	/**
+	 * @return	The highest recorded value, or 0 if there are no recorded values
+	 */
+	public long getMax(){
+		return count == 0 ? 0 : max;
+	}
+
+	public long getSum(){
+		return sum;
+	}
+
+	/**
+	 * @return	The arithmetic mean of the recorded values, or 0 if there are
+	 * 			no recorded values
+	 */
+	public double getMean(){
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	public int getPrecision(){
+		return precision;
+	}
+
+	@Override
+	public String toString(){
+		return "n=" + count + " min=" + getMin() + " mean=" + Math.round(getMean())
+				+ " p50=" + getPercentile(50) + " p99=" + getPercentile(99)
+				+ " max=" + getMax();
+	}
+
+}
@@ -0,0 +1,223 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class maps a file as a single-producer/single-consumer ring of
+ * fixed-size records, shared by two processes. Records use the layout of
+ * the MeasurementJournal's records: the checksum (written last) covers the
+ * record's sequence number, so the consumer knows a record is complete, and
+ * is not a record of a previous lap, without any other synchronization.
+ * The consumer publishes how far it has read, so the producer does not
+ * overwrite unread records.
+ *
+ * File layout: a header line (magic number, version, capacity and a closed
+ * flag), the consumer's position in its own cache line, and the records.
+ *
+ * The accesses to the mapped memory are plain loads and stores, ordered by
+ * fences (see MemoryFences): the words that publish something (the magic
+ * number, a record's checksum, the consumer's position and the closed flag)
+ * are stored after a release fence, and loaded before an acquire fence. The
+ * consumer copies each record once its checksum is loaded, and validates
+ * and applies the copy. Rings are not created nor opened on Java runtimes
+ * without fences.
+ *
+ * @see MeasurementJournal
+ */
+final class MappedRing {
+
+	static final int MAGIC = 0x504D5231;
+	static final int VERSION = 1;
+
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int CLOSED_OFFSET = 12;
+	private static final int READ_OFFSET = 64;
+	private static final int HEADER_SIZE = 128;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+
+	private MappedRing(RandomAccessFile file, MappedByteBuffer buffer, int capacity){
+		this.file = file;
+		this.buffer = buffer;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Creates (or overwrites) a ring file. The magic number is written last,
+	 * so consumers do not open a ring that is not initialized.
+	 *
+	 * @param source		The file
+	 * @param capacity		The number of records
+	 * @return				The ring
+	 * @throws IOException	It's thrown when the file cannot be mapped
+	 */
+	static MappedRing create(File source, int capacity) throws IOException {
+		checkFences();
+		RandomAccessFile file = new RandomAccessFile(source, "rw");
+
+		try {
+			file.setLength(0);
+			MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE + (long) capacity * MeasurementJournal.RECORD_SIZE);
+
+			buffer.putInt(VERSION_OFFSET, VERSION);
+			buffer.putInt(CAPACITY_OFFSET, capacity);
+			MemoryFences.release();
+			buffer.putInt(MAGIC_OFFSET, MAGIC);
+			return new MappedRing(file, buffer, capacity);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a ring file created by a producer.
+	 *
+	 * @param source		The file
+	 * @return				The ring
+	 * @throws IOException	It's thrown when the file is not an initialized
+	 * 						ring, or it cannot be mapped
+	 */
+	static MappedRing open(File source) throws IOException {
+		checkFences();
+		RandomAccessFile file = new RandomAccessFile(source, "rw");
+
+		try {
+			if(file.length() < HEADER_SIZE){
+				throw new IOException("The ring " + source + " is not initialized");
+			}
+
+			MappedByteBuffer header = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, HEADER_SIZE);
+
+			int magic = header.getInt(MAGIC_OFFSET);
+			MemoryFences.acquire();
+
+			if(magic != MAGIC || header.getInt(VERSION_OFFSET) != VERSION){
+				throw new IOException("The ring " + source + " is not initialized");
+			}
+
+			int capacity = header.getInt(CAPACITY_OFFSET);
+			MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE + (long) capacity * MeasurementJournal.RECORD_SIZE);
+
+			return new MappedRing(file, buffer, capacity);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private static void checkFences() throws IOException {
+		if(!MemoryFences.isAvailable()){
+			throw new IOException("This Java runtime has no memory fences, so rings "
+					+ "cannot be shared with other processes");
+		}
+	}
+
+	/**
+	 * @param index		A record's sequence number
+	 * @return			The record's position in the buffer
+	 */
+	int position(long index){
+		return HEADER_SIZE + (int) (index % capacity) * MeasurementJournal.RECORD_SIZE;
+	}
+
+	MappedByteBuffer buffer(){
+		return buffer;
+	}
+
+	int capacity(){
+		return capacity;
+	}
+
+	/**
+	 * Copies a record, if it is complete and was written with the given
+	 * sequence number. Its checksum is loaded first, so the rest of the copy
+	 * is what the producer wrote before it, and the copy can be validated and
+	 * applied without reading the shared memory again.
+	 *
+	 * @param index		The record's sequence number
+	 * @param record	The buffer into which the record is copied (at least
+	 * 					RECORD_SIZE bytes, from its position 0)
+	 * @return			Whether the record is complete
+	 */
+	boolean read(long index, ByteBuffer record){
+		int position = position(index);
+		int checksum = buffer.getInt(position + 60);
+		MemoryFences.acquire();
+
+		for (int i = 0; i < 56; i += 8) {
+			record.putLong(i, buffer.getLong(position + i));
+		}
+
+		record.putInt(56, buffer.getInt(position + 56));
+		record.putInt(60, checksum);
+		return MeasurementJournal.isValid(record, 0, index);
+	}
+
+	/**
+	 * @return	The sequence number of the next record the consumer reads (the
+	 * 			records before it can be overwritten)
+	 */
+	long readIndex(){
+		long index = buffer.getLong(READ_OFFSET);
+		MemoryFences.acquire();
+		return index;
+	}
+
+	/**
+	 * Publishes the consumer's position, after a release fence: the records
+	 * read before are not read after the producer sees it, so the producer
+	 * does not overwrite a record while it is being read.
+	 *
+	 * @param index		The sequence number of the next record to read
+	 */
+	void setReadIndex(long index){
+		MemoryFences.release();
+		buffer.putLong(READ_OFFSET, index);
+	}
+
+	/**
+	 * Tells the producer the consumer will not read the ring anymore, so it
+	 * does not wait for free records.
+	 */
+	void abandon(){
+		setReadIndex(Long.MAX_VALUE / 2);
+	}
+
+	/**
+	 * @return	Whether the producer closed the ring (the records written
+	 * 			before are visible once it returns true)
+	 */
+	boolean isClosed(){
+		boolean closed = buffer.getInt(CLOSED_OFFSET) != 0;
+		MemoryFences.acquire();
+		return closed;
+	}
+
+	/**
+	 * Marks the ring as closed by the producer: the consumer drops it once
+	 * it has read every record. The flag is stored after a release fence, so
+	 * the consumer does not see it before the records written before.
+	 */
+	void markClosed(){
+		MemoryFences.release();
+		buffer.putInt(CLOSED_OFFSET, 1);
+	}
+
+	void close() throws IOException {
+		file.close();
+	}
+
+}
@@ -56,16 +56,77 @@ public class Measurement implements Serializable {
 	
 	private final boolean hasValue;
 	private final long value;
-	private final HashMap<String, Long> values;
+	
+	/**
+	 * The ordinals of the children whose values are merged in this measurement
+	 * (shared with all the father's measurements)
+	 */
+	private ChildOrdinals ordinals;
+	
+	/**
+	 * Children's values, indexed by child ordinal (created when the first one
+	 * is set). Both arrays are replaced when they grow, so they are only
+	 * accessed while holding this measurement's lock
+	 */
+	private long[] childValues;
+	
+	/**
+	 * Bitmap of the child ordinals with a set value
+	 */
+	private long[] childPresent;
+	
+	/**
+	 * The number of children with a set value
+	 */
+	private int childCount;
+	
+	/**
+	 * Compatibility view of the children's values (built when requested)
+	 */
+	private transient HashMap<String, Long> values;
+	
+	/**
+	 * The own values, for sampled stages (null otherwise)
+	 */
+	private final LatencyHistogram histogram;
+	
+	/**
+	 * The values merged from the children's (and their descendants') 
+	 * histograms, for sampled stages (created when the first one is merged)
+	 */
+	private LatencyHistogram childrenHistogram;
+	
+	/**
+	 * The father's measurement into which the values recorded in this 
+	 * (sampled) measurement are pushed, when its metric is attached (not 
+	 * serialized: the father binds it again when it is deserialized)
+	 */
+	private transient Measurement pushTarget;
+	
+	/**
+	 * The ordinal of this measurement's metric in the father
+	 */
+	private int pushIndex;
 	
 	/**
 	 * This constructor is used when merging the child's values into the father's.
 	 * At that moment, the father has no value set yet.
 	 */
 	public Measurement(){
+		this((ChildOrdinals) null);
+	}
+	
+	/**
+	 * This constructor is used when merging the child's values into the father's,
+	 * sharing the father's child ordinals.
+	 * 
+	 * @param ordinals		The father's child ordinals
+	 */
+	Measurement(ChildOrdinals ordinals){
 		hasValue = false;
 		value = 0;
-		values = new HashMap<String, Long>();
+		histogram = null;
+		this.ordinals = ordinals;
 	}
 	
 	/**
@@ -76,7 +137,139 @@ public class Measurement implements Serializable {
 	public Measurement(long value){
 		hasValue = true;
 		this.value = value;
-		values = new HashMap<String, Long>();
+		histogram = null;
+	}
+	
+	/**
+	 * This constructor is used for sampled stages, whose values are 
+	 * accumulated in a histogram.
+	 * 
+	 * @param histogram		The histogram in which values are recorded
+	 * @see MeasurementPhase.Stage#isSampled()
+	 */
+	public Measurement(LatencyHistogram histogram){
+		this(histogram, null);
+	}
+	
+	/**
+	 * This constructor is used for sampled stages, sharing the father's child
+	 * ordinals.
+	 * 
+	 * @param histogram		The histogram in which values are recorded
+	 * @param ordinals		The father's child ordinals
+	 */
+	Measurement(LatencyHistogram histogram, ChildOrdinals ordinals){
+		hasValue = false;
+		value = 0;
+		this.histogram = histogram;
+		this.ordinals = ordinals;
+	}
+	
+	/**
+	 * Records a value of a sampled stage.
+	 * 
+	 * @param value		The measured value
+	 */
+	synchronized void record(long value){
+		histogram.record(value);
+		
+		if(pushTarget != null){
+			pushTarget.pushSample(pushIndex, value, getOwnValue());
+		}
+	}
+	
+	/**
+	 * Pushes every value recorded in this (sampled) measurement into the
+	 * father's measurement, and binds them so that subsequent values are
+	 * pushed as they are recorded. It has no effect if they are already bound.
+	 * 
+	 * @param father		The father's measurement
+	 * @param childIndex	The ordinal of this measurement's metric in the father
+	 */
+	synchronized void pushTo(Measurement father, int childIndex){
+		if(pushTarget == null){
+			father.mergeHistograms(this);
+			father.updateValue(childIndex, getOwnValue());
+			pushTarget = father;
+			pushIndex = childIndex;
+		}
+	}
+	
+	/**
+	 * Binds this (sampled) measurement to the father's measurement into which
+	 * its values were already pushed, so that subsequent values are pushed as
+	 * they are recorded.
+	 * 
+	 * @param father		The father's measurement
+	 * @param childIndex	The ordinal of this measurement's metric in the father
+	 */
+	synchronized void bindPush(Measurement father, int childIndex){
+		pushTarget = father;
+		pushIndex = childIndex;
+	}
+	
+	/**
+	 * Accumulates a value recorded by an attached child in a sampled stage.
+	 * 
+	 * @param childIndex	The child's ordinal
+	 * @param value			The recorded value
+	 * @param childValue	The child's updated own value
+	 */
+	private synchronized void pushSample(int childIndex, long value, long childValue){
+		if(childrenHistogram == null){
+			childrenHistogram = new LatencyHistogram(histogram != null ? 
+					histogram.getPrecision() : LatencyHistogram.DEFAULT_PRECISION);
+		}
+		
+		childrenHistogram.record(value);
+		updateValue(childIndex, childValue);
+	}
+	
+	/**
+	 * Accumulates the values recorded by a child in a sampled stage.
+	 * 
+	 * @param child		The child's measurement
+	 */
+	void mergeHistograms(Measurement child){
+		// Locks are always taken from child to father
+		synchronized (child) {
+			synchronized (this) {
+				if(child.histogram == null && child.childrenHistogram == null){
+					return;
+				}
+				
+				if(childrenHistogram == null){
+					childrenHistogram = new LatencyHistogram(histogram != null ? 
+							histogram.getPrecision() : LatencyHistogram.DEFAULT_PRECISION);
+				}
+				
+				if(child.histogram != null) childrenHistogram.add(child.histogram);
+				if(child.childrenHistogram != null) childrenHistogram.add(child.childrenHistogram);
+			}
+		}
+	}
+	
+	/**
+	 * Makes this measurement use the father's child ordinals, unless it 
+	 * already has children's values set by identifier.
+	 * 
+	 * @param ordinals		The father's child ordinals
+	 * @return				This measurement
+	 */
+	synchronized Measurement bind(ChildOrdinals ordinals){
+		if(this.ordinals == null){
+			this.ordinals = ordinals;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * @param ordinals		The father's child ordinals
+	 * @return				Whether this measurement uses the given child ordinals
+	 */
+	synchronized boolean isBoundTo(ChildOrdinals ordinals){
+		return this.ordinals == ordinals;
 	}
 	
 	/**
@@ -86,33 +279,267 @@ public class Measurement implements Serializable {
 	 * @param value				The measurement
 	 * @throws MetricException	It's thrown if there's already a value set for that child
 	 */
-	public void setValue(String key, long value) throws MetricException {
-		if(values.containsKey(key)){
+	public synchronized void setValue(String key, long value) throws MetricException {
+		if(ordinals == null){
+			ordinals = new ChildOrdinals();
+		}
+		
+		setValue(ordinals.register(key), value);
+	}
+	
+	/**
+	 * Adds a child measurement into the father, given the child's ordinal.
+	 * 
+	 * @param childIndex		The child's ordinal in the father
+	 * @param value				The measurement
+	 * @throws MetricException	It's thrown if there's already a value set for that child
+	 */
+	synchronized void setValue(int childIndex, long value) throws MetricException {
+		if(hasChildValue(childIndex)){
 			throw new MetricException(1, 
-					"Element \"" + key + "\" is already set in the composed measurement");
-		}else{
-			values.put(key, value);
+					"Element \"" + ordinals.identifierOf(childIndex) 
+					+ "\" is already set in the composed measurement");
+		}
+		
+		updateValue(childIndex, value);
+	}
+	
+	/**
+	 * Sets a child's value pushed by an attached child, given the child's
+	 * ordinal. Pushing the same value several times has no effect.
+	 * 
+	 * @param childIndex		The child's ordinal in the father
+	 * @param value				The measurement
+	 * @throws MetricException	It's thrown if there's already a different 
+	 * 							value set for that child
+	 */
+	synchronized void pushValue(int childIndex, long value) throws MetricException {
+		if(!hasChildValue(childIndex) || childValues[childIndex] != value){
+			setValue(childIndex, value);
+		}
+	}
+	
+	/**
+	 * Sets (or replaces) a child's value.
+	 * 
+	 * @param key				The child's metric identifier
+	 * @param value				The measurement
+	 */
+	synchronized void updateValue(String key, long value){
+		if(ordinals == null){
+			ordinals = new ChildOrdinals();
+		}
+		
+		updateValue(ordinals.register(key), value);
+	}
+	
+	/**
+	 * Sets (or replaces) a child's value, given the child's ordinal.
+	 * 
+	 * @param childIndex		The child's ordinal in the father
+	 * @param value				The measurement
+	 */
+	synchronized void updateValue(int childIndex, long value){
+		if(hasChildValue(childIndex)){
+			childValues[childIndex] = value;
+			values = null;
+			return;
+		}
+		
+		ensureCapacity(childIndex);
+		childValues[childIndex] = value;
+		childPresent[childIndex >>> 6] |= 1L << childIndex;
+		childCount++;
+		values = null;
+	}
+	
+	/**
+	 * Adds the values of many children at once, as parallel merges do: the
+	 * arrays grow once, and the lock is taken once.
+	 * 
+	 * @param childIndexes		The children's ordinals in the father
+	 * @param newValues			The children's values, by their position in
+	 * 							childIndexes
+	 * @param newPresent		Bitmap of the positions with a value
+	 * @throws MetricException	It's thrown if there's already a value set for
+	 * 							one of the children (then no value is set)
+	 */
+	synchronized void setValues(int[] childIndexes, long[] newValues, long[] newPresent) 
+			throws MetricException {
+		
+		int maxIndex = -1;
+		
+		for (int word = 0; word < newPresent.length; word++) {
+			for (long bits = newPresent[word]; bits != 0; bits &= bits - 1) {
+				int childIndex = childIndexes[(word << 6) + Long.numberOfTrailingZeros(bits)];
+				
+				if(hasChildValue(childIndex)){
+					throw new MetricException(1, 
+							"Element \"" + ordinals.identifierOf(childIndex) 
+							+ "\" is already set in the composed measurement");
+				}
+				
+				maxIndex = Math.max(maxIndex, childIndex);
+			}
+		}
+		
+		if(maxIndex < 0){
+			return;
+		}
+		
+		ensureCapacity(maxIndex);
+		
+		for (int word = 0; word < newPresent.length; word++) {
+			for (long bits = newPresent[word]; bits != 0; bits &= bits - 1) {
+				int i = (word << 6) + Long.numberOfTrailingZeros(bits);
+				int childIndex = childIndexes[i];
+				
+				childValues[childIndex] = newValues[i];
+				childPresent[childIndex >>> 6] |= 1L << childIndex;
+				childCount++;
+			}
+		}
+		
+		values = null;
+	}
+	
+	/**
+	 * Grows the children's arrays, if needed, to hold the given ordinal.
+	 */
+	private void ensureCapacity(int childIndex){
+		if(childValues == null || childIndex >= childValues.length){
+			int capacity = Math.max(childIndex + 1, 
+					Math.max(ordinals.size(), childValues == null ? 4 : childValues.length * 2));
+			long[] tempValues = new long[capacity];
+			long[] tempPresent = new long[(capacity + 63) >>> 6];
+			
+			if(childValues != null){
+				System.arraycopy(childValues, 0, tempValues, 0, childValues.length);
+				System.arraycopy(childPresent, 0, tempPresent, 0, childPresent.length);
+			}
+			
+			childValues = tempValues;
+			childPresent = tempPresent;
 		}
 	}
 	
+	/**
+	 * @param childIndex	The child's ordinal in the father
+	 * @return				Whether there is a value set for that child
+	 */
+	public synchronized boolean hasChildValue(int childIndex){
+		long[] present = childPresent;
+		return present != null && childIndex >= 0 && (childIndex >>> 6) < present.length 
+				&& (present[childIndex >>> 6] & (1L << childIndex)) != 0;
+	}
+	
+	/**
+	 * @param childIndex	The child's ordinal in the father
+	 * @return				The child's value, or 0 if there is none
+	 */
+	public synchronized long getChildValue(int childIndex){
+		return hasChildValue(childIndex) ? childValues[childIndex] : 0;
+	}
+	
+	/**
+	 * Iterates the children with a set value, without creating any object:
+	 * 
+	 * <pre>
+	 * for (int i = m.nextChildIndex(0); i >= 0; i = m.nextChildIndex(i + 1)) {
+	 *     long value = m.getChildValue(i);
+	 * }
+	 * </pre>
+	 * 
+	 * @param fromIndex		The first child ordinal to check
+	 * @return				The first child ordinal (starting at fromIndex) 
+	 * 						with a set value, or -1 if there is none
+	 */
+	public synchronized int nextChildIndex(int fromIndex){
+		long[] present = childPresent;
+		
+		if(present == null || fromIndex < 0){
+			return -1;
+		}
+		
+		int word = fromIndex >>> 6;
+		
+		if(word >= present.length){
+			return -1;
+		}
+		
+		long bits = present[word] & (-1L << fromIndex);
+		
+		while(bits == 0){
+			if(++word == present.length){
+				return -1;
+			}
+			bits = present[word];
+		}
+		
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+	
+	/**
+	 * @return	The number of children with a set value
+	 */
+	public synchronized int getChildCount(){
+		return childCount;
+	}
+	
+	/**
+	 * @param childIndex	The child's ordinal in the father
+	 * @return				The child's metric identifier
+	 */
+	public String getChildIdentifier(int childIndex){
+		return ordinals.identifierOf(childIndex);
+	}
+	
 	/**
 	 * @return Wheater this measurement has a set value or not
 	 */
 	public boolean hasValue(){
-		return hasValue;
+		return histogram != null ? histogram.getCount() > 0 : hasValue;
 	}
 	
 	/**
-	 * @return	The own measurement value
+	 * @return	The own measurement value (for sampled stages, the rounded mean
+	 * 			of the recorded values)
 	 */
 	public long getOwnValue(){
-		return value;
+		return histogram != null ? Math.round(histogram.getMean()) : value;
+	}
+	
+	/**
+	 * @return	The histogram of own values for sampled stages, or null if the
+	 * 			stage is not sampled
+	 */
+	public LatencyHistogram getHistogram(){
+		return histogram;
 	}
 	
 	/**
-	 * @return	A map containing pairs of children's identifier and measurement value
+	 * @return	The histogram of values merged from the children (and their
+	 * 			descendants) for sampled stages, or null if there are none
 	 */
-	public HashMap<String, Long> getChildValues(){
+	public LatencyHistogram getChildrenHistogram(){
+		return childrenHistogram;
+	}
+	
+	/**
+	 * @return	A map containing pairs of children's identifier and measurement
+	 * 			value. This map is a view built from the children's values; 
+	 * 			changes to it are not reflected in this measurement
+	 * @see #nextChildIndex(int)
+	 */
+	public synchronized HashMap<String, Long> getChildValues(){
+		if(values == null){
+			values = new HashMap<String, Long>();
+			
+			for (int i = nextChildIndex(0); i >= 0; i = nextChildIndex(i + 1)) {
+				values.put(ordinals.identifierOf(i), childValues[i]);
+			}
+		}
+		
 		return values;
 	}
 	
@@ -139,12 +566,12 @@ public class Measurement implements Serializable {
 	}
 
 	@Override
-	public String toString(){
-		String str = String.valueOf(value);
+	public synchronized String toString(){
+		String str = histogram != null ? histogram.toString() : String.valueOf(value);
 		
-		if(!values.isEmpty()){
+		if(childCount > 0){
 			str += ", " + 
-					(values.toString().replace("{", "(").replace("}", ")"));
+					(getChildValues().toString().replace("{", "(").replace("}", ")"));
 		}
 		
 		return str;
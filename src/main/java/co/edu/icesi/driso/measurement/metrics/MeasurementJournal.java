@@ -0,0 +1,837 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class appends every change made to the journaled metrics (values
+ * set, attributes set, children merged or attached, partial aggregates
+ * forwarded, clock estimates set) to a file, as fixed-size
+ * binary records. The file is mapped into memory in regions, so appending a
+ * record is a few memory writes (no system call): the operating system
+ * writes the pages back even if the process crashes or is killed. Call
+ * sync() to force them to the disk (e.g., to survive a power outage).
+ *
+ * After a crash, recover(File) rebuilds the metric trees from the journal,
+ * skipping the records that were being written when the process died.
+ *
+ * If the file cannot grow, the journal stops (the journaled metrics are
+ * still changed, but their changes are dropped and counted), and sync() and
+ * close() throw the failure.
+ *
+ * Metrics are journaled from the moment Metric.setJournal is called, along
+ * with the metrics merged into or attached to them afterwards; their
+ * previous values are journaled as a snapshot (the samples of sampled stages
+ * as their mean). Recovered metrics have no journal.
+ *
+ * This class is thread-safe.
+ *
+ * @see Metric#setJournal(MeasurementJournal)
+ */
+public final class MeasurementJournal implements Closeable {
+
+	/**
+	 * The size (in bytes) of each record
+	 */
+	public static final int RECORD_SIZE = 64;
+
+	/**
+	 * Default size (in bytes) of the regions mapped into memory
+	 */
+	public static final int DEFAULT_REGION_SIZE = 1 << 24;
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/*
+	 * Record layout: type (byte), auxiliary byte, 2 reserved bytes, three
+	 * ints (a, b, c), a long value, 36 bytes of payload and a checksum (int)
+	 * of the previous 60 bytes and the record's position. Strings are split
+	 * into chunks of 44 bytes, stored from the value's position on.
+	 */
+	static final int DEFINE = 1;		// a: metric, b: identifier, c: configuration, aux: storage
+	static final int STRING = 2;		// a: string, b: chunk offset, c: total length, aux: chunk length
+	static final int MEASURE = 3;		// a: metric, b: slot, value
+	static final int SAMPLES = 4;		// a: metric, b: slot, value (mean), payload: count
+	static final int ATTRIBUTE = 5;		// a: metric, b: name, c: string value, aux: type, value
+	static final int MERGE = 6;			// a: father, b: child
+	static final int ATTACH = 7;		// a: father, b: child
+	static final int AGGREGATE = 8;		// a: metric, b: source, c: encoded aggregate (a string)
+	static final int CLOCK = 9;			// a: metric, c: encoded estimate (a string), or 0 if none
+
+	static final int CHUNK_OFFSET = 16;
+	static final int CHUNK_SIZE = 60 - CHUNK_OFFSET;
+	static final int COUNT_OFFSET = 24;
+
+	// Attribute types
+	static final int NULL = 0;
+	static final int STRING_VALUE = 1;
+	static final int INTEGER = 2;
+	static final int LONG = 3;
+	static final int DOUBLE = 4;
+	static final int BOOLEAN = 5;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int recordsPerRegion;
+	private final AtomicLong next;
+	private final AtomicInteger metricIds;
+	private final Map<String, Integer> strings;
+	private final AtomicInteger stringIds;
+	private volatile MappedByteBuffer[] regions;
+
+	/**
+	 * Guards the mapping of new regions and closing. It is not the journal's
+	 * lock, which is held while tracking metrics (and journaling strings)
+	 */
+	private final Object regionLock;
+
+	/**
+	 * Whether records are no longer journaled (after closing, or a failure)
+	 */
+	private volatile boolean closed;
+	private boolean fileClosed;
+	private volatile IOException failure;
+	private final AtomicLong dropped;
+
+	/**
+	 * Creates a journal with the default region size.
+	 *
+	 * @param file			The journal file (it is overwritten)
+	 * @throws IOException	It's thrown when the file cannot be mapped
+	 */
+	public MeasurementJournal(File file) throws IOException {
+		this(file, DEFAULT_REGION_SIZE);
+	}
+
+	/**
+	 * @param file			The journal file (it is overwritten)
+	 * @param regionSize	The size (in bytes) of the regions mapped into
+	 * 						memory. The file grows by one region at a time
+	 * @throws IOException	It's thrown when the file cannot be mapped
+	 */
+	public MeasurementJournal(File file, int regionSize) throws IOException {
+		if(regionSize < RECORD_SIZE){
+			throw new IllegalArgumentException("The region size must be at "
+					+ "least " + RECORD_SIZE + " bytes. " + regionSize + " was found");
+		}
+
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		this.recordsPerRegion = regionSize / RECORD_SIZE;
+		this.next = new AtomicLong();
+		this.metricIds = new AtomicInteger();
+		this.strings = new ConcurrentHashMap<String, Integer>();
+		this.stringIds = new AtomicInteger();
+		this.regions = new MappedByteBuffer[0];
+		this.regionLock = new Object();
+		this.dropped = new AtomicLong();
+
+		channel.truncate(0);
+	}
+
+	/**
+	 * Starts journaling a metric (if it is not journaled yet) and its
+	 * subtree: its definition and the values, attributes and children it
+	 * already has.
+	 */
+	synchronized void track(Metric metric){
+		if(metric.getJournal() != null){
+			return;
+		}
+
+		MetricSchema schema = metric.getConfig().getSchema();
+		MeasurementStore measurements = metric.measurements();
+		int id = metricIds.incrementAndGet();
+
+		metric.bindJournal(this, id);
+		write(DEFINE, metric.getStorage().ordinal(), id,
+				string(metric.getIdentifier()), string(metric.getConfig().getIdentifier()), 0, 0);
+
+		// Before the children, as their merges translate the values with it
+		if(metric.getClockEstimate() != null){
+			clock(metric, metric.getClockEstimate());
+		}
+
+		for (Map.Entry<String, Object> attribute : metric.attributes().entrySet()) {
+			attribute(metric, attribute.getKey(), attribute.getValue());
+		}
+
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			if(!measurements.hasValue(slot)){
+				continue;
+			}
+
+			if(schema.getHandle(slot).isSampled()){
+				LatencyHistogram histogram = measurements.get(slot).getHistogram();
+				write(SAMPLES, 0, id, slot, 0,
+						measurements.getOwnValue(slot), histogram.getCount());
+			}else{
+				write(MEASURE, 0, id, slot, 0, measurements.getOwnValue(slot), 0);
+			}
+		}
+
+		List<Metric> children = metric.getChildren();
+
+		for (int i = 0; i < children.size(); i++) {
+			Metric child = children.get(i);
+			track(child);
+			write(child.getParent() == metric ? ATTACH : MERGE, 0,
+					id, child.getJournalId(), 0, 0, 0);
+		}
+
+		Map<String, PartialAggregate> forwarded = metric.forwardedAggregates();
+
+		if(forwarded != null){
+			for (Map.Entry<String, PartialAggregate> aggregate : forwarded.entrySet()) {
+				aggregate(metric, aggregate.getKey(), aggregate.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Journals a value set in a metric.
+	 */
+	void measure(Metric metric, int slot, long value){
+		write(MEASURE, 0, metric.getJournalId(), slot, 0, value, 0);
+	}
+
+	/**
+	 * Journals an attribute set in a metric.
+	 */
+	void attribute(Metric metric, String name, Object value){
+		int type = attributeType(value);
+		int stringValue = type == STRING_VALUE ? string(value.toString()) : 0;
+
+		write(ATTRIBUTE, type, metric.getJournalId(), string(name), stringValue,
+				attributeBits(value), 0);
+	}
+
+	/**
+	 * @return	The type with which an attribute value is recorded
+	 */
+	static int attributeType(Object value){
+		if(value instanceof Integer) return INTEGER;
+		if(value instanceof Long) return LONG;
+		if(value instanceof Double) return DOUBLE;
+		if(value instanceof Boolean) return BOOLEAN;
+		return value == null ? NULL : STRING_VALUE;
+	}
+
+	/**
+	 * @return	The bits with which a numeric or boolean attribute value is
+	 * 			recorded (0 for other values)
+	 */
+	static long attributeBits(Object value){
+		if(value instanceof Integer) return (Integer) value;
+		if(value instanceof Long) return (Long) value;
+		if(value instanceof Double) return Double.doubleToLongBits((Double) value);
+		if(value instanceof Boolean) return (Boolean) value ? 1 : 0;
+		return 0;
+	}
+
+	/**
+	 * Journals a child merged into (or attached to) a father, journaling
+	 * the child first if needed.
+	 */
+	void merge(Metric father, Metric child, boolean attached){
+		track(child);
+		write(attached ? ATTACH : MERGE, 0, father.getJournalId(), child.getJournalId(), 0, 0, 0);
+	}
+
+	/**
+	 * Journals a partial aggregate forwarded to a metric. The aggregate is
+	 * journaled encoded, in the chunks of a string of its own.
+	 */
+	void aggregate(Metric metric, String source, PartialAggregate aggregate){
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try {
+			aggregate.writeTo(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			// Byte array streams do not throw I/O exceptions
+			throw new IllegalStateException(e);
+		}
+
+		write(AGGREGATE, 0, metric.getJournalId(), string(source),
+				chunks(bytes.toByteArray()), 0, 0);
+	}
+
+	/**
+	 * Journals the clock estimate set in a metric. The estimate is journaled
+	 * encoded, in the chunks of a string of its own.
+	 */
+	void clock(Metric metric, ClockEstimate estimate){
+		int encoded = 0;
+
+		if(estimate != null){
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			try {
+				out.writeLong(estimate.getOffset());
+				out.writeDouble(estimate.getDrift());
+				out.writeLong(estimate.getReference());
+				out.writeLong(estimate.getDelay());
+			} catch (IOException e) {
+				// Byte array streams do not throw I/O exceptions
+				throw new IllegalStateException(e);
+			}
+
+			encoded = chunks(bytes.toByteArray());
+		}
+
+		write(CLOCK, 0, metric.getJournalId(), 0, encoded, 0, 0);
+	}
+
+	/**
+	 * @return	The string's identifier, journaling the string if it is new
+	 */
+	private int string(String value){
+		Integer id = strings.get(value);
+
+		if(id != null){
+			return id;
+		}
+
+		synchronized (strings) {
+			id = strings.get(value);
+
+			if(id == null){
+				id = chunks(value.getBytes(UTF_8));
+				strings.put(value, id);
+			}
+
+			return id;
+		}
+	}
+
+	/**
+	 * Journals some bytes as the chunks of a new string.
+	 *
+	 * @return	The string's identifier
+	 */
+	private int chunks(byte[] bytes){
+		int id = stringIds.incrementAndGet();
+		int offset = 0;
+
+		do {
+			int length = Math.min(CHUNK_SIZE, bytes.length - offset);
+			write(id, offset, bytes, length);
+			offset += length;
+		} while(offset < bytes.length);
+
+		return id;
+	}
+
+	private void write(int id, int offset, byte[] bytes, int length){
+		long index = next.getAndIncrement();
+		ByteBuffer region = region(index);
+
+		if(region != null){
+			writeChunk(region, (int) (index % recordsPerRegion) * RECORD_SIZE, index,
+					id, offset, bytes, length);
+		}
+	}
+
+	private void write(int type, int aux, int a, int b, int c, long value, long count){
+		long index = next.getAndIncrement();
+		ByteBuffer region = region(index);
+
+		if(region != null){
+			writeRecord(region, (int) (index % recordsPerRegion) * RECORD_SIZE, index,
+					type, aux, a, b, c, value, count);
+		}
+	}
+
+	/**
+	 * Writes a record in the journal's layout, its checksum last (after a
+	 * release fence, for readers in other processes).
+	 *
+	 * @param region	The buffer
+	 * @param position	The record's position in the buffer
+	 * @param index		The record's sequence number (covered by the checksum)
+	 */
+	static void writeRecord(ByteBuffer region, int position, long index, int type, int aux,
+			int a, int b, int c, long value, long count){
+
+		int head = (type << 24) | (aux << 16);
+		region.putInt(position, head);
+		region.putInt(position + 4, a);
+		region.putInt(position + 8, b);
+		region.putInt(position + 12, c);
+		region.putLong(position + 16, value);
+		region.putLong(position + COUNT_OFFSET, count);
+
+		// Clear the payload, in case the buffer is reused
+		for (int i = COUNT_OFFSET + 8; i < 60; i += 4) {
+			region.putInt(position + i, 0);
+		}
+
+		MemoryFences.release();
+		region.putInt(position + 60, checksum(index, head, a, b, c, value, count));
+	}
+
+	/**
+	 * Writes a chunk of a string in the journal's layout, its checksum last
+	 * (after a release fence, for readers in other processes).
+	 *
+	 * @param region	The buffer
+	 * @param position	The record's position in the buffer
+	 * @param index		The record's sequence number (covered by the checksum)
+	 * @param id		The string's identifier
+	 * @param offset	The chunk's offset in the string's bytes
+	 * @param bytes		The string's bytes
+	 * @param length	The chunk's length (at most CHUNK_SIZE)
+	 */
+	static void writeChunk(ByteBuffer region, int position, long index, int id, int offset,
+			byte[] bytes, int length){
+
+		region.putInt(position, (STRING << 24) | (length << 16));
+		region.putInt(position + 4, id);
+		region.putInt(position + 8, offset);
+		region.putInt(position + 12, bytes.length);
+
+		for (int i = 0; i < CHUNK_SIZE; i++) {
+			region.put(position + CHUNK_OFFSET + i, i < length ? bytes[offset + i] : 0);
+		}
+
+		int checksum = checksum(index, region, position);
+		MemoryFences.release();
+		region.putInt(position + 60, checksum);
+	}
+
+	/**
+	 * @return	The mapped region of a record, mapping it if needed (or null if
+	 * 			the journal is closed, or stopped because the file could not
+	 * 			grow)
+	 */
+	private ByteBuffer region(long index){
+		int number = (int) (index / recordsPerRegion);
+		MappedByteBuffer[] current = regions;
+
+		if(number < current.length){
+			return current[number];
+		}
+
+		synchronized (regionLock) {
+			if(closed){
+				if(failure != null){
+					dropped.incrementAndGet();
+				}
+
+				return null;
+			}
+
+			current = regions;
+
+			if(number >= current.length){
+				current = Arrays.copyOf(current, number + 1);
+
+				for (int i = regions.length; i <= number; i++) {
+					try {
+						current[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+								(long) i * recordsPerRegion * RECORD_SIZE,
+								(long) recordsPerRegion * RECORD_SIZE);
+					} catch (IOException e) {
+						// Not thrown to the metric being changed: the journal stops
+						failure = e;
+						closed = true;
+						dropped.incrementAndGet();
+						return null;
+					}
+				}
+
+				regions = current;
+			}
+
+			return current[number];
+		}
+	}
+
+	/**
+	 * @return	The number of records appended so far (not counting the
+	 * 			dropped ones)
+	 */
+	public long getRecordCount(){
+		return next.get() - dropped.get();
+	}
+
+	/**
+	 * @return	The number of records dropped since the journal stopped
+	 * 			because the file could not grow
+	 */
+	public long getDroppedCount(){
+		return dropped.get();
+	}
+
+	/**
+	 * @return	Why the journal stopped, or null if it did not fail
+	 */
+	public IOException getFailure(){
+		return failure;
+	}
+
+	/**
+	 * Forces the records appended so far to the disk.
+	 *
+	 * @throws IOException	It's thrown when something went bad at writing,
+	 * 						or the journal stopped because the file could
+	 * 						not grow
+	 */
+	public void sync() throws IOException {
+		force();
+		checkFailure();
+	}
+
+	/**
+	 * Forces the records to the disk and closes the file. Changes made to
+	 * the journaled metrics afterwards are not journaled.
+	 *
+	 * @throws IOException	It's thrown when something went bad at writing,
+	 * 						or the journal stopped because the file could
+	 * 						not grow
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (regionLock) {
+			if(fileClosed){
+				return;
+			}
+
+			closed = true;
+			fileClosed = true;
+		}
+
+		try {
+			force();
+		} finally {
+			file.close();
+		}
+
+		checkFailure();
+	}
+
+	private void force(){
+		MappedByteBuffer[] current = regions;
+
+		for (int i = 0; i < current.length; i++) {
+			current[i].force();
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		IOException cause = failure;
+
+		if(cause != null){
+			throw new IOException("The journal stopped because the file could not grow. "
+					+ dropped.get() + " records were dropped", cause);
+		}
+	}
+
+	/**
+	 * Rebuilds the metric trees journaled in a file. Records that were being
+	 * written when the journaling process died are skipped, as well as the
+	 * changes of the metrics whose definition was lost.
+	 *
+	 * @param source			The journal file
+	 * @return					The roots (i.e., the journaled metrics that were
+	 * 							not merged nor attached), in the order they
+	 * 							were journaled
+	 * @throws IOException		It's thrown when the file cannot be read
+	 * @throws MetricException	It's thrown when there is no local configuration
+	 * 							class with a journaled configuration identifier,
+	 * 							or a journaled change cannot be applied
+	 */
+	public static List<Metric> recover(File source) throws IOException, MetricException {
+		RandomAccessFile in = new RandomAccessFile(source, "r");
+		List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size() - channel.size() % RECORD_SIZE;
+			long regionSize = (long) (Integer.MAX_VALUE / RECORD_SIZE) * RECORD_SIZE;
+
+			for (long start = 0; start < size; start += regionSize) {
+				records.add(channel.map(FileChannel.MapMode.READ_ONLY,
+						start, Math.min(regionSize, size - start)));
+			}
+		} finally {
+			in.close();
+		}
+
+		// First pass: strings and definitions (they may follow their uses)
+		Map<Integer, byte[]> chunks = new HashMap<Integer, byte[]>();
+		Map<Integer, Integer> missing = new HashMap<Integer, Integer>();
+		Map<Integer, int[]> definitions = new LinkedHashMap<Integer, int[]>();
+		long index = 0;
+
+		for (ByteBuffer region : records) {
+			for (int position = 0; position < region.capacity(); position += RECORD_SIZE, index++) {
+				if(!isValid(region, position, index)){
+					continue;
+				}
+
+				int type = region.get(position);
+
+				if(type == STRING){
+					int id = region.getInt(position + 4);
+					int offset = region.getInt(position + 8);
+					int total = region.getInt(position + 12);
+					int length = region.get(position + 1);
+					byte[] bytes = chunks.get(id);
+
+					if(bytes == null){
+						bytes = new byte[total];
+						chunks.put(id, bytes);
+						missing.put(id, total);
+					}
+
+					for (int i = 0; i < length; i++) {
+						bytes[offset + i] = region.get(position + CHUNK_OFFSET + i);
+					}
+
+					missing.put(id, missing.get(id) - length);
+				}else if(type == DEFINE){
+					definitions.put(region.getInt(position + 4), new int[]{
+							region.getInt(position + 8), region.getInt(position + 12),
+							region.get(position + 1)});
+				}
+			}
+		}
+
+		Map<Integer, byte[]> complete = new HashMap<Integer, byte[]>();
+		Map<Integer, String> texts = new HashMap<Integer, String>();
+
+		for (Map.Entry<Integer, byte[]> chunk : chunks.entrySet()) {
+			if(missing.get(chunk.getKey()) == 0){
+				complete.put(chunk.getKey(), chunk.getValue());
+				texts.put(chunk.getKey(), new String(chunk.getValue(), UTF_8));
+			}
+		}
+
+		Map<Integer, Metric> metrics = new LinkedHashMap<Integer, Metric>();
+
+		for (Map.Entry<Integer, int[]> definition : definitions.entrySet()) {
+			int[] fields = definition.getValue();
+			String identifier = texts.get(fields[0]);
+			String config = texts.get(fields[1]);
+
+			// Definitions with an unknown storage are lost as well
+			if(identifier != null && config != null
+					&& fields[2] >= 0 && fields[2] < Metric.Storage.values().length){
+				metrics.put(definition.getKey(), new Metric(identifier,
+						MetricFactory.findConfig(config), Metric.Storage.values()[fields[2]]));
+			}
+		}
+
+		// Second pass: changes, in the order they were journaled
+		Set<Metric> children = new HashSet<Metric>();
+		index = 0;
+
+		for (ByteBuffer region : records) {
+			for (int position = 0; position < region.capacity(); position += RECORD_SIZE, index++) {
+				if(!isValid(region, position, index)){
+					continue;
+				}
+
+				int type = region.get(position);
+				Metric metric = metrics.get(region.getInt(position + 4));
+
+				if(metric == null || type == STRING || type == DEFINE){
+					continue;
+				}
+
+				replay(region, position, type, metric, metrics, complete, texts, children);
+			}
+		}
+
+		List<Metric> roots = new ArrayList<Metric>();
+
+		for (Metric metric : metrics.values()) {
+			if(!children.contains(metric)){
+				roots.add(metric);
+			}
+		}
+
+		return roots;
+	}
+
+	private static void replay(ByteBuffer region, int position, int type, Metric metric,
+			Map<Integer, Metric> metrics, Map<Integer, byte[]> bytes, Map<Integer, String> texts,
+			Set<Metric> children) throws MetricException {
+
+		MetricSchema schema = metric.getConfig().getSchema();
+		int b = region.getInt(position + 8);
+		long value = region.getLong(position + 16);
+
+		switch (type) {
+		case MEASURE:
+			try {
+				metric.setMeasure(schema.getHandle(b), value);
+			} catch (MetricException e) {
+				// Set while the metric's snapshot was taken, so journaled twice
+				if(e.getErrorCode() != 5 || metric.measurements().getOwnValue(b) != value){
+					throw e;
+				}
+			}
+			break;
+		case SAMPLES:
+			metric.measurements().sample(b, metric.childOrdinals()).getHistogram()
+				.record(value, region.getLong(position + COUNT_OFFSET));
+			metric.invalidate();
+			metric.invalidateValues();
+			break;
+		case ATTRIBUTE:
+			String name = texts.get(b);
+
+			if(name != null){
+				Object attribute = attributeValue(region.get(position + 1),
+						texts.get(region.getInt(position + 12)), value);
+
+				try {
+					metric.setAttribute(name, attribute);
+				} catch (MetricException e) {
+					// Set while the metric's snapshot was taken, so journaled twice
+					Object previous = metric.getAttribute(name);
+
+					if(e.getErrorCode() != 4
+							|| (previous == null ? attribute != null : !previous.equals(attribute))){
+						throw e;
+					}
+				}
+			}
+			break;
+		case MERGE:
+		case ATTACH:
+			Metric child = metrics.get(b);
+
+			if(child != null){
+				if(type == MERGE){
+					metric.merge(child);
+				}else{
+					metric.attach(child);
+				}
+
+				children.add(child);
+			}
+			break;
+		case AGGREGATE:
+			String source = texts.get(b);
+			byte[] encoded = bytes.get(region.getInt(position + 12));
+
+			if(source != null && encoded != null){
+				PartialAggregate aggregate;
+
+				try {
+					aggregate = PartialAggregate.readFrom(
+							new DataInputStream(new ByteArrayInputStream(encoded)), schema);
+				} catch (IOException e) {
+					// Journaled with another version of the configuration
+					break;
+				}
+
+				metric.mergeAggregate(source, aggregate);
+			}
+			break;
+		case CLOCK:
+			int encodedEstimate = region.getInt(position + 12);
+
+			if(encodedEstimate == 0){
+				metric.setClockEstimate(null);
+			}else if(bytes.containsKey(encodedEstimate)){
+				DataInputStream in = new DataInputStream(
+						new ByteArrayInputStream(bytes.get(encodedEstimate)));
+
+				try {
+					metric.setClockEstimate(new ClockEstimate(in.readLong(), in.readDouble(),
+							in.readLong(), in.readLong()));
+				} catch (IOException e) {
+					// Not an estimate: the record is lost
+				}
+			}
+			break;
+		}
+	}
+
+	static Object attributeValue(int type, String text, long value){
+		switch (type) {
+		case STRING_VALUE:	return text;
+		case INTEGER:		return (int) value;
+		case LONG:			return value;
+		case DOUBLE:		return Double.longBitsToDouble(value);
+		case BOOLEAN:		return value != 0;
+		default:			return null;
+		}
+	}
+
+	/**
+	 * @param region	The buffer
+	 * @param position	The record's position in the buffer
+	 * @param index		The record's sequence number
+	 * @return			Whether the record is complete, and was written with
+	 * 					the given sequence number
+	 */
+	static boolean isValid(ByteBuffer region, int position, long index){
+		int type = region.get(position);
+
+		if(type < DEFINE || type > CLOCK){
+			return false;
+		}
+
+		return region.getInt(position + 60) == checksum(index, region, position);
+	}
+
+	/**
+	 * @return	A checksum of the first 60 bytes of a record and its position
+	 */
+	private static int checksum(long index, ByteBuffer region, int position){
+		int hash = (int) (index ^ (index >>> 32)) * 0x9E3779B9;
+
+		for (int i = 0; i < 60; i += 4) {
+			hash = (hash ^ region.getInt(position + i)) * 0x01000193;
+		}
+
+		return hash ^ (hash >>> 16) ^ 0x5BD1E995;
+	}
+
+	private static int checksum(long index, int head, int a, int b, int c, long value, long count){
+		int hash = (int) (index ^ (index >>> 32)) * 0x9E3779B9;
+		hash = (hash ^ head) * 0x01000193;
+		hash = (hash ^ a) * 0x01000193;
+		hash = (hash ^ b) * 0x01000193;
+		hash = (hash ^ c) * 0x01000193;
+		hash = (hash ^ (int) (value >>> 32)) * 0x01000193;
+		hash = (hash ^ (int) value) * 0x01000193;
+		hash = (hash ^ (int) (count >>> 32)) * 0x01000193;
+		hash = (hash ^ (int) count) * 0x01000193;
+
+		// The rest of the payload is zero
+		for (int i = 0; i < 7; i++) {
+			hash *= 0x01000193;
+		}
+
+		return hash ^ (hash >>> 16) ^ 0x5BD1E995;
+	}
+
+}
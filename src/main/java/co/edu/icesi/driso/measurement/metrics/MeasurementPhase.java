@@ -38,13 +38,26 @@ public class MeasurementPhase implements Serializable {
 		 */
 		private final boolean shared;
 		
+		/**
+		 * A sampled stage is one that can be set several times; all of its 
+		 * values are accumulated in a histogram
+		 * 
+		 * @see LatencyHistogram
+		 */
+		private final boolean sampled;
+		
 		public Stage(String name, boolean shared){
+			this(name, shared, false);
+		}
+		
+		public Stage(String name, boolean shared, boolean sampled){
 			this.name = name;
 			this.shared = shared;
+			this.sampled = sampled;
 		}
 		
 		public Stage(Stage other){
-			this(other.name, other.shared);
+			this(other.name, other.shared, other.sampled);
 		}
 				
 		@Override
@@ -53,6 +66,7 @@ public class MeasurementPhase implements Serializable {
 			int result = 1;
 			result = prime * result + ((name == null) ? 0 : name.hashCode());
 			result = prime * result + (shared ? 1231 : 1237);
+			result = prime * result + (sampled ? 1231 : 1237);
 			return result;
 		}
 
@@ -72,6 +86,8 @@ public class MeasurementPhase implements Serializable {
 				return false;
 			if (shared != other.shared)
 				return false;
+			if (sampled != other.sampled)
+				return false;
 			return true;
 		}
 
@@ -83,6 +99,10 @@ public class MeasurementPhase implements Serializable {
 			return shared;
 		}
 		
+		public boolean isSampled(){
+			return sampled;
+		}
+		
 		@Override
 		public String toString(){
 			return name;
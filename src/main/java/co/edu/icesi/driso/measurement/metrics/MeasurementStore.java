@@ -0,0 +1,336 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class abstracts the way a metric keeps its measurements, indexed by
+ * schema slot. A slot is considered set when it has either an own value or
+ * a composed measurement (i.e., one created to merge the children's values).
+ *
+ * @see Metric.Storage
+ */
+abstract class MeasurementStore implements Serializable {
+
+	/**
+	 * Default serial version UID
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates a store of the given kind.
+	 *
+	 * @param storage	The storage kind
+	 * @param slots		The number of schema slots
+	 * @return			A new, empty store
+	 */
+	static MeasurementStore create(Metric.Storage storage, int slots){
+		switch (storage) {
+		case DENSE:
+			return new DenseStore(slots);
+		case CONCURRENT:
+			return new ConcurrentStore(slots);
+		default:
+			return new ObjectStore(slots);
+		}
+	}
+
+	/**
+	 * @param slot	The schema slot
+	 * @return		Whether the slot has an own value or a composed measurement
+	 */
+	abstract boolean isSet(int slot);
+
+	/**
+	 * Sets the own value of an slot.
+	 *
+	 * @param slot	The schema slot
+	 * @param value	The measured value
+	 * @return		false if the slot was already set, true otherwise
+	 */
+	abstract boolean set(int slot, long value);
+
+	/**
+	 * @param slot	The schema slot
+	 * @return		The own value of the slot (0 if it only has a composed
+	 * 				measurement or it is not set)
+	 */
+	abstract long getOwnValue(int slot);
+
+	/**
+	 * @param slot	The schema slot
+	 * @return		Whether the slot has an own value (unlike isSet, a
+	 * 				composed measurement without own value is not counted)
+	 */
+	boolean hasValue(int slot){
+		Measurement measurement = get(slot);
+		return measurement != null && measurement.hasValue();
+	}
+
+	/**
+	 * @param slot	The schema slot
+	 * @return		The measurement object of the slot, or null if it is not set
+	 */
+	abstract Measurement get(int slot);
+
+	/**
+	 * Sets the measurement object of an slot, unless it is already set.
+	 *
+	 * @param slot			The schema slot
+	 * @param measurement	The measurement object
+	 * @return				The measurement object of the slot after the call
+	 */
+	abstract Measurement putIfAbsent(int slot, Measurement measurement);
+
+	/**
+	 * Returns the measurement object in which children's values must be
+	 * merged, creating it if necessary.
+	 *
+	 * @param slot		The schema slot
+	 * @param ordinals	The father's child ordinals
+	 * @return			The measurement object of the slot
+	 */
+	Measurement compose(int slot, ChildOrdinals ordinals){
+		Measurement measurement = get(slot);
+		return measurement != null ? 
+				measurement.bind(ordinals) : putIfAbsent(slot, new Measurement(ordinals));
+	}
+
+	/**
+	 * Returns the measurement object in which the values of a sampled stage
+	 * are accumulated, creating it if necessary.
+	 *
+	 * @param slot		The schema slot
+	 * @param ordinals	The father's child ordinals
+	 * @return			The measurement object of the slot
+	 */
+	Measurement sample(int slot, ChildOrdinals ordinals){
+		Measurement measurement = get(slot);
+		return measurement != null ? 
+				measurement.bind(ordinals) : 
+				putIfAbsent(slot, new Measurement(new LatencyHistogram(), ordinals));
+	}
+
+	/**
+	 * This store keeps one measurement object per set slot.
+	 */
+	static class ObjectStore extends MeasurementStore {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Measurement[] measurements;
+
+		ObjectStore(int slots){
+			measurements = new Measurement[slots];
+		}
+
+		@Override
+		boolean isSet(int slot){
+			return measurements[slot] != null;
+		}
+
+		@Override
+		boolean set(int slot, long value){
+			if(measurements[slot] != null){
+				return false;
+			}
+
+			measurements[slot] = new Measurement(value);
+			return true;
+		}
+
+		@Override
+		long getOwnValue(int slot){
+			Measurement measurement = measurements[slot];
+			return measurement == null ? 0 : measurement.getOwnValue();
+		}
+
+		@Override
+		Measurement get(int slot){
+			return measurements[slot];
+		}
+
+		@Override
+		Measurement putIfAbsent(int slot, Measurement measurement){
+			if(measurements[slot] == null){
+				measurements[slot] = measurement;
+			}
+
+			return measurements[slot];
+		}
+	}
+
+	/**
+	 * This store keeps own values in a primitive array plus a presence bitmap.
+	 * Measurement objects are only kept for the slots into which children's
+	 * values are merged (or samples recorded). For the slots that only have
+	 * an own value, get returns a new measurement object every time (e.g.,
+	 * while a report is written), which is not kept.
+	 */
+	static class DenseStore extends MeasurementStore {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long[] values;
+		private final long[] present;
+
+		/**
+		 * Lazily created measurement objects of the slots with composed
+		 * values or histograms, indexed by slot
+		 */
+		private Measurement[] views;
+
+		DenseStore(int slots){
+			values = new long[slots];
+			present = new long[(slots + 63) >>> 6];
+		}
+
+		private boolean hasOwnValue(int slot){
+			return (present[slot >>> 6] & (1L << slot)) != 0;
+		}
+
+		/**
+		 * @param slot	The schema slot
+		 * @return		Whether the slot has a measurement object
+		 */
+		boolean hasView(int slot){
+			return views != null && views[slot] != null;
+		}
+
+		@Override
+		boolean isSet(int slot){
+			return hasOwnValue(slot) || (views != null && views[slot] != null);
+		}
+
+		@Override
+		boolean set(int slot, long value){
+			if(isSet(slot)){
+				return false;
+			}
+
+			values[slot] = value;
+			present[slot >>> 6] |= 1L << slot;
+			return true;
+		}
+
+		@Override
+		boolean hasValue(int slot){
+			if(views != null && views[slot] != null){
+				return views[slot].hasValue();
+			}
+
+			return hasOwnValue(slot);
+		}
+
+		@Override
+		long getOwnValue(int slot){
+			if(views != null && views[slot] != null){
+				return views[slot].getOwnValue();
+			}
+
+			return values[slot];
+		}
+
+		@Override
+		Measurement get(int slot){
+			if(views != null && views[slot] != null){
+				return views[slot];
+			}
+
+			if(!hasOwnValue(slot)){
+				return null;
+			}
+
+			// Not kept: a slot with only its own value needs no object
+			return new Measurement(values[slot]);
+		}
+
+		@Override
+		Measurement putIfAbsent(int slot, Measurement measurement){
+			Measurement current = kept(slot);
+			return current != null ? current : view(slot, measurement);
+		}
+
+		@Override
+		Measurement compose(int slot, ChildOrdinals ordinals){
+			Measurement measurement = kept(slot);
+			return measurement != null ?
+					measurement.bind(ordinals) : view(slot, new Measurement(ordinals));
+		}
+
+		@Override
+		Measurement sample(int slot, ChildOrdinals ordinals){
+			Measurement measurement = kept(slot);
+			return measurement != null ?
+					measurement.bind(ordinals) :
+					view(slot, new Measurement(new LatencyHistogram(), ordinals));
+		}
+
+		/**
+		 * @return	The measurement object of the slot, keeping it (with the
+		 * 			slot's own value) if it was not kept yet, or null if the
+		 * 			slot is not set
+		 */
+		private Measurement kept(int slot){
+			if(views != null && views[slot] != null){
+				return views[slot];
+			}
+
+			return hasOwnValue(slot) ? view(slot, new Measurement(values[slot])) : null;
+		}
+
+		private Measurement view(int slot, Measurement measurement){
+			if(views == null){
+				views = new Measurement[values.length];
+			}
+
+			views[slot] = measurement;
+			return measurement;
+		}
+	}
+
+	/**
+	 * This store keeps one measurement object per set slot, published with
+	 * lock-free compare-and-set operations, so that several threads can record
+	 * (and merge children) into the same metric.
+	 */
+	static class ConcurrentStore extends MeasurementStore {
+
+		private static final long serialVersionUID = 1L;
+
+		private final AtomicReferenceArray<Measurement> measurements;
+
+		ConcurrentStore(int slots){
+			measurements = new AtomicReferenceArray<Measurement>(slots);
+		}
+
+		@Override
+		boolean isSet(int slot){
+			return measurements.get(slot) != null;
+		}
+
+		@Override
+		boolean set(int slot, long value){
+			return measurements.get(slot) == null
+					&& measurements.compareAndSet(slot, null, new Measurement(value));
+		}
+
+		@Override
+		long getOwnValue(int slot){
+			Measurement measurement = measurements.get(slot);
+			return measurement == null ? 0 : measurement.getOwnValue();
+		}
+
+		@Override
+		Measurement get(int slot){
+			return measurements.get(slot);
+		}
+
+		@Override
+		Measurement putIfAbsent(int slot, Measurement measurement){
+			return measurements.compareAndSet(slot, null, measurement) ? 
+					measurement : measurements.get(slot);
+		}
+	}
+
+}
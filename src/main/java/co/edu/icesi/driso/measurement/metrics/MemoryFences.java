@@ -0,0 +1,103 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * This class orders plain accesses to memory shared with other processes
+ * (e.g., a MappedByteBuffer), which the Java memory model does not cover:
+ * a release fence keeps the loads and stores before it from being reordered
+ * (by the JIT compiler or the processor) after the stores that follow it,
+ * and an acquire fence keeps the loads before it from being reordered after
+ * the loads and stores that follow it.
+ *
+ * The fences are VarHandle.releaseFence and acquireFence on Java 9 and
+ * later, and sun.misc.Unsafe.storeFence and loadFence on Java 8, looked up
+ * at runtime. Both are compiled into the caller.
+ *
+ * @see MappedRing
+ */
+final class MemoryFences {
+
+	/**
+	 * The fences, or null if the Java runtime has none
+	 */
+	private static final MethodHandle RELEASE;
+	private static final MethodHandle ACQUIRE;
+
+	static {
+		MethodHandle release = null;
+		MethodHandle acquire = null;
+		MethodType type = MethodType.methodType(void.class);
+
+		try {
+			Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+			release = MethodHandles.publicLookup().findStatic(varHandle, "releaseFence", type);
+			acquire = MethodHandles.publicLookup().findStatic(varHandle, "acquireFence", type);
+		} catch (Exception e) {
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field field = unsafeClass.getDeclaredField("theUnsafe");
+				field.setAccessible(true);
+				Object unsafe = field.get(null);
+
+				release = MethodHandles.publicLookup()
+						.findVirtual(unsafeClass, "storeFence", type).bindTo(unsafe);
+				acquire = MethodHandles.publicLookup()
+						.findVirtual(unsafeClass, "loadFence", type).bindTo(unsafe);
+			} catch (Exception f) {
+				release = null;
+				acquire = null;
+			}
+		}
+
+		RELEASE = release;
+		ACQUIRE = acquire;
+	}
+
+	private MemoryFences(){
+	}
+
+	/**
+	 * @return	Whether the Java runtime has fences (otherwise, release and
+	 * 			acquire do nothing)
+	 */
+	static boolean isAvailable(){
+		return RELEASE != null;
+	}
+
+	/**
+	 * Keeps the loads and stores before it from being reordered after the
+	 * stores that follow it.
+	 */
+	static void release(){
+		if(RELEASE == null){
+			return;
+		}
+
+		try {
+			RELEASE.invokeExact();
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Keeps the loads before it from being reordered after the loads and
+	 * stores that follow it.
+	 */
+	static void acquire(){
+		if(ACQUIRE == null){
+			return;
+		}
+
+		try {
+			ACQUIRE.invokeExact();
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -1,15 +1,25 @@
 package co.edu.icesi.driso.measurement.metrics;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * 
@@ -18,11 +28,94 @@ import java.util.Set;
  */
 public class Metric implements Serializable {
 	
+	/**
+	 * The available ways to store a metric's measurements
+	 */
+	public enum Storage {
+		
+		/**
+		 * One measurement object per set phase-level-stage
+		 */
+		OBJECTS,
+		
+		/**
+		 * Own values in a primitive array plus a presence bitmap; measurement
+		 * objects are created lazily, only when requested
+		 */
+		DENSE,
+		
+		/**
+		 * One measurement object per set phase-level-stage, published with 
+		 * compare-and-set operations. Measurements, attributes and children
+		 * can be set from several threads at the same time (attribute values
+		 * cannot be null in this storage)
+		 */
+		CONCURRENT
+	}
+	
+	/**
+	 * This class times a level of a measurement phase: it sets the level's 
+	 * first stage when it is opened and its last stage when it is closed, 
+	 * using the metric's clock. Timers are created once per level, so timing 
+	 * a level does not allocate a timer (and, with the DENSE storage, does not
+	 * allocate any object). As stages can be set only once, each level of a 
+	 * metric can be timed once.
+	 * 
+	 * @see Metric#time(String, String)
+	 */
+	public static final class Timer implements AutoCloseable {
+		
+		private final Metric metric;
+		private final MetricSchema.StageHandle start;
+		private final MetricSchema.StageHandle end;
+		
+		private Timer(Metric metric, MetricSchema.StageHandle start, 
+				MetricSchema.StageHandle end){
+			this.metric = metric;
+			this.start = start;
+			this.end = end;
+		}
+		
+		private Timer open() throws MetricException {
+			metric.setMeasure(start, metric.getClock().now());
+			return this;
+		}
+		
+		/**
+		 * Sets the level's last stage to the current time
+		 * 
+		 * @throws MetricException		It's thrown if the stage is already set
+		 */
+		@Override
+		public void close() throws MetricException {
+			metric.setMeasure(end, metric.getClock().now());
+		}
+	}
+	
 	/**
 	 * Default serial version UID
 	 */
 	private static final long serialVersionUID = 1L;
 	
+	private static final AtomicIntegerFieldUpdater<Metric> VERSION = 
+			AtomicIntegerFieldUpdater.newUpdater(Metric.class, "version");
+	
+	private static final AtomicIntegerFieldUpdater<Metric> VALUES_VERSION = 
+			AtomicIntegerFieldUpdater.newUpdater(Metric.class, "valuesVersion");
+	
+	private static final AtomicLongFieldUpdater<Metric> CHANGED_EPOCH = 
+			AtomicLongFieldUpdater.newUpdater(Metric.class, "changedEpoch");
+	
+	private static final AtomicLongFieldUpdater<Metric> SUBTREE_EPOCH = 
+			AtomicLongFieldUpdater.newUpdater(Metric.class, "subtreeEpoch");
+	
+	/**
+	 * The current report epoch, advanced by each delta report
+	 * 
+	 * @see #reportChanges(File, boolean, long)
+	 */
+	private static final AtomicLong EPOCH = new AtomicLong(1);
+	
 	/**
 	 * The metric's name and also identifier (must be unique)
 	 */
@@ -32,7 +125,7 @@ public class Metric implements Serializable {
 	 * General attributes attached to the metric (e.g., computation-node name,
 	 * component name, etc.)
 	 */
-	private final HashMap<String, Object> attributes;
+	private final Map<String, Object> attributes;
 	
 	/**
 	 * The sub-metrics attached to this metric. This list is only used to store
@@ -44,10 +137,117 @@ public class Metric implements Serializable {
 	private final List<Metric> children;
 	
 	/**
-	 * The measurements that have been taken for each phase 
-	 * (key: phase_identifier-level_name-stage_name).
+	 * The measurements that have been taken for each phase, indexed by the
+	 * schema slot of their phase-level-stage.
+	 * 
+	 * @see MetricSchema
+	 */
+	private final MeasurementStore measurements;
+	
+	/**
+	 * The kind of store used for the measurements
+	 */
+	private final Storage storage;
+	
+	/**
+	 * The time source used to time levels (System.nanoTime() by default)
+	 */
+	private transient MetricClock clock;
+	
+	/**
+	 * The estimated offset and drift of this metric's clock with respect to
+	 * its father's, if its timestamps were taken on another node
+	 */
+	private volatile ClockEstimate clockEstimate;
+	
+	/**
+	 * The level timers, indexed by level slot (created when first needed)
+	 */
+	private transient Timer[] timers;
+	
+	/**
+	 * The father this metric is attached to, if any (not serialized, so a
+	 * serialized child does not carry its father and siblings along)
+	 * 
+	 * @see #attach(Metric[])
+	 */
+	private transient volatile Metric parent;
+	
+	/**
+	 * This metric's ordinal in the father it is attached to
+	 */
+	private volatile int parentIndex;
+	
+	/**
+	 * The last father this metric was merged into or attached to, whose
+	 * roll-up must be invalidated when this metric changes (not serialized;
+	 * the father sets it again when it is deserialized)
+	 * 
+	 * @see #rollUp()
+	 */
+	private transient volatile Metric owner;
+	
+	/**
+	 * Incremented when a value is set in this metric's subtree, or a child
+	 * is added to it, unless it is already even (i.e., no roll-up was
+	 * computed since the last change). Rolling up makes it odd
+	 * 
+	 * @see #observe(AtomicIntegerFieldUpdater, Metric)
+	 */
+	private transient volatile int version;
+	
+	/**
+	 * The last computed roll-up (valid only if its version matches)
+	 */
+	private transient volatile SubtreeSummary summary;
+	
+	/**
+	 * The partial aggregates forwarded by aggregator nodes, by their source
+	 */
+	private Map<String, PartialAggregate> aggregates;
+	
+	/**
+	 * Incremented when a value is set in this metric's measurements,
+	 * including the children's values merged or pushed into them, unless it
+	 * is already even (as version)
+	 */
+	private transient volatile int valuesVersion;
+	
+	/**
+	 * The level and phase values calculated so far (created when first needed)
+	 * 
+	 * @see #getLevelValue(MetricSchema.StageHandle)
+	 */
+	private transient volatile ValueCache valueCache;
+	
+	/**
+	 * The last report epoch in which this metric's row changed (i.e., its
+	 * measurements, its attributes or its father)
+	 */
+	private transient volatile long changedEpoch;
+	
+	/**
+	 * The last report epoch in which a row of this metric's subtree changed
+	 */
+	private transient volatile long subtreeEpoch;
+	
+	/**
+	 * The journal in which this metric's changes are appended, if any
+	 */
+	private transient volatile MeasurementJournal journal;
+	
+	/**
+	 * This metric's identifier in the journal
 	 */
-	private final HashMap<String, Measurement> measurements;
+	private transient int journalId;
+	
+	/**
+	 * The ordinals of the children merged into this metric, shared by all of
+	 * its measurements
+	 * 
+	 * @see Measurement#nextChildIndex(int)
+	 */
+	private final ChildOrdinals childOrdinals;
 	
 	/**
 	 * The configuration object, containing the configured attributes and
@@ -55,171 +255,826 @@ public class Metric implements Serializable {
 	 */
 	private final MetricConfig config;
 	
+	/**
+	 * The compiled form of the configuration's phases, levels and stages
+	 */
+	private final MetricSchema schema;
+	
 	public Metric(String identifier, MetricConfig config){
+		this(identifier, config, Storage.OBJECTS);
+	}
+	
+	public Metric(String identifier, MetricConfig config, Storage storage){
 		this.identifier = identifier;
 		this.config = config;
+		this.schema = config.getSchema();
+		this.storage = storage;
+		
+		if(storage == Storage.CONCURRENT){
+			attributes = new ConcurrentHashMap<String, Object>();
+			children = new CopyOnWriteArrayList<Metric>();
+		}else{
+			attributes = new HashMap<String, Object>();
+			children = new ArrayList<Metric>();
+		}
+		
+		measurements = MeasurementStore.create(storage, schema.getSlotCount());
+		childOrdinals = new ChildOrdinals();
+		changedEpoch = subtreeEpoch = EPOCH.get();
+	}
+	
+	/**
+	 * Merges shared measurements from children to father. "Merge" means that
+	 * the child's measured value is added to the "values" map of the father's
+	 * measure object (corresponding to each phase-level-stage).
+	 * 
+	 * @see Measurement
+	 * @param children			The children to be merged
+	 * @throws MetricException	It's thrown when there is a mismatch between the
+	 * 							child's configuration class and the father's
+	 */
+	public void merge(Metric ... children) throws MetricException {
+		
+		for (int i = 0; i < children.length; i++) {
+			// Validate that father and child have the same configuration
+			if(!config.equals(children[i].config)){
+				throw new MetricException(8, 
+						"Mismatch in the configuration class. Cannot merge "
+						+ "metrics configured as " + config.getIdentifier() + 
+						" and " + children[i].config.getIdentifier());
+			}
+			
+			// Attached children have already pushed their values
+			if(children[i].parent == this){
+				continue;
+			}
+			
+			// Add the child to the list
+			this.children.add(children[i]);
+			int childIndex = childOrdinals.register(children[i].getIdentifier());
+			children[i].setOwner(this);
+			invalidate();
+			
+			// Update the measures based on the child's values (only shared measurements)
+			for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+				MeasurementStore childMeasurements = children[i].measurements;
+				
+				if(childMeasurements.isSet(slot) && schema.getHandle(slot).isShared()){
+					/*
+					 * If the father did not set any value before children[i]
+					 * on this phase-level-stage, an empty measurement is created
+					 */
+					if(schema.getHandle(slot).isSampled()){
+						Measurement ownMeasurement = measurements.sample(slot, childOrdinals);
+						setChildValue(ownMeasurement, childIndex, 
+								children[i].getIdentifier(), childMeasurements.getOwnValue(slot));
+						ownMeasurement.mergeHistograms(childMeasurements.get(slot));
+					}else{
+						setChildValue(measurements.compose(slot, childOrdinals), childIndex, 
+								children[i].getIdentifier(), children[i].sharedValue(slot));
+					}
+				}
+			}
+			
+			invalidateValues();
+			
+			if(journal != null){
+				journal.merge(this, children[i], false);
+			}
+		}
+	}
+	
+	/**
+	 * Merges shared measurements from children to father, like 
+	 * merge(Metric[]), but splitting the children across a fork-join pool. It
+	 * is intended for very wide trees (i.e., thousands of children); the 
+	 * result is the same as merging them sequentially.
+	 * 
+	 * @see #merge(Metric[])
+	 * @param pool				The pool in which the children are merged
+	 * @param children			The children to be merged
+	 * @throws MetricException	It's thrown when there is a mismatch between the
+	 * 							child's configuration class and the father's
+	 */
+	public void merge(ForkJoinPool pool, Metric ... children) throws MetricException {
+		ParallelMerge.merge(this, pool, children);
+	}
+	
+	/**
+	 * Attaches children to this metric. Unlike merge, which copies the 
+	 * children's values once they have finished, an attached child pushes 
+	 * each shared value into this metric as soon as it is recorded, so this
+	 * metric's measurements always reflect the values recorded so far. The 
+	 * values recorded by the child before being attached are pushed at once.
+	 * Merging an attached child afterwards has no effect.
+	 * 
+	 * @param children			The children to be attached
+	 * @throws MetricException	It's thrown when there is a mismatch between the
+	 * 							child's configuration class and the father's,
+	 * 							or when the child is already attached
+	 */
+	public synchronized void attach(Metric ... children) throws MetricException {
+		
+		for (int i = 0; i < children.length; i++) {
+			// Validate that father and child have the same configuration
+			if(!config.equals(children[i].config)){
+				throw new MetricException(8, 
+						"Mismatch in the configuration class. Cannot attach "
+						+ "metrics configured as " + config.getIdentifier() + 
+						" and " + children[i].config.getIdentifier());
+			}
+			
+			synchronized (children[i]) {
+				if(children[i].parent != null){
+					throw new MetricException(24, "Metric \"" 
+							+ children[i].getIdentifier() + "\" is already "
+							+ "attached to \"" + children[i].parent.getIdentifier() + "\"");
+				}
+				
+				this.children.add(children[i]);
+				children[i].parentIndex = childOrdinals.register(children[i].getIdentifier());
+				children[i].parent = this;
+				children[i].setOwner(this);
+			}
+			
+			invalidate();
+			
+			// Push the values recorded so far
+			for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+				if(children[i].measurements.isSet(slot) && schema.getHandle(slot).isShared()){
+					children[i].push(slot);
+				}
+			}
+			
+			invalidateValues();
+			
+			if(journal != null){
+				journal.merge(this, children[i], true);
+			}
+		}
+	}
+	
+	/**
+	 * Pushes a shared measurement into the father this metric is attached to.
+	 * Pushing the same measurement several times has no effect.
+	 * 
+	 * @param slot					The schema slot
+	 * @throws MetricException		It's thrown if the father's measurement 
+	 * 								already has a different value for this metric
+	 */
+	private void push(int slot) throws MetricException {
+		Metric father = parent;
+		int childIndex = parentIndex;
+		
+		if(schema.getHandle(slot).isSampled()){
+			measurements.get(slot).pushTo(
+					father.measurements.sample(slot, father.childOrdinals), childIndex);
+		}else{
+			Measurement fatherMeasurement = 
+					father.measurements.compose(slot, father.childOrdinals);
+			long value = sharedValue(slot);
+			
+			if(fatherMeasurement.isBoundTo(father.childOrdinals)){
+				fatherMeasurement.pushValue(childIndex, value);
+			}else{
+				synchronized (fatherMeasurement) {
+					Long current = fatherMeasurement.getChildValues().get(identifier);
+					if(current == null || current != value){
+						fatherMeasurement.setValue(identifier, value);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the own value shared with the father: timestamps are translated
+	 * to the father's clock when this metric has a clock estimate. Sampled
+	 * values (i.e., durations) are shared as they are.
+	 * 
+	 * @param slot	The schema slot
+	 * @return		The value to be set in the father's measurement
+	 */
+	long sharedValue(int slot){
+		long value = measurements.getOwnValue(slot);
+		ClockEstimate estimate = clockEstimate;
+		
+		if(estimate == null || schema.getHandle(slot).isSampled()){
+			return value;
+		}
+		
+		return estimate.toFatherTime(value);
+	}
+	
+	/**
+	 * Sets a child's value in one of this metric's measurements, by ordinal
+	 * unless the measurement has its own children's identifiers.
+	 * 
+	 * @param measurement			The father's measurement
+	 * @param childIndex			The child's ordinal
+	 * @param childIdentifier		The child's identifier
+	 * @param value					The child's value
+	 * @throws MetricException		It's thrown if there's already a value set
+	 * 								for that child
+	 */
+	private void setChildValue(Measurement measurement, int childIndex, 
+			String childIdentifier, long value) throws MetricException {
+		
+		if(measurement.isBoundTo(childOrdinals)){
+			measurement.setValue(childIndex, value);
+		}else{
+			measurement.setValue(childIdentifier, value);
+		}
+	}
+	
+	/**
+	 * Writes this metric and all of its descendants on the specified file, 
+	 * in a binary columnar format that can be queried without reading the 
+	 * whole file.
+	 * 
+	 * @param file				The file in which the tree must be written
+	 * @throws IOException		It's thrown when something went bad at writing
+	 * @see ColumnarDump
+	 * @see ColumnarDumpReader
+	 */
+	public void dump(File file) throws IOException {
+		ColumnarDump.write(this, file);
+	}
+	
+	/**
+	 * Computes the aggregates of this metric's subtree (i.e., this metric and
+	 * all of its descendants), reusing the roll-ups cached on each metric. 
+	 * Setting a value only invalidates the roll-ups along the path from the 
+	 * metric to the root, so rolling up again only recomputes that path.
+	 * 
+	 * Children added through the getChildren() list (instead of merge or
+	 * attach) do not invalidate the roll-ups.
+	 * 
+	 * The partial aggregates forwarded to the metrics of the subtree are
+	 * rolled up as well (see SubtreeSummary.add(PartialAggregate)).
+	 * 
+	 * @return		The subtree's aggregates
+	 */
+	public SubtreeSummary rollUp(){
+		SubtreeSummary current = summary;
+		int currentVersion = observe(VERSION, this);
+		
+		if(current != null && current.getVersion() == currentVersion){
+			return current;
+		}
+		
+		// Values set from now on change the version, so this roll-up will not be reused
+		SubtreeSummary result = new SubtreeSummary(schema, currentVersion);
+		
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			if(measurements.hasValue(slot)){
+				result.addValue(slot, measurements.getOwnValue(slot));
+			}
+		}
+		
+		for (int i = 0; i < children.size(); i++) {
+			Metric child = children.get(i);
+			result.add(child.rollUp(), child.clockEstimate);
+		}
+		
+		Map<String, PartialAggregate> forwarded = forwardedAggregates();
+		
+		if(forwarded != null){
+			for (PartialAggregate aggregate : forwarded.values()) {
+				result.add(aggregate);
+			}
+		}
+		
+		summary = result;
+		return result;
+	}
+	
+	/**
+	 * Computes the partial aggregate of this metric's children: for each 
+	 * shared phase-level-stage, the minimum, maximum, sum and count of the 
+	 * values merged into or pushed to this metric (and the histogram of the 
+	 * samples of sampled stages), combined with the aggregates forwarded to
+	 * it by lower-tier aggregators. An intermediate aggregator node computes
+	 * it and forwards it upward (instead of its children), while the 
+	 * per-child values stay queryable in its measurements.
+	 * 
+	 * @return	The aggregate
+	 * @see #mergeAggregate(String, PartialAggregate)
+	 * @see MetricPublisher#publishAggregate(String, PartialAggregate)
+	 */
+	public PartialAggregate aggregateChildren(){
+		PartialAggregate aggregate = 
+				new PartialAggregate(config.getIdentifier(), schema.getSlotCount());
+		
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			Measurement measurement = measurements.get(slot);
+			
+			if(measurement == null || !schema.getHandle(slot).isShared()){
+				continue;
+			}
+			
+			synchronized (measurement) {
+				if(schema.getHandle(slot).isSampled()){
+					if(measurement.getChildrenHistogram() != null){
+						aggregate.addSamples(slot, measurement.getChildrenHistogram());
+					}
+				}else{
+					for (int i = measurement.nextChildIndex(0); i >= 0; 
+							i = measurement.nextChildIndex(i + 1)) {
+						aggregate.addValue(slot, measurement.getChildValue(i));
+					}
+				}
+			}
+		}
+		
+		aggregate.addNodes(children.size());
+		
+		synchronized (this) {
+			if(aggregates != null){
+				for (PartialAggregate forwarded : aggregates.values()) {
+					aggregate.combine(forwarded);
+				}
+			}
+		}
+		
+		return aggregate;
+	}
+	
+	/**
+	 * Merges the partial aggregate forwarded by an aggregator node. An 
+	 * aggregate from a source that already forwarded one replaces it, so 
+	 * aggregators can forward their aggregate again as their children 
+	 * progress.
+	 * 
+	 * Forwarded aggregates are part of this metric's roll-up, its report 
+	 * (as comment lines after its row), its encoding and its journal. They
+	 * do not take part in the levels' and phases' values, which are 
+	 * calculated from each child's values.
+	 * 
+	 * @param source			The aggregator's identifier
+	 * @param aggregate			The aggregator's partial aggregate
+	 * @throws MetricException	It's thrown when there is a mismatch between the
+	 * 							aggregated metrics' configuration (or stages)
+	 * 							and this one's
+	 * @see #aggregateChildren()
+	 */
+	public synchronized void mergeAggregate(String source, PartialAggregate aggregate) 
+			throws MetricException {
+		
+		if(!config.getIdentifier().equals(aggregate.getConfigIdentifier())){
+			throw new MetricException(8, 
+					"Mismatch in the configuration class. Cannot merge "
+					+ "metrics configured as " + config.getIdentifier() + 
+					" and " + aggregate.getConfigIdentifier());
+		}
+		
+		if(aggregate.getSlotCount() != schema.getSlotCount()){
+			throw new MetricException(8, 
+					"Mismatch in the configuration stages. Cannot merge an "
+					+ "aggregate of " + aggregate.getSlotCount() + " stages into "
+					+ "metrics of " + schema.getSlotCount());
+		}
+		
+		if(aggregates == null){
+			aggregates = new LinkedHashMap<String, PartialAggregate>();
+		}
+		
+		aggregates.put(source, aggregate);
+		
+		if(journal != null){
+			journal.aggregate(this, source, aggregate);
+		}
+		
+		invalidate();
+		markChanged(false);
+	}
+	
+	/**
+	 * @return	A copy of the partial aggregates forwarded to this metric, by
+	 * 			their source
+	 */
+	public synchronized Map<String, PartialAggregate> getAggregates(){
+		return aggregates == null ? new LinkedHashMap<String, PartialAggregate>() 
+				: new LinkedHashMap<String, PartialAggregate>(aggregates);
+	}
+	
+	/**
+	 * @return	A copy of the partial aggregates forwarded to this metric, by
+	 * 			their source, or null if there are none
+	 */
+	synchronized Map<String, PartialAggregate> forwardedAggregates(){
+		return aggregates == null ? null 
+				: new LinkedHashMap<String, PartialAggregate>(aggregates);
+	}
+	
+	/**
+	 * Invalidates the roll-ups of this metric and its ancestors. The walk
+	 * stops at the first metric whose roll-up is already invalid: the change
+	 * that invalidated it invalidates its ancestors as well, and the next
+	 * roll-up of any of them reads this metric's subtree again.
+	 */
+	void invalidate(){
+		Metric metric = this;
+		
+		while(metric != null && invalidate(VERSION, metric)){
+			metric = metric.owner;
+		}
+	}
+	
+	/**
+	 * Invalidates the level and phase values calculated for this metric, and
+	 * marks its row as changed.
+	 */
+	void invalidateValues(){
+		invalidate(VALUES_VERSION, this);
+		markChanged(false);
+	}
+	
+	/**
+	 * Makes a version even, unless it already is (so that setting many
+	 * values between two reads does not write the version each time).
+	 * 
+	 * @return	false if the version was already even
+	 */
+	private static boolean invalidate(AtomicIntegerFieldUpdater<Metric> updater, Metric metric){
+		int current;
+		
+		do {
+			current = updater.get(metric);
+			
+			if((current & 1) == 0){
+				return false;
+			}
+		} while(!updater.compareAndSet(metric, current, current + 1));
+		
+		return true;
+	}
+	
+	/**
+	 * Makes a version odd (unless it already is) before values are read to
+	 * compute a cached result, so that the next change invalidates it.
+	 * 
+	 * @return	The odd version, to be stored along with the cached result
+	 */
+	private static int observe(AtomicIntegerFieldUpdater<Metric> updater, Metric metric){
+		int current;
+		
+		do {
+			current = updater.get(metric);
+		} while((current & 1) == 0 && !updater.compareAndSet(metric, current, current + 1));
+		
+		return current | 1;
+	}
+	
+	/**
+	 * Sets the father whose roll-up must be invalidated when this metric
+	 * changes. As the rows of the whole subtree have a new path, they are
+	 * marked as changed.
+	 */
+	void setOwner(Metric owner){
+		this.owner = owner;
+		markChanged(true);
+	}
+	
+	/**
+	 * Marks this metric's row (and its descendants', if required) as changed
+	 * in the current report epoch, and the subtrees of its ancestors as
+	 * having changes. If a delta report advances the epoch meanwhile, the
+	 * rows are marked again in the new epoch, so the change is not missed by
+	 * both reports.
+	 * 
+	 * The ancestors are walked up to the root even if one of them is already
+	 * marked (raise only reads it then): the metric that marked it may not
+	 * have reached the root yet when a delta report starts.
+	 * 
+	 * @param descendants	Whether the descendants' rows changed as well
+	 */
+	private void markChanged(boolean descendants){
+		long epoch;
+		
+		do {
+			epoch = EPOCH.get();
+			
+			if(descendants){
+				markSubtree(this, epoch);
+			}else{
+				raise(CHANGED_EPOCH, this, epoch);
+			}
+			
+			for (Metric metric = this; metric != null; metric = metric.owner) {
+				raise(SUBTREE_EPOCH, metric, epoch);
+			}
+		} while(epoch != EPOCH.get());
+	}
+	
+	private static void markSubtree(Metric metric, long epoch){
+		raise(CHANGED_EPOCH, metric, epoch);
+		raise(SUBTREE_EPOCH, metric, epoch);
+		
+		for (int i = 0; i < metric.children.size(); i++) {
+			markSubtree(metric.children.get(i), epoch);
+		}
+	}
+	
+	private static void raise(AtomicLongFieldUpdater<Metric> updater, Metric metric, long epoch){
+		long current;
+		
+		do {
+			current = updater.get(metric);
+		} while(current < epoch && !updater.compareAndSet(metric, current, epoch));
+	}
+	
+	/**
+	 * Appends the changes made to this metric from now on (and the values,
+	 * attributes and children it already has) to a journal, so that it can
+	 * be recovered after a crash. The metrics merged into or attached to it
+	 * are journaled as well.
+	 * 
+	 * @param journal	The journal
+	 * @see MeasurementJournal#recover(File)
+	 */
+	public void setJournal(MeasurementJournal journal){
+		journal.track(this);
+	}
+	
+	/**
+	 * @return	The journal in which this metric's changes are appended, or
+	 * 			null if it is not journaled
+	 */
+	public MeasurementJournal getJournal(){
+		return journal;
+	}
+	
+	void bindJournal(MeasurementJournal journal, int journalId){
+		this.journalId = journalId;
+		this.journal = journal;
+	}
+	
+	int getJournalId(){
+		return journalId;
+	}
+	
+	/**
+	 * @return	The last report epoch in which this metric's row changed
+	 */
+	long getChangedEpoch(){
+		return changedEpoch;
+	}
+	
+	/**
+	 * @return	The last report epoch in which a row of this metric's subtree
+	 * 			changed
+	 */
+	long getSubtreeEpoch(){
+		return subtreeEpoch;
+	}
+	
+	/**
+	 * Advances the report epoch.
+	 * 
+	 * @return	The new epoch: rows changed from now on are marked with it (or
+	 * 			a later one)
+	 */
+	static long nextEpoch(){
+		return EPOCH.incrementAndGet();
+	}
+	
+	/**
+	 * Writes a report on the specified file, containing the configured attributes,
+	 * measurement phases (including levels and stages) and their corresponding calculated values.
+	 * 
+	 * @param file				The file in which the report must be written
+	 * @param append			Indicates if the report must be appended or overwritten in the file
+	 * @throws MetricException	It's thrown when there are stages in the Metric object without a value
+	 * 							(i.e., there isn't a measurement object in the phases map)
+	 * @throws IOException		It's thrown when something went bad at writing the report
+	 * @see AsyncReporter
+	 */
+	public void report(File file, boolean append) throws MetricException, IOException {
+		
+		validate();
+		
+		ReportWriter writer = new ReportWriter(
+				new BufferedWriter(new FileWriter(file, append)));
+		
+		try {
+			writer.writeReport(this);
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Writes a report on the specified file, like report(File, boolean), but 
+	 * rendering the rows of independent subtrees in parallel. The output is
+	 * the same as the sequential report's.
+	 * 
+	 * @param pool				The pool in which the rows are rendered
+	 * @param file				The file in which the report must be written
+	 * @param append			Indicates if the report must be appended or overwritten in the file
+	 * @throws MetricException	It's thrown when there are stages in the Metric object without a value
+	 * @throws IOException		It's thrown when something went bad at writing the report
+	 * @see ReportWriter#writeRows(Metric, ForkJoinPool)
+	 */
+	public void report(ForkJoinPool pool, File file, boolean append) 
+			throws MetricException, IOException {
+		
+		validate();
+		
+		ReportWriter writer = new ReportWriter(
+				new BufferedWriter(new FileWriter(file, append)));
 		
-		attributes = new HashMap<String, Object>();
-		children = new ArrayList<Metric>();
-		measurements = new HashMap<String, Measurement>();
+		try {
+			writer.writeReport(this, pool);
+		} finally {
+			writer.close();
+		}
 	}
 	
 	/**
-	 * Merges shared measurements from children to father. "Merge" means that
-	 * the child's measured value is added to the "values" map of the father's
-	 * measure object (corresponding to each phase-level-stage).
+	 * Writes a report on the specified writer, like report(File, boolean). 
+	 * Rows are written as the tree is walked, so the report is never held in
+	 * memory.
 	 * 
-	 * @see Measurement
-	 * @param children			The children to be merged
-	 * @throws MetricException	It's thrown when there is a mismatch between the
-	 * 							child's configuration class and the father's
+	 * @param out				The writer in which the report must be written
+	 * 							(it is not closed)
+	 * @throws MetricException	It's thrown when there are stages in the Metric object without a value
+	 * @throws IOException		It's thrown when something went bad at writing the report
+	 * @see ReportWriter
 	 */
-	public void merge(Metric ... children) throws MetricException {
+	public void report(Writer out) throws MetricException, IOException {
 		
-		List<MeasurementPhase> configuredPhases = config.getPhases();
+		validate();
 		
-		for (int i = 0; i < children.length; i++) {
-			// Validate that father and child have the same configuration
-			if(!config.equals(children[i].config)){
-				throw new MetricException(8, 
-						"Mismatch in the configuration class. Cannot merge "
-						+ "metrics configured as " + config.getIdentifier() + 
-						" and " + children[i].config.getIdentifier());
-			}
-			
-			// Add the child to the list
-			this.children.add(children[i]);
-			
-			// Update the measures based on the child's values (only shared measurements)
-			for (int j = 0; j < configuredPhases.size(); j++) {
-				MeasurementPhase tempPhase = configuredPhases.get(j);
-				MeasurementPhase.Level[] levels = tempPhase.getLevels();
-				
-				// Iterate the different levels in tempPhase
-				for (int k = 0; k < levels.length; k++) {
-					MeasurementPhase.Level tempLevel = levels[k];
-					MeasurementPhase.Stage[] stages = tempLevel.getStages();
-					
-					// Iterate the different stages in tempLevel
-					for (int l = 0; l < stages.length; l++) {
-						MeasurementPhase.Stage tempStage = stages[l];
-						Measurement childMeasurement = 
-								children[i].getMeasurement(tempPhase.getName(), tempLevel.getName(), tempStage.getName());
-					
-						if(childMeasurement != null && tempStage.isShared()){
-							Measurement ownMeasurement = 
-									getMeasurement(tempPhase.getName(), tempLevel.getName(), tempStage.getName());
-							/*
-							 * The father did not set any value before 
-							 * children[i] on phase tempPhase, stage tempStage
-							 */
-							if(ownMeasurement == null){
-								ownMeasurement = new Measurement();
-								setMeasure(tempPhase.getName(), tempLevel.getName(), tempStage.getName(), ownMeasurement);
-							}
-							
-							ownMeasurement.setValue(children[i].getIdentifier(), childMeasurement.getOwnValue());
-						}
-					}
-				}
-				
-			}
-		}
+		ReportWriter writer = new ReportWriter(out);
+		writer.writeReport(this);
+		writer.flush();
 	}
 	
 	/**
-	 * Writes a report on the specified file, containing the configured attributes,
-	 * measurement phases (including levels and stages) and their corresponding calculated values.
+	 * Writes a delta report on the specified file: only the rows of the 
+	 * metrics (in this metric's subtree) whose measurements, attributes or
+	 * father changed since a given report epoch. Each row is tagged with the
+	 * path of its father, so that replaying a full report and the deltas 
+	 * written after it rebuilds the current tree (see ReportReader). Only the
+	 * subtrees with changes are walked.
+	 * 
+	 * A delta report since epoch 0 contains every row.
 	 * 
 	 * @param file				The file in which the report must be written
 	 * @param append			Indicates if the report must be appended or overwritten in the file
+	 * @param since				The epoch returned by the previous delta report,
+	 * 							or 0 to write every row
+	 * @return					The epoch to pass to the next delta report
 	 * @throws MetricException	It's thrown when there are stages in the Metric object without a value
-	 * 							(i.e., there isn't a measurement object in the phases map)
 	 * @throws IOException		It's thrown when something went bad at writing the report
+	 * @see ReportWriter#writeDelta(Metric, long)
 	 */
-	public void report(File file, boolean append) throws MetricException, IOException {
+	public long reportChanges(File file, boolean append, long since) 
+			throws MetricException, IOException {
 		
 		validate();
 		
-		String heading = "IDENTIFIER";
-		String content = new String();
+		ReportWriter writer = new ReportWriter(
+				new BufferedWriter(new FileWriter(file, append)));
 		
-		String[] configuredAttrs = config.getAttributes();
-		List<MeasurementPhase> configuredPhases = config.getPhases();
-
-		// Add attributes' name to the head
-		for (int i = 0; i < configuredAttrs.length; i++) {
-			heading += "\t" + configuredAttrs[i];
+		try {
+			return writer.writeDelta(this, since);
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Returns the value calculated for a level of a measurement phase (i.e.,
+	 * the value returned by MeasurementPhase.calculateLevelValue). The value
+	 * is cached until a measurement or a child is added to this metric.
+	 * 
+	 * @param handle	Any handle of the level
+	 * @return			The level's value
+	 * @see #getValueCacheHits()
+	 */
+	public long getLevelValue(MetricSchema.StageHandle handle){
+		return levelValue(handle.getLevelSlot());
+	}
+	
+	/**
+	 * Returns the value calculated for a level of a measurement phase.
+	 * 
+	 * @param phase					The measurement phase
+	 * @param level					The measurement level
+	 * @return						The level's value
+	 * @throws MetricException		It's thrown if the level is not configured
+	 * @see #getLevelValue(MetricSchema.StageHandle)
+	 */
+	public long getLevelValue(String phase, String level) throws MetricException {
+		int levelSlot = schema.getLevelSlot(phase, level);
+		
+		if(levelSlot < 0){
+			throw new MetricException(22, "Phase \"" + phase + "\", level \"" 
+					+ level + "\" is not configured. "
+					+ "Note this validation is case sensitive");
 		}
 		
-		// Add levels and phases to the head
-		for (int i = 0; i < configuredPhases.size(); i++) {
-			MeasurementPhase tempPhase = configuredPhases.get(i);
-			MeasurementPhase.Level[] tempLevels = tempPhase.getLevels();
-			
-			for (int j = 0; j < tempLevels.length; j++) {
-				if(!tempLevels[j].getName().equals(MeasurementPhase.Level.DEFAULT_NAME)){
-					heading += "\t" + tempPhase.getName() + 
-							"[" + tempLevels[j].getName() + "]";
-				}
-			}
-			
-			heading += "\t" + tempPhase.getName();
-			heading += "\t" + tempPhase.getName() + "-DETAIL";
+		return levelValue(levelSlot);
+	}
+	
+	/**
+	 * Returns the value calculated for a measurement phase (i.e., the value
+	 * returned by MeasurementPhase.calculatePhaseValue). The value is cached
+	 * until a measurement or a child is added to this metric.
+	 * 
+	 * @param phase					The measurement phase
+	 * @return						The phase's value
+	 * @throws MetricException		It's thrown if the phase is not configured
+	 */
+	public long getPhaseValue(String phase) throws MetricException {
+		int phaseIndex = schema.getPhaseIndex(phase);
+		
+		if(phaseIndex < 0){
+			throw new MetricException(22, "Phase \"" + phase + "\" is not configured. "
+					+ "Note this validation is case sensitive");
+		}
+		
+		return phaseValue(phaseIndex);
+	}
+	
+	long levelValue(int levelSlot){
+		ValueCache cache = valueCache();
+		int currentVersion = observe(VALUES_VERSION, this);
+		
+		if(cache.hasLevelValue(levelSlot, currentVersion)){
+			return cache.getLevelValue(levelSlot);
 		}
 		
-		content += recursiveReport(this, "");
+		int firstSlot = schema.getFirstSlot(levelSlot);
+		MetricSchema.StageHandle first = schema.getHandle(firstSlot);
+		MeasurementPhase.Stage[] stages = first.getLevel().getStages();
+		List<Measurement.Entry> levelMeasurements = new ArrayList<Measurement.Entry>();
 		
-		// Write the report
-		FileWriter writer = new FileWriter(file, append);
-		PrintWriter printWriter = new PrintWriter(writer);
+		for (int j = 0; j < stages.length; j++) {
+			levelMeasurements.add(new Measurement.Entry(stages[j].getName(), 
+					measurements.get(firstSlot + j)));
+		}
 		
-		printWriter.println("# " + new Date().toString());
-		printWriter.println(heading);
-		printWriter.println(content);
+		long value = first.getPhase().calculateLevelValue(levelMeasurements);
+		cache.putLevelValue(levelSlot, currentVersion, value);
 		
-		printWriter.close();
-		writer.close();
+		return value;
 	}
 	
-	private String recursiveReport(Metric metric, String tab) throws MetricException {
-		String content = metric.identifier;
-		String[] configuredAttributes = metric.config.getAttributes();
+	long phaseValue(int phaseIndex){
+		ValueCache cache = valueCache();
+		int currentVersion = observe(VALUES_VERSION, this);
 		
-		// Add attributes' values to the content
-		for (int i = 0; i < configuredAttributes.length; i++) {
-			content += "\t" + metric.getAttribute(configuredAttributes[i]);
+		if(cache.hasPhaseValue(phaseIndex, currentVersion)){
+			return cache.getPhaseValue(phaseIndex);
 		}
-
-		// Add phases' values to the content
-		for (int i = 0; i < metric.config.getPhases().size(); i++) {
-			MeasurementPhase tempPhase = metric.config.getPhases().get(i);
-			HashMap<String, List<Measurement.Entry>> tempMeasurements = 
-					metric.getPhaseMeasurements(tempPhase);
-
-			Set<String> tempLevels = tempMeasurements.keySet();
-			HashMap<String, Long> levelValues = new HashMap<String, Long>();
-			
-			for (String tempLevel : tempLevels) {
-				List<Measurement.Entry> levelMeasurements = tempMeasurements.get(tempLevel);
-				long levelValue = tempPhase.calculateLevelValue(levelMeasurements);
-				levelValues.put(tempLevel, levelValue);
-				
-				if(!tempLevel.equals(MeasurementPhase.Level.DEFAULT_NAME)){
-					content += "\t" + metric.config.scaleValue(levelValue);
-				}
-			}
 		
-			content += "\t" + metric.config.scaleValue(tempPhase.calculatePhaseValue(levelValues));
-			content += "\t" + tempPhase.toString(tempMeasurements);
+		MeasurementPhase phase = config.getPhases().get(phaseIndex);
+		MeasurementPhase.Level[] levels = phase.getLevels();
+		HashMap<String, Long> levelValues = new HashMap<String, Long>();
+		
+		for (int j = 0; j < levels.length; j++) {
+			levelValues.put(levels[j].getName(), 
+					levelValue(schema.getLevelSlot(phaseIndex, j)));
 		}
 		
-		for (int i = 0; i < metric.children.size(); i++) {
-			content += System.getProperty("line.separator") + 
-					recursiveReport(metric.children.get(i), tab + "\t");
+		long value = phase.calculatePhaseValue(levelValues);
+		cache.putPhaseValue(phaseIndex, currentVersion, value);
+		
+		return value;
+	}
+	
+	private ValueCache valueCache(){
+		ValueCache cache = valueCache;
+		
+		if(cache == null){
+			synchronized (this) {
+				cache = valueCache;
+				
+				if(cache == null){
+					cache = new ValueCache(schema);
+					valueCache = cache;
+				}
+			}
 		}
 		
-		return content;
+		return cache;
+	}
+	
+	/**
+	 * @return	The number of level and phase values taken from the cache
+	 */
+	public long getValueCacheHits(){
+		return valueCache().getHits();
+	}
+	
+	/**
+	 * @return	The number of level and phase values that had to be calculated
+	 */
+	public long getValueCacheMisses(){
+		return valueCache().getMisses();
 	}
 	
 	/**
@@ -234,18 +1089,18 @@ public class Metric implements Serializable {
 		HashMap<String, List<Measurement.Entry>> measurementsPerLevel =
 				new HashMap<String, List<Measurement.Entry>>();
 		MeasurementPhase.Level[] levels = phase.getLevels();
+		int phaseIndex = schema.getPhaseIndex(phase.getName());
 		
 		for (int i = 0; i < levels.length; i++) {
 			MeasurementPhase.Level tempLevel = levels[i];
 			MeasurementPhase.Stage[] stages = tempLevel.getStages();
+			int firstSlot = phaseIndex < 0 ? -1 : schema.getFirstSlot(phaseIndex, i);
 			
 			List<Measurement.Entry> tempMeasurements = new ArrayList<Measurement.Entry>();
 			
 			for (int j = 0; j < stages.length; j++) {
 				MeasurementPhase.Stage tempStage = stages[j];
-				String tempKey = phase.getName() + "-" + tempLevel.getName() + "-" + tempStage.getName();
-				
-				Measurement tempMeasurement = measurements.get(tempKey);
+				Measurement tempMeasurement = firstSlot < 0 ? null : measurements.get(firstSlot + j);
 				tempMeasurements.add(new Measurement.Entry(tempStage.getName(), tempMeasurement));
 			}
 			
@@ -263,10 +1118,9 @@ public class Metric implements Serializable {
 	 * @throws MetricException		It's thrown if there is an attribute or a 
 	 * 								measurement without its corresponding value
 	 */
-	private void validate() throws MetricException {
+	void validate() throws MetricException {
 
 		String[] attrs = config.getAttributes();
-		List<MeasurementPhase> phases = config.getPhases();
 		
 		for (int i = 0; i < attrs.length; i++) {
 			if(attributes.get(attrs[i]) == null){
@@ -276,37 +1130,26 @@ public class Metric implements Serializable {
 			}
 		}
 		
-		for (int j = 0; j < phases.size(); j++) {
-			
-			MeasurementPhase tempPhase = phases.get(j);
-			MeasurementPhase.Level[] tempLevels = tempPhase.getLevels();
-			
-			for (int i = 0; i < tempLevels.length; i++) {
-				MeasurementPhase.Level tempLevel = tempLevels[i];
-				MeasurementPhase.Stage[] tempStages = tempLevel.getStages();
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			if(!measurements.isSet(slot)){
+				MetricSchema.StageHandle handle = schema.getHandle(slot);
+				String phaseName = handle.getPhase().getName();
+				String levelName = handle.getLevel().getName();
+				String stageName = handle.getStage().getName();
 				
-				for (int k = 0; k < tempStages.length; k++) {
-					MeasurementPhase.Stage tempStage = tempStages[k];
-					String key = tempPhase.getName() + "-" + tempLevel.getName() + 
-								"-" + tempStage.getName();
-					
-					if(this.measurements.get(key) == null){
-
-						String message = "Phase \"" + tempPhase.getName() + 
-								"\", level \"" + tempLevel.getName() + "\", in stage \"" 
-								+ tempStage.getName() + "\", must be set before generating "
-								+ "the report. Note this validation is case sensitive";
-						
-						if(tempLevel.getName().equals(MeasurementPhase.Level.DEFAULT_NAME)){
-							message = "Phase \"" + tempPhase.getName() + 
-									"\", in stage \"" 
-									+ tempStage.getName() + "\", must be set before generating "
-									+ "the report. Note this validation is case sensitive";
-						}
-						
-						throw new MetricException(3, message);
-					}
+				String message = "Phase \"" + phaseName + 
+						"\", level \"" + levelName + "\", in stage \"" 
+						+ stageName + "\", must be set before generating "
+						+ "the report. Note this validation is case sensitive";
+				
+				if(levelName.equals(MeasurementPhase.Level.DEFAULT_NAME)){
+					message = "Phase \"" + phaseName + 
+							"\", in stage \"" 
+							+ stageName + "\", must be set before generating "
+							+ "the report. Note this validation is case sensitive";
 				}
+				
+				throw new MetricException(3, message);
 			}
 		}
 		
@@ -320,12 +1163,25 @@ public class Metric implements Serializable {
 	 * @throws MetricException		It's thrown if the attribute is already set
 	 */
 	public void setAttribute(String key, Object value) throws MetricException {
-		if(attributes.containsKey(key)){
+		if(storage == Storage.CONCURRENT){
+			Object previous = ((ConcurrentMap<String, Object>) attributes).putIfAbsent(key, value);
+			
+			if(previous != null){
+				throw new MetricException(4, "The attribute \"" + key 
+						+ "\" is already set to value: " + previous);
+			}
+		}else if(attributes.containsKey(key)){
 			throw new MetricException(4, "The attribute \"" + key 
 					+ "\" is already set to value: " + attributes.get(key));
 		}else{
 			attributes.put(key, value);
 		}
+		
+		markChanged(false);
+		
+		if(journal != null){
+			journal.attribute(this, key, value);
+		}
 	}
 	
 	/**
@@ -335,19 +1191,12 @@ public class Metric implements Serializable {
 	 * @param stage					The specific stage to be set
 	 * @param value					The measured value
 	 * @throws MetricException		It's thrown if the stage (in that hase) is
-	 * 								already set
+	 * 								already set, or if it is not configured.
+	 * 								Sampled stages can be set several times
 	 */
 	public void setMeasure(String phase, String level, String stage, long value) 
 			throws MetricException {
-		
-		String key = phase + "-" + level + "-" + stage;
-		
-		if(measurements.containsKey(key)){
-			throw new MetricException(5, "Phase \"" + phase + "\", level \"" + 
-					level + "\", in stage \"" + stage + "\" is already set");
-		}
-		
-		measurements.put(key, new Measurement(value));
+		setMeasure(getHandle(phase, level, stage), value);
 	}
 	
 	/**
@@ -358,25 +1207,66 @@ public class Metric implements Serializable {
 	 * @param stage					The specific stage to be set
 	 * @param value					The measured value
 	 * @throws MetricException		It's thrown if the stage (in that hase) is
-	 * 								already set
+	 * 								already set, or if it is not configured
 	 */
 	public void setMeasure(String phase, String stage, long value) throws MetricException {
 		setMeasure(phase, MeasurementPhase.Level.DEFAULT_NAME, stage, value);
 	}
 	
 	/**
-	 * For internal use only!
+	 * Sets a value for the phase-level-stage identified by a schema handle.
+	 * This is the preferred way to record measurements in tight loops, as it
+	 * does not build nor hash any string key.
 	 * 
-	 * @param phase
-	 * @param level
-	 * @param stage
-	 * @param measurement
+	 * @param handle				The phase-level-stage handle
+	 * @param value					The measured value
+	 * @throws MetricException		It's thrown if the stage (in that hase) is
+	 * 								already set, or the handle belongs to 
+	 * 								another configuration
+	 * @see MetricSchema#getHandle(String, String, String)
 	 */
-	private void setMeasure(String phase, String level, String stage, 
-			Measurement measurement) {
+	public void setMeasure(MetricSchema.StageHandle handle, long value) 
+			throws MetricException {
+		
+		int slot = checkHandle(handle);
+		
+		if(handle.isSampled()){
+			Measurement measurement = measurements.sample(slot, childOrdinals);
+			
+			// Bind the measurement to the father before recording, if attached
+			if(parent != null && handle.isShared()){
+				push(slot);
+			}
+			
+			measurement.record(value);
+			invalidate();
+			invalidateValues();
+			
+			// The sample was recorded into the father's measurement as well
+			if(parent != null && handle.isShared()){
+				parent.invalidateValues();
+			}
+		}else{
+			if(!measurements.set(slot, value)){
+				throw new MetricException(5, "Phase \"" + handle.getPhase().getName() 
+						+ "\", level \"" + handle.getLevel().getName() + "\", in stage \"" 
+						+ handle.getStage().getName() + "\" is already set");
+			}
+			
+			invalidate();
+			invalidateValues();
+			
+			if(parent != null && handle.isShared()){
+				push(slot);
+				parent.invalidateValues();
+			}
+		}
+		
+		MeasurementJournal currentJournal = journal;
 		
-		String key = phase + "-" + level + "-" + stage;
-		measurements.put(key, measurement);
+		if(currentJournal != null){
+			currentJournal.measure(this, slot, value);
+		}
 	}
 	
 	/**
@@ -386,10 +1276,207 @@ public class Metric implements Serializable {
 	 * @param phase					The measurement phase
 	 * @param level					The measurement level
 	 * @param stage					The specific stage
-	 * @return						The measurement object set in the stage
+	 * @return						The measurement object set in the stage, or
+	 * 								null if there is none
 	 */
 	public Measurement getMeasurement(String phase, String level, String stage){
-		return measurements.get(phase + "-" + level + "-" + stage);
+		MetricSchema.StageHandle handle = schema.getHandle(phase, level, stage);
+		return handle == null ? null : measurements.get(handle.getSlot());
+	}
+	
+	/**
+	 * Returns the measurement object for the phase-level-stage identified by
+	 * a schema handle.
+	 * 
+	 * @param handle				The phase-level-stage handle
+	 * @return						The measurement object set in the stage, or
+	 * 								null if there is none
+	 * @throws MetricException		It's thrown if the handle belongs to 
+	 * 								another configuration
+	 */
+	public Measurement getMeasurement(MetricSchema.StageHandle handle) 
+			throws MetricException {
+		return measurements.get(checkHandle(handle));
+	}
+	
+	/**
+	 * Starts timing a level in a measurement phase: its first stage is set to
+	 * the current time, and its last stage will be set once the returned timer
+	 * is closed. It is meant to be used in a try-with-resources statement:
+	 * 
+	 * <pre>
+	 * try (Metric.Timer timer = metric.time("Merge", "One")) {
+	 *     // measured code
+	 * }
+	 * </pre>
+	 * 
+	 * @param phase					The measurement phase
+	 * @param level					The measurement level
+	 * @return						The level's timer
+	 * @throws MetricException		It's thrown if the level is not configured,
+	 * 								it has less than two stages, its first or
+	 * 								last stage is sampled, or its first stage
+	 * 								is already set
+	 * @see #setClock(MetricClock)
+	 */
+	public Timer time(String phase, String level) throws MetricException {
+		int levelSlot = schema.getLevelSlot(phase, level);
+		
+		if(levelSlot < 0){
+			throw new MetricException(22, "Phase \"" + phase + "\", level \"" 
+					+ level + "\" is not configured. "
+					+ "Note this validation is case sensitive");
+		}
+		
+		return time(levelSlot);
+	}
+	
+	/**
+	 * Starts timing a measurement phase. As no level is specified, the default
+	 * one is used.
+	 * 
+	 * @param phase					The measurement phase
+	 * @return						The level's timer
+	 * @throws MetricException		It's thrown if the phase is not configured
+	 * 								without levels, it has less than two 
+	 * 								stages, its first or last stage is 
+	 * 								sampled, or its first stage is already set
+	 * @see #time(String, String)
+	 */
+	public Timer time(String phase) throws MetricException {
+		return time(phase, MeasurementPhase.Level.DEFAULT_NAME);
+	}
+	
+	/**
+	 * Starts timing the level of a phase-level-stage handle.
+	 * 
+	 * @param handle				Any handle of the level to be timed
+	 * @return						The level's timer
+	 * @throws MetricException		It's thrown if the level has less than two
+	 * 								stages, its first or last stage is sampled,
+	 * 								its first stage is already set, or the 
+	 * 								handle belongs to another configuration
+	 * @see #time(String, String)
+	 */
+	public Timer time(MetricSchema.StageHandle handle) throws MetricException {
+		checkHandle(handle);
+		return time(handle.getLevelSlot());
+	}
+	
+	private Timer time(int levelSlot) throws MetricException {
+		Timer[] tempTimers = timers;
+		
+		if(tempTimers == null){
+			tempTimers = new Timer[schema.getLevelSlotCount()];
+			timers = tempTimers;
+		}
+		
+		Timer timer = tempTimers[levelSlot];
+		
+		if(timer == null){
+			int firstSlot = schema.getFirstSlot(levelSlot);
+			int stages = schema.getStageCount(levelSlot);
+			
+			MetricSchema.StageHandle start = schema.getHandle(firstSlot);
+			
+			if(stages < 2){
+				throw new MetricException(23, "Phase \"" + start.getPhase().getName() 
+						+ "\", level \"" + start.getLevel().getName() 
+						+ "\" must have at least two stages to be timed");
+			}
+			
+			MetricSchema.StageHandle end = schema.getHandle(firstSlot + stages - 1);
+			
+			// Sampled stages hold durations, not timestamps
+			if(start.isSampled() || end.isSampled()){
+				throw new MetricException(23, "Phase \"" + start.getPhase().getName() 
+						+ "\", level \"" + start.getLevel().getName() 
+						+ "\" cannot be timed, as its first or last stage is sampled");
+			}
+			
+			timer = new Timer(this, start, end);
+			tempTimers[levelSlot] = timer;
+		}
+		
+		return timer.open();
+	}
+	
+	/**
+	 * @param handle				A phase-level-stage handle
+	 * @return						The handle's slot
+	 * @throws MetricException		It's thrown if the handle does not belong 
+	 * 								to this metric's schema
+	 */
+	private int checkHandle(MetricSchema.StageHandle handle) throws MetricException {
+		if(!schema.contains(handle)){
+			throw new MetricException(29, "Phase \"" + handle.getPhase().getName() 
+					+ "\", level \"" + handle.getLevel().getName() + "\", in stage \"" 
+					+ handle.getStage().getName() + "\" is not a stage of the "
+					+ config.getIdentifier() + " configuration");
+		}
+		
+		return handle.getSlot();
+	}
+	
+	/**
+	 * Resolves a phase-level-stage into its schema handle.
+	 * 
+	 * @param phase					The measurement phase
+	 * @param level					The measurement level
+	 * @param stage					The specific stage
+	 * @return						The corresponding handle
+	 * @throws MetricException		It's thrown if the phase-level-stage is not
+	 * 								configured
+	 */
+	private MetricSchema.StageHandle getHandle(String phase, String level, String stage) 
+			throws MetricException {
+		
+		MetricSchema.StageHandle handle = schema.getHandle(phase, level, stage);
+		
+		if(handle == null){
+			throw new MetricException(22, "Phase \"" + phase + "\", level \"" + 
+					level + "\", in stage \"" + stage + "\" is not configured. "
+					+ "Note this validation is case sensitive");
+		}
+		
+		return handle;
+	}
+	
+	/**
+	 * Writes this metric, and which of its children are attached to it.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		
+		for (int i = 0; i < children.size(); i++) {
+			out.writeBoolean(children.get(i).parent == this);
+		}
+	}
+	
+	/**
+	 * Reads this metric, and links its children to it again (links to the 
+	 * fathers are not serialized).
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		
+		for (int i = 0; i < children.size(); i++) {
+			Metric child = children.get(i);
+			child.owner = this;
+			
+			if(in.readBoolean()){
+				child.parent = this;
+				
+				for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+					MetricSchema.StageHandle handle = schema.getHandle(slot);
+					
+					if(child.measurements.isSet(slot) && handle.isShared() && handle.isSampled()){
+						child.measurements.get(slot).bindPush(
+								measurements.sample(slot, childOrdinals), child.parentIndex);
+					}
+				}
+			}
+		}
 	}
 	
 	@Override
@@ -425,6 +1512,27 @@ public class Metric implements Serializable {
 	public List<Metric> getChildren() {
 		return children;
 	}
+	
+	/**
+	 * @return	The father this metric is attached to, or null if it is not
+	 * 			attached
+	 * @see #attach(Metric[])
+	 */
+	public Metric getParent() {
+		return parent;
+	}
+	
+	Map<String, Object> attributes() {
+		return attributes;
+	}
+	
+	MeasurementStore measurements() {
+		return measurements;
+	}
+	
+	ChildOrdinals childOrdinals() {
+		return childOrdinals;
+	}
 
 	public Object getAttribute(String key) {
 		return attributes.get(key);
@@ -433,5 +1541,76 @@ public class Metric implements Serializable {
 	public MetricConfig getConfig() {
 		return config;
 	}
+	
+	public Storage getStorage() {
+		return storage;
+	}
+	
+	public MetricClock getClock() {
+		return clock == null ? MetricClock.NANO_TIME : clock;
+	}
+	
+	/**
+	 * Replaces the time source used to time levels
+	 * 
+	 * @param clock		The new time source
+	 * @see #time(String, String)
+	 */
+	public void setClock(MetricClock clock) {
+		this.clock = clock;
+	}
+	
+	/**
+	 * @return	The estimated offset and drift of this metric's clock with 
+	 * 			respect to its father's, or null if they share the clock
+	 */
+	public ClockEstimate getClockEstimate() {
+		return clockEstimate;
+	}
+	
+	/**
+	 * Sets the estimated offset and drift of this metric's clock with respect
+	 * to its father's (e.g., when its timestamps are taken on another node).
+	 * From then on, its non-sampled values are translated to the father's 
+	 * clock when merged into or pushed to the father; the values an attached
+	 * metric already pushed are translated again. The estimate must be set 
+	 * before merging the metric.
+	 * 
+	 * @param clockEstimate		The estimate, or null to share values as they are
+	 * @see ClockEstimate#estimate(long[], long[], long[], long[])
+	 */
+	public synchronized void setClockEstimate(ClockEstimate clockEstimate) {
+		this.clockEstimate = clockEstimate;
+		
+		if(journal != null){
+			journal.clock(this, clockEstimate);
+		}
+		
+		// The roll-ups of the ancestors translate this subtree's timestamps
+		invalidate();
+		
+		Metric father = parent;
+		
+		if(father == null){
+			return;
+		}
+		
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			MetricSchema.StageHandle handle = schema.getHandle(slot);
+			
+			if(measurements.isSet(slot) && handle.isShared() && !handle.isSampled()){
+				Measurement fatherMeasurement = 
+						father.measurements.compose(slot, father.childOrdinals);
+				
+				if(fatherMeasurement.isBoundTo(father.childOrdinals)){
+					fatherMeasurement.updateValue(parentIndex, sharedValue(slot));
+				}else{
+					fatherMeasurement.updateValue(identifier, sharedValue(slot));
+				}
+			}
+		}
+		
+		father.invalidateValues();
+	}
 
 }
@@ -0,0 +1,27 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+/**
+ * This interface abstracts the time source used by metrics to take their
+ * own measurements (e.g., when timing a level through
+ * Metric.time(String, String)). Implementations can be replaced by a
+ * deterministic clock when testing.
+ *
+ * @see Metric#setClock(MetricClock)
+ */
+public interface MetricClock {
+
+	/**
+	 * A clock based on System.nanoTime()
+	 */
+	MetricClock NANO_TIME = new MetricClock() {
+		public long now(){
+			return System.nanoTime();
+		}
+	};
+
+	/**
+	 * @return	The current time, in the unit used by the metric's measurements
+	 */
+	long now();
+
+}
@@ -0,0 +1,594 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class encodes metric trees in a compact binary form, meant to ship
+ * them between nodes. Unlike Java serialization, it does not write class
+ * descriptors nor the configuration object graph: only the identifiers,
+ * the configuration identifier, the attribute values, for each
+ * phase-level-stage, the own value, the children's values and the histograms
+ * of sampled stages, and the partial aggregates forwarded to each metric.
+ * When decoding, metrics are bound to the locally
+ * registered configuration with the same identifier.
+ *
+ * Attribute values of types other than String, Integer, Long, Double and
+ * Boolean are decoded as strings. Decoded children are merged (not attached)
+ * into their fathers. Every count and index read is checked, so a malformed
+ * stream is reported with an IOException (e.g., one received from a
+ * connection).
+ *
+ * @see MetricFactory#findConfig(String)
+ */
+public final class MetricCodec {
+
+	private static final int MAGIC = 0x504D4331;
+	private static final int VERSION = 2;
+
+	// Slot flags
+	private static final int SET = 1;
+	private static final int OWN_VALUE = 2;
+	private static final int HISTOGRAM = 4;
+	private static final int CHILDREN_HISTOGRAM = 8;
+	private static final int CHILD_VALUES = 16;
+	private static final int UNBOUND = 32;
+	private static final int ALL_FLAGS = 63;
+
+	// Attribute types
+	private static final int NULL = 0;
+	private static final int STRING = 1;
+	private static final int INTEGER = 2;
+	private static final int LONG = 3;
+	private static final int DOUBLE = 4;
+	private static final int BOOLEAN = 5;
+
+	private MetricCodec(){
+	}
+
+	/**
+	 * Encodes a metric and all of its descendants.
+	 *
+	 * @param metric		The root metric
+	 * @param out			The stream in which the metric is encoded (it is
+	 * 						flushed, but not closed)
+	 * @throws IOException	It's thrown when something went bad at writing
+	 */
+	public static void encode(Metric metric, OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeByte(VERSION);
+		encode(metric, null, data);
+		data.flush();
+	}
+
+	/**
+	 * @param metric		The root metric
+	 * @return				The encoded metric and all of its descendants
+	 */
+	public static byte[] toByteArray(Metric metric){
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		try {
+			encode(metric, out);
+		} catch (IOException e) {
+			// Byte array streams do not throw I/O exceptions
+			throw new IllegalStateException(e);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a metric tree.
+	 *
+	 * @param in				The stream from which the metric is decoded
+	 * @return					The root metric
+	 * @throws IOException		It's thrown when something went bad at reading,
+	 * 							or the stream does not contain an encoded metric
+	 * @throws MetricException	It's thrown when there is no local configuration
+	 * 							class with the encoded configuration identifier
+	 */
+	public static Metric decode(InputStream in) throws IOException, MetricException {
+		return decode(in, null);
+	}
+
+	/**
+	 * Decodes a metric tree, binding the metrics encoded with the given
+	 * configuration to it (even if it was not registered).
+	 *
+	 * @param in				The stream from which the metric is decoded
+	 * @param config			The configuration of the encoded metrics, or
+	 * 							null to look every configuration up
+	 * @return					The root metric
+	 * @throws IOException		It's thrown when something went bad at reading,
+	 * 							or the stream does not contain an encoded metric
+	 * @throws MetricException	It's thrown when there is no local configuration
+	 * 							class with an encoded configuration identifier
+	 */
+	static Metric decode(InputStream in, MetricConfig config) throws IOException, MetricException {
+		return readFrom(new DataInputStream(new BufferedInputStream(in)), config);
+	}
+
+	/**
+	 * Decodes a metric tree, reading no byte past it (so it can be decoded
+	 * straight from a stream carrying other data, e.g., a connection).
+	 *
+	 * @param data				The input from which the metric is decoded
+	 * @param config			The configuration of the encoded metrics, or
+	 * 							null to look every configuration up
+	 * @return					The root metric
+	 * @throws IOException		It's thrown when something went bad at reading,
+	 * 							or the input does not contain an encoded metric
+	 * @throws MetricException	It's thrown when there is no local configuration
+	 * 							class with an encoded configuration identifier
+	 */
+	static Metric readFrom(DataInput data, MetricConfig config) throws IOException, MetricException {
+		if(data.readInt() != MAGIC){
+			throw new IOException("The stream does not contain an encoded metric");
+		}
+
+		if(data.readUnsignedByte() != VERSION){
+			throw new IOException("Unsupported metric encoding version");
+		}
+
+		try {
+			return decode(null, config, data);
+		} catch (RuntimeException e) {
+			// Malformed in a way the checks while decoding did not catch
+			throw new IOException("Malformed encoded metric", e);
+		}
+	}
+
+	/**
+	 * @param bytes				The encoded metric
+	 * @return					The root metric
+	 * @throws IOException		It's thrown when the bytes do not contain an
+	 * 							encoded metric
+	 * @throws MetricException	It's thrown when there is no local configuration
+	 * 							class with the encoded configuration identifier
+	 */
+	public static Metric fromByteArray(byte[] bytes) throws IOException, MetricException {
+		return decode(new ByteArrayInputStream(bytes));
+	}
+
+	private static void encode(Metric metric, Metric father, DataOutput out) throws IOException {
+		MetricConfig config = metric.getConfig();
+		MetricSchema schema = config.getSchema();
+		MeasurementStore measurements = metric.measurements();
+		ChildOrdinals ordinals = metric.childOrdinals();
+
+		out.writeUTF(metric.getIdentifier());
+
+		if(father != null && father.getConfig().equals(config)){
+			out.writeBoolean(false);
+		}else{
+			out.writeBoolean(true);
+			out.writeUTF(config.getIdentifier());
+		}
+
+		out.writeByte(metric.getStorage().ordinal());
+
+		// Attributes
+		Map<String, Object> attributes = metric.attributes();
+		writeVarInt(out, attributes.size());
+
+		for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+			writeAttributeName(out, config, attribute.getKey());
+			writeAttribute(out, attribute.getValue());
+		}
+
+		// Child ordinals
+		int ordinalCount = ordinals.size();
+		writeVarInt(out, ordinalCount);
+
+		for (int i = 0; i < ordinalCount; i++) {
+			out.writeUTF(ordinals.identifierOf(i));
+		}
+
+		// Measurements
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			if(!measurements.isSet(slot)){
+				out.writeByte(0);
+				continue;
+			}
+
+			boolean sampled = schema.getHandle(slot).isSampled();
+			boolean ownValue = !sampled && measurements.hasValue(slot);
+			Measurement measurement = ownValue && !hasComposedValues(measurements, slot) ?
+					null : measurements.get(slot);
+
+			if(measurement == null){
+				out.writeByte(SET | OWN_VALUE);
+				out.writeLong(measurements.getOwnValue(slot));
+				continue;
+			}
+
+			synchronized (measurement) {
+				int flags = SET;
+
+				if(ownValue) flags |= OWN_VALUE;
+				if(measurement.getHistogram() != null) flags |= HISTOGRAM;
+				if(measurement.getChildrenHistogram() != null) flags |= CHILDREN_HISTOGRAM;
+				if(measurement.getChildCount() > 0) flags |= CHILD_VALUES;
+				if(!measurement.isBoundTo(ordinals)) flags |= UNBOUND;
+
+				out.writeByte(flags);
+
+				if(ownValue) out.writeLong(measurement.getOwnValue());
+				if(measurement.getHistogram() != null) measurement.getHistogram().writeTo(out);
+				if(measurement.getChildrenHistogram() != null) measurement.getChildrenHistogram().writeTo(out);
+
+				if(measurement.getChildCount() > 0){
+					writeChildValues(out, measurement, (flags & UNBOUND) != 0);
+				}
+			}
+		}
+
+		// Forwarded aggregates
+		Map<String, PartialAggregate> forwarded = metric.forwardedAggregates();
+		writeVarInt(out, forwarded == null ? 0 : forwarded.size());
+
+		if(forwarded != null){
+			for (Map.Entry<String, PartialAggregate> aggregate : forwarded.entrySet()) {
+				out.writeUTF(aggregate.getKey());
+				aggregate.getValue().writeTo(out);
+			}
+		}
+
+		// Children
+		List<Metric> children = metric.getChildren();
+		writeVarInt(out, children.size());
+
+		for (int i = 0; i < children.size(); i++) {
+			encode(children.get(i), metric, out);
+		}
+	}
+
+	/**
+	 * @return	Whether the slot may have a measurement with more than an own
+	 * 			value (so that its measurement object must be read)
+	 */
+	private static boolean hasComposedValues(MeasurementStore measurements, int slot){
+		return !(measurements instanceof MeasurementStore.DenseStore)
+				|| ((MeasurementStore.DenseStore) measurements).hasView(slot);
+	}
+
+	private static void writeChildValues(DataOutput out, Measurement measurement,
+			boolean unbound) throws IOException {
+
+		if(unbound){
+			int last = -1;
+
+			for (int i = measurement.nextChildIndex(0); i >= 0; i = measurement.nextChildIndex(i + 1)) {
+				last = i;
+			}
+
+			writeVarInt(out, last + 1);
+
+			for (int i = 0; i <= last; i++) {
+				out.writeUTF(measurement.hasChildValue(i) ? measurement.getChildIdentifier(i) : "");
+			}
+		}
+
+		// Ordinals and values are written as deltas from the previous ones
+		int previousIndex = -1;
+		long previousValue = 0;
+
+		writeVarInt(out, measurement.getChildCount());
+
+		for (int i = measurement.nextChildIndex(0); i >= 0; i = measurement.nextChildIndex(i + 1)) {
+			writeVarInt(out, i - previousIndex - 1);
+			writeVarLong(out, measurement.getChildValue(i) - previousValue);
+			previousIndex = i;
+			previousValue = measurement.getChildValue(i);
+		}
+	}
+
+	private static Metric decode(Metric father, MetricConfig known, DataInput in)
+			throws IOException, MetricException {
+
+		String identifier = in.readUTF();
+		boolean configured = in.readBoolean();
+
+		if(!configured && father == null){
+			throw new IOException("Malformed root metric " + identifier + ", without configuration");
+		}
+
+		MetricConfig config = configured ? findConfig(in.readUTF(), known) : father.getConfig();
+		int storageOrdinal = in.readUnsignedByte();
+
+		if(storageOrdinal >= Metric.Storage.values().length){
+			throw new IOException("Unknown storage " + storageOrdinal + " of metric " + identifier);
+		}
+
+		Metric.Storage storage = Metric.Storage.values()[storageOrdinal];
+		Metric metric = new Metric(identifier, config, storage);
+		MetricSchema schema = config.getSchema();
+		MeasurementStore measurements = metric.measurements();
+		ChildOrdinals ordinals = metric.childOrdinals();
+
+		// Attributes
+		int attributeCount = readCount(in, identifier);
+
+		for (int i = 0; i < attributeCount; i++) {
+			metric.setAttribute(readAttributeName(in, config), readAttribute(in));
+		}
+
+		// Child ordinals
+		int ordinalCount = readCount(in, identifier);
+
+		for (int i = 0; i < ordinalCount; i++) {
+			ordinals.register(in.readUTF());
+		}
+
+		// Measurements
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			int flags = in.readUnsignedByte();
+
+			if(flags == 0){
+				continue;
+			}
+
+			if((flags & ~ALL_FLAGS) != 0 || (flags & SET) == 0){
+				throw new IOException("Malformed flags " + flags + " of metric " + identifier);
+			}
+
+			boolean unbound = (flags & UNBOUND) != 0;
+			Measurement measurement = null;
+
+			if((flags & OWN_VALUE) != 0){
+				measurements.set(slot, in.readLong());
+			}
+
+			if((flags & HISTOGRAM) != 0){
+				measurement = measurements.putIfAbsent(slot, new Measurement(
+						LatencyHistogram.readFrom(in), unbound ? null : ordinals));
+			}
+
+			if(measurement == null
+					&& (flags & (OWN_VALUE | CHILDREN_HISTOGRAM | CHILD_VALUES)) != OWN_VALUE){
+				if(unbound){
+					// The slot's measurement object, with its own value if it has one
+					measurement = measurements.putIfAbsent(slot, new Measurement());
+				}else{
+					measurement = measurements.compose(slot, ordinals);
+				}
+			}
+
+			if((flags & CHILDREN_HISTOGRAM) != 0){
+				measurement.mergeHistograms(new Measurement(LatencyHistogram.readFrom(in)));
+			}
+
+			if((flags & CHILD_VALUES) != 0){
+				readChildValues(in, measurement, unbound ? null : ordinals, identifier);
+			}
+		}
+
+		// Forwarded aggregates
+		int aggregateCount = readCount(in, identifier);
+
+		for (int i = 0; i < aggregateCount; i++) {
+			String source = in.readUTF();
+			metric.mergeAggregate(source, PartialAggregate.readFrom(in, schema));
+		}
+
+		// Children
+		int childCount = readCount(in, identifier);
+
+		for (int i = 0; i < childCount; i++) {
+			Metric child = decode(metric, known, in);
+			metric.getChildren().add(child);
+			child.setOwner(metric);
+		}
+
+		return metric;
+	}
+
+	private static MetricConfig findConfig(String identifier, MetricConfig known)
+			throws MetricException {
+
+		return known != null && known.getIdentifier().equals(identifier) ?
+				known : MetricFactory.findConfig(identifier);
+	}
+
+	/**
+	 * @param ordinals		The ordinals the measurement is bound to, or null
+	 * 						if its children's identifiers are encoded with it
+	 * @param identifier	The metric's identifier (for error messages)
+	 */
+	private static void readChildValues(DataInput in, Measurement measurement,
+			ChildOrdinals ordinals, String identifier) throws IOException, MetricException {
+
+		List<String> identifiers = null;
+
+		if(ordinals == null){
+			int identifierCount = readCount(in, identifier);
+
+			// Not sized by the count alone, which may be malformed
+			identifiers = new ArrayList<String>(Math.min(identifierCount, 1024));
+
+			for (int i = 0; i < identifierCount; i++) {
+				identifiers.add(in.readUTF());
+			}
+		}
+
+		int limit = ordinals == null ? identifiers.size() : ordinals.size();
+		int count = readCount(in, identifier);
+		int childIndex = -1;
+		long value = 0;
+
+		for (int i = 0; i < count; i++) {
+			long next = (long) childIndex + readCount(in, identifier) + 1;
+
+			if(next >= limit){
+				throw new IOException("Malformed child ordinal " + next + " of metric "
+						+ identifier + ", which has " + limit + " children");
+			}
+
+			childIndex = (int) next;
+			value += readVarLong(in);
+
+			if(ordinals == null){
+				measurement.setValue(identifiers.get(childIndex), value);
+			}else{
+				measurement.setValue(childIndex, value);
+			}
+		}
+	}
+
+	/**
+	 * @param identifier	The metric's identifier (for error messages)
+	 * @return				A count (or a delta), which cannot be negative
+	 */
+	private static int readCount(DataInput in, String identifier) throws IOException {
+		int count = readVarInt(in);
+
+		if(count < 0){
+			throw new IOException("Malformed count " + count + " of metric " + identifier);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Writes the position of a configured attribute (plus one), or 0 followed
+	 * by the name of an attribute that is not configured.
+	 */
+	private static void writeAttributeName(DataOutput out, MetricConfig config, 
+			String name) throws IOException {
+
+		String[] configured = config.getAttributes();
+
+		for (int i = 0; i < configured.length; i++) {
+			if(configured[i].equals(name)){
+				writeVarInt(out, i + 1);
+				return;
+			}
+		}
+
+		writeVarInt(out, 0);
+		out.writeUTF(name);
+	}
+
+	private static String readAttributeName(DataInput in, MetricConfig config) throws IOException {
+		int index = readVarInt(in);
+		String[] configured = config.getAttributes();
+
+		if(index < 0 || index > configured.length){
+			throw new IOException("Malformed attribute " + index + " of configuration "
+					+ config.getIdentifier() + ", which has " + configured.length);
+		}
+
+		return index == 0 ? in.readUTF() : configured[index - 1];
+	}
+
+	static void writeAttribute(DataOutput out, Object value) throws IOException {
+		if(value == null){
+			out.writeByte(NULL);
+		}else if(value instanceof Integer){
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		}else if(value instanceof Long){
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		}else if(value instanceof Double){
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		}else if(value instanceof Boolean){
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		}else{
+			out.writeByte(STRING);
+			out.writeUTF(String.valueOf(value));
+		}
+	}
+
+	static Object readAttribute(DataInput in) throws IOException {
+		int type = in.readUnsignedByte();
+
+		switch (type) {
+		case NULL:
+			return null;
+		case INTEGER:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case DOUBLE:
+			return in.readDouble();
+		case BOOLEAN:
+			return in.readBoolean();
+		case STRING:
+			return in.readUTF();
+		default:
+			throw new IOException("Unknown attribute type " + type);
+		}
+	}
+
+	static void writeVarInt(DataOutput out, int value) throws IOException {
+		while((value & ~0x7F) != 0){
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.writeByte(value);
+	}
+
+	/**
+	 * Writes a signed value with zig-zag encoding, so that small negative 
+	 * deltas take few bytes as well.
+	 */
+	static void writeVarLong(DataOutput out, long value) throws IOException {
+		long zigzag = (value << 1) ^ (value >> 63);
+
+		while((zigzag & ~0x7FL) != 0){
+			out.writeByte((int) (zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+
+		out.writeByte((int) zigzag);
+	}
+
+	static long readVarLong(DataInput in) throws IOException {
+		long zigzag = 0;
+
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			zigzag |= (long) (b & 0x7F) << shift;
+
+			if((b & 0x80) == 0){
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+		}
+
+		throw new IOException("Malformed variable-length long");
+	}
+
+	static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+
+			if((b & 0x80) == 0){
+				return value;
+			}
+		}
+
+		throw new IOException("Malformed variable-length integer");
+	}
+
+}
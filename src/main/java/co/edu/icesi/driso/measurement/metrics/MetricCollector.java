@@ -0,0 +1,605 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a collector service: it listens on a TCP port and receives,
+ * from MetricPublisher clients running on other nodes, the measurements and
+ * attributes of the father's children. Each connection is served by its own
+ * thread (a virtual thread when the Java runtime can create them, so hundreds of
+ * nodes can report at once), which applies the records as they arrive,
+ * decoding them straight into the father's tree: a child is created and
+ * attached to the father the first time it is named, so the father's
+ * measurements always reflect the values received so far. Finished subtrees
+ * published as a whole are merged into the father, and the partial
+ * aggregates published by intermediate aggregator nodes are merged with
+ * Metric.mergeAggregate.
+ *
+ * Publishers can estimate their node's clock offset and drift with respect
+ * to the father's clock (see MetricPublisher.synchronizeClock); the estimate
+ * is set on the children named in that connection, so their timestamps are
+ * translated to the father's clock.
+ *
+ * Children are identified by their identifiers, so a node that reconnects
+ * (or several connections naming the same child) keeps updating the same
+ * child. A father using Metric.Storage.CONCURRENT is recommended when
+ * several nodes publish at the same time.
+ *
+ * Connections are flow controlled with credits: a publisher sends at most a
+ * window of bytes the collector has not applied yet, and the collector grants
+ * more credit only once it has applied the previous records. Slow merges
+ * thus throttle the publishers, instead of piling their records up in the
+ * collector's node.
+ *
+ * Records the father's configuration rejects (e.g., a stage set twice) are
+ * counted and skipped; malformed streams close their connection.
+ *
+ * This class is thread-safe.
+ *
+ * @see MetricPublisher
+ */
+public final class MetricCollector implements Closeable {
+
+	static final int MAGIC = 0x504D5331;
+	static final int VERSION = 2;
+
+	// Handshake replies
+	static final int ACCEPTED = 0;
+	static final int REFUSED = 1;
+
+	// Record types
+	static final int DEFINE = 1;		// child id, child identifier
+	static final int MEASURE = 2;		// child id, slot, value
+	static final int ATTRIBUTE = 3;		// child id, name, value
+	static final int TREE = 4;			// length, MetricCodec bytes
+	static final int SYNC = 5;			// answered with the number of rejected records
+	static final int PING = 6;			// answered with the times it was received and replied
+	static final int CLOCK = 7;			// offset, drift, reference, delay
+	static final int AGGREGATE = 8;		// source, partial aggregate
+	static final int CREDIT = 9;		// bytes sent, answered with the bytes granted
+
+	/**
+	 * Default number of bytes a publisher may send before the collector has
+	 * applied them
+	 */
+	public static final int DEFAULT_CREDIT_WINDOW = 1 << 18;
+
+	/**
+	 * The number of pending connections (e.g., every node of a grid
+	 * reporting at the end of a run)
+	 */
+	private static final int BACKLOG = 1024;
+
+	/**
+	 * The stack size of the connection threads, when they are not virtual
+	 */
+	private static final long STACK_SIZE = 256 * 1024;
+
+	/**
+	 * Thread.ofVirtual() and the builder methods used to start virtual
+	 * threads, looked up at runtime (null if the Java runtime has none, or
+	 * cannot create them, e.g. a preview release run without preview
+	 * features)
+	 */
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+
+			// Having the methods is not enough: create one
+			unstarted.invoke(name.invoke(ofVirtual.invoke(null), "probe"), new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+	}
+
+	private final Metric father;
+	private final ServerSocket server;
+	private final Thread acceptor;
+	private final int creditWindow;
+	private final ConcurrentHashMap<String, Metric> children;
+	private final Set<Socket> connections;
+	private final AtomicLong records;
+	private final AtomicLong rejected;
+	private volatile boolean closed;
+
+	/**
+	 * Starts a collector listening on the loopback address.
+	 *
+	 * @param father		The metric into which the children are attached
+	 * @param port			The port, or 0 to pick a free one
+	 * @throws IOException	It's thrown when the port cannot be bound
+	 * @see #getPort()
+	 */
+	public MetricCollector(Metric father, int port) throws IOException {
+		this(father, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	/**
+	 * Starts a collector.
+	 *
+	 * @param father		The metric into which the children are attached
+	 * @param address		The address to listen on
+	 * @throws IOException	It's thrown when the address cannot be bound
+	 */
+	public MetricCollector(Metric father, InetSocketAddress address) throws IOException {
+		this(father, address, DEFAULT_CREDIT_WINDOW);
+	}
+
+	/**
+	 * Starts a collector.
+	 *
+	 * @param father		The metric into which the children are attached
+	 * @param address		The address to listen on
+	 * @param creditWindow	The number of bytes each publisher may send before
+	 * 						the collector has applied them
+	 * @throws IOException	It's thrown when the address cannot be bound
+	 */
+	public MetricCollector(Metric father, InetSocketAddress address, int creditWindow)
+			throws IOException {
+
+		if(creditWindow <= 0){
+			throw new IllegalArgumentException("The credit window must be positive");
+		}
+
+		this.father = father;
+		this.creditWindow = creditWindow;
+		this.children = new ConcurrentHashMap<String, Metric>();
+		this.connections = new HashSet<Socket>();
+		this.records = new AtomicLong();
+		this.rejected = new AtomicLong();
+		this.server = new ServerSocket();
+		this.server.bind(address, BACKLOG);
+
+		for (Metric child : father.getChildren()) {
+			children.put(child.getIdentifier(), child);
+		}
+
+		this.acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "metric-collector");
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+	}
+
+	private void accept(){
+		while(!closed){
+			final Socket socket;
+
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				if(!closed){
+					e.printStackTrace();
+				}
+				return;
+			}
+
+			synchronized (connections) {
+				if(closed){
+					close(socket);
+					return;
+				}
+
+				connections.add(socket);
+			}
+
+			Thread connection = connectionThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						serve(socket);
+					} catch (EOFException e) {
+						// The publisher went away in the middle of a record
+					} catch (SocketException e) {
+						// The connection was reset, or the collector closed
+					} catch (IOException e) {
+						e.printStackTrace();
+					} finally {
+						synchronized (connections) {
+							connections.remove(socket);
+						}
+						close(socket);
+					}
+				}
+			}, "metric-collector-" + socket.getRemoteSocketAddress());
+			connection.start();
+		}
+	}
+
+	/**
+	 * @return	An unstarted virtual thread running the task or, if the Java
+	 * 			runtime has none, a daemon thread with a small stack
+	 */
+	private static Thread connectionThread(Runnable task, String name){
+		if(OF_VIRTUAL != null){
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) UNSTARTED.invoke(builder, task);
+			} catch (Exception e) {
+				// Fall back to a platform thread
+			}
+		}
+
+		Thread thread = new Thread(null, task, name, STACK_SIZE);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * @return	Whether connections are served by virtual threads (i.e., a
+	 * 			virtual thread could be created when this class was loaded)
+	 */
+	public static boolean usesVirtualThreads(){
+		return OF_VIRTUAL != null;
+	}
+
+	private void serve(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(socket.getInputStream(), 1 << 16));
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(socket.getOutputStream()));
+		MetricConfig config = father.getConfig();
+		MetricSchema schema = config.getSchema();
+		MetricClock clock = father.getClock();
+
+		// Handshake
+		if(in.readInt() != MAGIC || in.readUnsignedByte() != VERSION){
+			throw new IOException("The stream does not come from a metric publisher");
+		}
+
+		String identifier = in.readUTF();
+
+		if(!identifier.equals(config.getIdentifier())){
+			out.writeByte(REFUSED);
+			out.writeUTF("The collector's metrics are configured as " + config.getIdentifier());
+			out.flush();
+			return;
+		}
+
+		out.writeByte(ACCEPTED);
+		MetricCodec.writeVarInt(out, creditWindow);
+		out.flush();
+
+		// The children named in this connection, by their ids
+		List<Metric> named = new ArrayList<Metric>();
+		ClockEstimate estimate = null;
+		long rejectedSinceSync = 0;
+		int type;
+
+		while((type = in.read()) >= 0){
+			switch (type) {
+			case DEFINE:
+				int id = MetricCodec.readVarInt(in);
+				String childIdentifier = in.readUTF();
+
+				if(id != named.size()){
+					throw new IOException("Unexpected child id " + id);
+				}
+
+				Metric defined = child(childIdentifier);
+
+				if(estimate != null){
+					defined.setClockEstimate(estimate);
+				}
+
+				named.add(defined);
+				break;
+			case MEASURE:
+				Metric child = named(named, MetricCodec.readVarInt(in));
+				int slot = MetricCodec.readVarInt(in);
+				long value = MetricCodec.readVarLong(in);
+
+				if(slot >= schema.getSlotCount()){
+					throw new IOException("Unknown slot " + slot);
+				}
+
+				try {
+					child.setMeasure(schema.getHandle(slot), value);
+				} catch (MetricException e) {
+					rejected.incrementAndGet();
+					rejectedSinceSync++;
+				}
+				break;
+			case ATTRIBUTE:
+				Metric attributed = named(named, MetricCodec.readVarInt(in));
+				String name = in.readUTF();
+				Object attribute = MetricCodec.readAttribute(in);
+
+				try {
+					attributed.setAttribute(name, attribute);
+				} catch (MetricException e) {
+					rejected.incrementAndGet();
+					rejectedSinceSync++;
+				}
+				break;
+			case TREE:
+				int length = MetricCodec.readVarInt(in);
+
+				if(length < 0){
+					throw new IOException("Malformed tree record of " + length + " bytes");
+				}
+
+				RecordInputStream record = new RecordInputStream(in, length);
+
+				try {
+					Metric tree = MetricCodec.readFrom(new DataInputStream(record), config);
+					tree.setClockEstimate(estimate);
+					father.merge(tree);
+				} catch (MetricException e) {
+					rejected.incrementAndGet();
+					rejectedSinceSync++;
+				}
+
+				record.skipRest();
+				break;
+			case AGGREGATE:
+				String source = in.readUTF();
+				PartialAggregate aggregate = PartialAggregate.readFrom(in, schema);
+
+				if(estimate != null){
+					aggregate = aggregate.translate(estimate, schema);
+				}
+
+				try {
+					father.mergeAggregate(source, aggregate);
+				} catch (MetricException e) {
+					rejected.incrementAndGet();
+					rejectedSinceSync++;
+				}
+				break;
+			case CREDIT:
+				// Every record sent before the request has been applied
+				MetricCodec.writeVarLong(out, MetricCodec.readVarLong(in));
+				out.flush();
+				break;
+			case SYNC:
+				MetricCodec.writeVarLong(out, rejectedSinceSync);
+				out.flush();
+				rejectedSinceSync = 0;
+				break;
+			case PING:
+				long received = clock.now();
+				out.writeLong(received);
+				out.writeLong(clock.now());
+				out.flush();
+				break;
+			case CLOCK:
+				estimate = new ClockEstimate(MetricCodec.readVarLong(in), in.readDouble(),
+						MetricCodec.readVarLong(in), MetricCodec.readVarLong(in));
+
+				for (int i = 0; i < named.size(); i++) {
+					named.get(i).setClockEstimate(estimate);
+				}
+				break;
+			default:
+				throw new IOException("Unknown record type " + type);
+			}
+
+			if(type != SYNC && type != PING && type != CREDIT){
+				records.incrementAndGet();
+			}
+		}
+	}
+
+	private static Metric named(List<Metric> named, int id) throws IOException {
+		if(id >= named.size()){
+			throw new IOException("Undefined child id " + id);
+		}
+
+		return named.get(id);
+	}
+
+	/**
+	 * @return	The child with the given identifier, attached to the father if
+	 * 			it is new
+	 */
+	private Metric child(String identifier) throws IOException {
+		Metric child = children.get(identifier);
+
+		if(child != null){
+			return child;
+		}
+
+		synchronized (children) {
+			child = children.get(identifier);
+
+			if(child == null){
+				try {
+					child = new Metric(identifier, father.getConfig(), father.getStorage());
+					father.attach(child);
+				} catch (MetricException e) {
+					throw new IOException("Cannot attach child " + identifier, e);
+				}
+
+				children.put(identifier, child);
+			}
+		}
+
+		return child;
+	}
+
+	/**
+	 * The bytes of a record, read straight from its connection's stream.
+	 */
+	private static final class RecordInputStream extends FilterInputStream {
+
+		private long remaining;
+
+		RecordInputStream(InputStream in, long length){
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(remaining == 0){
+				return -1;
+			}
+
+			int read = in.read();
+
+			if(read >= 0){
+				remaining--;
+			}
+
+			return read;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(remaining == 0){
+				return -1;
+			}
+
+			int read = in.read(b, off, (int) Math.min(len, remaining));
+
+			if(read > 0){
+				remaining -= read;
+			}
+
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		/**
+		 * Skips the bytes of the record not read (e.g., when it was rejected).
+		 */
+		void skipRest() throws IOException {
+			while(remaining > 0){
+				if(skip(remaining) == 0 && read() < 0){
+					throw new EOFException();
+				}
+			}
+		}
+
+		@Override
+		public boolean markSupported(){
+			return false;
+		}
+
+	}
+
+	private static void close(Socket socket){
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing else to do
+		}
+	}
+
+	/**
+	 * @return	The metric into which the children are attached
+	 */
+	public Metric getFather(){
+		return father;
+	}
+
+	/**
+	 * @return	The port the collector listens on
+	 */
+	public int getPort(){
+		return server.getLocalPort();
+	}
+
+	/**
+	 * @return	The number of records received (rejected ones included, sync
+	 * 			and clock requests excluded)
+	 */
+	public long getRecordCount(){
+		return records.get();
+	}
+
+	/**
+	 * @return	The number of records the father's configuration rejected
+	 */
+	public long getRejectedCount(){
+		return rejected.get();
+	}
+
+	/**
+	 * Stops listening and closes the open connections. The records already
+	 * received stay applied to the father.
+	 *
+	 * @throws IOException	It's thrown when the caller is interrupted while
+	 * 						waiting for the listening thread
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (connections) {
+			if(closed){
+				return;
+			}
+
+			closed = true;
+
+			for (Socket socket : connections) {
+				close(socket);
+			}
+		}
+
+		server.close();
+
+		try {
+			acceptor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing the collector", e);
+		}
+	}
+
+}
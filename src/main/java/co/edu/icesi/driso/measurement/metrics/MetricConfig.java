@@ -41,6 +41,11 @@ public abstract class MetricConfig implements Serializable {
 	 */
 	private String measureUnit;
 	
+	/**
+	 * The compiled form of the configured phases, levels and stages
+	 */
+	private MetricSchema schema;
+	
 	/**
 	 * The path name for the configuration (properties) file
 	 */
@@ -58,6 +63,8 @@ public abstract class MetricConfig implements Serializable {
 			setLevelsInPhases(autoConfiguredPhases);
 			validatePhases();
 			
+			schema = new MetricSchema(phases);
+			
 		} catch (MetricException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
@@ -139,7 +146,7 @@ public abstract class MetricConfig implements Serializable {
 			// Measurement unit
 			measureUnit = measureUnitProp;
 			
-			// Stages (name[:shared])
+			// Stages (name[:shared][:sampled])
 			HashMap<String, MeasurementPhase.Stage> configuredStages = 
 					new HashMap<String, MeasurementPhase.Stage>();
 			String[] stageExps =
@@ -149,15 +156,22 @@ public abstract class MetricConfig implements Serializable {
 				String tempStageExp = stageExps[i];
 				MeasurementPhase.Stage tempStage;
 				boolean shared = false;
+				boolean sampled = false;
 				
-				if(tempStageExp.endsWith(":shared")){
-					shared = true;
-					tempStageExp = 
-							tempStageExp.substring(0, tempStageExp.length() - 7);
+				while(tempStageExp.endsWith(":shared") || tempStageExp.endsWith(":sampled")){
+					if(tempStageExp.endsWith(":shared")){
+						shared = true;
+						tempStageExp = 
+								tempStageExp.substring(0, tempStageExp.length() - 7);
+					}else{
+						sampled = true;
+						tempStageExp = 
+								tempStageExp.substring(0, tempStageExp.length() - 8);
+					}
 				}
 				
 				if(isValidIdentifier(tempStageExp)){
-					tempStage = new MeasurementPhase.Stage(tempStageExp, shared);
+					tempStage = new MeasurementPhase.Stage(tempStageExp, shared, sampled);
 					configuredStages.put(tempStageExp, tempStage);
 				}else
 					throw new MetricException(14, "A Java valid identifier was "
@@ -397,5 +411,12 @@ public abstract class MetricConfig implements Serializable {
 	public String getMeasureUnit(){
 		return measureUnit;
 	}
+	
+	/**
+	 * @return	The compiled form of the configured phases, levels and stages
+	 */
+	public MetricSchema getSchema(){
+		return schema;
+	}
 
 }
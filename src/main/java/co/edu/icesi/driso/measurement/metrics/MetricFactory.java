@@ -1,13 +1,16 @@
 package co.edu.icesi.driso.measurement.metrics;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class provides a way to abstract the metric creation.
  * To add more classes, edit the method +getMetric(String, String):Metric
  * adding an else-if clause.
  * 
+ * This class is thread-safe: metrics may be created, and configurations
+ * found, from collector and journal threads.
+ * 
  * @author Miguel A. Jiménez
  * @date 26/11/2014
  */
@@ -16,22 +19,29 @@ public class MetricFactory {
 	/**
 	 * Contains the registered configuration classes
 	 */
-	private static HashMap<String, Class<? extends MetricConfig>> configClasses;
+	private static ConcurrentHashMap<String, Class<? extends MetricConfig>> configClasses;
 	
 	/**
 	 * Contains the registered configuration files
 	 */
-	private static HashMap<String, String> configFiles;
+	private static ConcurrentHashMap<String, String> configFiles;
 	
 	/**
 	 * Contains already created instances for each configuration class
 	 */
-	private static HashMap<String, MetricConfig> configInstances;
+	private static ConcurrentHashMap<String, MetricConfig> configInstances;
+	
+	/**
+	 * Contains the configuration instances already found, by their 
+	 * configuration identifier
+	 */
+	private static ConcurrentHashMap<String, MetricConfig> foundConfigs;
 	
 	static {
-		configClasses = new HashMap<String, Class<? extends MetricConfig>>();
-		configFiles = new HashMap<String, String>();
-		configInstances = new HashMap<String, MetricConfig>();
+		configClasses = new ConcurrentHashMap<String, Class<? extends MetricConfig>>();
+		configFiles = new ConcurrentHashMap<String, String>();
+		configInstances = new ConcurrentHashMap<String, MetricConfig>();
+		foundConfigs = new ConcurrentHashMap<String, MetricConfig>();
 	}
 
 	/**
@@ -45,14 +55,92 @@ public class MetricFactory {
 	 * 								overwriting MetricConfig's constructor
 	 */
 	public static Metric getMetric(String criterion, String identifier) throws MetricException {
+		return getMetric(criterion, identifier, Metric.Storage.OBJECTS);
+	}
+	
+	/**
+	 * Creates a metric instance based on the specified configuration class,
+	 * keeping its measurements in the specified kind of storage
+	 * 
+	 * @param criterion				The config class identifier
+	 * @param identifier			The new metric object's identifier
+	 * @param storage				The kind of storage for the measurements
+	 * @return						A new instance of Metric
+	 * @throws MetricException 		It's thrown when the configuration class
+	 * 								does not contains a public constructor
+	 * 								overwriting MetricConfig's constructor
+	 */
+	public static Metric getMetric(String criterion, String identifier, 
+			Metric.Storage storage) throws MetricException {
 		
+		if(!configClasses.containsKey(criterion)){
+			throw new MetricException(13, "The configuration class corresponding "
+					+ "to criterion \"" + criterion + "\" must be registered "
+							+ "before getting Metric instances.");
+		}
+		
+		MetricConfig configInstance = getConfigInstance(criterion);
+		return configInstance == null ? null : new Metric(identifier, configInstance, storage);
+	}
+	
+	/**
+	 * Returns the configuration instance whose identifier (i.e., the one set
+	 * in its configuration file) is the specified one, among the registered
+	 * configuration classes. It is used to re-bind metrics received from
+	 * other nodes to the local configuration.
+	 * 
+	 * @param identifier			The configuration identifier
+	 * @return						The configuration instance
+	 * @throws MetricException		It's thrown when no registered configuration
+	 * 								class has that identifier
+	 * @see MetricCodec
+	 */
+	public static MetricConfig findConfig(String identifier) throws MetricException {
+		MetricConfig found = foundConfigs.get(identifier);
+		
+		if(found != null){
+			return found;
+		}
+		
+		// Each configuration class is instantiated once, by a single thread
+		synchronized (MetricFactory.class) {
+			for (String criterion : configClasses.keySet()) {
+				MetricConfig configInstance = getConfigInstance(criterion);
+				
+				if(configInstance != null && configInstance.getIdentifier().equals(identifier)){
+					foundConfigs.put(identifier, configInstance);
+					return configInstance;
+				}
+			}
+		}
+		
+		throw new MetricException(25, "There is no configuration class registered "
+				+ "with identifier \"" + identifier + "\"");
+	}
+	
+	/**
+	 * @param criterion				The config class identifier
+	 * @return						The (shared) configuration instance of a 
+	 * 								registered class, or null if it could not be
+	 * 								created
+	 * @throws MetricException 		It's thrown when the configuration class
+	 * 								does not contains a public constructor
+	 * 								overwriting MetricConfig's constructor
+	 */
+	private static MetricConfig getConfigInstance(String criterion) throws MetricException {
 		Class<? extends MetricConfig> clazz = configClasses.get(criterion);
 		String configFile = configFiles.get(criterion);
 		
-		if(clazz != null){
-			try {
-				
-				MetricConfig configInstance = configInstances.get(criterion);
+		MetricConfig configInstance = configInstances.get(criterion);
+		
+		if(configInstance != null){
+			return configInstance;
+		}
+		
+		try {
+			
+			synchronized (MetricFactory.class) {
+				configInstance = configInstances.get(criterion);
 				
 				if(configInstance == null){
 					configInstance = 
@@ -60,29 +148,25 @@ public class MetricFactory {
 							.newInstance(configFile);
 					configInstances.put(criterion, configInstance);
 				}
-				
-				return new Metric(identifier, configInstance);
-				
-			} catch (InstantiationException e) {
-				e.printStackTrace();
-			} catch (IllegalAccessException e) {
-				e.printStackTrace();
-			} catch (IllegalArgumentException e) {
-				e.printStackTrace();
-			} catch (InvocationTargetException e) {
-				e.printStackTrace();
-			} catch (NoSuchMethodException e) {
-				throw new MetricException(21, "Children classes of the MetricConfig "
-						+ "class must overwrite a public constructor with "
-						+ "the configuration file (path name as String) as "
-						+ "an input parameter", e);
-			} catch (SecurityException e) {
-				e.printStackTrace();
 			}
-		}else{
-			throw new MetricException(13, "The configuration class corresponding "
-					+ "to criterion \"" + criterion + "\" must be registered "
-							+ "before getting Metric instances.");
+			
+			return configInstance;
+			
+		} catch (InstantiationException e) {
+			e.printStackTrace();
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+		} catch (InvocationTargetException e) {
+			e.printStackTrace();
+		} catch (NoSuchMethodException e) {
+			throw new MetricException(21, "Children classes of the MetricConfig "
+					+ "class must overwrite a public constructor with "
+					+ "the configuration file (path name as String) as "
+					+ "an input parameter", e);
+		} catch (SecurityException e) {
+			e.printStackTrace();
 		}
 		
 		return null;
@@ -96,15 +180,16 @@ public class MetricFactory {
 	 * @throws MetricException	It's thrown when there is already a config 
 	 * 							class stored with the specified identifier
 	 */
-	public static void registerConfigClass(String criterion, String configFile, 
+	public static synchronized void registerConfigClass(String criterion, String configFile, 
 			Class<? extends MetricConfig> configClass) throws MetricException {
 
 		if(configClasses.containsKey(criterion)){
 			throw new MetricException(12, "There is a configuration class already"
 					+ " set to criterion " + criterion);
 		}else{
-			configClasses.put(criterion, configClass);
+			// The file first, as the class is what marks the criterion registered
 			configFiles.put(criterion, configFile);
+			configClasses.put(criterion, configClass);
 		}
 	}
 	
@@ -0,0 +1,457 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is the client of a MetricCollector: it sends the measurements
+ * and attributes of the children recorded on this node, so that the
+ * collector attaches them to its father. Records are small (a few bytes
+ * each, as children are named only once per connection) and are buffered;
+ * they are sent in batches when the buffer is full, or when flushed.
+ *
+ * The publisher sends at most the collector's credit window of bytes the
+ * collector has not applied yet: it asks for more credit every half window,
+ * and waits for it when the window is used up (so a slow collector throttles
+ * the node, see getThrottledNanos).
+ *
+ * This class is thread-safe.
+ *
+ * @see MetricCollector
+ */
+public final class MetricPublisher implements Closeable, Flushable {
+
+	/**
+	 * Default size (in bytes) of the batches
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1 << 16;
+
+	/**
+	 * The number of clock exchanges kept to estimate the drift
+	 */
+	private static final int MAX_EXCHANGES = 256;
+
+	private final MetricConfig config;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final CreditOutputStream out;
+
+	/**
+	 * The ids of the children named in this connection
+	 */
+	private final Map<String, Integer> ids;
+
+	/**
+	 * The clock exchanges made so far ({t1, t2, t3, t4} each), the oldest
+	 * first
+	 */
+	private final List<long[]> exchanges;
+	private long rejected;
+
+	/**
+	 * The collector's credit window, the bytes that can still be sent, the
+	 * bytes sent since credit was last asked for, and the credit requests
+	 * not answered yet
+	 */
+	private final int window;
+	private long credit;
+	private long unrequested;
+	private int pendingGrants;
+	private long throttled;
+
+	/**
+	 * Connects to a collector, with the default batch size.
+	 *
+	 * @param config			The configuration of the published metrics
+	 * @param host				The collector's host
+	 * @param port				The collector's port
+	 * @throws IOException		It's thrown when the collector cannot be
+	 * 							reached
+	 * @throws MetricException	It's thrown when the collector's metrics are
+	 * 							configured with another configuration
+	 */
+	public MetricPublisher(MetricConfig config, String host, int port)
+			throws IOException, MetricException {
+		this(config, new InetSocketAddress(host, port), DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Connects to a collector.
+	 *
+	 * @param config			The configuration of the published metrics
+	 * @param address			The collector's address
+	 * @param batchSize			The size (in bytes) from which buffered records
+	 * 							are sent
+	 * @throws IOException		It's thrown when the collector cannot be
+	 * 							reached
+	 * @throws MetricException	It's thrown when the collector's metrics are
+	 * 							configured with another configuration
+	 */
+	public MetricPublisher(MetricConfig config, InetSocketAddress address, int batchSize)
+			throws IOException, MetricException {
+
+		this.config = config;
+		this.ids = new HashMap<String, Integer>();
+		this.exchanges = new ArrayList<long[]>();
+		this.socket = new Socket();
+
+		try {
+			socket.connect(address);
+			socket.setTcpNoDelay(true);
+
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new CreditOutputStream(
+					new BufferedOutputStream(socket.getOutputStream(), batchSize));
+
+			out.writeInt(MetricCollector.MAGIC);
+			out.writeByte(MetricCollector.VERSION);
+			out.writeUTF(config.getIdentifier());
+			out.flush();
+
+			if(in.readUnsignedByte() != MetricCollector.ACCEPTED){
+				throw new MetricException(28, in.readUTF());
+			}
+
+			this.window = MetricCodec.readVarInt(in);
+			this.credit = window;
+			out.take();
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		} catch (MetricException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Publishes a value for the phase-level-stage identified by a schema
+	 * handle, as Metric.setMeasure does on the collector's child.
+	 *
+	 * @param child				The child's identifier
+	 * @param handle			The phase-level-stage handle
+	 * @param value				The measured value
+	 * @throws IOException		It's thrown when something went bad at sending
+	 * 							a batch
+	 * @see Metric#setMeasure(MetricSchema.StageHandle, long)
+	 */
+	public synchronized void setMeasure(String child, MetricSchema.StageHandle handle, long value)
+			throws IOException {
+
+		int id = id(child);
+		out.writeByte(MetricCollector.MEASURE);
+		MetricCodec.writeVarInt(out, id);
+		MetricCodec.writeVarInt(out, handle.getSlot());
+		MetricCodec.writeVarLong(out, value);
+		spend();
+	}
+
+	/**
+	 * Publishes a value for an specific stage in a measurement phase.
+	 *
+	 * @param child				The child's identifier
+	 * @param phase				The measurement phase
+	 * @param level				The level within the measurement phase
+	 * @param stage				The specific stage to be set
+	 * @param value				The measured value
+	 * @throws MetricException	It's thrown if the stage is not configured
+	 * @throws IOException		It's thrown when something went bad at sending
+	 * 							a batch
+	 */
+	public void setMeasure(String child, String phase, String level, String stage, long value)
+			throws MetricException, IOException {
+
+		MetricSchema.StageHandle handle = config.getSchema().getHandle(phase, level, stage);
+
+		if(handle == null){
+			throw new MetricException(22, "Phase \"" + phase + "\", level \"" + level
+					+ "\", in stage \"" + stage + "\" is not configured. Note this "
+					+ "validation is case sensitive");
+		}
+
+		setMeasure(child, handle, value);
+	}
+
+	/**
+	 * Publishes a value for an specific stage in a measurement phase. As no
+	 * level is specified, the default one is used.
+	 *
+	 * @param child				The child's identifier
+	 * @param phase				The measurement phase
+	 * @param stage				The specific stage to be set
+	 * @param value				The measured value
+	 * @throws MetricException	It's thrown if the stage is not configured
+	 * @throws IOException		It's thrown when something went bad at sending
+	 * 							a batch
+	 */
+	public void setMeasure(String child, String phase, String stage, long value)
+			throws MetricException, IOException {
+		setMeasure(child, phase, MeasurementPhase.Level.DEFAULT_NAME, stage, value);
+	}
+
+	/**
+	 * Publishes an attribute of a child, as Metric.setAttribute does on the
+	 * collector's child.
+	 *
+	 * @param child			The child's identifier
+	 * @param key			The attribute's name
+	 * @param value			The attribute's value (values of types other than
+	 * 						String, Integer, Long, Double and Boolean are sent
+	 * 						as strings)
+	 * @throws IOException	It's thrown when something went bad at sending a
+	 * 						batch
+	 */
+	public synchronized void setAttribute(String child, String key, Object value)
+			throws IOException {
+
+		int id = id(child);
+		out.writeByte(MetricCollector.ATTRIBUTE);
+		MetricCodec.writeVarInt(out, id);
+		out.writeUTF(key);
+		MetricCodec.writeAttribute(out, value);
+		spend();
+	}
+
+	/**
+	 * Publishes a finished metric and all of its descendants, to be merged
+	 * into the collector's father.
+	 *
+	 * @param metric		The root metric
+	 * @throws IOException	It's thrown when something went bad at sending a
+	 * 						batch
+	 * @see Metric#merge(Metric[])
+	 */
+	public synchronized void publish(Metric metric) throws IOException {
+		byte[] bytes = MetricCodec.toByteArray(metric);
+
+		out.writeByte(MetricCollector.TREE);
+		MetricCodec.writeVarInt(out, bytes.length);
+		out.write(bytes);
+		spend();
+	}
+
+	/**
+	 * Publishes the partial aggregate of the children of an intermediate
+	 * aggregator node, to be merged into the collector's father. Publishing
+	 * again from the same source replaces its previous aggregate.
+	 *
+	 * @param source		The aggregator's identifier
+	 * @param aggregate		The aggregate
+	 * @throws IOException	It's thrown when something went bad at sending a
+	 * 						batch
+	 * @see Metric#aggregateChildren()
+	 * @see Metric#mergeAggregate(String, PartialAggregate)
+	 */
+	public synchronized void publishAggregate(String source, PartialAggregate aggregate)
+			throws IOException {
+
+		out.writeByte(MetricCollector.AGGREGATE);
+		out.writeUTF(source);
+		aggregate.writeTo(out);
+		spend();
+	}
+
+	private int id(String child) throws IOException {
+		Integer id = ids.get(child);
+
+		if(id == null){
+			id = ids.size();
+			ids.put(child, id);
+			out.writeByte(MetricCollector.DEFINE);
+			MetricCodec.writeVarInt(out, id);
+			out.writeUTF(child);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Accounts for the bytes written since the last call: asks for credit
+	 * every half window, and waits for it once the window is used up.
+	 */
+	private void spend() throws IOException {
+		long bytes = out.take();
+		credit -= bytes;
+		unrequested += bytes;
+
+		if(unrequested >= window / 2 || (credit <= 0 && pendingGrants == 0)){
+			out.writeByte(MetricCollector.CREDIT);
+			MetricCodec.writeVarLong(out, unrequested);
+			out.flush();
+			unrequested = 0;
+			pendingGrants++;
+		}
+
+		if(credit <= 0){
+			long start = System.nanoTime();
+
+			while(credit <= 0){
+				readGrant();
+			}
+
+			throttled += System.nanoTime() - start;
+		}
+	}
+
+	private void readGrant() throws IOException {
+		credit += MetricCodec.readVarLong(in);
+		pendingGrants--;
+	}
+
+	/**
+	 * Reads the credit granted so far, as the collector answers requests in
+	 * order (before reading the answer to a later request).
+	 */
+	private void readGrants() throws IOException {
+		while(pendingGrants > 0){
+			readGrant();
+		}
+	}
+
+	/**
+	 * Estimates the offset and drift of this node's clock with respect to the
+	 * clock of the collector's father, with round-trip exchanges as NTP does,
+	 * and sends the estimate to the collector. The children published through
+	 * this connection (before and after) are given the estimate, so their
+	 * timestamps are translated to the father's clock. Synchronizing again
+	 * later refines the drift.
+	 *
+	 * @param clock			The clock with which this node's timestamps are taken
+	 * @param exchanges		The number of round trips (the ones delayed the
+	 * 						least, among these and the previous ones, are used)
+	 * @return				The estimate
+	 * @throws IOException	It's thrown when something went bad at sending the
+	 * 						requests, or the connection was closed
+	 * @see ClockEstimate#estimate(long[], long[], long[], long[])
+	 */
+	public synchronized ClockEstimate synchronizeClock(MetricClock clock, int exchanges)
+			throws IOException {
+
+		// Do not delay the first exchange with the buffered records
+		out.flush();
+		readGrants();
+
+		for (int i = 0; i < exchanges; i++) {
+			long[] exchange = new long[4];
+			out.writeByte(MetricCollector.PING);
+			exchange[0] = clock.now();
+			out.flush();
+			exchange[1] = in.readLong();
+			exchange[2] = in.readLong();
+			exchange[3] = clock.now();
+
+			if(this.exchanges.size() == MAX_EXCHANGES){
+				this.exchanges.remove(0);
+			}
+
+			this.exchanges.add(exchange);
+		}
+
+		int count = this.exchanges.size();
+		long[] sent = new long[count];
+		long[] received = new long[count];
+		long[] replied = new long[count];
+		long[] returned = new long[count];
+
+		for (int i = 0; i < count; i++) {
+			long[] exchange = this.exchanges.get(i);
+			sent[i] = exchange[0];
+			received[i] = exchange[1];
+			replied[i] = exchange[2];
+			returned[i] = exchange[3];
+		}
+
+		ClockEstimate estimate = ClockEstimate.estimate(sent, received, replied, returned);
+
+		out.writeByte(MetricCollector.CLOCK);
+		MetricCodec.writeVarLong(out, estimate.getOffset());
+		out.writeDouble(estimate.getDrift());
+		MetricCodec.writeVarLong(out, estimate.getReference());
+		MetricCodec.writeVarLong(out, estimate.getDelay());
+		return estimate;
+	}
+
+	/**
+	 * Sends the buffered records and waits until the collector has applied
+	 * them.
+	 *
+	 * @throws IOException	It's thrown when something went bad at sending the
+	 * 						records, or the connection was closed
+	 * @see #getRejectedCount()
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		out.writeByte(MetricCollector.SYNC);
+		out.flush();
+		readGrants();
+		rejected += MetricCodec.readVarLong(in);
+	}
+
+	/**
+	 * @return	The number of records (applied up to the last flush) that the
+	 * 			collector's father rejected, e.g., stages set twice
+	 */
+	public synchronized long getRejectedCount(){
+		return rejected;
+	}
+
+	/**
+	 * @return	The time (in nanoseconds) spent waiting for the collector to
+	 * 			grant credit, i.e., to catch up with the records sent
+	 */
+	public synchronized long getThrottledNanos(){
+		return throttled;
+	}
+
+	/**
+	 * Flushes the buffered records and closes the connection.
+	 *
+	 * @throws IOException	It's thrown when something went bad at sending the
+	 * 						records
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(socket.isClosed()){
+			return;
+		}
+
+		try {
+			flush();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * A data stream counting the bytes written, to account for credit.
+	 */
+	private static final class CreditOutputStream extends DataOutputStream {
+
+		CreditOutputStream(OutputStream out){
+			super(out);
+		}
+
+		/**
+		 * @return	The bytes written since the last call
+		 */
+		int take(){
+			int bytes = written;
+			written = 0;
+			return bytes;
+		}
+
+	}
+
+}
@@ -0,0 +1,348 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class is the compiled form of a configuration's phases, levels and
+ * stages. Each phase-level-stage combination is assigned a stable integer
+ * slot (in the same order they were configured), so that metrics can store
+ * and read measurements by index instead of building and hashing string keys.
+ *
+ * @see MetricConfig#getSchema()
+ */
+public final class MetricSchema implements Serializable {
+
+	/**
+	 * This class identifies a phase-level-stage combination inside a schema.
+	 * Handles are meant to be obtained once (e.g., when instrumenting a
+	 * component) and then reused on every measurement.
+	 */
+	public static final class StageHandle implements Serializable {
+
+		/**
+		 * Default serial version UID
+		 */
+		private static final long serialVersionUID = 1L;
+
+		private final int slot;
+		private final int phaseIndex;
+		private final int levelIndex;
+		private final int levelSlot;
+		private final int stageIndex;
+		private final MeasurementPhase phase;
+		private final MeasurementPhase.Level level;
+		private final MeasurementPhase.Stage stage;
+
+		private StageHandle(int slot, int phaseIndex, int levelIndex, int levelSlot,
+				int stageIndex, MeasurementPhase phase, MeasurementPhase.Level level,
+				MeasurementPhase.Stage stage){
+			this.slot = slot;
+			this.phaseIndex = phaseIndex;
+			this.levelIndex = levelIndex;
+			this.levelSlot = levelSlot;
+			this.stageIndex = stageIndex;
+			this.phase = phase;
+			this.level = level;
+			this.stage = stage;
+		}
+
+		/**
+		 * @return	The position of this phase-level-stage in the schema
+		 */
+		public int getSlot(){
+			return slot;
+		}
+
+		/**
+		 * @return	The position of the phase in the configured phases list
+		 */
+		public int getPhaseIndex(){
+			return phaseIndex;
+		}
+
+		/**
+		 * @return	The position of the level inside its phase
+		 */
+		public int getLevelIndex(){
+			return levelIndex;
+		}
+
+		/**
+		 * @return	The position of the phase-level combination in the schema
+		 */
+		public int getLevelSlot(){
+			return levelSlot;
+		}
+
+		/**
+		 * @return	The position of the stage inside its level
+		 */
+		public int getStageIndex(){
+			return stageIndex;
+		}
+
+		public MeasurementPhase getPhase(){
+			return phase;
+		}
+
+		public MeasurementPhase.Level getLevel(){
+			return level;
+		}
+
+		public MeasurementPhase.Stage getStage(){
+			return stage;
+		}
+
+		public boolean isShared(){
+			return stage.isShared();
+		}
+
+		public boolean isSampled(){
+			return stage.isSampled();
+		}
+
+		@Override
+		public String toString(){
+			return phase.getName() + "-" + level.getName() + "-" + stage.getName();
+		}
+	}
+
+	/**
+	 * Default serial version UID
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The handles, indexed by slot
+	 */
+	private final StageHandle[] handles;
+
+	/**
+	 * The first slot of each phase-level combination, indexed by level slot
+	 */
+	private final int[] levelFirstSlots;
+
+	/**
+	 * The first level slot of each phase, indexed by phase index
+	 */
+	private final int[] phaseFirstLevelSlots;
+
+	/**
+	 * Handles per phase name, level name and stage name
+	 */
+	private final HashMap<String, HashMap<String, HashMap<String, StageHandle>>> index;
+
+	/**
+	 * Phase positions per phase name
+	 */
+	private final HashMap<String, Integer> phaseIndexes;
+
+	/**
+	 * Level slots per phase name and level name
+	 */
+	private final HashMap<String, HashMap<String, Integer>> levelSlots;
+
+	/**
+	 * Compiles the given phases into a schema. The phases must already contain
+	 * their levels (i.e., they must be validated by the configuration class).
+	 *
+	 * @param phases	The configured measurement phases
+	 */
+	MetricSchema(List<MeasurementPhase> phases){
+		List<StageHandle> tempHandles = new ArrayList<StageHandle>();
+		List<Integer> tempLevelFirstSlots = new ArrayList<Integer>();
+
+		phaseFirstLevelSlots = new int[phases.size()];
+		index = new HashMap<String, HashMap<String, HashMap<String, StageHandle>>>();
+		phaseIndexes = new HashMap<String, Integer>();
+		levelSlots = new HashMap<String, HashMap<String, Integer>>();
+
+		for (int i = 0; i < phases.size(); i++) {
+			MeasurementPhase tempPhase = phases.get(i);
+			MeasurementPhase.Level[] tempLevels = tempPhase.getLevels();
+			HashMap<String, HashMap<String, StageHandle>> phaseIndex =
+					new HashMap<String, HashMap<String, StageHandle>>();
+			HashMap<String, Integer> phaseLevelSlots = new HashMap<String, Integer>();
+
+			phaseFirstLevelSlots[i] = tempLevelFirstSlots.size();
+			phaseIndexes.put(tempPhase.getName(), i);
+			index.put(tempPhase.getName(), phaseIndex);
+			levelSlots.put(tempPhase.getName(), phaseLevelSlots);
+
+			for (int j = 0; j < tempLevels.length; j++) {
+				MeasurementPhase.Level tempLevel = tempLevels[j];
+				MeasurementPhase.Stage[] tempStages = tempLevel.getStages();
+				HashMap<String, StageHandle> levelIndex = new HashMap<String, StageHandle>();
+				int levelSlot = tempLevelFirstSlots.size();
+
+				tempLevelFirstSlots.add(tempHandles.size());
+				phaseIndex.put(tempLevel.getName(), levelIndex);
+				phaseLevelSlots.put(tempLevel.getName(), levelSlot);
+
+				for (int k = 0; k < tempStages.length; k++) {
+					StageHandle handle = new StageHandle(tempHandles.size(), i, j,
+							levelSlot, k, tempPhase, tempLevel, tempStages[k]);
+					tempHandles.add(handle);
+					levelIndex.put(tempStages[k].getName(), handle);
+				}
+			}
+		}
+
+		handles = tempHandles.toArray(new StageHandle[tempHandles.size()]);
+		levelFirstSlots = new int[tempLevelFirstSlots.size()];
+
+		for (int i = 0; i < levelFirstSlots.length; i++) {
+			levelFirstSlots[i] = tempLevelFirstSlots.get(i);
+		}
+	}
+
+	/**
+	 * Returns the handle for an specific level-stage in a measurement phase.
+	 *
+	 * @param phase		The measurement phase
+	 * @param level		The measurement level
+	 * @param stage		The specific stage
+	 * @return			The corresponding handle, or null if the
+	 * 					phase-level-stage is not configured
+	 */
+	public StageHandle getHandle(String phase, String level, String stage){
+		HashMap<String, HashMap<String, StageHandle>> phaseIndex = index.get(phase);
+
+		if(phaseIndex != null){
+			HashMap<String, StageHandle> levelIndex = phaseIndex.get(level);
+			if(levelIndex != null){
+				return levelIndex.get(stage);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the handle for an specific stage in a measurement phase. As no
+	 * level is specified, the default one is used.
+	 *
+	 * @param phase		The measurement phase
+	 * @param stage		The specific stage
+	 * @return			The corresponding handle, or null if the phase-stage is
+	 * 					not configured
+	 */
+	public StageHandle getHandle(String phase, String stage){
+		return getHandle(phase, MeasurementPhase.Level.DEFAULT_NAME, stage);
+	}
+
+	/**
+	 * @param slot	The schema slot
+	 * @return		The handle assigned to that slot
+	 */
+	public StageHandle getHandle(int slot){
+		return handles[slot];
+	}
+
+	/**
+	 * @param handle	A phase-level-stage handle
+	 * @return			Whether the handle belongs to this schema (or to a
+	 * 					copy of it, e.g., a deserialized one)
+	 */
+	public boolean contains(StageHandle handle){
+		int slot = handle.getSlot();
+
+		if(slot < 0 || slot >= handles.length){
+			return false;
+		}
+
+		StageHandle own = handles[slot];
+
+		return own == handle || (own.phase.getName().equals(handle.phase.getName())
+				&& own.level.getName().equals(handle.level.getName())
+				&& own.stage.getName().equals(handle.stage.getName()));
+	}
+
+	/**
+	 * @param phase	The measurement phase name
+	 * @return		The phase's position in the configured phases list, or -1
+	 * 				if the phase is not configured
+	 */
+	public int getPhaseIndex(String phase){
+		Integer phaseIndex = phaseIndexes.get(phase);
+		return phaseIndex == null ? -1 : phaseIndex;
+	}
+
+	/**
+	 * @param phaseIndex	The phase's position in the configured phases list
+	 * @param levelIndex	The level's position inside the phase
+	 * @return				The first slot of the phase-level combination
+	 */
+	public int getFirstSlot(int phaseIndex, int levelIndex){
+		return levelFirstSlots[getLevelSlot(phaseIndex, levelIndex)];
+	}
+
+	/**
+	 * @param phaseIndex	The phase's position in the configured phases list
+	 * @param levelIndex	The level's position inside the phase
+	 * @return				The position of the phase-level combination
+	 */
+	public int getLevelSlot(int phaseIndex, int levelIndex){
+		return phaseFirstLevelSlots[phaseIndex] + levelIndex;
+	}
+
+	/**
+	 * @param phase		The measurement phase name
+	 * @param level		The measurement level name
+	 * @return			The position of the phase-level combination, or -1 if
+	 * 					it is not configured
+	 */
+	public int getLevelSlot(String phase, String level){
+		HashMap<String, Integer> phaseLevelSlots = levelSlots.get(phase);
+
+		if(phaseLevelSlots != null){
+			Integer levelSlot = phaseLevelSlots.get(level);
+			if(levelSlot != null){
+				return levelSlot;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @param levelSlot	The position of a phase-level combination
+	 * @return			The first slot of the phase-level combination
+	 */
+	public int getFirstSlot(int levelSlot){
+		return levelFirstSlots[levelSlot];
+	}
+
+	/**
+	 * @param levelSlot	The position of a phase-level combination
+	 * @return			The number of stages in the phase-level combination
+	 */
+	public int getStageCount(int levelSlot){
+		return handles[levelFirstSlots[levelSlot]].getLevel().getStages().length;
+	}
+
+	/**
+	 * @return	The number of phase-level-stage combinations
+	 */
+	public int getSlotCount(){
+		return handles.length;
+	}
+
+	/**
+	 * @return	The number of phase-level combinations
+	 */
+	public int getLevelSlotCount(){
+		return levelFirstSlots.length;
+	}
+
+	/**
+	 * @return	The number of configured phases
+	 */
+	public int getPhaseCount(){
+		return phaseFirstLevelSlots.length;
+	}
+
+}
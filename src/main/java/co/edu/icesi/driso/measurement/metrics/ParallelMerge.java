@@ -0,0 +1,250 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class merges a large number of children into a father by splitting
+ * them across a fork-join pool. Each task collects the shared values of its
+ * range of children into per-stage partial aggregates; the aggregates are
+ * then combined and applied to the father's measurements, each stage's
+ * values in bulk (its arrays grow once, under a single lock). The result is
+ * the same as merging the children sequentially.
+ *
+ * @see Metric#merge(ForkJoinPool, Metric[])
+ */
+final class ParallelMerge {
+
+	/**
+	 * The number of children merged by a single task (a multiple of 64, so
+	 * that tasks never share a word of the presence bitmaps)
+	 */
+	static final int GRAIN = 512;
+
+	/**
+	 * The values collected from a range of children
+	 */
+	private static final class Partial {
+
+		/**
+		 * The number of children with a value, per slot
+		 */
+		final int[] counts;
+
+		/**
+		 * The children's histograms, per sampled slot
+		 */
+		final LatencyHistogram[] histograms;
+
+		Partial(int slots){
+			counts = new int[slots];
+			histograms = new LatencyHistogram[slots];
+		}
+
+		Partial combine(Partial other){
+			for (int slot = 0; slot < counts.length; slot++) {
+				counts[slot] += other.counts[slot];
+
+				if(other.histograms[slot] != null){
+					if(histograms[slot] == null){
+						histograms[slot] = other.histograms[slot];
+					}else{
+						histograms[slot].add(other.histograms[slot]);
+					}
+				}
+			}
+
+			return this;
+		}
+	}
+
+	/**
+	 * Collects the shared values of a range of children
+	 */
+	private static final class CollectTask extends RecursiveTask<Partial> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final MetricSchema schema;
+		private final Metric[] children;
+		private final int from;
+		private final int to;
+		private final long[][] values;
+		private final long[][] present;
+
+		CollectTask(MetricSchema schema, Metric[] children, int from, int to,
+				long[][] values, long[][] present){
+			this.schema = schema;
+			this.children = children;
+			this.from = from;
+			this.to = to;
+			this.values = values;
+			this.present = present;
+		}
+
+		@Override
+		protected Partial compute(){
+			if(to - from > GRAIN){
+				int middle = from + (((to - from) / 2 + 63) & ~63);
+				CollectTask left = new CollectTask(schema, children, from, middle, values, present);
+				CollectTask right = new CollectTask(schema, children, middle, to, values, present);
+
+				left.fork();
+				Partial rightPartial = right.compute();
+				return left.join().combine(rightPartial);
+			}
+
+			Partial partial = new Partial(schema.getSlotCount());
+
+			for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+				MetricSchema.StageHandle handle = schema.getHandle(slot);
+
+				if(!handle.isShared()){
+					continue;
+				}
+
+				for (int i = from; i < to; i++) {
+					MeasurementStore childMeasurements = children[i].measurements();
+
+					if(childMeasurements.isSet(slot)){
+						values[slot][i] = children[i].sharedValue(slot);
+						present[slot][i >>> 6] |= 1L << i;
+						partial.counts[slot]++;
+
+						if(handle.isSampled()){
+							if(partial.histograms[slot] == null){
+								partial.histograms[slot] = new LatencyHistogram();
+							}
+
+							Measurement childMeasurement = childMeasurements.get(slot);
+
+							synchronized (childMeasurement) {
+								if(childMeasurement.getHistogram() != null){
+									partial.histograms[slot].add(childMeasurement.getHistogram());
+								}
+								if(childMeasurement.getChildrenHistogram() != null){
+									partial.histograms[slot].add(childMeasurement.getChildrenHistogram());
+								}
+							}
+						}
+					}
+				}
+			}
+
+			return partial;
+		}
+	}
+
+	private ParallelMerge(){
+	}
+
+	/**
+	 * Merges the children into the father, using the given pool.
+	 *
+	 * @param father			The father metric
+	 * @param pool				The pool in which the children are collected
+	 * @param children			The children to be merged
+	 * @throws MetricException	It's thrown when there is a mismatch between the
+	 * 							child's configuration class and the father's
+	 * 							(the previous children are merged anyway)
+	 */
+	static void merge(Metric father, ForkJoinPool pool, Metric[] children)
+			throws MetricException {
+
+		MetricConfig config = father.getConfig();
+		MetricSchema schema = config.getSchema();
+		ChildOrdinals ordinals = father.childOrdinals();
+		int cut = children.length;
+
+		for (int i = 0; i < children.length; i++) {
+			if(!config.equals(children[i].getConfig())){
+				cut = i;
+				break;
+			}
+		}
+
+		/*
+		 * Attached children, children merged before (or twice) and
+		 * measurements with their own children's identifiers follow the
+		 * sequential path, which already handles them
+		 */
+		HashSet<String> identifiers = new HashSet<String>();
+
+		for (int i = 0; i < cut; i++) {
+			if(children[i].getParent() == father
+					|| ordinals.ordinalOf(children[i].getIdentifier()) >= 0
+					|| !identifiers.add(children[i].getIdentifier())){
+				father.merge(children);
+				return;
+			}
+		}
+
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			Measurement measurement = father.measurements().get(slot);
+
+			if(measurement != null && !measurement.bind(ordinals).isBoundTo(ordinals)){
+				father.merge(children);
+				return;
+			}
+		}
+
+		// Collect the children's values
+		int[] childIndexes = new int[cut];
+		long[][] values = new long[schema.getSlotCount()][];
+		long[][] present = new long[schema.getSlotCount()][];
+
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			if(schema.getHandle(slot).isShared()){
+				values[slot] = new long[cut];
+				present[slot] = new long[(cut + 63) >>> 6];
+			}
+		}
+
+		Partial partial = pool.invoke(
+				new CollectTask(schema, children, 0, cut, values, present));
+
+		// Combine them into the father
+		father.getChildren().addAll(Arrays.asList(children).subList(0, cut));
+
+		for (int i = 0; i < cut; i++) {
+			childIndexes[i] = ordinals.register(children[i].getIdentifier());
+			children[i].setOwner(father);
+		}
+
+		father.invalidate();
+
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			if(partial.counts[slot] == 0){
+				continue;
+			}
+
+			Measurement measurement = schema.getHandle(slot).isSampled() ?
+					father.measurements().sample(slot, ordinals) :
+					father.measurements().compose(slot, ordinals);
+
+			measurement.setValues(childIndexes, values[slot], present[slot]);
+
+			if(partial.histograms[slot] != null){
+				measurement.mergeHistograms(new Measurement(partial.histograms[slot]));
+			}
+		}
+
+		father.invalidateValues();
+
+		MeasurementJournal journal = father.getJournal();
+
+		for (int i = 0; journal != null && i < cut; i++) {
+			journal.merge(father, children[i], false);
+		}
+
+		if(cut < children.length){
+			throw new MetricException(8,
+					"Mismatch in the configuration class. Cannot merge "
+					+ "metrics configured as " + config.getIdentifier() +
+					" and " + children[cut].getConfig().getIdentifier());
+		}
+	}
+
+}
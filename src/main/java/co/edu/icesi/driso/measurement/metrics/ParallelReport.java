@@ -0,0 +1,112 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class renders the rows of a metric tree by splitting its subtrees
+ * across a fork-join pool. Each task formats a range of sibling subtrees
+ * into its own buffers (computing the levels' and phases' values on the
+ * way); the buffers are then stitched in depth-first order, so the rows are
+ * the same, and in the same order, as the ones written sequentially.
+ *
+ * @see ReportWriter#writeRows(Metric, ForkJoinPool)
+ */
+final class ParallelReport {
+
+	/**
+	 * The number of sibling leaves rendered by a single task
+	 */
+	static final int GRAIN = 64;
+
+	/**
+	 * Renders a range of sibling subtrees
+	 */
+	private static final class RenderTask extends RecursiveTask<List<StringBuffer>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Metric> metrics;
+		private final int from;
+		private final int to;
+
+		RenderTask(List<Metric> metrics, int from, int to){
+			this.metrics = metrics;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected List<StringBuffer> compute(){
+			if(to - from > 1 && (to - from > GRAIN || hasChildren())){
+				int middle = (from + to) >>> 1;
+				RenderTask left = new RenderTask(metrics, from, middle);
+				RenderTask right = new RenderTask(metrics, middle, to);
+
+				left.fork();
+				List<StringBuffer> rightRows = right.compute();
+				List<StringBuffer> rows = left.join();
+				rows.addAll(rightRows);
+				return rows;
+			}
+
+			// A single subtree, or a few leaves
+			List<StringBuffer> rows = new ArrayList<StringBuffer>();
+			StringWriter buffer = new StringWriter();
+			ReportWriter writer = new ReportWriter(buffer);
+
+			try {
+				for (int i = from; i < to; i++) {
+					writer.writeRow(metrics.get(i));
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			rows.add(buffer.getBuffer());
+
+			if(to - from == 1){
+				List<Metric> children = metrics.get(from).getChildren();
+
+				if(!children.isEmpty()){
+					rows.addAll(new RenderTask(children, 0, children.size()).compute());
+				}
+			}
+
+			return rows;
+		}
+
+		private boolean hasChildren(){
+			for (int i = from; i < to; i++) {
+				if(!metrics.get(i).getChildren().isEmpty()){
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+
+	private ParallelReport(){
+	}
+
+	/**
+	 * Renders one row for the metric and for each of its descendants, using
+	 * the given pool.
+	 *
+	 * @param metric	The root metric
+	 * @param pool		The pool in which the subtrees are rendered
+	 * @return			The rendered rows, in depth-first order, in chunks
+	 */
+	static List<StringBuffer> render(Metric metric, ForkJoinPool pool){
+		List<Metric> root = new ArrayList<Metric>(1);
+		root.add(metric);
+		return pool.invoke(new RenderTask(root, 0, 1));
+	}
+
+}
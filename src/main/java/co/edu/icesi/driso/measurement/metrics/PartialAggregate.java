@@ -0,0 +1,259 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * This class holds the partial aggregate of a set of children computed by
+ * an intermediate aggregator node: for each shared phase-level-stage, the
+ * minimum, maximum, sum and count of the children's values (and, for
+ * sampled stages, the histogram of their samples). Aggregators forward only
+ * their aggregate upward, so the root handles one aggregate per aggregator
+ * instead of one value per node, while the per-child detail stays in the
+ * aggregators' metrics. Aggregates of several tiers combine exactly.
+ *
+ * @see Metric#aggregateChildren()
+ * @see Metric#mergeAggregate(String, PartialAggregate)
+ */
+public final class PartialAggregate implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String configIdentifier;
+	private final long[] min;
+	private final long[] max;
+	private final long[] sum;
+	private final long[] count;
+	private final LatencyHistogram[] histograms;
+	private int nodeCount;
+
+	PartialAggregate(String configIdentifier, int slots){
+		this.configIdentifier = configIdentifier;
+		this.min = new long[slots];
+		this.max = new long[slots];
+		this.sum = new long[slots];
+		this.count = new long[slots];
+		this.histograms = new LatencyHistogram[slots];
+
+		Arrays.fill(min, Long.MAX_VALUE);
+		Arrays.fill(max, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Adds a child's value.
+	 *
+	 * @param slot	The schema slot
+	 * @param value	The child's value
+	 */
+	void addValue(int slot, long value){
+		if(value < min[slot]) min[slot] = value;
+		if(value > max[slot]) max[slot] = value;
+
+		sum[slot] += value;
+		count[slot]++;
+	}
+
+	/**
+	 * Adds the samples of sampled stages.
+	 *
+	 * @param slot		The schema slot
+	 * @param samples	The histogram of the samples
+	 */
+	void addSamples(int slot, LatencyHistogram samples){
+		if(samples.getCount() == 0){
+			return;
+		}
+
+		if(histograms[slot] == null){
+			histograms[slot] = new LatencyHistogram(samples.getPrecision());
+		}
+
+		histograms[slot].add(samples);
+
+		if(samples.getMin() < min[slot]) min[slot] = samples.getMin();
+		if(samples.getMax() > max[slot]) max[slot] = samples.getMax();
+
+		sum[slot] += samples.getSum();
+		count[slot] += samples.getCount();
+	}
+
+	/**
+	 * Adds the aggregate of another set of children.
+	 *
+	 * @param other		The other aggregate
+	 */
+	void combine(PartialAggregate other){
+		for (int slot = 0; slot < count.length; slot++) {
+			if(other.histograms[slot] != null){
+				addSamples(slot, other.histograms[slot]);
+			}else if(other.count[slot] > 0){
+				if(other.min[slot] < min[slot]) min[slot] = other.min[slot];
+				if(other.max[slot] > max[slot]) max[slot] = other.max[slot];
+
+				sum[slot] += other.sum[slot];
+				count[slot] += other.count[slot];
+			}
+		}
+
+		nodeCount += other.nodeCount;
+	}
+
+	void addNodes(int nodes){
+		nodeCount += nodes;
+	}
+
+	/**
+	 * @return	The number of phase-level-stages aggregated
+	 */
+	int getSlotCount(){
+		return count.length;
+	}
+
+	/**
+	 * @param estimate	The estimated offset and drift of the aggregator's
+	 * 					clock with respect to the receiver's
+	 * @param schema	The schema of the aggregated metrics
+	 * @return			A copy of this aggregate whose timestamps (i.e., the
+	 * 					values of non-sampled stages) are in the receiver's
+	 * 					clock
+	 */
+	PartialAggregate translate(ClockEstimate estimate, MetricSchema schema){
+		PartialAggregate translated = new PartialAggregate(configIdentifier, count.length);
+		translated.combine(this);
+
+		for (int slot = 0; slot < count.length; slot++) {
+			if(count[slot] > 0 && !schema.getHandle(slot).isSampled()){
+				translated.min[slot] = estimate.toFatherTime(min[slot]);
+				translated.max[slot] = estimate.toFatherTime(max[slot]);
+				translated.sum[slot] = estimate.toFatherSum(sum[slot], count[slot]);
+			}
+		}
+
+		return translated;
+	}
+
+	/**
+	 * @return	The identifier of the aggregated metrics' configuration
+	 */
+	public String getConfigIdentifier(){
+		return configIdentifier;
+	}
+
+	/**
+	 * @param handle	The phase-level-stage handle
+	 * @return			The lowest value, or Long.MAX_VALUE if there is none
+	 */
+	public long getMin(MetricSchema.StageHandle handle){
+		return min[handle.getSlot()];
+	}
+
+	/**
+	 * @param handle	The phase-level-stage handle
+	 * @return			The highest value, or Long.MIN_VALUE if there is none
+	 */
+	public long getMax(MetricSchema.StageHandle handle){
+		return max[handle.getSlot()];
+	}
+
+	/**
+	 * @param handle	The phase-level-stage handle
+	 * @return			The sum of the values
+	 */
+	public long getSum(MetricSchema.StageHandle handle){
+		return sum[handle.getSlot()];
+	}
+
+	/**
+	 * @param handle	The phase-level-stage handle
+	 * @return			The number of values (for sampled stages, of samples)
+	 */
+	public long getCount(MetricSchema.StageHandle handle){
+		return count[handle.getSlot()];
+	}
+
+	/**
+	 * @param handle	The phase-level-stage handle
+	 * @return			The mean of the values, or 0 if there is none
+	 */
+	public double getMean(MetricSchema.StageHandle handle){
+		int slot = handle.getSlot();
+		return count[slot] == 0 ? 0 : (double) sum[slot] / count[slot];
+	}
+
+	/**
+	 * @param handle	The phase-level-stage handle of a sampled stage
+	 * @return			The histogram of the samples, or null if there are none
+	 * 					(or the stage is not sampled)
+	 */
+	public LatencyHistogram getHistogram(MetricSchema.StageHandle handle){
+		return histograms[handle.getSlot()];
+	}
+
+	/**
+	 * @return	The number of children aggregated, across all tiers
+	 */
+	public int getNodeCount(){
+		return nodeCount;
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		out.writeUTF(configIdentifier);
+		MetricCodec.writeVarInt(out, count.length);
+		MetricCodec.writeVarInt(out, nodeCount);
+
+		for (int slot = 0; slot < count.length; slot++) {
+			MetricCodec.writeVarLong(out, count[slot]);
+
+			if(count[slot] > 0){
+				MetricCodec.writeVarLong(out, min[slot]);
+				MetricCodec.writeVarLong(out, max[slot]);
+				MetricCodec.writeVarLong(out, sum[slot]);
+				out.writeBoolean(histograms[slot] != null);
+
+				if(histograms[slot] != null){
+					histograms[slot].writeTo(out);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param in			The input from which the aggregate is read
+	 * @param schema		The schema of the receiver's metrics
+	 * @return				The aggregate
+	 * @throws IOException	It's thrown when something went bad at reading, or
+	 * 						the aggregate's stages are not the schema's
+	 */
+	static PartialAggregate readFrom(DataInput in, MetricSchema schema) throws IOException {
+		String configIdentifier = in.readUTF();
+		int slots = MetricCodec.readVarInt(in);
+
+		if(slots != schema.getSlotCount()){
+			throw new IOException("The aggregate of " + configIdentifier + " has " + slots
+					+ " stages, and the schema " + schema.getSlotCount());
+		}
+
+		PartialAggregate aggregate = new PartialAggregate(configIdentifier, slots);
+		aggregate.nodeCount = MetricCodec.readVarInt(in);
+
+		for (int slot = 0; slot < slots; slot++) {
+			aggregate.count[slot] = MetricCodec.readVarLong(in);
+
+			if(aggregate.count[slot] > 0){
+				aggregate.min[slot] = MetricCodec.readVarLong(in);
+				aggregate.max[slot] = MetricCodec.readVarLong(in);
+				aggregate.sum[slot] = MetricCodec.readVarLong(in);
+
+				if(in.readBoolean()){
+					aggregate.histograms[slot] = LatencyHistogram.readFrom(in);
+				}
+			}
+		}
+
+		return aggregate;
+	}
+
+}
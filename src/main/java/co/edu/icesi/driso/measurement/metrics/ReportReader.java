@@ -0,0 +1,657 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class reads the reports written by Metric.report(File, boolean),
+ * ReportWriter and ReportSink, one row at a time. Rows can be handled
+ * one by one (see readRow() and read(RowHandler)), in which case the memory
+ * needed does not depend on the size of the report, or turned back into
+ * metric trees (see readMetrics()).
+ *
+ * Rows are not indented, so the tree is inferred from the detail columns: a
+ * row is a child of the closest preceding row (in the current path) that
+ * holds a value for its identifier, unless a child with that identifier was
+ * already read. Rows whose father holds no value for them are read as roots.
+ * Lines starting with "#" are skipped, and so are the rows under a heading
+ * that does not match the reader's configuration.
+ *
+ * Rows of delta reports (see Metric.reportChanges) carry the path of their
+ * father instead. When rebuilding metric trees, a row whose path and
+ * identifier were already read replaces the metric read before (keeping its
+ * children), so reading a full report followed by its deltas rebuilds the
+ * latest state of the tree.
+ *
+ * Reports are lossy, so the rebuilt metrics are an approximation of the
+ * reported ones:
+ * - Sampled stages only keep their number of samples and their mean (the
+ * mean is recorded as many times as samples there were).
+ * - A composed measurement whose own value is 0 is read as having no own
+ * value.
+ * - Identifiers containing ", " or tabs, and attribute values containing
+ * tabs, cannot be read back. Attribute values are read as strings.
+ *
+ * @see ReportWriter
+ */
+public final class ReportReader implements Closeable {
+
+	/**
+	 * Handles the rows of a report, in the order they were written.
+	 */
+	public interface RowHandler {
+
+		/**
+		 * @param row				The row read. It must not be kept after
+		 * 							returning unless it is copied
+		 * @throws MetricException	It's thrown to stop reading
+		 */
+		void handle(Row row) throws MetricException;
+	}
+
+	/**
+	 * This class encapsulates a report row: the metric's identifier,
+	 * attributes and measurements, and its position in the tree.
+	 */
+	public static final class Row {
+
+		private final MetricConfig config;
+		private final String identifier;
+		private final String path;
+		private final int depth;
+		private final String[] attributes;
+		private final boolean[] present;
+		private final boolean[] hasValue;
+		private final long[] values;
+		private final long[] samples;
+		private final List<Map<String, Long>> childValues;
+
+		private Row(MetricConfig config, String identifier, String path,
+				int depth, String[] attributes){
+			int slots = config.getSchema().getSlotCount();
+
+			this.config = config;
+			this.identifier = identifier;
+			this.path = path;
+			this.depth = depth;
+			this.attributes = attributes;
+			this.present = new boolean[slots];
+			this.hasValue = new boolean[slots];
+			this.values = new long[slots];
+			this.samples = new long[slots];
+			this.childValues = new ArrayList<Map<String, Long>>(
+					Collections.<Map<String, Long>>nCopies(slots, null));
+		}
+
+		public MetricConfig getConfig(){
+			return config;
+		}
+
+		public String getIdentifier(){
+			return identifier;
+		}
+
+		/**
+		 * @return	The identifier of the row's father, or null for a root
+		 */
+		public String getParentIdentifier(){
+			return path.isEmpty() ?
+					null : path.substring(path.lastIndexOf(ReportWriter.PATH_SEPARATOR) + 1);
+		}
+
+		/**
+		 * @return	The identifiers of the row's ancestors, from the root,
+		 * 			separated by ReportWriter.PATH_SEPARATOR (empty for a root)
+		 */
+		public String getPath(){
+			return path;
+		}
+
+		/**
+		 * @return	The number of ancestors of the row (0 for a root)
+		 */
+		public int getDepth(){
+			return depth;
+		}
+
+		/**
+		 * @param name	The attribute's name
+		 * @return		The attribute's value, or null if it is not configured
+		 * 				or it was not set
+		 */
+		public String getAttribute(String name){
+			String[] configured = config.getAttributes();
+
+			for (int i = 0; i < configured.length; i++) {
+				if(configured[i].equals(name)){
+					return attributes[i];
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * @param handle	The phase-level-stage
+		 * @return			Whether the stage had a measurement (i.e., it was
+		 * 					not reported as NA)
+		 */
+		public boolean isPresent(MetricSchema.StageHandle handle){
+			return present[handle.getSlot()];
+		}
+
+		/**
+		 * @param handle	The phase-level-stage
+		 * @return			Whether the stage had an own value
+		 */
+		public boolean hasValue(MetricSchema.StageHandle handle){
+			return hasValue[handle.getSlot()];
+		}
+
+		/**
+		 * @param handle	The phase-level-stage
+		 * @return			The stage's own value (for sampled stages, the
+		 * 					rounded mean of the samples), or 0 if there is none
+		 */
+		public long getValue(MetricSchema.StageHandle handle){
+			return values[handle.getSlot()];
+		}
+
+		/**
+		 * @param handle	The phase-level-stage
+		 * @return			The number of samples of a sampled stage, or 0 if
+		 * 					the stage is not sampled
+		 */
+		public long getSampleCount(MetricSchema.StageHandle handle){
+			return samples[handle.getSlot()];
+		}
+
+		/**
+		 * @param handle	The phase-level-stage
+		 * @return			The values held for the children, by identifier (an
+		 * 					empty map if there are none)
+		 */
+		public Map<String, Long> getChildValues(MetricSchema.StageHandle handle){
+			Map<String, Long> children = childValues.get(handle.getSlot());
+			return children == null ?
+					Collections.<String, Long>emptyMap() : Collections.unmodifiableMap(children);
+		}
+
+		/**
+		 * Creates a metric (without children) with the row's attributes and
+		 * measurements.
+		 *
+		 * @param storage			The kind of storage for the measurements
+		 * @return					A new instance of Metric
+		 * @throws MetricException	It's thrown when the measurements cannot
+		 * 							be set
+		 */
+		public Metric toMetric(Metric.Storage storage) throws MetricException {
+			Metric metric = new Metric(identifier, config, storage);
+			String[] configured = config.getAttributes();
+			MetricSchema schema = config.getSchema();
+			MeasurementStore measurements = metric.measurements();
+			ChildOrdinals ordinals = metric.childOrdinals();
+
+			for (int i = 0; i < configured.length; i++) {
+				if(attributes[i] != null){
+					metric.setAttribute(configured[i], attributes[i]);
+				}
+			}
+
+			for (int slot = 0; slot < present.length; slot++) {
+				if(!present[slot]){
+					continue;
+				}
+
+				Map<String, Long> children = childValues.get(slot);
+				Measurement measurement = null;
+
+				if(schema.getHandle(slot).isSampled()){
+					measurement = measurements.sample(slot, ordinals);
+					measurement.getHistogram().record(values[slot], samples[slot]);
+				}else if(hasValue[slot]){
+					measurements.set(slot, values[slot]);
+
+					if(children != null){
+						measurement = measurements.compose(slot, ordinals);
+					}
+				}else{
+					measurement = measurements.compose(slot, ordinals);
+				}
+
+				if(children != null){
+					for (Map.Entry<String, Long> child : children.entrySet()) {
+						measurement.setValue(child.getKey(), child.getValue());
+					}
+				}
+			}
+
+			return metric;
+		}
+	}
+
+	/**
+	 * An ancestor of the next row: its path (including its identifier) and
+	 * the identifiers of the children it holds values for, which were not
+	 * read yet
+	 */
+	private static final class Ancestor {
+
+		private final String path;
+		private final Set<String> children;
+
+		private Ancestor(String path, Set<String> children){
+			this.path = path;
+			this.children = children;
+		}
+	}
+
+	private final BufferedReader in;
+	private final MetricConfig config;
+	private final String heading;
+	private final int columnCount;
+
+	/**
+	 * The column of each phase's detail
+	 */
+	private final int[] detailColumns;
+	private final List<Ancestor> ancestors;
+	private boolean matching;
+	private boolean headingFound;
+
+	/**
+	 * Whether the rows being read belong to a delta report
+	 */
+	private boolean delta;
+	private int lineNumber;
+
+	/**
+	 * @param in		The report (wrapping it in a buffered reader is not
+	 * 					needed)
+	 * @param config	The configuration the metrics were reported with
+	 */
+	public ReportReader(Reader in, MetricConfig config){
+		List<MeasurementPhase> phases = config.getPhases();
+
+		this.in = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+		this.config = config;
+		this.heading = ReportWriter.heading(config);
+		this.detailColumns = new int[phases.size()];
+		this.ancestors = new ArrayList<Ancestor>();
+
+		int column = config.getAttributes().length;
+
+		for (int i = 0; i < phases.size(); i++) {
+			MeasurementPhase.Level[] levels = phases.get(i).getLevels();
+
+			for (int j = 0; j < levels.length; j++) {
+				if(!levels[j].getName().equals(MeasurementPhase.Level.DEFAULT_NAME)){
+					column++;
+				}
+			}
+
+			column += 2;
+			detailColumns[i] = column;
+		}
+
+		this.columnCount = column + 1;
+	}
+
+	/**
+	 * @param file			The report file
+	 * @param config		The configuration the metrics were reported with
+	 * @throws IOException	It's thrown when the file cannot be opened
+	 */
+	public ReportReader(File file, MetricConfig config) throws IOException {
+		this(new FileReader(file), config);
+	}
+
+	/**
+	 * Reads the next row.
+	 *
+	 * @return					The row, or null if the end of the report was
+	 * 							reached
+	 * @throws IOException		It's thrown when something went bad at reading
+	 * @throws MetricException	It's thrown when a row is found before any
+	 * 							heading, or a row is malformed
+	 */
+	public Row readRow() throws IOException, MetricException {
+		String line;
+
+		while((line = in.readLine()) != null){
+			lineNumber++;
+
+			if(line.isEmpty() || line.startsWith("#")){
+				continue;
+			}
+
+			if(line.equals("IDENTIFIER") || line.startsWith("IDENTIFIER\t")){
+				headingFound = true;
+				delta = false;
+				matching = line.equals(heading);
+				ancestors.clear();
+				continue;
+			}
+
+			if(line.startsWith(ReportWriter.PATH_COLUMN + "\tIDENTIFIER")){
+				headingFound = true;
+				delta = true;
+				matching = line.equals(ReportWriter.PATH_COLUMN + "\t" + heading);
+				ancestors.clear();
+				continue;
+			}
+
+			if(!headingFound){
+				throw new MetricException(26, "A row was found before any heading "
+						+ "at line " + lineNumber);
+			}
+
+			if(matching){
+				return parseRow(line);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Reads all the remaining rows, passing them one by one to a handler.
+	 *
+	 * @param handler			The rows' handler
+	 * @throws IOException		It's thrown when something went bad at reading
+	 * @throws MetricException	It's thrown when a row is malformed, or the
+	 * 							handler throws it
+	 */
+	public void read(RowHandler handler) throws IOException, MetricException {
+		Row row;
+
+		while((row = readRow()) != null){
+			handler.handle(row);
+		}
+	}
+
+	/**
+	 * Reads all the remaining rows, rebuilding the metric trees they were
+	 * reported from.
+	 *
+	 * @return					The roots, in the order they were reported
+	 * @throws IOException		It's thrown when something went bad at reading
+	 * @throws MetricException	It's thrown when a row is malformed
+	 */
+	public List<Metric> readMetrics() throws IOException, MetricException {
+		return readMetrics(Metric.Storage.OBJECTS);
+	}
+
+	/**
+	 * Reads all the remaining rows, rebuilding the metric trees they were
+	 * reported from (replaying the rows of delta reports).
+	 *
+	 * @param storage			The kind of storage for the measurements
+	 * @return					The roots, in the order they were reported
+	 * @throws IOException		It's thrown when something went bad at reading
+	 * @throws MetricException	It's thrown when a row is malformed, or a
+	 * 							delta row's father was not read before
+	 */
+	public List<Metric> readMetrics(Metric.Storage storage) throws IOException, MetricException {
+		List<Metric> roots = new ArrayList<Metric>();
+		Map<String, Metric> metrics = new HashMap<String, Metric>();
+		Row row;
+
+		while((row = readRow()) != null){
+			String path = row.getPath();
+			Metric father = path.isEmpty() ? null : metrics.get(path);
+
+			if(!path.isEmpty() && father == null){
+				throw malformed("The father of \"" + row.getIdentifier() 
+						+ "\" (" + path + ") was not read before");
+			}
+
+			Metric metric = row.toMetric(storage);
+			Metric previous = metrics.put(childPath(path, row.getIdentifier()), metric);
+			List<Metric> siblings = father == null ? roots : father.getChildren();
+
+			if(previous == null){
+				siblings.add(metric);
+			}else{
+				// Replay: the new row replaces the previous one
+				siblings.set(siblings.indexOf(previous), metric);
+
+				for (Metric child : previous.getChildren()) {
+					metric.getChildren().add(child);
+					child.setOwner(metric);
+				}
+			}
+
+			if(father != null){
+				metric.setOwner(father);
+			}
+		}
+
+		return roots;
+	}
+
+	private static String childPath(String path, String identifier){
+		return path.isEmpty() ? identifier : path + ReportWriter.PATH_SEPARATOR + identifier;
+	}
+
+	private Row parseRow(String line) throws MetricException {
+		String[] columns = line.split("\t", -1);
+		int first = delta ? 1 : 0;
+
+		if(columns.length != columnCount + first){
+			throw malformed((columnCount + first) + " columns were expected, "
+					+ columns.length + " were found");
+		}
+
+		String identifier = columns[first];
+		String[] attributes = new String[config.getAttributes().length];
+
+		for (int i = 0; i < attributes.length; i++) {
+			String value = columns[first + i + 1];
+			attributes[i] = value.equals("null") ? null : value;
+		}
+
+		Row row;
+
+		if(delta){
+			String path = columns[0];
+			int depth = path.isEmpty() ? 0 : 1;
+
+			for (int i = 0; i < path.length(); i++) {
+				if(path.charAt(i) == ReportWriter.PATH_SEPARATOR){
+					depth++;
+				}
+			}
+
+			row = new Row(config, identifier, path, depth, attributes);
+		}else{
+			while(!ancestors.isEmpty()
+					&& !ancestors.get(ancestors.size() - 1).children.remove(identifier)){
+				ancestors.remove(ancestors.size() - 1);
+			}
+
+			row = new Row(config, identifier,
+					ancestors.isEmpty() ? "" : ancestors.get(ancestors.size() - 1).path,
+					ancestors.size(), attributes);
+		}
+
+		List<MeasurementPhase> phases = config.getPhases();
+
+		for (int i = 0; i < phases.size(); i++) {
+			parseDetail(phases.get(i), columns[first + detailColumns[i]], row);
+		}
+
+		Set<String> children = new HashSet<String>();
+
+		for (int slot = 0; slot < row.childValues.size(); slot++) {
+			if(row.childValues.get(slot) != null){
+				children.addAll(row.childValues.get(slot).keySet());
+			}
+		}
+
+		if(!delta){
+			ancestors.add(new Ancestor(childPath(row.getPath(), identifier), children));
+		}
+
+		return row;
+	}
+
+	/**
+	 * Parses a phase's detail, e.g., {DEFAULT-LEVEL=[Start=5; End=NA]}
+	 */
+	private void parseDetail(MeasurementPhase phase, String detail, Row row)
+			throws MetricException {
+
+		if(!detail.startsWith("{") || !detail.endsWith("}")){
+			throw malformed("Invalid detail of phase \"" + phase.getName() + "\"");
+		}
+
+		int position = 1;
+		int end = detail.length() - 1;
+
+		while(position < end){
+			int open = detail.indexOf("=[", position);
+			int close = open < 0 ? -1 : closingBracket(detail, open + 2);
+
+			if(close < 0){
+				throw malformed("Invalid detail of phase \"" + phase.getName() + "\"");
+			}
+
+			String level = detail.substring(position, open);
+			int stageStart = open + 2;
+
+			while(stageStart < close){
+				int stageEnd = nextSeparator(detail, stageStart, close);
+				parseStage(phase, level, detail.substring(stageStart, stageEnd), row);
+				stageStart = stageEnd + 2;
+			}
+
+			position = detail.startsWith("; ", close + 1) ? close + 3 : close + 1;
+		}
+	}
+
+	/**
+	 * Parses a stage's measurement, e.g., Start=5, (child-1=5, child-2=6)
+	 */
+	private void parseStage(MeasurementPhase phase, String level, String stage, Row row)
+			throws MetricException {
+
+		int equals = stage.indexOf('=');
+
+		if(equals < 0){
+			throw malformed("Invalid stage \"" + stage + "\"");
+		}
+
+		MetricSchema.StageHandle handle = config.getSchema().getHandle(
+				phase.getName(), level, stage.substring(0, equals));
+
+		if(handle == null){
+			throw malformed("Stage \"" + stage.substring(0, equals) + "\" of level \""
+					+ level + "\" is not configured in phase \"" + phase.getName() + "\"");
+		}
+
+		int slot = handle.getSlot();
+
+		String value = stage.substring(equals + 1);
+
+		if(value.equals("NA")){
+			return;
+		}
+
+		int open = value.indexOf(", (");
+		String own = open < 0 ? value : value.substring(0, open);
+
+		try {
+			if(open >= 0){
+				Map<String, Long> children = new LinkedHashMap<String, Long>();
+				String[] entries = value.substring(open + 3, value.length() - 1).split(", ");
+
+				for (int i = 0; i < entries.length; i++) {
+					int separator = entries[i].lastIndexOf('=');
+					children.put(entries[i].substring(0, separator),
+							Long.parseLong(entries[i].substring(separator + 1)));
+				}
+
+				row.childValues.set(slot, children);
+			}
+
+			if(own.startsWith("n=")){
+				// n=.. min=.. mean=.. p50=.. p99=.. max=..
+				String[] statistics = own.split(" ");
+				row.samples[slot] = Long.parseLong(statistics[0].substring(2));
+				row.values[slot] = row.samples[slot] == 0 ? 0 :
+					Long.parseLong(statistics[2].substring(statistics[2].indexOf('=') + 1));
+				row.hasValue[slot] = row.samples[slot] > 0;
+			}else{
+				row.values[slot] = Long.parseLong(own);
+				row.hasValue[slot] = open < 0 || row.values[slot] != 0;
+			}
+		} catch (RuntimeException e) {
+			throw malformed("Invalid value \"" + value + "\" in stage \""
+					+ stage.substring(0, equals) + "\"");
+		}
+
+		row.present[slot] = true;
+	}
+
+	/**
+	 * @return	The position of the "]" closing the level that starts at the
+	 * 			given position, or -1 if there is none
+	 */
+	private static int closingBracket(String detail, int start){
+		int parentheses = 0;
+
+		for (int i = start; i < detail.length(); i++) {
+			char c = detail.charAt(i);
+
+			if(c == '(') parentheses++;
+			else if(c == ')') parentheses--;
+			else if(c == ']' && parentheses == 0) return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return	The position of the next "; " separating stages (outside of
+	 * 			children's values), or the end if there is none
+	 */
+	private static int nextSeparator(String detail, int start, int end){
+		int parentheses = 0;
+
+		for (int i = start; i < end; i++) {
+			char c = detail.charAt(i);
+
+			if(c == '(') parentheses++;
+			else if(c == ')') parentheses--;
+			else if(c == ';' && parentheses == 0 && i + 1 < end
+					&& detail.charAt(i + 1) == ' ') return i;
+		}
+
+		return end;
+	}
+
+	private MetricException malformed(String message){
+		return new MetricException(27, "Malformed report row at line "
+				+ lineNumber + ": " + message);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
@@ -0,0 +1,323 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class appends the reports of many metrics to a single file, keeping it
+ * open between reports. Unlike Metric.report(File, boolean), the date and
+ * heading lines are written only once per configuration, and rows are
+ * batched in a direct buffer: the buffer is written to the file when it is
+ * full, or when the flush interval has elapsed since the last flush (checked
+ * when a report is written, and by a shared daemon thread while the sink is
+ * idle). Call flush() or close() to write the pending rows at once; a sink
+ * that is not closed keeps its file open, and the daemon thread keeps
+ * checking it.
+ *
+ * Rows that could not be written stay in the buffer, and are written by the
+ * next flush. If writing fails in the middle of a report, though, the sink
+ * fails: the report's rows are incomplete, so no other report is accepted.
+ *
+ * This class is thread-safe.
+ *
+ * @see Metric#report(File, boolean)
+ */
+public final class ReportSink implements Closeable, Flushable {
+
+	/**
+	 * Default size (in bytes) of the buffer in which rows are batched
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Default maximum time (in milliseconds) rows are kept in the buffer
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+	/**
+	 * Flushes the idle sinks, on a single daemon thread
+	 */
+	private static final ScheduledThreadPoolExecutor FLUSHER;
+
+	static {
+		FLUSHER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "report-sink-flusher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		FLUSHER.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Encodes the report's text into the direct buffer, writing the buffer
+	 * to the channel whenever it is full
+	 */
+	private final class ChannelWriter extends Writer {
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			CharBuffer chars = CharBuffer.wrap(cbuf, off, len);
+			encode(chars);
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			CharBuffer chars = CharBuffer.wrap(str, off, off + len);
+			encode(chars);
+		}
+
+		private void encode(CharBuffer chars) throws IOException {
+			while(true){
+				CoderResult result = encoder.encode(chars, buffer, false);
+
+				if(result.isOverflow()){
+					drain();
+				}else{
+					break;
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			drain();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final CharsetEncoder encoder;
+	private final ReportWriter writer;
+	private final long flushInterval;
+
+	/**
+	 * The identifiers of the configurations whose heading was written
+	 */
+	private final Set<String> headings;
+
+	/**
+	 * The periodic check of the flush interval, or null if every report is
+	 * flushed
+	 */
+	private final ScheduledFuture<?> idleFlush;
+
+	/**
+	 * The error of the last flush made by the daemon thread, thrown by the
+	 * next call
+	 */
+	private IOException idleFlushError;
+
+	/**
+	 * The error that interrupted a report, or null if the sink has not failed
+	 */
+	private IOException failure;
+	private long lastFlush;
+	private boolean closed;
+
+	/**
+	 * Opens a sink with the default buffer size and flush interval.
+	 *
+	 * @param file			The file in which the reports must be appended (it
+	 * 						is created if it does not exist)
+	 * @throws IOException	It's thrown when the file cannot be opened
+	 */
+	public ReportSink(File file) throws IOException {
+		this(file, DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_INTERVAL);
+	}
+
+	/**
+	 * @param file				The file in which the reports must be appended
+	 * 							(it is created if it does not exist)
+	 * @param bufferSize		The size (in bytes) of the buffer in which rows
+	 * 							are batched
+	 * @param flushInterval		The maximum time (in milliseconds) rows are kept
+	 * 							in the buffer (idle sinks are checked every
+	 * 							quarter of it, so rows may be kept up to a
+	 * 							quarter longer)
+	 * @throws IOException		It's thrown when the file cannot be opened
+	 */
+	public ReportSink(File file, int bufferSize, long flushInterval) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		this.encoder = Charset.defaultCharset().newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.writer = new ReportWriter(new ChannelWriter());
+		this.flushInterval = flushInterval;
+		this.headings = new HashSet<String>();
+		this.lastFlush = System.currentTimeMillis();
+
+		if(flushInterval > 0){
+			long period = Math.max(1, flushInterval / 4);
+			this.idleFlush = FLUSHER.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flushIfIdle();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}else{
+			this.idleFlush = null;
+		}
+	}
+
+	/**
+	 * Flushes the buffered rows if the flush interval has elapsed since the
+	 * last flush (called by the daemon thread).
+	 */
+	private synchronized void flushIfIdle(){
+		if(closed || failure != null || buffer.position() == 0
+				|| System.currentTimeMillis() - lastFlush < flushInterval){
+			return;
+		}
+
+		try {
+			drain();
+			lastFlush = System.currentTimeMillis();
+		} catch (IOException e) {
+			idleFlushError = e;
+		}
+	}
+
+	/**
+	 * Throws the error that made the sink fail, and then the error of the
+	 * last flush made by the daemon thread, if any.
+	 */
+	private void checkIdleFlush() throws IOException {
+		if(failure != null){
+			throw new IOException("The report sink failed in the middle of a report", failure);
+		}
+
+		IOException error = idleFlushError;
+
+		if(error != null){
+			idleFlushError = null;
+			throw new IOException("The buffered rows could not be written", error);
+		}
+	}
+
+	/**
+	 * Appends the rows of a metric and all of its descendants, preceded by
+	 * the date and heading lines if no metric with the same configuration was
+	 * written before.
+	 *
+	 * @param metric			The root metric
+	 * @throws MetricException	It's thrown when there are stages in the Metric object
+	 * 							without a value
+	 * @throws IOException		It's thrown when something went bad at writing
+	 * 							(the sink fails, if the rows were being
+	 * 							written), or the sink is closed or failed
+	 */
+	public synchronized void write(Metric metric) throws MetricException, IOException {
+		if(closed){
+			throw new IOException("The report sink is closed");
+		}
+
+		checkIdleFlush();
+		metric.validate();
+
+		MetricConfig config = metric.getConfig();
+
+		try {
+			if(headings.add(config.getIdentifier())){
+				writer.writeComment(new Date().toString());
+				writer.writeHeading(config);
+			}
+
+			writer.writeRows(metric);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		}
+
+		if(System.currentTimeMillis() - lastFlush >= flushInterval){
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the buffered rows to the file.
+	 *
+	 * @throws IOException	It's thrown when something went bad at writing
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		checkIdleFlush();
+		drain();
+		lastFlush = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return				The size (in bytes) of the file, including the rows
+	 * 						not written yet
+	 * @throws IOException	It's thrown when the size of the file cannot be read
+	 */
+	public synchronized long size() throws IOException {
+		return channel.size() + buffer.position();
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+
+		try {
+			while(buffer.hasRemaining()){
+				channel.write(buffer);
+			}
+		} finally {
+			// The bytes not written are kept for the next try
+			buffer.compact();
+		}
+	}
+
+	/**
+	 * Writes the buffered rows and closes the file. The rows of a failed sink
+	 * are not written.
+	 *
+	 * @throws IOException	It's thrown when something went bad at writing, or
+	 * 						the sink failed
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(closed){
+			return;
+		}
+
+		if(idleFlush != null){
+			idleFlush.cancel(false);
+		}
+
+		try {
+			flush();
+		} finally {
+			closed = true;
+			channel.close();
+		}
+	}
+
+}
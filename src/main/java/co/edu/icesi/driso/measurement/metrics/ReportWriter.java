@@ -0,0 +1,331 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This class writes metric reports in the tab-separated format, one row per
+ * metric. Rows are written to the underlying writer as the tree is walked
+ * (depth-first, fathers before children), so the memory needed does not
+ * depend on the size of the tree. Wrapping a buffered writer is recommended.
+ *
+ * @see Metric#report(java.io.File, boolean)
+ * @see ReportReader
+ */
+public final class ReportWriter implements Closeable, Flushable {
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	/**
+	 * The name of the first column of delta reports, which holds the path of
+	 * each row's father
+	 */
+	public static final String PATH_COLUMN = "PATH";
+
+	/**
+	 * Separates the identifiers of a path
+	 */
+	public static final char PATH_SEPARATOR = '/';
+
+	private final Writer out;
+
+	public ReportWriter(Writer out){
+		this.out = out;
+	}
+
+	/**
+	 * Writes a complete report: a date comment, the heading and the rows of
+	 * the whole tree.
+	 *
+	 * @param metric		The root metric
+	 * @throws IOException	It's thrown when something went bad at writing
+	 */
+	public void writeReport(Metric metric) throws IOException {
+		writeComment(new Date().toString());
+		writeHeading(metric.getConfig());
+		writeRows(metric);
+	}
+
+	/**
+	 * Writes a complete report, like writeReport(Metric), but rendering the
+	 * rows in parallel.
+	 *
+	 * @param metric		The root metric
+	 * @param pool			The pool in which the rows are rendered
+	 * @throws IOException	It's thrown when something went bad at writing
+	 * @see #writeRows(Metric, ForkJoinPool)
+	 */
+	public void writeReport(Metric metric, ForkJoinPool pool) throws IOException {
+		writeComment(new Date().toString());
+		writeHeading(metric.getConfig());
+		writeRows(metric, pool);
+	}
+
+	/**
+	 * Writes a comment line (e.g., the report's date).
+	 *
+	 * @param comment		The comment, without line separators
+	 * @throws IOException	It's thrown when something went bad at writing
+	 */
+	public void writeComment(String comment) throws IOException {
+		out.write("# ");
+		out.write(comment);
+		out.write(LINE_SEPARATOR);
+	}
+
+	/**
+	 * Writes the heading line of the metrics configured with a given
+	 * configuration.
+	 *
+	 * @param config		The configuration
+	 * @throws IOException	It's thrown when something went bad at writing
+	 */
+	public void writeHeading(MetricConfig config) throws IOException {
+		out.write(heading(config));
+		out.write(LINE_SEPARATOR);
+	}
+
+	/**
+	 * Writes a delta report: a comment with the date and the epochs, the
+	 * delta heading and the rows changed since the given epoch.
+	 *
+	 * @param metric		The root metric
+	 * @param since			The epoch returned by the previous delta report,
+	 * 						or 0 to write every row
+	 * @return				The epoch to pass to the next delta report
+	 * @throws IOException	It's thrown when something went bad at writing
+	 * @see Metric#reportChanges(java.io.File, boolean, long)
+	 */
+	public long writeDelta(Metric metric, long since) throws IOException {
+		long epoch = Metric.nextEpoch();
+
+		writeComment(new Date().toString() + " delta since " + since + " until " + epoch);
+		writeDeltaHeading(metric.getConfig());
+		writeChangedRows(metric, since);
+		return epoch;
+	}
+
+	/**
+	 * Writes the heading line of delta reports: the path column followed by
+	 * the usual heading.
+	 *
+	 * @param config		The configuration
+	 * @throws IOException	It's thrown when something went bad at writing
+	 */
+	public void writeDeltaHeading(MetricConfig config) throws IOException {
+		out.write(PATH_COLUMN);
+		out.write('\t');
+		writeHeading(config);
+	}
+
+	/**
+	 * Writes the rows (preceded by their father's path) of the metric and its
+	 * descendants that changed in the given epoch or later, skipping the
+	 * subtrees without changes.
+	 *
+	 * @param metric		The root metric
+	 * @param since			The first epoch whose changes are written
+	 * @throws IOException	It's thrown when something went bad at writing
+	 */
+	public void writeChangedRows(Metric metric, long since) throws IOException {
+		writeChangedRows(metric, "", since);
+	}
+
+	private void writeChangedRows(Metric metric, String path, long since) throws IOException {
+		if(metric.getSubtreeEpoch() < since){
+			return;
+		}
+
+		if(metric.getChangedEpoch() >= since){
+			out.write(path);
+			out.write('\t');
+			writeRow(metric);
+		}
+
+		List<Metric> children = metric.getChildren();
+		String childrenPath = path.isEmpty() ?
+				metric.getIdentifier() : path + PATH_SEPARATOR + metric.getIdentifier();
+
+		for (int i = 0; i < children.size(); i++) {
+			writeChangedRows(children.get(i), childrenPath, since);
+		}
+	}
+
+	/**
+	 * Writes one row for the metric and for each of its descendants.
+	 *
+	 * @param metric		The root metric
+	 * @throws IOException	It's thrown when something went bad at writing
+	 */
+	public void writeRows(Metric metric) throws IOException {
+		writeRow(metric);
+
+		List<Metric> children = metric.getChildren();
+
+		for (int i = 0; i < children.size(); i++) {
+			writeRows(children.get(i));
+		}
+	}
+
+	/**
+	 * Writes one row for the metric and for each of its descendants, like
+	 * writeRows(Metric), but rendering independent subtrees in parallel (the
+	 * levels' and phases' values are computed by the pool's threads). The
+	 * rows are buffered until the whole tree is rendered, and then written
+	 * in the same order as writeRows(Metric) does. It is intended for large
+	 * trees or expensive phase calculations.
+	 *
+	 * @param metric		The root metric
+	 * @param pool			The pool in which the rows are rendered
+	 * @throws IOException	It's thrown when something went bad at writing
+	 */
+	public void writeRows(Metric metric, ForkJoinPool pool) throws IOException {
+		List<StringBuffer> rows = ParallelReport.render(metric, pool);
+
+		for (int i = 0; i < rows.size(); i++) {
+			out.append(rows.get(i));
+		}
+	}
+
+	/**
+	 * Writes the metric's row (without its children's), followed by a
+	 * comment line per partial aggregate forwarded to the metric.
+	 *
+	 * @param metric		The metric
+	 * @throws IOException	It's thrown when something went bad at writing
+	 */
+	public void writeRow(Metric metric) throws IOException {
+		MetricConfig config = metric.getConfig();
+		String[] configuredAttributes = config.getAttributes();
+		List<MeasurementPhase> configuredPhases = config.getPhases();
+		MetricSchema schema = config.getSchema();
+
+		out.write(metric.getIdentifier());
+
+		// Add attributes' values to the content
+		for (int i = 0; i < configuredAttributes.length; i++) {
+			out.write('\t');
+			out.write(String.valueOf(metric.getAttribute(configuredAttributes[i])));
+		}
+
+		// Add phases' values to the content
+		for (int i = 0; i < configuredPhases.size(); i++) {
+			MeasurementPhase tempPhase = configuredPhases.get(i);
+			HashMap<String, List<Measurement.Entry>> tempMeasurements =
+					metric.getPhaseMeasurements(tempPhase);
+
+			Set<String> tempLevels = tempMeasurements.keySet();
+
+			for (String tempLevel : tempLevels) {
+				if(!tempLevel.equals(MeasurementPhase.Level.DEFAULT_NAME)){
+					long levelValue = metric.levelValue(
+							schema.getLevelSlot(tempPhase.getName(), tempLevel));
+					out.write('\t');
+					out.write(String.valueOf(config.scaleValue(levelValue)));
+				}
+			}
+
+			out.write('\t');
+			out.write(String.valueOf(config.scaleValue(metric.phaseValue(i))));
+			out.write('\t');
+			out.write(tempPhase.toString(tempMeasurements));
+		}
+
+		out.write(LINE_SEPARATOR);
+		writeAggregates(metric);
+	}
+
+	/**
+	 * Writes a comment line per partial aggregate forwarded to the metric:
+	 * its source, its number of nodes and, for each aggregated stage, the
+	 * minimum, maximum, mean and count of the values.
+	 */
+	private void writeAggregates(Metric metric) throws IOException {
+		Map<String, PartialAggregate> forwarded = metric.forwardedAggregates();
+
+		if(forwarded == null){
+			return;
+		}
+
+		MetricSchema schema = metric.getConfig().getSchema();
+
+		for (Map.Entry<String, PartialAggregate> entry : forwarded.entrySet()) {
+			PartialAggregate aggregate = entry.getValue();
+
+			out.write("# AGGREGATE ");
+			out.write(entry.getKey());
+			out.write(" nodes=");
+			out.write(String.valueOf(aggregate.getNodeCount()));
+
+			for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+				MetricSchema.StageHandle handle = schema.getHandle(slot);
+
+				if(aggregate.getCount(handle) == 0){
+					continue;
+				}
+
+				out.write('\t');
+				out.write(handle.toString());
+				out.write("={min=" + aggregate.getMin(handle)
+						+ "; max=" + aggregate.getMax(handle)
+						+ "; mean=" + aggregate.getMean(handle)
+						+ "; count=" + aggregate.getCount(handle) + "}");
+			}
+
+			out.write(LINE_SEPARATOR);
+		}
+	}
+
+	/**
+	 * @param config	The configuration
+	 * @return			The heading line (without line separator) of the metrics
+	 * 					configured with the given configuration
+	 */
+	public static String heading(MetricConfig config){
+		StringBuilder heading = new StringBuilder("IDENTIFIER");
+		String[] configuredAttrs = config.getAttributes();
+		List<MeasurementPhase> configuredPhases = config.getPhases();
+
+		// Add attributes' name to the head
+		for (int i = 0; i < configuredAttrs.length; i++) {
+			heading.append('\t').append(configuredAttrs[i]);
+		}
+
+		// Add levels and phases to the head
+		for (int i = 0; i < configuredPhases.size(); i++) {
+			MeasurementPhase tempPhase = configuredPhases.get(i);
+			MeasurementPhase.Level[] tempLevels = tempPhase.getLevels();
+
+			for (int j = 0; j < tempLevels.length; j++) {
+				if(!tempLevels[j].getName().equals(MeasurementPhase.Level.DEFAULT_NAME)){
+					heading.append('\t').append(tempPhase.getName())
+						.append('[').append(tempLevels[j].getName()).append(']');
+				}
+			}
+
+			heading.append('\t').append(tempPhase.getName());
+			heading.append('\t').append(tempPhase.getName()).append("-DETAIL");
+		}
+
+		return heading.toString();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+}
@@ -0,0 +1,598 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class appends reports to a sequence of segment files, rolling to a
+ * new segment when the current one reaches a size, or when it has been open
+ * for a time interval. Segments are ReportSink files (each one has its own
+ * date and heading lines, so it can be read on its own). Closed segments are
+ * gzip-compressed by a background thread.
+ *
+ * The segments of a sink named "name" are "name.000001.txt" (or
+ * "name.000001.txt.gz" once compressed), and so on. The index file,
+ * "name.index", has one line per closed segment with its file name and the
+ * times (in milliseconds) of its first and last reports, so the segments
+ * covering a time range can be found without decompressing them.
+ *
+ * Segment numbers are never reused: a sink starts after the highest number
+ * found in the index and in the directory, even if older segments were
+ * deleted (e.g., by a retention policy). The index lines of deleted segments
+ * are dropped when a sink with the same name is opened.
+ *
+ * Segments left out of the index by a crash (closed, or still being written,
+ * but not compressed and indexed yet) are recovered when a sink with the
+ * same name is opened: they are compressed (again, if the compression was
+ * interrupted) and indexed. Their time range is estimated from their first
+ * date line and their last modification, which covers every report in them.
+ *
+ * This class is thread-safe.
+ *
+ * @see ReportSink
+ */
+public final class RotatingReportSink implements Closeable, Flushable {
+
+	/**
+	 * This class encapsulates a segment file and the time range it covers.
+	 */
+	public static final class Segment {
+
+		private final File file;
+		private final long start;
+		private final long end;
+
+		private Segment(File file, long start, long end){
+			this.file = file;
+			this.start = start;
+			this.end = end;
+		}
+
+		public File getFile(){
+			return file;
+		}
+
+		/**
+		 * @return	The time (in milliseconds) of the segment's first report
+		 */
+		public long getStart(){
+			return start;
+		}
+
+		/**
+		 * @return	The time (in milliseconds) of the segment's last report
+		 */
+		public long getEnd(){
+			return end;
+		}
+
+		public boolean isCompressed(){
+			return file.getName().endsWith(COMPRESSED_SUFFIX);
+		}
+
+		/**
+		 * @param from	The start of the time range (in milliseconds)
+		 * @param to	The end of the time range (in milliseconds)
+		 * @return		Whether the segment has reports in the time range
+		 */
+		public boolean overlaps(long from, long to){
+			return start <= to && end >= from;
+		}
+
+		/**
+		 * @return				A reader of the segment's reports, decompressing
+		 * 						them if needed (e.g., to read them with a
+		 * 						ReportReader)
+		 * @throws IOException	It's thrown when the segment cannot be opened
+		 */
+		public Reader open() throws IOException {
+			if(!isCompressed()){
+				return new FileReader(file);
+			}
+
+			InputStream in = new FileInputStream(file);
+
+			try {
+				return new InputStreamReader(new GZIPInputStream(in));
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		@Override
+		public String toString(){
+			return file.getName() + "\t" + start + "\t" + end;
+		}
+	}
+
+	private static final String SEGMENT_SUFFIX = ".txt";
+	private static final String COMPRESSED_SUFFIX = ".gz";
+	private static final String INDEX_SUFFIX = ".index";
+
+	private final File directory;
+	private final String name;
+	private final long maxSize;
+	private final long maxAge;
+	private final ExecutorService compressor;
+
+	/**
+	 * The closed segments, in order
+	 */
+	private final List<Segment> segments;
+	private ReportSink active;
+	private File activeFile;
+	private long activeOpened;
+	private long activeStart;
+	private long activeEnd;
+	private int sequence;
+	private boolean closed;
+
+	/**
+	 * @param directory		The directory of the segments and the index (it is
+	 * 						created if it does not exist). The segments already
+	 * 						there are kept, and indexed if they were not
+	 * @param name			The name of the segments and the index
+	 * @param maxSize		The size (in bytes) from which a segment is closed,
+	 * 						or 0 to not roll by size
+	 * @param maxAge		The time (in milliseconds) from which a segment is
+	 * 						closed, or 0 to not roll by time
+	 * @throws IOException	It's thrown when the index cannot be read, or a
+	 * 						segment left out of it cannot be recovered
+	 */
+	public RotatingReportSink(File directory, String name, long maxSize, long maxAge)
+			throws IOException {
+
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Cannot create directory " + directory);
+		}
+
+		this.directory = directory;
+		this.name = name;
+		this.maxSize = maxSize;
+		this.maxAge = maxAge;
+		this.segments = readIndex(directory, name);
+		this.compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "report-compressor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		recover();
+	}
+
+	/**
+	 * Drops the index lines of the segments deleted since they were indexed,
+	 * and indexes the segments left out of the index by a crash, in order.
+	 * An uncompressed segment is compressed by the background thread (a
+	 * partial compressed copy is discarded first), and then indexed; a
+	 * compressed one (whose uncompressed copy was already deleted) is indexed
+	 * at once. The sequence starts after the highest number found.
+	 */
+	private void recover() throws IOException {
+		Set<Integer> indexed = new HashSet<Integer>();
+		int highest = 0;
+		boolean pruned = false;
+
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			int number = segmentNumber(segments.get(i).getFile().getName());
+			highest = Math.max(highest, number);
+
+			if(segments.get(i).getFile().exists()){
+				indexed.add(number);
+			}else{
+				segments.remove(i);
+				pruned = true;
+			}
+		}
+
+		if(pruned){
+			writeIndex();
+		}
+
+		// The unindexed segments by their numbers, with both suffixes
+		TreeMap<Integer, File> found = new TreeMap<Integer, File>();
+		String[] files = directory.list();
+
+		for (int i = 0; files != null && i < files.length; i++) {
+			int number = segmentNumber(files[i]);
+			highest = Math.max(highest, number);
+
+			if(number < 0 || indexed.contains(number)){
+				continue;
+			}
+
+			// The uncompressed copy wins: the compressed one may be partial
+			if(!found.containsKey(number) || !files[i].endsWith(COMPRESSED_SUFFIX)){
+				found.put(number, new File(directory, files[i]));
+			}
+		}
+
+		for (File file : found.values()) {
+			final Segment segment = new Segment(file, firstReportTime(file), file.lastModified());
+
+			if(segment.isCompressed()){
+				segments.add(segment);
+				appendIndex(segment);
+			}else if(file.length() == 0){
+				// Nothing was written
+				file.delete();
+			}else{
+				new File(directory, file.getName() + COMPRESSED_SUFFIX).delete();
+				segments.add(segment);
+
+				compressor.execute(new Runnable() {
+					@Override
+					public void run() {
+						compress(segment);
+					}
+				});
+			}
+		}
+
+		sequence = highest + 1;
+	}
+
+	/**
+	 * @param fileName	A segment's file name (compressed or not)
+	 * @return			The segment's number, or -1 if it is not a segment of
+	 * 					this sink
+	 */
+	private int segmentNumber(String fileName){
+		String prefix = name + ".";
+
+		if(fileName.endsWith(COMPRESSED_SUFFIX)){
+			fileName = fileName.substring(0, fileName.length() - COMPRESSED_SUFFIX.length());
+		}
+
+		if(!fileName.startsWith(prefix) || !fileName.endsWith(SEGMENT_SUFFIX)){
+			return -1;
+		}
+
+		String number = fileName.substring(prefix.length(),
+				fileName.length() - SEGMENT_SUFFIX.length());
+
+		if(number.length() < 6 || number.length() > 9){
+			return -1;
+		}
+
+		for (int i = 0; i < number.length(); i++) {
+			if(!Character.isDigit(number.charAt(i))){
+				return -1;
+			}
+		}
+
+		return Integer.parseInt(number);
+	}
+
+	/**
+	 * @param file		A segment
+	 * @return			The time (in milliseconds, truncated to the second) of
+	 * 					the segment's first date line, or 0 if it cannot be
+	 * 					read
+	 */
+	private static long firstReportTime(File file){
+		try {
+			InputStream in = new FileInputStream(file);
+
+			try {
+				if(file.getName().endsWith(COMPRESSED_SUFFIX)){
+					in = new GZIPInputStream(in);
+				}
+
+				String line = new BufferedReader(new InputStreamReader(in)).readLine();
+
+				if(line == null || !line.startsWith("# ")){
+					return 0;
+				}
+
+				// The format of Date.toString(), written by ReportSink
+				return new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US)
+						.parse(line.substring(2)).getTime();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return 0;
+		} catch (ParseException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Appends the rows of a metric and all of its descendants to the current
+	 * segment, closing it first if it is due.
+	 *
+	 * @param metric			The root metric
+	 * @throws MetricException	It's thrown when there are stages in the Metric object
+	 * 							without a value
+	 * @throws IOException		It's thrown when something went bad at writing,
+	 * 							or the sink is closed
+	 * @see ReportSink#write(Metric)
+	 */
+	public synchronized void write(Metric metric) throws MetricException, IOException {
+		if(closed){
+			throw new IOException("The report sink is closed");
+		}
+
+		long now = System.currentTimeMillis();
+
+		if(active != null && ((maxSize > 0 && active.size() >= maxSize)
+				|| (maxAge > 0 && now - activeOpened >= maxAge))){
+			roll();
+		}
+
+		if(active == null){
+			activeFile = segmentFile(sequence++);
+			active = new ReportSink(activeFile);
+			activeOpened = now;
+			activeStart = -1;
+		}
+
+		active.write(metric);
+
+		if(activeStart < 0){
+			activeStart = now;
+		}
+
+		activeEnd = now;
+	}
+
+	/**
+	 * Closes the current segment (if it has reports); the next report starts
+	 * a new one.
+	 *
+	 * @throws IOException	It's thrown when something went bad at writing
+	 */
+	public synchronized void roll() throws IOException {
+		if(active == null){
+			return;
+		}
+
+		ReportSink sink = active;
+		active = null;
+		sink.close();
+
+		if(activeStart < 0){
+			// Nothing was written
+			activeFile.delete();
+			return;
+		}
+
+		final Segment segment = new Segment(activeFile, activeStart, activeEnd);
+		segments.add(segment);
+
+		compressor.execute(new Runnable() {
+			@Override
+			public void run() {
+				compress(segment);
+			}
+		});
+	}
+
+	/**
+	 * Compresses a closed segment and adds it to the index (uncompressed, if
+	 * the compression failed).
+	 */
+	private void compress(Segment segment){
+		File compressed = new File(directory, segment.getFile().getName() + COMPRESSED_SUFFIX);
+		Segment indexed = new Segment(compressed, segment.getStart(), segment.getEnd());
+
+		try {
+			InputStream in = new FileInputStream(segment.getFile());
+
+			try {
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed), 1 << 16);
+
+				try {
+					byte[] buffer = new byte[1 << 16];
+					int read;
+
+					while((read = in.read(buffer)) >= 0){
+						out.write(buffer, 0, read);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+
+			if(!segment.getFile().delete()){
+				throw new IOException("Cannot delete " + segment.getFile());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			compressed.delete();
+			indexed = segment;
+		}
+
+		synchronized (this) {
+			segments.set(segments.indexOf(segment), indexed);
+
+			try {
+				appendIndex(indexed);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Appends a closed segment's line to the index.
+	 */
+	private void appendIndex(Segment segment) throws IOException {
+		Writer index = new FileWriter(new File(directory, name + INDEX_SUFFIX), true);
+
+		try {
+			index.write(segment.toString());
+			index.write(System.getProperty("line.separator"));
+		} finally {
+			index.close();
+		}
+	}
+
+	/**
+	 * Rewrites the index with the closed segments that are indexed (the ones
+	 * being compressed are appended once they are). The new index replaces
+	 * the old one at once, so a crash leaves either of them.
+	 */
+	private void writeIndex() throws IOException {
+		File index = new File(directory, name + INDEX_SUFFIX);
+		File rewritten = new File(directory, name + INDEX_SUFFIX + ".tmp");
+		Writer out = new FileWriter(rewritten);
+
+		try {
+			for (Segment segment : segments) {
+				out.write(segment.toString());
+				out.write(System.getProperty("line.separator"));
+			}
+		} finally {
+			out.close();
+		}
+
+		if(!rewritten.renameTo(index) && !(index.delete() && rewritten.renameTo(index))){
+			throw new IOException("Cannot replace the index " + index);
+		}
+	}
+
+	/**
+	 * @param from	The start of the time range (in milliseconds)
+	 * @param to	The end of the time range (in milliseconds)
+	 * @return		The segments (including the current one) with reports in
+	 * 				the time range, in order
+	 */
+	public synchronized List<Segment> findSegments(long from, long to){
+		List<Segment> found = new ArrayList<Segment>();
+
+		for (Segment segment : segments) {
+			if(segment.overlaps(from, to)){
+				found.add(segment);
+			}
+		}
+
+		if(active != null && activeStart >= 0 && activeStart <= to && activeEnd >= from){
+			found.add(new Segment(activeFile, activeStart, activeEnd));
+		}
+
+		return found;
+	}
+
+	/**
+	 * Reads the index of the segments closed by a rotating sink, without
+	 * opening it.
+	 *
+	 * @param directory		The directory of the segments and the index
+	 * @param name			The name of the segments and the index
+	 * @return				The indexed segments, in order (an empty list if
+	 * 						there is no index)
+	 * @throws IOException	It's thrown when the index cannot be read
+	 */
+	public static List<Segment> readIndex(File directory, String name) throws IOException {
+		List<Segment> segments = new ArrayList<Segment>();
+		File indexFile = new File(directory, name + INDEX_SUFFIX);
+
+		if(!indexFile.exists()){
+			return segments;
+		}
+
+		BufferedReader in = new BufferedReader(new FileReader(indexFile));
+
+		try {
+			String line;
+
+			while((line = in.readLine()) != null){
+				String[] columns = line.split("\t");
+
+				if(columns.length != 3){
+					throw new IOException("Invalid index line \"" + line + "\"");
+				}
+
+				segments.add(new Segment(new File(directory, columns[0]),
+						Long.parseLong(columns[1]), Long.parseLong(columns[2])));
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid index " + indexFile, e);
+		} finally {
+			in.close();
+		}
+
+		return segments;
+	}
+
+	private File segmentFile(int number){
+		return new File(directory, name + "." + String.format("%06d", number) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Writes the buffered rows of the current segment.
+	 *
+	 * @throws IOException	It's thrown when something went bad at writing
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if(active != null){
+			active.flush();
+		}
+	}
+
+	/**
+	 * Closes the current segment and waits until all the closed segments are
+	 * compressed.
+	 *
+	 * @throws IOException	It's thrown when something went bad at writing, or
+	 * 						the caller is interrupted while waiting
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if(closed){
+				return;
+			}
+
+			closed = true;
+			roll();
+		}
+
+		compressor.shutdown();
+
+		try {
+			while(!compressor.awaitTermination(1, TimeUnit.SECONDS)){
+				// Keep waiting for the pending compressions
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing the report segments", e);
+		}
+	}
+
+}
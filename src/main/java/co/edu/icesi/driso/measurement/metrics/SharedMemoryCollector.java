@@ -0,0 +1,451 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is the same-host counterpart of MetricCollector: it reads the
+ * ring files written by SharedMemoryPublisher clients running in other
+ * processes of this host, and applies their records to the father's
+ * children as MetricCollector does (a child is created and attached to the
+ * father the first time it is named, and children are identified by their
+ * identifiers).
+ *
+ * A single thread polls every open ring. While records flow, it reads them
+ * straight from the mapped memory, with no system call; when every ring is
+ * idle, it backs off (spinning first, then parking). Each record is copied
+ * once, and applied from the copy once its checksum shows it is complete
+ * (see MappedRing.read), and the ring's read position is
+ * published after each batch, so the publisher can reuse the records read.
+ * Rings closed by their publishers are dropped once every record is read.
+ *
+ * Rings written with another configuration than the father's are dropped
+ * (their publishers stop waiting for free records). Records the father's
+ * configuration rejects are counted and skipped.
+ *
+ * Values are applied as the publishers took them. The origin of
+ * System.nanoTime (MetricClock's default) is only fixed within a JVM, so
+ * timestamps taken by publishers in other processes are not comparable to
+ * the father's unless a clock estimate is given when their ring is opened
+ * (see open(File, ClockEstimate)), or they use a clock the father shares.
+ *
+ * This class is thread-safe.
+ *
+ * @see SharedMemoryPublisher
+ */
+public final class SharedMemoryCollector implements Closeable {
+
+	/**
+	 * The number of idle polls before parking
+	 */
+	private static final int SPINS = 1000;
+
+	/**
+	 * The longest time the polling thread parks, in nanoseconds
+	 */
+	private static final long MAX_PARK = 1000000;
+
+	private final Metric father;
+	private final Thread poller;
+	private final ConcurrentHashMap<String, Metric> children;
+	private final List<Reader> readers;
+	private final AtomicLong records;
+	private final AtomicLong rejected;
+	private volatile boolean closed;
+
+	/**
+	 * Starts a collector with no rings.
+	 *
+	 * @param father	The metric into which the children are attached
+	 * @see #open(File, ClockEstimate)
+	 */
+	public SharedMemoryCollector(Metric father){
+		this.father = father;
+		this.children = new ConcurrentHashMap<String, Metric>();
+		this.readers = new CopyOnWriteArrayList<Reader>();
+		this.records = new AtomicLong();
+		this.rejected = new AtomicLong();
+
+		for (Metric child : father.getChildren()) {
+			children.put(child.getIdentifier(), child);
+		}
+
+		this.poller = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				pollLoop();
+			}
+		}, "ring-collector");
+		this.poller.setDaemon(true);
+		this.poller.start();
+	}
+
+	/**
+	 * Starts reading a ring file created by a publisher whose timestamps
+	 * are already in the father's clock (e.g., it uses a clock the father
+	 * shares).
+	 *
+	 * @param file			The ring file
+	 * @throws IOException	It's thrown when the file is not an initialized
+	 * 						ring, or it cannot be mapped
+	 */
+	public void open(File file) throws IOException {
+		open(file, null);
+	}
+
+	/**
+	 * Starts reading a ring file created by a publisher, translating its
+	 * timestamps to the father's clock: the children named in the ring are
+	 * given the estimate, as MetricCollector does for the estimates its
+	 * publishers send. The ring carries no clock exchanges, so the estimate
+	 * is made outside of it (see ClockEstimate.estimate).
+	 *
+	 * @param file			The ring file
+	 * @param estimate		The publisher's clock with respect to the
+	 * 						father's, or null if they are the same
+	 * @throws IOException	It's thrown when the file is not an initialized
+	 * 						ring, or it cannot be mapped
+	 * @see ClockEstimate#estimate(long[], long[], long[], long[])
+	 */
+	public void open(File file, ClockEstimate estimate) throws IOException {
+		if(closed){
+			throw new IllegalStateException("The collector is closed");
+		}
+
+		readers.add(new Reader(file, MappedRing.open(file), estimate));
+	}
+
+	private void pollLoop(){
+		int idle = 0;
+
+		while(!closed){
+			if(poll() > 0){
+				idle = 0;
+			}else if(++idle < SPINS){
+				Thread.yield();
+			}else{
+				// Park longer the longer the rings stay idle
+				LockSupport.parkNanos(Math.min(MAX_PARK, 1000L * (idle - SPINS + 1)));
+			}
+		}
+
+		poll();
+	}
+
+	/**
+	 * Reads the available records of every ring.
+	 *
+	 * @return	The number of records read
+	 */
+	private int poll(){
+		int count = 0;
+
+		for (Reader reader : readers) {
+			boolean wasClosed = reader.ring.isClosed();
+			int read;
+
+			try {
+				read = reader.poll();
+			} catch (IOException e) {
+				e.printStackTrace();
+				reader.ring.abandon();
+				drop(reader);
+				continue;
+			}
+
+			// Records written before the ring was closed are all visible now
+			if(read == 0 && wasClosed){
+				drop(reader);
+			}
+
+			count += read;
+		}
+
+		return count;
+	}
+
+	private void drop(Reader reader){
+		readers.remove(reader);
+
+		try {
+			reader.ring.close();
+		} catch (IOException e) {
+			// Nothing else to do
+		}
+	}
+
+	/**
+	 * The state of a ring being read.
+	 */
+	private final class Reader {
+
+		private final File file;
+		private final MappedRing ring;
+
+		/**
+		 * The record being read, copied from the ring
+		 */
+		private final ByteBuffer record;
+
+		/**
+		 * The publisher's clock with respect to the father's, or null
+		 */
+		private final ClockEstimate estimate;
+
+		/**
+		 * The children named in this ring, by their ids
+		 */
+		private final List<Metric> named;
+
+		/**
+		 * The strings written in this ring, by their ids, and the ones whose
+		 * chunks are still being read
+		 */
+		private final Map<Integer, String> texts;
+		private final Map<Integer, byte[]> chunks;
+		private long next;
+
+		Reader(File file, MappedRing ring, ClockEstimate estimate){
+			this.file = file;
+			this.ring = ring;
+			this.record = ByteBuffer.allocate(MeasurementJournal.RECORD_SIZE);
+			this.estimate = estimate;
+			this.named = new ArrayList<Metric>();
+			this.texts = new HashMap<Integer, String>();
+			this.chunks = new HashMap<Integer, byte[]>();
+			this.next = ring.readIndex();
+		}
+
+		/**
+		 * @return	The number of records read (at most a ring's worth)
+		 */
+		int poll() throws IOException {
+			int count = 0;
+
+			while(count < ring.capacity()){
+				if(!ring.read(next, record)){
+					break;
+				}
+
+				apply();
+				next++;
+				count++;
+			}
+
+			if(count > 0){
+				ring.setReadIndex(next);
+			}
+
+			return count;
+		}
+
+		private void apply() throws IOException {
+			int type = record.get(0);
+			int a = record.getInt(4);
+			int b = record.getInt(8);
+			int c = record.getInt(12);
+			long value = record.getLong(16);
+
+			switch (type) {
+			case MeasurementJournal.STRING:
+				chunk(a, b, c);
+				return;
+			case MeasurementJournal.DEFINE:
+				String config = text(c);
+
+				if(!config.equals(father.getConfig().getIdentifier())){
+					throw new IOException("The ring " + file + " is configured as " + config
+							+ ", and the collector's metrics as "
+							+ father.getConfig().getIdentifier());
+				}
+
+				if(a != named.size()){
+					throw new IOException("Unexpected child id " + a + " in " + file);
+				}
+
+				Metric defined = child(text(b));
+
+				if(estimate != null){
+					defined.setClockEstimate(estimate);
+				}
+
+				named.add(defined);
+				break;
+			case MeasurementJournal.MEASURE:
+				Metric child = named(a);
+				MetricSchema schema = father.getConfig().getSchema();
+
+				if(b < 0 || b >= schema.getSlotCount()){
+					throw new IOException("Unknown slot " + b + " in " + file);
+				}
+
+				try {
+					child.setMeasure(schema.getHandle(b), value);
+				} catch (MetricException e) {
+					rejected.incrementAndGet();
+				}
+				break;
+			case MeasurementJournal.ATTRIBUTE:
+				Metric attributed = named(a);
+				int attributeType = record.get(1);
+				String text = attributeType == MeasurementJournal.STRING_VALUE ? text(c) : null;
+
+				try {
+					attributed.setAttribute(text(b),
+							MeasurementJournal.attributeValue(attributeType, text, value));
+				} catch (MetricException e) {
+					rejected.incrementAndGet();
+				}
+				break;
+			default:
+				throw new IOException("Unexpected record type " + type + " in " + file);
+			}
+
+			records.incrementAndGet();
+		}
+
+		private void chunk(int id, int offset, int total) throws IOException {
+			int length = record.get(1);
+
+			if(length < 0 || length > MeasurementJournal.CHUNK_SIZE || offset < 0 || total < 0
+					|| offset + length > total){
+				throw new IOException("Malformed string " + id + " in " + file);
+			}
+
+			byte[] bytes = chunks.get(id);
+
+			if(bytes == null){
+				bytes = new byte[total];
+				chunks.put(id, bytes);
+			}else if(bytes.length != total){
+				throw new IOException("Malformed string " + id + " in " + file);
+			}
+
+			for (int i = 0; i < length; i++) {
+				bytes[offset + i] = record.get(MeasurementJournal.CHUNK_OFFSET + i);
+			}
+
+			// Publishers write the chunks of a string in order
+			if(offset + length == total){
+				chunks.remove(id);
+				texts.put(id, new String(bytes, MeasurementJournal.UTF_8));
+			}
+		}
+
+		private String text(int id) throws IOException {
+			String text = texts.get(id);
+
+			if(text == null){
+				throw new IOException("Undefined string " + id + " in " + file);
+			}
+
+			return text;
+		}
+
+		private Metric named(int id) throws IOException {
+			if(id < 0 || id >= named.size()){
+				throw new IOException("Undefined child id " + id + " in " + file);
+			}
+
+			return named.get(id);
+		}
+
+	}
+
+	/**
+	 * @return	The child with the given identifier, attached to the father if
+	 * 			it is new
+	 */
+	private Metric child(String identifier) throws IOException {
+		Metric child = children.get(identifier);
+
+		if(child != null){
+			return child;
+		}
+
+		synchronized (children) {
+			child = children.get(identifier);
+
+			if(child == null){
+				try {
+					child = new Metric(identifier, father.getConfig(), father.getStorage());
+					father.attach(child);
+				} catch (MetricException e) {
+					throw new IOException("Cannot attach child " + identifier, e);
+				}
+
+				children.put(identifier, child);
+			}
+		}
+
+		return child;
+	}
+
+	/**
+	 * @return	The metric into which the children are attached
+	 */
+	public Metric getFather(){
+		return father;
+	}
+
+	/**
+	 * @return	The number of rings being read (rings closed by their
+	 * 			publishers are not counted once every record is read)
+	 */
+	public int getRingCount(){
+		return readers.size();
+	}
+
+	/**
+	 * @return	The number of records read (rejected ones included, string
+	 * 			records excluded)
+	 */
+	public long getRecordCount(){
+		return records.get();
+	}
+
+	/**
+	 * @return	The number of records the father's configuration rejected
+	 */
+	public long getRejectedCount(){
+		return rejected.get();
+	}
+
+	/**
+	 * Reads the records available, stops polling and unmaps the rings. The
+	 * records already read stay applied to the father.
+	 *
+	 * @throws IOException	It's thrown when the caller is interrupted while
+	 * 						waiting for the polling thread
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed){
+			return;
+		}
+
+		closed = true;
+
+		try {
+			poller.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing the collector", e);
+		}
+
+		for (Reader reader : readers) {
+			drop(reader);
+		}
+	}
+
+}
@@ -0,0 +1,319 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is the same-host counterpart of MetricPublisher: it sends the
+ * measurements and attributes of the children recorded by this process to
+ * a SharedMemoryCollector through a memory-mapped ring file, with no
+ * serialization nor system call per record. Each record is a fixed-size
+ * record in the MeasurementJournal's layout; children identifiers and
+ * attribute names are written once, as strings.
+ *
+ * Each process publishes to its own ring file (there must be a single
+ * producer per ring). When the ring is full, the publisher waits until the
+ * collector has read some records, for at most a timeout: past it, the
+ * collector is taken as gone (e.g., it died, or never opened the ring), and
+ * that record and every later one are dropped and counted (see
+ * getDroppedCount), so the recording threads of this process do not hang.
+ *
+ * This class is thread-safe.
+ *
+ * @see SharedMemoryCollector
+ */
+public final class SharedMemoryPublisher implements Closeable {
+
+	/**
+	 * Default number of records of the ring
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * Default time (in milliseconds) to wait for the collector when the
+	 * ring is full
+	 */
+	public static final long DEFAULT_TIMEOUT = 10000;
+
+	private final MetricConfig config;
+	private final MappedRing ring;
+	private final ByteBuffer buffer;
+
+	/**
+	 * The time (in nanoseconds) to wait for the collector
+	 */
+	private final long timeout;
+
+	/**
+	 * The ids of the children named so far
+	 */
+	private final Map<String, Integer> ids;
+
+	/**
+	 * The ids of the strings sent so far
+	 */
+	private final Map<String, Integer> strings;
+	private long next;
+	private long readIndex;
+
+	/**
+	 * The number of records dropped since the collector was taken as gone
+	 */
+	private long dropped;
+	private boolean closed;
+
+	/**
+	 * Creates a ring file with the default capacity.
+	 *
+	 * @param config		The configuration of the published metrics
+	 * @param file			The ring file (it is overwritten)
+	 * @throws IOException	It's thrown when the file cannot be mapped
+	 */
+	public SharedMemoryPublisher(MetricConfig config, File file) throws IOException {
+		this(config, file, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a ring file, whose publisher waits for the collector at most
+	 * the default timeout.
+	 *
+	 * @param config		The configuration of the published metrics
+	 * @param file			The ring file (it is overwritten, so it must not be
+	 * 						open by a collector)
+	 * @param capacity		The number of records of the ring
+	 * @throws IOException	It's thrown when the file cannot be mapped
+	 */
+	public SharedMemoryPublisher(MetricConfig config, File file, int capacity) throws IOException {
+		this(config, file, capacity, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Creates a ring file.
+	 *
+	 * @param config		The configuration of the published metrics
+	 * @param file			The ring file (it is overwritten, so it must not be
+	 * 						open by a collector)
+	 * @param capacity		The number of records of the ring
+	 * @param timeout		The time (in milliseconds) to wait for the
+	 * 						collector when the ring is full, before taking it
+	 * 						as gone
+	 * @throws IOException	It's thrown when the file cannot be mapped
+	 */
+	public SharedMemoryPublisher(MetricConfig config, File file, int capacity, long timeout)
+			throws IOException {
+
+		if(capacity <= 0){
+			throw new IllegalArgumentException("The capacity must be positive");
+		}
+
+		if(timeout < 0){
+			throw new IllegalArgumentException("The timeout must not be negative");
+		}
+
+		this.config = config;
+		this.timeout = timeout * 1000000;
+		this.ring = MappedRing.create(file, capacity);
+		this.buffer = ring.buffer();
+		this.ids = new HashMap<String, Integer>();
+		this.strings = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Publishes a value for the phase-level-stage identified by a schema
+	 * handle, as Metric.setMeasure does on the collector's child.
+	 *
+	 * @param child		The child's identifier
+	 * @param handle	The phase-level-stage handle
+	 * @param value		The measured value
+	 * @see Metric#setMeasure(MetricSchema.StageHandle, long)
+	 */
+	public synchronized void setMeasure(String child, MetricSchema.StageHandle handle, long value){
+		int id = id(child);
+		write(MeasurementJournal.MEASURE, 0, id, handle.getSlot(), 0, value);
+	}
+
+	/**
+	 * Publishes a value for an specific stage in a measurement phase.
+	 *
+	 * @param child				The child's identifier
+	 * @param phase				The measurement phase
+	 * @param level				The level within the measurement phase
+	 * @param stage				The specific stage to be set
+	 * @param value				The measured value
+	 * @throws MetricException	It's thrown if the stage is not configured
+	 */
+	public void setMeasure(String child, String phase, String level, String stage, long value)
+			throws MetricException {
+
+		MetricSchema.StageHandle handle = config.getSchema().getHandle(phase, level, stage);
+
+		if(handle == null){
+			throw new MetricException(22, "Phase \"" + phase + "\", level \"" + level
+					+ "\", in stage \"" + stage + "\" is not configured. Note this "
+					+ "validation is case sensitive");
+		}
+
+		setMeasure(child, handle, value);
+	}
+
+	/**
+	 * Publishes a value for an specific stage in a measurement phase. As no
+	 * level is specified, the default one is used.
+	 *
+	 * @param child				The child's identifier
+	 * @param phase				The measurement phase
+	 * @param stage				The specific stage to be set
+	 * @param value				The measured value
+	 * @throws MetricException	It's thrown if the stage is not configured
+	 */
+	public void setMeasure(String child, String phase, String stage, long value)
+			throws MetricException {
+		setMeasure(child, phase, MeasurementPhase.Level.DEFAULT_NAME, stage, value);
+	}
+
+	/**
+	 * Publishes an attribute of a child, as Metric.setAttribute does on the
+	 * collector's child.
+	 *
+	 * @param child		The child's identifier
+	 * @param key		The attribute's name
+	 * @param value		The attribute's value (values of types other than
+	 * 					String, Integer, Long, Double and Boolean are sent as
+	 * 					strings)
+	 */
+	public synchronized void setAttribute(String child, String key, Object value){
+		int id = id(child);
+		int type = MeasurementJournal.attributeType(value);
+		int stringValue = type == MeasurementJournal.STRING_VALUE ? string(value.toString()) : 0;
+
+		write(MeasurementJournal.ATTRIBUTE, type, id, string(key), stringValue,
+				MeasurementJournal.attributeBits(value));
+	}
+
+	private int id(String child){
+		Integer id = ids.get(child);
+
+		if(id == null){
+			id = ids.size();
+			ids.put(child, id);
+			write(MeasurementJournal.DEFINE, 0, id, string(child),
+					string(config.getIdentifier()), 0);
+		}
+
+		return id;
+	}
+
+	private int string(String value){
+		Integer id = strings.get(value);
+
+		if(id == null){
+			id = strings.size() + 1;
+			byte[] bytes = value.getBytes(MeasurementJournal.UTF_8);
+			int offset = 0;
+
+			do {
+				int length = Math.min(MeasurementJournal.CHUNK_SIZE, bytes.length - offset);
+				long index = reserve();
+
+				if(index >= 0){
+					MeasurementJournal.writeChunk(buffer, ring.position(index), index,
+							id, offset, bytes, length);
+				}
+
+				offset += length;
+			} while(offset < bytes.length);
+
+			strings.put(value, id);
+		}
+
+		return id;
+	}
+
+	private void write(int type, int aux, int a, int b, int c, long value){
+		long index = reserve();
+
+		if(index >= 0){
+			MeasurementJournal.writeRecord(buffer, ring.position(index), index,
+					type, aux, a, b, c, value, 0);
+		}
+	}
+
+	/**
+	 * @return	The sequence number of the next record, once its slot has been
+	 * 			read by the collector, or -1 if the record is dropped
+	 */
+	private long reserve(){
+		if(closed){
+			throw new IllegalStateException("The publisher is closed");
+		}
+
+		if(dropped > 0){
+			dropped++;
+			return -1;
+		}
+
+		if(next - readIndex >= ring.capacity()){
+			readIndex = ring.readIndex();
+			long start = System.nanoTime();
+
+			for (int spins = 0; next - readIndex >= ring.capacity(); spins++) {
+				if(System.nanoTime() - start >= timeout){
+					// The collector is gone: drop this record and the next ones
+					dropped++;
+					return -1;
+				}
+
+				// The ring is full: back off until the collector catches up
+				if(spins < 100){
+					Thread.yield();
+				}else{
+					LockSupport.parkNanos(50000);
+				}
+
+				readIndex = ring.readIndex();
+			}
+		}
+
+		return next++;
+	}
+
+	/**
+	 * @return	The number of records written so far
+	 */
+	public synchronized long getRecordCount(){
+		return next;
+	}
+
+	/**
+	 * @return	The number of records dropped because the collector did not
+	 * 			read the ring within the timeout (once a record is dropped,
+	 * 			every later one is)
+	 */
+	public synchronized long getDroppedCount(){
+		return dropped;
+	}
+
+	/**
+	 * Marks the ring as closed (the collector drops it once it has read
+	 * every record) and unmaps it.
+	 *
+	 * @throws IOException	It's thrown when something went bad at closing the
+	 * 						file
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(closed){
+			return;
+		}
+
+		closed = true;
+		ring.markClosed();
+		ring.close();
+	}
+
+}
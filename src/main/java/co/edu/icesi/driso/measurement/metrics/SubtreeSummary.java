@@ -0,0 +1,225 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the aggregates of a metric's subtree (i.e., the metric
+ * itself and all of its descendants): for each phase-level-stage, the
+ * minimum, maximum, sum and count of the own values set in the subtree.
+ * Timestamps of descendants with a clock estimate are translated to the
+ * metric's clock, as their merged values are. The partial aggregates
+ * forwarded to the metrics of the subtree count as their nodes.
+ * Summaries are computed bottom-up and cached on each metric, so asking
+ * again for the summary of an unchanged subtree does not traverse it.
+ *
+ * Summaries are immutable once returned.
+ *
+ * @see Metric#rollUp()
+ */
+public final class SubtreeSummary {
+
+	private final MetricSchema schema;
+
+	/**
+	 * The metric's version this summary was computed from
+	 */
+	private final int version;
+
+	private final long[] min;
+	private final long[] max;
+	private final long[] sum;
+	private final int[] count;
+	private int metricCount;
+	private long start;
+	private long end;
+
+	SubtreeSummary(MetricSchema schema, int version){
+		int slots = schema.getSlotCount();
+
+		this.schema = schema;
+		this.version = version;
+		this.min = new long[slots];
+		this.max = new long[slots];
+		this.sum = new long[slots];
+		this.count = new int[slots];
+		this.metricCount = 1;
+		this.start = Long.MAX_VALUE;
+		this.end = Long.MIN_VALUE;
+
+		Arrays.fill(min, Long.MAX_VALUE);
+		Arrays.fill(max, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Adds an own value of the summarized metric.
+	 *
+	 * @param slot	The schema slot
+	 * @param value	The own value
+	 */
+	void addValue(int slot, long value){
+		if(value < min[slot]) min[slot] = value;
+		if(value > max[slot]) max[slot] = value;
+
+		// Sampled stages hold durations (their mean), not timestamps
+		if(!schema.getHandle(slot).isSampled()){
+			if(value < start) start = value;
+			if(value > end) end = value;
+		}
+
+		sum[slot] += value;
+		count[slot]++;
+	}
+
+	/**
+	 * Adds the summary of a child's subtree.
+	 *
+	 * @param child		The child's summary
+	 * @param estimate	The estimated offset and drift of the child's clock
+	 * 					with respect to the summarized metric's, or null if
+	 * 					they share the clock
+	 */
+	void add(SubtreeSummary child, ClockEstimate estimate){
+		for (int slot = 0; slot < count.length; slot++) {
+			if(child.count[slot] > 0){
+				long childMin = child.min[slot];
+				long childMax = child.max[slot];
+				long childSum = child.sum[slot];
+
+				// Translate the child's timestamps to this metric's clock
+				if(estimate != null && !schema.getHandle(slot).isSampled()){
+					childMin = estimate.toFatherTime(childMin);
+					childMax = estimate.toFatherTime(childMax);
+					childSum = estimate.toFatherSum(childSum, child.count[slot]);
+				}
+
+				if(childMin < min[slot]) min[slot] = childMin;
+				if(childMax > max[slot]) max[slot] = childMax;
+
+				sum[slot] += childSum;
+				count[slot] += child.count[slot];
+			}
+		}
+
+		if(child.start <= child.end){
+			long childStart = estimate == null ? child.start : estimate.toFatherTime(child.start);
+			long childEnd = estimate == null ? child.end : estimate.toFatherTime(child.end);
+
+			if(childStart < start) start = childStart;
+			if(childEnd > end) end = childEnd;
+		}
+
+		metricCount += child.metricCount;
+	}
+
+	/**
+	 * Adds a partial aggregate forwarded to the summarized metric: the
+	 * values of its non-sampled stages and its nodes. Its samples are left
+	 * out, as the summary holds one mean per metric for sampled stages.
+	 *
+	 * @param aggregate	The aggregate, in the summarized metric's clock
+	 */
+	void add(PartialAggregate aggregate){
+		for (int slot = 0; slot < count.length; slot++) {
+			MetricSchema.StageHandle handle = schema.getHandle(slot);
+			long aggregated = aggregate.getCount(handle);
+
+			if(aggregated == 0 || handle.isSampled()){
+				continue;
+			}
+
+			long aggregateMin = aggregate.getMin(handle);
+			long aggregateMax = aggregate.getMax(handle);
+
+			if(aggregateMin < min[slot]) min[slot] = aggregateMin;
+			if(aggregateMax > max[slot]) max[slot] = aggregateMax;
+			if(aggregateMin < start) start = aggregateMin;
+			if(aggregateMax > end) end = aggregateMax;
+
+			sum[slot] += aggregate.getSum(handle);
+			count[slot] += (int) aggregated;
+		}
+
+		metricCount += aggregate.getNodeCount();
+	}
+
+	int getVersion(){
+		return version;
+	}
+
+	/**
+	 * @param handle	The phase-level-stage handle
+	 * @return			The lowest value set in the subtree, or Long.MAX_VALUE
+	 * 					if there is none
+	 */
+	public long getMin(MetricSchema.StageHandle handle){
+		return min[handle.getSlot()];
+	}
+
+	/**
+	 * @param handle	The phase-level-stage handle
+	 * @return			The highest value set in the subtree, or Long.MIN_VALUE
+	 * 					if there is none
+	 */
+	public long getMax(MetricSchema.StageHandle handle){
+		return max[handle.getSlot()];
+	}
+
+	/**
+	 * @param handle	The phase-level-stage handle
+	 * @return			The sum of the values set in the subtree
+	 */
+	public long getSum(MetricSchema.StageHandle handle){
+		return sum[handle.getSlot()];
+	}
+
+	/**
+	 * @param handle	The phase-level-stage handle
+	 * @return			The number of metrics in the subtree with a value set
+	 */
+	public int getCount(MetricSchema.StageHandle handle){
+		return count[handle.getSlot()];
+	}
+
+	/**
+	 * @param handle	Any handle of a level
+	 * @return			The lowest value set in the level's first stage across
+	 * 					the subtree, or Long.MAX_VALUE if there is none
+	 */
+	public long getLevelStart(MetricSchema.StageHandle handle){
+		return min[schema.getFirstSlot(handle.getLevelSlot())];
+	}
+
+	/**
+	 * @param handle	Any handle of a level
+	 * @return			The highest value set in the level's last stage across
+	 * 					the subtree, or Long.MIN_VALUE if there is none
+	 */
+	public long getLevelEnd(MetricSchema.StageHandle handle){
+		int levelSlot = handle.getLevelSlot();
+		return max[schema.getFirstSlot(levelSlot) + schema.getStageCount(levelSlot) - 1];
+	}
+
+	/**
+	 * @return	The lowest value set in any non-sampled stage of the subtree,
+	 * 			or Long.MAX_VALUE if there is none
+	 */
+	public long getStart(){
+		return start;
+	}
+
+	/**
+	 * @return	The highest value set in any non-sampled stage of the subtree,
+	 * 			or Long.MIN_VALUE if there is none
+	 */
+	public long getEnd(){
+		return end;
+	}
+
+	/**
+	 * @return	The number of metrics in the subtree, including its root
+	 */
+	public int getMetricCount(){
+		return metricCount;
+	}
+
+}
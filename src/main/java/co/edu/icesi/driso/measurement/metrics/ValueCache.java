@@ -0,0 +1,91 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+/**
+ * This class memoizes the level and phase values calculated for a metric,
+ * indexed by level slot and phase index. Each value is stamped with the
+ * version of the metric's measurements it was calculated from, and it is only
+ * reused while that version does not change.
+ *
+ * @see Metric#getLevelValue(MetricSchema.StageHandle)
+ */
+final class ValueCache {
+
+	private final long[] levelValues;
+	private final int[] levelVersions;
+	private final boolean[] levelCached;
+	private final long[] phaseValues;
+	private final int[] phaseVersions;
+	private final boolean[] phaseCached;
+	private long hits;
+	private long misses;
+
+	ValueCache(MetricSchema schema){
+		levelValues = new long[schema.getLevelSlotCount()];
+		levelVersions = new int[schema.getLevelSlotCount()];
+		levelCached = new boolean[schema.getLevelSlotCount()];
+		phaseValues = new long[schema.getPhaseCount()];
+		phaseVersions = new int[schema.getPhaseCount()];
+		phaseCached = new boolean[schema.getPhaseCount()];
+	}
+
+	/**
+	 * @param levelSlot		The level slot
+	 * @param version		The current version of the measurements
+	 * @return				Whether there is a level value for that version
+	 * 						(counting a hit or a miss)
+	 */
+	synchronized boolean hasLevelValue(int levelSlot, int version){
+		if(levelCached[levelSlot] && levelVersions[levelSlot] == version){
+			hits++;
+			return true;
+		}
+
+		misses++;
+		return false;
+	}
+
+	synchronized long getLevelValue(int levelSlot){
+		return levelValues[levelSlot];
+	}
+
+	synchronized void putLevelValue(int levelSlot, int version, long value){
+		levelValues[levelSlot] = value;
+		levelVersions[levelSlot] = version;
+		levelCached[levelSlot] = true;
+	}
+
+	/**
+	 * @param phaseIndex	The phase index
+	 * @param version		The current version of the measurements
+	 * @return				Whether there is a phase value for that version
+	 * 						(counting a hit or a miss)
+	 */
+	synchronized boolean hasPhaseValue(int phaseIndex, int version){
+		if(phaseCached[phaseIndex] && phaseVersions[phaseIndex] == version){
+			hits++;
+			return true;
+		}
+
+		misses++;
+		return false;
+	}
+
+	synchronized long getPhaseValue(int phaseIndex){
+		return phaseValues[phaseIndex];
+	}
+
+	synchronized void putPhaseValue(int phaseIndex, int version, long value){
+		phaseValues[phaseIndex] = value;
+		phaseVersions[phaseIndex] = version;
+		phaseCached[phaseIndex] = true;
+	}
+
+	synchronized long getHits(){
+		return hits;
+	}
+
+	synchronized long getMisses(){
+		return misses;
+	}
+
+}
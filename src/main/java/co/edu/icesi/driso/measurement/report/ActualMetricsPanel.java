@@ -18,6 +18,7 @@ import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 
+import co.edu.icesi.driso.measurement.metrics.ClockEstimate;
 import co.edu.icesi.driso.measurement.metrics.Measurement;
 import co.edu.icesi.driso.measurement.metrics.MeasurementPhase;
 import co.edu.icesi.driso.measurement.metrics.Metric;
@@ -386,21 +387,22 @@ public class ActualMetricsPanel extends JPanel {
 		ArrayList<Point> labelsPoint = new ArrayList<Point>();
 
 		// Father's values
-		fillRectanglePerLevel(g2, metric, executionStart, 
+		fillRectanglePerLevel(g2, metric, null, executionStart, 
 				leftOffset + fontPadding + x, x2, y2 - 1, y1, y2, labelsPoint);
 
-		// Children's values
+		// Children's values, in the father's clock
 		for (int i = 0; i < metric.getChildren().size(); i++) {
+			Metric child = metric.getChildren().get(i);
 			y -= nodeBlockHeight;
-			fillRectanglePerLevel(g2, metric.getChildren().get(i), 
+			fillRectanglePerLevel(g2, child, child.getClockEstimate(), 
 							executionStart, leftOffset + fontPadding + x, 
 							x2, y, y1, y2, labelsPoint);
 		}
 	}
 
 	private void fillRectanglePerLevel(Graphics2D g2, Metric metric, 
-			long executionStart, int x, int x2, int y, int y1, int y2, 
-			ArrayList<Point> labelsPoint){
+			ClockEstimate estimate, long executionStart, int x, int x2, int y, 
+			int y1, int y2, ArrayList<Point> labelsPoint){
 
 		int rectX = x;
 		int yOffset = 0;
@@ -414,7 +416,8 @@ public class ActualMetricsPanel extends JPanel {
 			// Fill a rectangle for each level
 			for (int j = 0; j < tempLevels.length; j++) {
 				MeasurementPhase.Level tempLevel = tempLevels[j];
-				long[] levelValues = getFirstAndLastStageValues(metric, tempPhase, tempLevel);
+				long[] levelValues = toFatherTime(
+						getFirstAndLastStageValues(metric, tempPhase, tempLevel), estimate);
 
 				if(levelValues != null){
 					double chartStartValue = metric.getConfig().scaleValue(levelValues[0] * scaleFactor - executionStart * scaleFactor);
@@ -489,6 +492,11 @@ public class ActualMetricsPanel extends JPanel {
 		boolean firstChanged = false, lastChanged = false;
 
 		for (MeasurementPhase.Stage stage : level.getStages()) {
+			// Sampled stages hold durations, not timestamps
+			if(stage.isSampled()){
+				continue;
+			}
+
 			Measurement m = 
 					metric.getMeasurement(
 							phase.getName(), level.getName(), stage.getName());
@@ -503,8 +511,10 @@ public class ActualMetricsPanel extends JPanel {
 				}
 
 				for (int i = 0; i < metric.getChildren().size(); i++) {
-					long[] tempValues = getFirstAndLastStageValues(
-							metric.getChildren().get(i), phase, level);
+					Metric child = metric.getChildren().get(i);
+					long[] tempValues = toFatherTime(
+							getFirstAndLastStageValues(child, phase, level), 
+							child.getClockEstimate());
 
 					if(tempValues != null){
 						if(tempValues[0] < values[0]){
@@ -528,31 +538,20 @@ public class ActualMetricsPanel extends JPanel {
 		}
 	}
 
-	private long getExecutionStart(Metric metric){
-		long fewer = Long.MAX_VALUE;
-
-		for(MeasurementPhase phase : metric.getConfig().getPhases()){
-			for(MeasurementPhase.Level level : phase.getLevels()){
-				for(MeasurementPhase.Stage stage : level.getStages()){
-					Measurement m = 
-							metric.getMeasurement(
-									phase.getName(), level.getName(), stage.getName());
-
-					if(m != null && m.hasValue() && m.getOwnValue() < fewer){
-						fewer = m.getOwnValue();
-					}
-
-					for (int i = 0; i < metric.getChildren().size(); i++) {
-						long tempFewer = getExecutionStart(metric.getChildren().get(i));
-						if(tempFewer < fewer){
-							fewer = tempFewer;
-						}
-					}
-				}
-			}
+	/**
+	 * Translates the first and last values of a child's level to its 
+	 * father's clock (if they do not share it).
+	 */
+	private static long[] toFatherTime(long[] values, ClockEstimate estimate){
+		if(values == null || estimate == null){
+			return values;
 		}
 
-		return fewer;
+		return new long[]{estimate.toFatherTime(values[0]), estimate.toFatherTime(values[1])};
+	}
+
+	private long getExecutionStart(Metric metric){
+		return metric.rollUp().getStart();
 	}
 
 	public void exportImage(File file) throws IOException {
@@ -9,15 +9,13 @@ import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.List;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
-import co.edu.icesi.driso.measurement.metrics.Measurement;
 import co.edu.icesi.driso.measurement.metrics.MeasurementPhase;
 import co.edu.icesi.driso.measurement.metrics.Metric;
+import co.edu.icesi.driso.measurement.metrics.MetricSchema;
 
 /**
  * 
@@ -414,24 +412,18 @@ public class CalculatedMetricsPanel extends JPanel {
 				// draw horizontal lines per child (besides the father)
 				int horizontalLinesY = y2 - bottomLabelsHeight + 2;
 				double longestLevelValue = 0;
+				MetricSchema.StageHandle levelHandle = metric.getConfig().getSchema().getHandle(
+						metric.getConfig().getSchema().getFirstSlot(i, j));
+				
 				for (int k = -1; k < metric.getChildren().size(); k++) {
-					HashMap<String, List<Measurement.Entry>> tempMeasurements = null;
-					
-					if(k == -1) tempMeasurements = metric.getPhaseMeasurements(tempPhase);
-					else tempMeasurements = metric.getChildren().get(k).getPhaseMeasurements(tempPhase);
-					
-					List<Measurement.Entry> levelMeasurements = tempMeasurements.get(tempLevel.getName());
-					double tempLevelValue = metric.getConfig().scaleValue(tempPhase.calculateLevelValue(levelMeasurements));
+					Metric tempMetric = k == -1 ? metric : metric.getChildren().get(k);
+					double tempLevelValue = metric.getConfig().scaleValue(tempMetric.getLevelValue(levelHandle));
 					longestLevelValue = tempLevelValue > longestLevelValue ? tempLevelValue : longestLevelValue;
 				}
 				
 				for (int k = -1; k < metric.getChildren().size(); k++) {
-					HashMap<String, List<Measurement.Entry>> tempMeasurements = null;
-					if(k == -1) tempMeasurements = metric.getPhaseMeasurements(tempPhase);
-					else tempMeasurements = metric.getChildren().get(k).getPhaseMeasurements(tempPhase);
-
-					List<Measurement.Entry> levelMeasurements = tempMeasurements.get(tempLevel.getName());
-					double tempLevelValue = metric.getConfig().scaleValue(tempPhase.calculateLevelValue(levelMeasurements));
+					Metric tempMetric = k == -1 ? metric : metric.getChildren().get(k);
+					double tempLevelValue = metric.getConfig().scaleValue(tempMetric.getLevelValue(levelHandle));
 					
 					if(tempLevelValue > 0){					
 						int chartLevelValue = (int) ((tempLevelValue * levelWidth) / longestLevelValue);
@@ -0,0 +1,136 @@
+package co.edu.icesi.driso.measurement.demo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.concurrent.CompletableFuture;
+
+import co.edu.icesi.driso.measurement.metrics.AsyncReporter;
+import co.edu.icesi.driso.measurement.metrics.Metric;
+import co.edu.icesi.driso.measurement.metrics.MetricException;
+import co.edu.icesi.driso.measurement.metrics.MetricFactory;
+import co.edu.icesi.driso.measurement.metrics.MetricSchema;
+
+/**
+ * This class compares how long the caller's thread is blocked by reporting a
+ * synthetic three-tier tree with Metric.report and with an AsyncReporter,
+ * and checks that both reports have the same rows.
+ *
+ * Usage: AsyncReportBenchmark [number of nodes] [reports]
+ *
+ * @see co.edu.icesi.driso.measurement.metrics.AsyncReporter
+ */
+public class AsyncReportBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 2500;
+		int reports = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		MetricFactory.registerConfigClass(
+				"apvillota",
+				"co/edu/icesi/driso/measurement/demo/configFile.properties",
+				ClientConfig.class);
+
+		Metric root = createTree(size);
+		File syncFile = File.createTempFile("sync-report", ".txt");
+		File asyncFile = File.createTempFile("async-report", ".txt");
+		syncFile.deleteOnExit();
+		asyncFile.deleteOnExit();
+
+		long syncWorst = 0;
+		long syncTotal = 0;
+
+		for (int i = 0; i < reports; i++) {
+			long start = System.nanoTime();
+			root.report(syncFile, i > 0);
+			long elapsed = System.nanoTime() - start;
+			syncWorst = Math.max(syncWorst, elapsed);
+			syncTotal += elapsed;
+		}
+
+		AsyncReporter reporter = new AsyncReporter(reports, AsyncReporter.OverflowPolicy.BLOCK);
+		long asyncWorst = 0;
+		long asyncTotal = 0;
+
+		for (int i = 0; i < reports; i++) {
+			long start = System.nanoTime();
+			CompletableFuture<Void> future = reporter.report(root, asyncFile, i > 0);
+			long elapsed = System.nanoTime() - start;
+			asyncWorst = Math.max(asyncWorst, elapsed);
+			asyncTotal += elapsed;
+
+			// Reports are spaced in time, as an application would request them
+			future.join();
+		}
+
+		reporter.close();
+
+		System.out.println(size + " nodes, " + reports + " reports (time the caller's "
+				+ "thread is blocked)");
+		System.out.println("synchronous: mean " + syncTotal / reports / 1000
+				+ "us, worst " + syncWorst / 1000 + "us");
+		System.out.println("asynchronous: mean " + asyncTotal / reports / 1000
+				+ "us, worst " + asyncWorst / 1000 + "us");
+		System.out.println(rows(syncFile).equals(rows(asyncFile)) ?
+				"same rows" : "MISMATCH");
+	}
+
+	/**
+	 * Creates a root with about sqrt(size) composites, each one with the same
+	 * number of components.
+	 */
+	private static Metric createTree(int size) throws MetricException {
+		int width = Math.max(1, (int) Math.sqrt(size));
+		Metric root = MetricFactory.getMetric("apvillota", "controller");
+		MetricSchema schema = root.getConfig().getSchema();
+		Metric[] composites = new Metric[width];
+
+		root.setAttribute("NODE", "node-0");
+		root.setAttribute("COMPOSITE", "controller");
+		root.setAttribute("COMPONENT", "controller");
+
+		for (int i = 0; i < width; i++) {
+			composites[i] = MetricFactory.getMetric("apvillota", "composite-" + i);
+			composites[i].setAttribute("NODE", "node-0");
+			composites[i].setAttribute("COMPOSITE", "composite-" + i);
+			composites[i].setAttribute("COMPONENT", "composite-" + i);
+			Metric[] components = new Metric[width];
+
+			for (int j = 0; j < width; j++) {
+				components[j] = MetricFactory.getMetric("apvillota", "component-" + i + "-" + j);
+				components[j].setAttribute("NODE", "node-" + j);
+				components[j].setAttribute("COMPOSITE", "composite-" + i);
+				components[j].setAttribute("COMPONENT", "component-" + j);
+
+				for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+					components[j].setMeasure(schema.getHandle(slot), 1000L * j + 10 * slot);
+				}
+			}
+
+			composites[i].merge(components);
+		}
+
+		root.merge(composites);
+		return root;
+	}
+
+	/**
+	 * @return	The file's lines but the date comments
+	 */
+	private static String rows(File file) throws Exception {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		StringBuilder rows = new StringBuilder();
+		String line;
+
+		while((line = in.readLine()) != null){
+			if(!line.startsWith("#")){
+				rows.append(line).append('\n');
+			}
+		}
+
+		in.close();
+		return rows.toString();
+	}
+
+}
@@ -0,0 +1,157 @@
+package co.edu.icesi.driso.measurement.demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringWriter;
+
+import co.edu.icesi.driso.measurement.metrics.Metric;
+import co.edu.icesi.driso.measurement.metrics.MetricCodec;
+import co.edu.icesi.driso.measurement.metrics.MetricException;
+import co.edu.icesi.driso.measurement.metrics.MetricFactory;
+import co.edu.icesi.driso.measurement.metrics.MetricSchema;
+import co.edu.icesi.driso.measurement.metrics.ReportWriter;
+
+/**
+ * This class compares the size and the encoding/decoding throughput of the
+ * metric codec against Java serialization, on a synthetic three-tier tree,
+ * and checks that the decoded tree reports the same rows.
+ *
+ * Usage: CodecBenchmark [number of nodes] [repetitions]
+ *
+ * @see co.edu.icesi.driso.measurement.metrics.MetricCodec
+ */
+public class CodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 2500;
+		int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		MetricFactory.registerConfigClass(
+				"apvillota",
+				"co/edu/icesi/driso/measurement/demo/configFile.properties",
+				ClientConfig.class);
+
+		Metric root = createTree(size);
+
+		byte[] encoded = MetricCodec.toByteArray(root);
+		byte[] serialized = serialize(root);
+
+		System.out.println(size + " nodes, best of " + repetitions + " runs");
+		System.out.println("codec: " + encoded.length + " bytes, encode "
+				+ timeEncode(root, repetitions) + "ms, decode "
+				+ timeDecode(encoded, repetitions) + "ms"
+				+ (rows(root).equals(rows(MetricCodec.fromByteArray(encoded))) ? "" : " MISMATCH"));
+		System.out.println("serialization: " + serialized.length + " bytes, encode "
+				+ timeSerialize(root, repetitions) + "ms, decode "
+				+ timeDeserialize(serialized, repetitions) + "ms");
+	}
+
+	/**
+	 * Creates a root with about sqrt(size) composites, each one with the same
+	 * number of components.
+	 */
+	private static Metric createTree(int size) throws MetricException {
+		int width = Math.max(1, (int) Math.sqrt(size));
+		Metric root = MetricFactory.getMetric("apvillota", "controller");
+		MetricSchema schema = root.getConfig().getSchema();
+		Metric[] composites = new Metric[width];
+
+		root.setAttribute("NODE", "node-0");
+
+		for (int i = 0; i < width; i++) {
+			composites[i] = MetricFactory.getMetric("apvillota", "composite-" + i);
+			Metric[] components = new Metric[width];
+
+			for (int j = 0; j < width; j++) {
+				components[j] = MetricFactory.getMetric("apvillota", "component-" + i + "-" + j);
+				components[j].setAttribute("NODE", "node-" + j);
+				components[j].setAttribute("COMPOSITE", "composite-" + i);
+				components[j].setAttribute("COMPONENT", "component-" + j);
+
+				for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+					components[j].setMeasure(schema.getHandle(slot), 1000L * j + 10 * slot);
+				}
+			}
+
+			composites[i].merge(components);
+		}
+
+		root.merge(composites);
+		return root;
+	}
+
+	private static long timeEncode(Metric root, int repetitions){
+		long best = Long.MAX_VALUE;
+
+		for (int i = 0; i < repetitions; i++) {
+			long start = System.nanoTime();
+			MetricCodec.toByteArray(root);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		return best / 1000000;
+	}
+
+	private static long timeDecode(byte[] encoded, int repetitions)
+			throws IOException, MetricException {
+
+		long best = Long.MAX_VALUE;
+
+		for (int i = 0; i < repetitions; i++) {
+			long start = System.nanoTime();
+			MetricCodec.fromByteArray(encoded);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		return best / 1000000;
+	}
+
+	private static long timeSerialize(Metric root, int repetitions) throws IOException {
+		long best = Long.MAX_VALUE;
+
+		for (int i = 0; i < repetitions; i++) {
+			long start = System.nanoTime();
+			serialize(root);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		return best / 1000000;
+	}
+
+	private static long timeDeserialize(byte[] serialized, int repetitions)
+			throws IOException, ClassNotFoundException {
+
+		long best = Long.MAX_VALUE;
+
+		for (int i = 0; i < repetitions; i++) {
+			long start = System.nanoTime();
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+			in.readObject();
+			in.close();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		return best / 1000000;
+	}
+
+	private static byte[] serialize(Metric root) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(root);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static String rows(Metric root) throws IOException {
+		StringWriter rows = new StringWriter();
+		ReportWriter writer = new ReportWriter(rows);
+		writer.writeRows(root);
+		writer.flush();
+		return rows.toString();
+	}
+
+}
@@ -0,0 +1,135 @@
+package co.edu.icesi.driso.measurement.demo;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import co.edu.icesi.driso.measurement.metrics.Metric;
+import co.edu.icesi.driso.measurement.metrics.MetricCollector;
+import co.edu.icesi.driso.measurement.metrics.MetricConfig;
+import co.edu.icesi.driso.measurement.metrics.MetricFactory;
+import co.edu.icesi.driso.measurement.metrics.MetricPublisher;
+import co.edu.icesi.driso.measurement.metrics.MetricSchema;
+import co.edu.icesi.driso.measurement.metrics.ReportWriter;
+
+/**
+ * This class starts a collector on the loopback interface and publishes the
+ * children of several simulated grid nodes to it, one connection per node.
+ * It prints the stage records per second each connection sustained, and
+ * checks that the collected tree matches the same tree built in memory.
+ *
+ * Usage: CollectorBenchmark [nodes] [children per node]
+ *
+ * @see co.edu.icesi.driso.measurement.metrics.MetricCollector
+ */
+public class CollectorBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		final int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final int children = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		MetricFactory.registerConfigClass(
+				"apvillota",
+				"co/edu/icesi/driso/measurement/demo/configFile.properties",
+				ClientConfig.class);
+
+		Metric father = MetricFactory.getMetric("apvillota", "grid0-control", Metric.Storage.CONCURRENT);
+		final MetricConfig config = father.getConfig();
+		final MetricSchema schema = config.getSchema();
+		final MetricCollector collector = new MetricCollector(father, 0);
+		final CountDownLatch done = new CountDownLatch(nodes);
+		final AtomicLong slowest = new AtomicLong();
+
+		for (int n = 0; n < nodes; n++) {
+			final int node = n;
+
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						MetricPublisher publisher =
+								new MetricPublisher(config, "localhost", collector.getPort());
+						long start = System.nanoTime();
+
+						for (int i = 0; i < children; i++) {
+							String child = "grid" + node + "-child-" + i;
+							publisher.setAttribute(child, "NODE", "grid" + node);
+
+							for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+								publisher.setMeasure(child, schema.getHandle(slot), value(i, slot));
+							}
+						}
+
+						publisher.close();
+
+						long elapsed = System.nanoTime() - start;
+						long current;
+
+						do {
+							current = slowest.get();
+						} while(elapsed > current && !slowest.compareAndSet(current, elapsed));
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		done.await();
+		collector.close();
+
+		long records = collector.getRecordCount();
+		System.out.println(nodes + " connections, " + records + " records");
+		System.out.println("slowest connection: " + records / nodes * 1000000000L
+				/ Math.max(1, slowest.get()) + " records/s");
+
+		// The same tree, built in memory
+		Metric expected = MetricFactory.getMetric("apvillota", "grid0-control");
+
+		for (int n = 0; n < nodes; n++) {
+			for (int i = 0; i < children; i++) {
+				Metric child = MetricFactory.getMetric("apvillota", "grid" + n + "-child-" + i);
+				child.setAttribute("NODE", "grid" + n);
+
+				for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+					child.setMeasure(schema.getHandle(slot), value(i, slot));
+				}
+
+				expected.merge(child);
+			}
+		}
+
+		// Children arrive interleaved, so compare the sorted children's rows
+		boolean same = father.getPhaseValue("Sorting") == expected.getPhaseValue("Sorting")
+				&& father.getPhaseValue("Merge") == expected.getPhaseValue("Merge")
+				&& childRows(father).equals(childRows(expected))
+				&& collector.getRejectedCount() == 0;
+
+		System.out.println(same ? "same tree" : "MISMATCH");
+	}
+
+	private static long value(int child, int slot){
+		return 1000L * (child % 97) + 10 * slot + (slot % 2) * (child % 13);
+	}
+
+	private static List<String> childRows(Metric father) throws Exception {
+		List<String> rows = new ArrayList<String>();
+
+		for (Metric child : father.getChildren()) {
+			StringWriter out = new StringWriter();
+			new ReportWriter(out).writeRow(child);
+			rows.add(out.toString());
+		}
+
+		String[] sorted = rows.toArray(new String[rows.size()]);
+		Arrays.sort(sorted);
+		return Arrays.asList(sorted);
+	}
+
+}
@@ -0,0 +1,104 @@
+package co.edu.icesi.driso.measurement.demo;
+
+import co.edu.icesi.driso.measurement.metrics.Metric;
+import co.edu.icesi.driso.measurement.metrics.MetricCollector;
+import co.edu.icesi.driso.measurement.metrics.MetricConfig;
+import co.edu.icesi.driso.measurement.metrics.MetricFactory;
+import co.edu.icesi.driso.measurement.metrics.MetricPublisher;
+import co.edu.icesi.driso.measurement.metrics.MetricSchema;
+import co.edu.icesi.driso.measurement.metrics.PartialAggregate;
+
+/**
+ * This class compares a root that merges every node directly with a root
+ * that receives, over loopback, only the partial aggregates of intermediate
+ * aggregator nodes (each one merging a subset of the nodes). It prints the
+ * work done at the root in both cases, and checks that both aggregates
+ * match.
+ *
+ * Usage: HierarchicalAggregationBenchmark [nodes] [aggregators]
+ *
+ * @see co.edu.icesi.driso.measurement.metrics.PartialAggregate
+ */
+public class HierarchicalAggregationBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int aggregators = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		MetricFactory.registerConfigClass(
+				"apvillota",
+				"co/edu/icesi/driso/measurement/demo/configFile.properties",
+				ClientConfig.class);
+
+		MetricConfig config = MetricFactory.getMetric("apvillota", "probe").getConfig();
+		MetricSchema schema = config.getSchema();
+		Metric[] leaves = new Metric[nodes];
+
+		for (int i = 0; i < nodes; i++) {
+			leaves[i] = MetricFactory.getMetric("apvillota", "grid-" + i);
+
+			for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+				leaves[i].setMeasure(schema.getHandle(slot), (i * 7919L) % 100000 + 10 * slot);
+			}
+		}
+
+		// Flat: the root merges every node
+		long start = System.nanoTime();
+		Metric flat = MetricFactory.getMetric("apvillota", "grid0-control");
+		flat.merge(leaves);
+		PartialAggregate expected = flat.aggregateChildren();
+		long flatTime = System.nanoTime() - start;
+
+		// Tiered: each aggregator merges its nodes, and publishes its aggregate
+		Metric[] racks = new Metric[aggregators];
+		long tierTime = 0;
+
+		for (int k = 0; k < aggregators; k++) {
+			start = System.nanoTime();
+			racks[k] = MetricFactory.getMetric("apvillota", "rack-" + k);
+
+			for (int i = k; i < nodes; i += aggregators) {
+				racks[k].merge(leaves[i]);
+			}
+
+			racks[k].aggregateChildren();
+			tierTime = Math.max(tierTime, System.nanoTime() - start);
+		}
+
+		Metric root = MetricFactory.getMetric("apvillota", "grid0-control", Metric.Storage.CONCURRENT);
+		MetricCollector collector = new MetricCollector(root, 0);
+
+		for (int k = 0; k < aggregators; k++) {
+			MetricPublisher publisher = new MetricPublisher(config, "localhost", collector.getPort());
+			publisher.publishAggregate(racks[k].getIdentifier(), racks[k].aggregateChildren());
+			publisher.close();
+		}
+
+		collector.close();
+
+		start = System.nanoTime();
+		PartialAggregate actual = root.aggregateChildren();
+		long rootTime = System.nanoTime() - start;
+
+		System.out.println(nodes + " nodes, " + aggregators + " aggregators");
+		System.out.println("flat root: " + nodes + " children, " + flatTime / 1000 + "us");
+		System.out.println("tiered root: " + root.getAggregates().size() + " aggregates, "
+				+ rootTime / 1000 + "us (slowest aggregator: " + tierTime / 1000 + "us)");
+		System.out.println("per-node detail at rack-0: "
+				+ racks[0].getMeasurement(schema.getHandle(0)).getChildCount() + " values");
+
+		boolean same = expected.getNodeCount() == actual.getNodeCount();
+
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			MetricSchema.StageHandle handle = schema.getHandle(slot);
+			same &= expected.getMin(handle) == actual.getMin(handle)
+					&& expected.getMax(handle) == actual.getMax(handle)
+					&& expected.getSum(handle) == actual.getSum(handle)
+					&& expected.getCount(handle) == actual.getCount(handle);
+		}
+
+		System.out.println(same ? "same aggregate" : "MISMATCH");
+	}
+
+}
@@ -0,0 +1,101 @@
+package co.edu.icesi.driso.measurement.demo;
+
+import java.util.concurrent.ForkJoinPool;
+
+import co.edu.icesi.driso.measurement.metrics.Measurement;
+import co.edu.icesi.driso.measurement.metrics.Metric;
+import co.edu.icesi.driso.measurement.metrics.MetricException;
+import co.edu.icesi.driso.measurement.metrics.MetricFactory;
+import co.edu.icesi.driso.measurement.metrics.MetricSchema;
+
+/**
+ * This class measures how the parallel merge scales with the number of
+ * cores, compared to the sequential merge, and checks that both produce the
+ * same father measurements.
+ *
+ * Usage: ParallelMergeBenchmark [number of children] [repetitions]
+ *
+ * @see co.edu.icesi.driso.measurement.metrics.Metric#merge(ForkJoinPool, Metric[])
+ */
+public class ParallelMergeBenchmark {
+
+	public static void main(String[] args) throws MetricException {
+
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		MetricFactory.registerConfigClass(
+				"apvillota",
+				"co/edu/icesi/driso/measurement/demo/configFile.properties",
+				ClientConfig.class);
+
+		Metric[] children = new Metric[count];
+
+		for (int i = 0; i < count; i++) {
+			children[i] = MetricFactory.getMetric("apvillota", "grid-" + i);
+			MetricSchema schema = children[i].getConfig().getSchema();
+
+			for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+				children[i].setMeasure(schema.getHandle(slot), i * 31L + slot);
+			}
+		}
+
+		Metric expected = MetricFactory.getMetric("apvillota", "grid0-control");
+		expected.merge(children);
+
+		System.out.println(count + " children, best of " + repetitions + " runs");
+		System.out.println("sequential: " + time(null, children, repetitions) + "ms");
+
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		for (int parallelism = 1; parallelism <= cores; parallelism *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			Metric father = MetricFactory.getMetric("apvillota", "grid0-control");
+			father.merge(pool, children);
+
+			System.out.println("parallel (" + parallelism + " threads): "
+					+ time(pool, children, repetitions) + "ms"
+					+ (sameMeasurements(expected, father) ? "" : " MISMATCH"));
+
+			pool.shutdown();
+		}
+	}
+
+	private static long time(ForkJoinPool pool, Metric[] children, int repetitions)
+			throws MetricException {
+
+		long best = Long.MAX_VALUE;
+
+		for (int i = 0; i < repetitions; i++) {
+			Metric father = MetricFactory.getMetric("apvillota", "grid0-control");
+			long start = System.nanoTime();
+
+			if(pool == null) father.merge(children);
+			else father.merge(pool, children);
+
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		return best / 1000000;
+	}
+
+	private static boolean sameMeasurements(Metric expected, Metric actual) throws MetricException {
+		MetricSchema schema = expected.getConfig().getSchema();
+
+		if(!expected.getChildren().equals(actual.getChildren())){
+			return false;
+		}
+
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			Measurement e = expected.getMeasurement(schema.getHandle(slot));
+			Measurement a = actual.getMeasurement(schema.getHandle(slot));
+
+			if(e == null ? a != null : a == null || !e.toString().equals(a.toString())){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+}
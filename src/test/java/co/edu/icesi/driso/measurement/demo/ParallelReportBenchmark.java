@@ -0,0 +1,133 @@
+package co.edu.icesi.driso.measurement.demo;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.ForkJoinPool;
+
+import co.edu.icesi.driso.measurement.metrics.Metric;
+import co.edu.icesi.driso.measurement.metrics.MetricException;
+import co.edu.icesi.driso.measurement.metrics.MetricFactory;
+import co.edu.icesi.driso.measurement.metrics.MetricSchema;
+import co.edu.icesi.driso.measurement.metrics.ReportWriter;
+
+/**
+ * This class measures how rendering the rows of a synthetic three-tier tree
+ * scales with the number of cores, compared to the sequential rendering,
+ * when scaling the values is expensive. It also checks that both render the
+ * same rows.
+ *
+ * Usage: ParallelReportBenchmark [number of nodes] [repetitions]
+ *
+ * @see co.edu.icesi.driso.measurement.metrics.ReportWriter#writeRows(Metric, ForkJoinPool)
+ */
+public class ParallelReportBenchmark {
+
+	/**
+	 * A configuration whose scaling takes a few microseconds, as a
+	 * calculation over the measurements' history would
+	 */
+	public static class ExpensiveConfig extends ClientConfig {
+
+		private static final long serialVersionUID = 1L;
+
+		public ExpensiveConfig(String configFile) {
+			super(configFile);
+		}
+
+		@Override
+		public double scaleValue(long measurementValue) {
+			double spin = 0;
+
+			for (int i = 0; i < 2000; i++) {
+				spin += Math.sqrt(measurementValue + i);
+			}
+
+			// The result is used, so the loop is not optimized away
+			return spin < 0 ? spin : measurementValue / 10.0;
+		}
+	}
+
+	public static void main(String[] args) throws MetricException, IOException {
+
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 2500;
+		int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		MetricFactory.registerConfigClass(
+				"expensive",
+				"co/edu/icesi/driso/measurement/demo/configFile.properties",
+				ExpensiveConfig.class);
+
+		Metric root = createTree(size);
+		String expected = render(root, null);
+
+		System.out.println(size + " nodes, best of " + repetitions + " runs");
+		System.out.println("sequential: " + time(root, null, repetitions) + "ms");
+
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		for (int parallelism = 1; parallelism <= cores; parallelism *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+			System.out.println("parallel (" + parallelism + " threads): "
+					+ time(root, pool, repetitions) + "ms"
+					+ (expected.equals(render(root, pool)) ? "" : " MISMATCH"));
+
+			pool.shutdown();
+		}
+	}
+
+	private static long time(Metric root, ForkJoinPool pool, int repetitions)
+			throws IOException {
+
+		long best = Long.MAX_VALUE;
+
+		for (int i = 0; i < repetitions; i++) {
+			long start = System.nanoTime();
+			render(root, pool);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		return best / 1000000;
+	}
+
+	private static String render(Metric root, ForkJoinPool pool) throws IOException {
+		StringWriter out = new StringWriter();
+		ReportWriter writer = new ReportWriter(out);
+
+		if(pool == null) writer.writeRows(root);
+		else writer.writeRows(root, pool);
+
+		return out.toString();
+	}
+
+	/**
+	 * Creates a root with about sqrt(size) composites, each one with the same
+	 * number of components.
+	 */
+	private static Metric createTree(int size) throws MetricException {
+		int width = Math.max(1, (int) Math.sqrt(size));
+		Metric root = MetricFactory.getMetric("expensive", "controller");
+		MetricSchema schema = root.getConfig().getSchema();
+		Metric[] composites = new Metric[width];
+
+		for (int i = 0; i < width; i++) {
+			composites[i] = MetricFactory.getMetric("expensive", "composite-" + i);
+			Metric[] components = new Metric[width];
+
+			for (int j = 0; j < width; j++) {
+				components[j] = MetricFactory.getMetric("expensive", "component-" + i + "-" + j);
+				components[j].setAttribute("NODE", "node-" + j);
+
+				for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+					components[j].setMeasure(schema.getHandle(slot), 1000L * j + 10 * slot);
+				}
+			}
+
+			composites[i].merge(components);
+		}
+
+		root.merge(composites);
+		return root;
+	}
+
+}
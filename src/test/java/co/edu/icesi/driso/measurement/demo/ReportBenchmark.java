@@ -0,0 +1,242 @@
+package co.edu.icesi.driso.measurement.demo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import co.edu.icesi.driso.measurement.metrics.Measurement;
+import co.edu.icesi.driso.measurement.metrics.MeasurementPhase;
+import co.edu.icesi.driso.measurement.metrics.Metric;
+import co.edu.icesi.driso.measurement.metrics.MetricConfig;
+import co.edu.icesi.driso.measurement.metrics.MetricException;
+import co.edu.icesi.driso.measurement.metrics.MetricFactory;
+import co.edu.icesi.driso.measurement.metrics.MetricSchema;
+
+/**
+ * This class compares the streaming report writer against the former report
+ * generation (which concatenated the whole report in a single string before
+ * writing it), on synthetic three-tier trees, and checks that both produce the
+ * same content. Both are warmed up on every tree before being timed, and
+ * each one reports the best of several runs.
+ *
+ * Usage: ReportBenchmark [number of nodes]...
+ *
+ * @see co.edu.icesi.driso.measurement.metrics.ReportWriter
+ */
+public class ReportBenchmark {
+
+	/**
+	 * The untimed runs before timing each tree, and the timed ones
+	 */
+	private static final int WARMUP = 3;
+	private static final int REPETITIONS = 5;
+
+	public static void main(String[] args) throws MetricException, IOException {
+
+		int[] sizes = {500, 2000, 8000};
+
+		if(args.length > 0){
+			sizes = new int[args.length];
+
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		MetricFactory.registerConfigClass(
+				"apvillota",
+				"co/edu/icesi/driso/measurement/demo/configFile.properties",
+				ClientConfig.class);
+
+		File streamed = File.createTempFile("streamed", ".txt");
+		File concatenated = File.createTempFile("concatenated", ".txt");
+
+		System.out.println("best of " + REPETITIONS + " runs, after " + WARMUP
+				+ " warmup runs");
+
+		for (int size : sizes) {
+			Metric root = createTree(size);
+
+			for (int i = 0; i < WARMUP; i++) {
+				root.report(streamed, false);
+				legacyReport(root, concatenated);
+			}
+
+			long streaming = Long.MAX_VALUE;
+			long legacy = Long.MAX_VALUE;
+
+			for (int i = 0; i < REPETITIONS; i++) {
+				long start = System.nanoTime();
+				root.report(streamed, false);
+				streaming = Math.min(streaming, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				legacyReport(root, concatenated);
+				legacy = Math.min(legacy, System.nanoTime() - start);
+			}
+
+			System.out.println(size + " nodes: streaming " + streaming / 1000000
+					+ "ms, concatenating " + legacy / 1000000 + "ms"
+					+ (sameContent(streamed, concatenated) ? "" : " MISMATCH"));
+		}
+
+		streamed.delete();
+		concatenated.delete();
+	}
+
+	/**
+	 * Creates a root with about sqrt(size) composites, each one with the same
+	 * number of components.
+	 */
+	private static Metric createTree(int size) throws MetricException {
+		int width = Math.max(1, (int) Math.sqrt(size));
+		Metric root = MetricFactory.getMetric("apvillota", "controller");
+		MetricSchema schema = root.getConfig().getSchema();
+		Metric[] composites = new Metric[width];
+
+		root.setAttribute("NODE", "node-0");
+		root.setAttribute("COMPOSITE", "controller");
+		root.setAttribute("COMPONENT", "controller");
+
+		for (int i = 0; i < width; i++) {
+			composites[i] = MetricFactory.getMetric("apvillota", "composite-" + i);
+			Metric[] components = new Metric[width];
+
+			for (int j = 0; j < width; j++) {
+				components[j] = MetricFactory.getMetric("apvillota", "component-" + i + "-" + j);
+				components[j].setAttribute("NODE", "node-" + j);
+				components[j].setAttribute("COMPOSITE", "composite-" + i);
+				components[j].setAttribute("COMPONENT", "component-" + j);
+
+				for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+					components[j].setMeasure(schema.getHandle(slot), 1000L * j + 10 * slot);
+				}
+			}
+
+			composites[i].merge(components);
+		}
+
+		root.merge(composites);
+		return root;
+	}
+
+	/**
+	 * Writes a report the way Metric.report(File, boolean) did before it was
+	 * streamed.
+	 */
+	private static void legacyReport(Metric root, File file) throws IOException {
+		MetricConfig config = root.getConfig();
+		String heading = "IDENTIFIER";
+		String content = new String();
+
+		String[] configuredAttrs = config.getAttributes();
+		List<MeasurementPhase> configuredPhases = config.getPhases();
+
+		for (int i = 0; i < configuredAttrs.length; i++) {
+			heading += "\t" + configuredAttrs[i];
+		}
+
+		for (int i = 0; i < configuredPhases.size(); i++) {
+			MeasurementPhase tempPhase = configuredPhases.get(i);
+			MeasurementPhase.Level[] tempLevels = tempPhase.getLevels();
+
+			for (int j = 0; j < tempLevels.length; j++) {
+				if(!tempLevels[j].getName().equals(MeasurementPhase.Level.DEFAULT_NAME)){
+					heading += "\t" + tempPhase.getName() +
+							"[" + tempLevels[j].getName() + "]";
+				}
+			}
+
+			heading += "\t" + tempPhase.getName();
+			heading += "\t" + tempPhase.getName() + "-DETAIL";
+		}
+
+		content += legacyRecursiveReport(root);
+
+		FileWriter writer = new FileWriter(file, false);
+		PrintWriter printWriter = new PrintWriter(writer);
+
+		printWriter.println("# " + new Date().toString());
+		printWriter.println(heading);
+		printWriter.println(content);
+
+		printWriter.close();
+		writer.close();
+	}
+
+	private static String legacyRecursiveReport(Metric metric){
+		String content = metric.getIdentifier();
+		MetricConfig config = metric.getConfig();
+		String[] configuredAttributes = config.getAttributes();
+
+		for (int i = 0; i < configuredAttributes.length; i++) {
+			content += "\t" + metric.getAttribute(configuredAttributes[i]);
+		}
+
+		for (int i = 0; i < config.getPhases().size(); i++) {
+			MeasurementPhase tempPhase = config.getPhases().get(i);
+			HashMap<String, List<Measurement.Entry>> tempMeasurements =
+					metric.getPhaseMeasurements(tempPhase);
+
+			Set<String> tempLevels = tempMeasurements.keySet();
+			HashMap<String, Long> levelValues = new HashMap<String, Long>();
+
+			for (String tempLevel : tempLevels) {
+				List<Measurement.Entry> levelMeasurements = tempMeasurements.get(tempLevel);
+				long levelValue = tempPhase.calculateLevelValue(levelMeasurements);
+				levelValues.put(tempLevel, levelValue);
+
+				if(!tempLevel.equals(MeasurementPhase.Level.DEFAULT_NAME)){
+					content += "\t" + config.scaleValue(levelValue);
+				}
+			}
+
+			content += "\t" + config.scaleValue(tempPhase.calculatePhaseValue(levelValues));
+			content += "\t" + tempPhase.toString(tempMeasurements);
+		}
+
+		for (int i = 0; i < metric.getChildren().size(); i++) {
+			content += System.getProperty("line.separator") +
+					legacyRecursiveReport(metric.getChildren().get(i));
+		}
+
+		return content;
+	}
+
+	/**
+	 * Compares two reports, ignoring their date comments.
+	 */
+	private static boolean sameContent(File a, File b) throws IOException {
+		BufferedReader readerA = new BufferedReader(new FileReader(a));
+		BufferedReader readerB = new BufferedReader(new FileReader(b));
+
+		try {
+			readerA.readLine();
+			readerB.readLine();
+
+			while(true){
+				String lineA = readerA.readLine();
+				String lineB = readerB.readLine();
+
+				if(lineA == null || lineB == null){
+					return lineA == lineB && a.length() == b.length();
+				}
+
+				if(!lineA.equals(lineB)){
+					return false;
+				}
+			}
+		} finally {
+			readerA.close();
+			readerB.close();
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package co.edu.icesi.driso.measurement.demo;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import co.edu.icesi.driso.measurement.metrics.Metric;
+import co.edu.icesi.driso.measurement.metrics.MetricException;
+import co.edu.icesi.driso.measurement.metrics.MetricFactory;
+import co.edu.icesi.driso.measurement.metrics.MetricSchema;
+import co.edu.icesi.driso.measurement.metrics.ReportWriter;
+
+/**
+ * This class compares the heap footprint of the available metric storages,
+ * by filling every configured stage of a large number of metrics. The
+ * footprint is measured again after the metrics' rows are reported, which
+ * reads every stage.
+ *
+ * Usage: StorageFootprint [number of metrics]
+ *
+ * @see co.edu.icesi.driso.measurement.metrics.Metric.Storage
+ */
+public class StorageFootprint {
+
+	public static void main(String[] args) throws MetricException, IOException {
+
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+		MetricFactory.registerConfigClass(
+				"apvillota",
+				"co/edu/icesi/driso/measurement/demo/configFile.properties",
+				ClientConfig.class);
+
+		for (Metric.Storage storage : Metric.Storage.values()) {
+			long before = usedMemory();
+			Metric[] metrics = new Metric[count];
+
+			for (int i = 0; i < count; i++) {
+				metrics[i] = MetricFactory.getMetric("apvillota", "node-" + i, storage);
+				MetricSchema schema = metrics[i].getConfig().getSchema();
+
+				for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+					metrics[i].setMeasure(schema.getHandle(slot), i + slot);
+				}
+			}
+
+			long after = usedMemory();
+
+			System.out.println(storage + ": " + count + " metrics, "
+					+ ((after - before) / count) + " bytes per metric");
+
+			report(metrics);
+			long reported = usedMemory();
+
+			System.out.println(storage + ": " + count + " metrics, "
+					+ ((reported - before) / count) + " bytes per metric after a report");
+
+			// Keep the metrics reachable until they have been measured
+			if(metrics[count - 1] == null){
+				System.out.println();
+			}
+		}
+	}
+
+	/**
+	 * Writes the metrics' rows, discarding them.
+	 */
+	private static void report(Metric[] metrics) throws IOException {
+		StringWriter row = new StringWriter();
+		ReportWriter report = new ReportWriter(row);
+
+		for (int i = 0; i < metrics.length; i++) {
+			report.writeRow(metrics[i]);
+			row.getBuffer().setLength(0);
+		}
+	}
+
+	private static long usedMemory(){
+		Runtime runtime = Runtime.getRuntime();
+
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
@@ -0,0 +1,145 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This class simulates a grid node whose clock is skewed (it is behind the
+ * father's by an offset and runs faster by a drift) and publishes its
+ * children to a collector over loopback. It compares the children's
+ * timestamps, as merged into the father, with the father's own clock at the
+ * same instants, with and without the clock estimate.
+ *
+ * @see ClockEstimate
+ * @see MetricPublisher#synchronizeClock(MetricClock, int)
+ */
+public class ClockSkewTest {
+
+	/**
+	 * The skewed clock's offset (250ms) and drift (1000 ppm)
+	 */
+	private static final long OFFSET = 250000000L;
+	private static final double DRIFT = 1e-3;
+
+	/**
+	 * The number of children, spread over the time the test runs
+	 */
+	private static final int CHILDREN = 40;
+	private static final long DURATION = 400000000L;
+
+	/**
+	 * A clock that is behind System.nanoTime() by an offset, and runs faster
+	 * by a drift
+	 */
+	private static final class SkewedClock implements MetricClock {
+
+		private final long base;
+
+		SkewedClock(){
+			this.base = System.nanoTime();
+		}
+
+		/**
+		 * @return	The time this clock shows at a given System.nanoTime()
+		 */
+		long skew(long time){
+			long elapsed = time - base;
+			return base + elapsed + (long) (elapsed * DRIFT) - OFFSET;
+		}
+
+		public long now(){
+			return skew(System.nanoTime());
+		}
+	}
+
+	/**
+	 * The outcome of a run: the worst difference between a child's merged
+	 * timestamp and the father's clock at the same instant, and how many
+	 * children seem to start before the father
+	 */
+	private static final class Run {
+		long worstError;
+		int beforeFather;
+	}
+
+	@BeforeClass
+	public static void registerConfig() throws MetricException {
+		TestConfigs.register();
+	}
+
+	@Test(timeout = 60000)
+	public void skewedTimestampsAreOffByTheOffset() throws Exception {
+		Run run = run(false);
+
+		assertTrue("worst error " + run.worstError, run.worstError >= OFFSET / 2);
+
+		// The ones published within the offset after the father's start
+		assertTrue("children before the father " + run.beforeFather, run.beforeFather > 0);
+	}
+
+	@Test(timeout = 60000)
+	public void estimatesCorrectTheSkew() throws Exception {
+		Run run = run(true);
+
+		// Well below the offset: the estimate is as good as the loopback delays
+		assertTrue("worst error " + run.worstError, run.worstError < OFFSET / 25);
+		assertEquals(Integer.valueOf(0), Integer.valueOf(run.beforeFather));
+	}
+
+	private static Run run(boolean corrected) throws Exception {
+		SkewedClock skewed = new SkewedClock();
+		Metric father = MetricFactory.getMetric(TestConfigs.CRITERION, "grid0-control",
+				Metric.Storage.CONCURRENT);
+		MetricSchema schema = father.getConfig().getSchema();
+		MetricSchema.StageHandle start = schema.getHandle("Sorting", "Start");
+		MetricCollector collector = new MetricCollector(father, 0);
+		MetricPublisher publisher =
+				new MetricPublisher(father.getConfig(), "localhost", collector.getPort());
+
+		// The father's own start, before the children's
+		father.setMeasure(start, father.getClock().now());
+
+		long[] truth = new long[CHILDREN];
+
+		try {
+			for (int i = 0; i < CHILDREN; i++) {
+				// Refine the estimate now and then, as a long-running node would
+				if(corrected && i % (CHILDREN / 4) == 0){
+					publisher.synchronizeClock(skewed, 8);
+				}
+
+				truth[i] = System.nanoTime();
+				publisher.setMeasure("grid1-child-" + i, start, skewed.skew(truth[i]));
+
+				// Spread the children over time, so that the drift shows up
+				while(System.nanoTime() < truth[i] + DURATION / CHILDREN){
+					Thread.yield();
+				}
+			}
+		} finally {
+			publisher.close();
+			collector.close();
+		}
+
+		Map<String, Long> merged = father.getMeasurement(start).getChildValues();
+		long fatherStart = father.getMeasurement(start).getOwnValue();
+		Run run = new Run();
+
+		for (int i = 0; i < CHILDREN; i++) {
+			long value = merged.get("grid1-child-" + i);
+			run.worstError = Math.max(run.worstError, Math.abs(value - truth[i]));
+
+			if(value < fatherStart){
+				run.beforeFather++;
+			}
+		}
+
+		return run;
+	}
+
+}
@@ -0,0 +1,139 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This class simulates many grid nodes reporting to one controller at the
+ * end of a run: every client connects at once to a collector on the
+ * loopback interface, publishes the values of its children and a finished
+ * subtree. The collected tree must match the same tree built in memory,
+ * also when the credit window is small enough to throttle the clients.
+ *
+ * @see MetricCollector
+ */
+public class CollectorLoadTest {
+
+	/**
+	 * The number of clients connecting at once (within the collector's
+	 * backlog of pending connections)
+	 */
+	private static final int CLIENTS = 200;
+	private static final int CHILDREN = 100;
+
+	/**
+	 * The number of children of each published subtree
+	 */
+	private static final int TASKS = 10;
+
+	@BeforeClass
+	public static void registerConfig() throws MetricException {
+		TestConfigs.register();
+	}
+
+	@Test(timeout = 120000)
+	public void collectsAllClients() throws Exception {
+		load(MetricCollector.DEFAULT_CREDIT_WINDOW);
+	}
+
+	@Test(timeout = 120000)
+	public void collectsAllThrottledClients() throws Exception {
+		load(4096);
+	}
+
+	private static void load(int window) throws Exception {
+		Metric father = MetricFactory.getMetric(TestConfigs.CRITERION, "grid0-control",
+				Metric.Storage.CONCURRENT);
+		final MetricConfig config = father.getConfig();
+		final MetricSchema schema = config.getSchema();
+		final MetricCollector collector = new MetricCollector(father,
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), window);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(CLIENTS);
+		final AtomicLong failed = new AtomicLong();
+
+		for (int c = 0; c < CLIENTS; c++) {
+			final int client = c;
+
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						MetricPublisher publisher =
+								new MetricPublisher(config, "localhost", collector.getPort());
+
+						for (int i = 0; i < CHILDREN; i++) {
+							String child = "grid" + client + "-child-" + i;
+							publisher.setAttribute(child, "NODE", "grid" + client);
+
+							for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+								publisher.setMeasure(child, schema.getHandle(slot),
+										TestConfigs.value(i, slot));
+							}
+						}
+
+						publisher.publish(summary(client, schema));
+						publisher.close();
+					} catch (Exception e) {
+						e.printStackTrace();
+						failed.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "client-" + client);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		start.countDown();
+		done.await();
+		collector.close();
+
+		// The same tree, built in memory
+		Metric expected = TestConfigs.gridTree(CLIENTS, CHILDREN);
+
+		for (int c = 0; c < CLIENTS; c++) {
+			expected.merge(summary(c, schema));
+		}
+
+		assertEquals(Long.valueOf(0), Long.valueOf(failed.get()));
+		assertEquals(Long.valueOf(0), Long.valueOf(collector.getRejectedCount()));
+		assertEquals(Double.valueOf(expected.getPhaseValue("Sorting")),
+				Double.valueOf(father.getPhaseValue("Sorting")));
+		assertEquals(Double.valueOf(expected.getPhaseValue("Merge")),
+				Double.valueOf(father.getPhaseValue("Merge")));
+
+		assertEquals(TestConfigs.childRows(expected), TestConfigs.childRows(father));
+	}
+
+	/**
+	 * @return	A finished subtree of a client, with TASKS children
+	 */
+	private static Metric summary(int client, MetricSchema schema) throws Exception {
+		Metric summary = MetricFactory.getMetric(TestConfigs.CRITERION,
+				"grid" + client + "-summary");
+
+		for (int k = 0; k < TASKS; k++) {
+			Metric task = MetricFactory.getMetric(TestConfigs.CRITERION,
+					"grid" + client + "-task-" + k);
+
+			for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+				task.setMeasure(schema.getHandle(slot), TestConfigs.value(k, slot));
+			}
+
+			summary.merge(task);
+		}
+
+		return summary;
+	}
+
+}
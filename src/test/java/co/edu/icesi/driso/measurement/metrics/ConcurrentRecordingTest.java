@@ -0,0 +1,138 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This class hammers a single concurrent metric from many threads: every
+ * thread tries to set every stage and attribute of the metric (only one of
+ * them must succeed per stage/attribute, the others must get the "already
+ * set" errors), while merging its own child into it.
+ *
+ * @see Metric.Storage#CONCURRENT
+ */
+public class ConcurrentRecordingTest {
+
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 200;
+
+	@BeforeClass
+	public static void registerConfig() throws MetricException {
+		TestConfigs.register();
+	}
+
+	@Test(timeout = 60000)
+	public void recordsEachValueOnce() throws Exception {
+		for (int round = 0; round < ROUNDS; round++) {
+			round(round);
+		}
+	}
+
+	/**
+	 * Checks that the round recorded every value once.
+	 *
+	 * @param round	The round's number (for the failure messages)
+	 */
+	private void round(int round) throws Exception {
+		final MetricSchema schema =
+				MetricFactory.getMetric(TestConfigs.CRITERION, "probe").getConfig().getSchema();
+		final String[] attributes =
+				MetricFactory.getMetric(TestConfigs.CRITERION, "probe").getConfig().getAttributes();
+		final Metric father = MetricFactory.getMetric(TestConfigs.CRITERION, "father",
+				Metric.Storage.CONCURRENT);
+		final Metric[] children = new Metric[THREADS];
+		final AtomicInteger measureWins = new AtomicInteger();
+		final AtomicInteger attributeWins = new AtomicInteger();
+		final Queue<String> unexpected = new ConcurrentLinkedQueue<String>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+
+		for (int i = 0; i < THREADS; i++) {
+			children[i] = MetricFactory.getMetric(TestConfigs.CRITERION, "child-" + i);
+
+			for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+				children[i].setMeasure(schema.getHandle(slot), i * 100 + slot);
+			}
+		}
+
+		for (int i = 0; i < THREADS; i++) {
+			final int id = i;
+
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+
+						for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+							try {
+								father.setMeasure(schema.getHandle(slot), id);
+								measureWins.incrementAndGet();
+							} catch (MetricException e) {
+								if(e.getErrorCode() != 5){
+									unexpected.add("thread " + id + ", slot " + slot + ": " + e.getMessage());
+								}
+							}
+						}
+
+						for (int j = 0; j < attributes.length; j++) {
+							try {
+								father.setAttribute(attributes[j], "thread-" + id);
+								attributeWins.incrementAndGet();
+							} catch (MetricException e) {
+								if(e.getErrorCode() != 4){
+									unexpected.add("thread " + id + ", attribute " + attributes[j]
+											+ ": " + e.getMessage());
+								}
+							}
+						}
+
+						father.merge(children[id]);
+					} catch (Exception e) {
+						e.printStackTrace();
+						unexpected.add("thread " + id + ": " + e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		start.countDown();
+		done.await();
+
+		String prefix = "round " + round + ", ";
+
+		assertTrue(prefix + "unexpected errors " + unexpected, unexpected.isEmpty());
+		assertEquals(prefix + "measure wins",
+				Integer.valueOf(schema.getSlotCount()), Integer.valueOf(measureWins.get()));
+		assertEquals(prefix + "attribute wins",
+				Integer.valueOf(attributes.length), Integer.valueOf(attributeWins.get()));
+		assertEquals(prefix + "children",
+				Integer.valueOf(THREADS), Integer.valueOf(father.getChildren().size()));
+
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			String where = prefix + "slot " + slot;
+			Measurement measurement = father.getMeasurement(schema.getHandle(slot));
+
+			assertNotNull(where + " is not set", measurement);
+			assertTrue(where + " has no own value", measurement.hasValue());
+			assertEquals(where + " child values " + measurement.getChildValues().keySet(),
+					Integer.valueOf(THREADS), Integer.valueOf(measurement.getChildValues().size()));
+
+			for (int i = 0; i < THREADS; i++) {
+				assertEquals(where + ", child-" + i + " value", Long.valueOf(i * 100 + slot),
+						measurement.getChildValues().get("child-" + i));
+			}
+		}
+	}
+
+}
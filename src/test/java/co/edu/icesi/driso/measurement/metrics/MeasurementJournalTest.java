@@ -0,0 +1,132 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This class journals metric trees and rebuilds them from the journal, as
+ * after a crash: a recovered tree must match the journaled one, except for
+ * a record torn in the middle of its write, which is skipped.
+ *
+ * @see MeasurementJournal
+ */
+public class MeasurementJournalTest {
+
+	/**
+	 * Small, so the journal grows through several regions
+	 */
+	private static final int REGION_SIZE = 8 * MeasurementJournal.RECORD_SIZE;
+
+	private File file;
+
+	@BeforeClass
+	public static void registerConfig() throws MetricException {
+		TestConfigs.register();
+	}
+
+	@Before
+	public void createFile() throws IOException {
+		file = File.createTempFile("measurements", ".journal");
+	}
+
+	@After
+	public void deleteFile(){
+		file.delete();
+	}
+
+	@Test(timeout = 60000)
+	public void recoversTheJournaledTree() throws Exception {
+		MeasurementJournal journal = new MeasurementJournal(file, REGION_SIZE);
+		Metric root = MetricFactory.getMetric(TestConfigs.CRITERION, "journaled");
+		MetricSchema schema = root.getConfig().getSchema();
+
+		// A value set before journaling is journaled as a snapshot
+		root.setAttribute("NODE", "grid0");
+		root.setJournal(journal);
+
+		for (int i = 0; i < 5; i++) {
+			Metric child = MetricFactory.getMetric(TestConfigs.CRITERION, "journaled-child-" + i);
+			child.setAttribute("NODE", "grid" + i);
+
+			for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+				child.setMeasure(schema.getHandle(slot), 100 * i + 10 * slot);
+			}
+
+			root.merge(child);
+		}
+
+		journal.close();
+		assertNull(journal.getFailure());
+		assertEquals(Long.valueOf(0), Long.valueOf(journal.getDroppedCount()));
+
+		List<Metric> roots = MeasurementJournal.recover(file);
+		assertEquals(Integer.valueOf(1), Integer.valueOf(roots.size()));
+
+		Metric recovered = roots.get(0);
+		assertEquals(root.getIdentifier(), recovered.getIdentifier());
+		assertEquals("grid0", recovered.getAttribute("NODE"));
+		assertEquals(Integer.valueOf(root.getChildren().size()),
+				Integer.valueOf(recovered.getChildren().size()));
+		assertEquals(Double.valueOf(root.getPhaseValue("Sorting")),
+				Double.valueOf(recovered.getPhaseValue("Sorting")));
+		assertEquals(Double.valueOf(root.getPhaseValue("Merge")),
+				Double.valueOf(recovered.getPhaseValue("Merge")));
+
+		for (int i = 0; i < root.getChildren().size(); i++) {
+			Metric expected = root.getChildren().get(i);
+			Metric child = recovered.getChildren().get(i);
+			assertEquals(expected.getIdentifier(), child.getIdentifier());
+			assertEquals(expected.getAttribute("NODE"), child.getAttribute("NODE"));
+
+			for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+				assertEquals(child.getIdentifier() + " slot " + slot,
+						Long.valueOf(expected.measurements().getOwnValue(slot)),
+						Long.valueOf(child.measurements().getOwnValue(slot)));
+			}
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void skipsARecordTornMidWrite() throws Exception {
+		MeasurementJournal journal = new MeasurementJournal(file, REGION_SIZE);
+		Metric metric = MetricFactory.getMetric(TestConfigs.CRITERION, "torn");
+		MetricSchema schema = metric.getConfig().getSchema();
+
+		metric.setJournal(journal);
+		metric.setMeasure(schema.getHandle(0), 10);
+		metric.setMeasure(schema.getHandle(1), 20);
+
+		long torn = journal.getRecordCount() - 1;
+		journal.close();
+
+		// The crash hit after the value, but before the checksum, was written
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+
+		try {
+			out.seek(torn * MeasurementJournal.RECORD_SIZE + 16);
+			out.writeLong(30);
+		} finally {
+			out.close();
+		}
+
+		List<Metric> roots = MeasurementJournal.recover(file);
+		assertEquals(Integer.valueOf(1), Integer.valueOf(roots.size()));
+
+		Metric recovered = roots.get(0);
+		assertTrue("the first value is recovered", recovered.measurements().hasValue(0));
+		assertEquals(Long.valueOf(10), Long.valueOf(recovered.measurements().getOwnValue(0)));
+		assertTrue("the torn value is skipped", !recovered.measurements().hasValue(1));
+	}
+
+}
@@ -0,0 +1,144 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This class checks the level timers of Metric.time with a deterministic
+ * clock, which only moves when the test moves it.
+ *
+ * @see Metric#time(String, String)
+ * @see Metric#setClock(MetricClock)
+ */
+public class MetricTimerTest {
+
+	/**
+	 * A clock set by hand
+	 */
+	private static final class ManualClock implements MetricClock {
+
+		private long time;
+
+		public long now(){
+			return time;
+		}
+	}
+
+	private ManualClock clock;
+
+	@BeforeClass
+	public static void registerConfig() throws MetricException {
+		TestConfigs.register();
+	}
+
+	@Before
+	public void createClock(){
+		clock = new ManualClock();
+	}
+
+	@Test
+	public void timesALevel() throws MetricException {
+		Metric metric = metric(Metric.Storage.OBJECTS);
+
+		clock.time = 100;
+		Metric.Timer timer = metric.time("Merge", "One");
+		clock.time = 250;
+		timer.close();
+
+		assertEquals(Long.valueOf(100), ownValue(metric, "Merge", "One", "Start"));
+		assertEquals(Long.valueOf(250), ownValue(metric, "Merge", "One", "End"));
+		assertEquals(null, metric.getMeasurement("Merge", "Two", "Start"));
+	}
+
+	@Test
+	public void timesTheDefaultLevel() throws MetricException {
+		for (Metric.Storage storage : Metric.Storage.values()) {
+			Metric metric = metric(storage);
+
+			clock.time = 7;
+			Metric.Timer timer = metric.time("Sorting");
+			clock.time = 19;
+			timer.close();
+
+			assertEquals(Long.valueOf(7), ownValue(metric, "Sorting",
+					MeasurementPhase.Level.DEFAULT_NAME, "Start"));
+			assertEquals(Long.valueOf(19), ownValue(metric, "Sorting",
+					MeasurementPhase.Level.DEFAULT_NAME, "End"));
+		}
+	}
+
+	@Test
+	public void timesEachLevelOnce() throws MetricException {
+		Metric metric = metric(Metric.Storage.OBJECTS);
+		metric.time("Merge", "One").close();
+
+		try {
+			metric.time("Merge", "One");
+			fail("The level was timed twice");
+		} catch (MetricException e) {
+			assertEquals(Integer.valueOf(5), Integer.valueOf(e.getErrorCode()));
+		}
+	}
+
+	@Test
+	public void rejectsUnknownLevels() throws MetricException {
+		try {
+			metric(Metric.Storage.OBJECTS).time("Merge", "Four");
+			fail("An unknown level was timed");
+		} catch (MetricException e) {
+			assertEquals(Integer.valueOf(22), Integer.valueOf(e.getErrorCode()));
+		}
+	}
+
+	@Test
+	public void rejectsSampledStages() throws MetricException {
+		Metric metric = MetricFactory.getMetric(TestConfigs.SAMPLED, "sampled");
+
+		try {
+			metric.time("Sorting");
+			fail("A level ending in a sampled stage was timed");
+		} catch (MetricException e) {
+			assertEquals(Integer.valueOf(23), Integer.valueOf(e.getErrorCode()));
+		}
+
+		// Levels without sampled stages are timed as usual
+		metric.setClock(clock);
+		clock.time = 3;
+		metric.time("Merge", "Two").close();
+		assertEquals(Long.valueOf(3), ownValue(metric, "Merge", "Two", "End"));
+	}
+
+	@Test
+	public void rejectsHandlesOfOtherConfigurations() throws MetricException {
+		Metric sampled = MetricFactory.getMetric(TestConfigs.SAMPLED, "sampled");
+		MetricSchema.StageHandle handle = sampled.getConfig().getSchema()
+				.getHandle("Merge", "One", "Start");
+
+		try {
+			metric(Metric.Storage.OBJECTS).time(handle);
+			fail("A handle of another configuration was timed");
+		} catch (MetricException e) {
+			assertEquals(Integer.valueOf(29), Integer.valueOf(e.getErrorCode()));
+		}
+	}
+
+	/**
+	 * @return	A new metric timed with the test's clock
+	 */
+	private Metric metric(Metric.Storage storage) throws MetricException {
+		Metric metric = MetricFactory.getMetric(TestConfigs.CRITERION, "timed", storage);
+		metric.setClock(clock);
+		return metric;
+	}
+
+	private static Long ownValue(Metric metric, String phase, String level, String stage)
+			throws MetricException {
+		Measurement measurement = metric.getMeasurement(phase, level, stage);
+		return measurement == null ? null : Long.valueOf(measurement.getOwnValue());
+	}
+
+}
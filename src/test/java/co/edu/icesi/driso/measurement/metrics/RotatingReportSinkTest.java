@@ -0,0 +1,177 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This class checks how a rotating sink numbers its segments, and how it
+ * recovers the segments a crash left out of its index (a crash is simulated
+ * by flushing a sink and never closing it).
+ *
+ * @see RotatingReportSink
+ */
+public class RotatingReportSinkTest {
+
+	private static final String NAME = "r";
+
+	private File directory;
+
+	@BeforeClass
+	public static void registerConfig() throws MetricException {
+		TestConfigs.register();
+	}
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = File.createTempFile("segments", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void deleteDirectory(){
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+
+		directory.delete();
+	}
+
+	@Test(timeout = 60000)
+	public void recoversACrashedSegment() throws Exception {
+		RotatingReportSink crashed = new RotatingReportSink(directory, NAME, 0, 0);
+		crashed.write(report("reported"));
+		crashed.flush();
+
+		// A compression interrupted by the crash
+		FileOutputStream partial = new FileOutputStream(file(1, true));
+		partial.write(new byte[] {31, -117, 8});
+		partial.close();
+
+		new RotatingReportSink(directory, NAME, 0, 0).close();
+
+		assertEquals(Arrays.asList(file(1, true)), indexedFiles());
+		assertEquals(Integer.valueOf(1), Integer.valueOf(roots(1)));
+		assertTrue(!file(1, false).exists());
+	}
+
+	@Test(timeout = 60000)
+	public void neverReusesTheNumbersOfDeletedSegments() throws Exception {
+		// Every report rolls to a new segment
+		RotatingReportSink sink = new RotatingReportSink(directory, NAME, 1, 0);
+
+		for (int i = 0; i < 3; i++) {
+			sink.write(report("reported"));
+		}
+
+		sink.close();
+		assertEquals(Arrays.asList(file(1, true), file(2, true), file(3, true)), indexedFiles());
+
+		// Deleted by a retention policy
+		assertTrue(file(1, true).delete());
+
+		RotatingReportSink crashed = new RotatingReportSink(directory, NAME, 1, 0);
+		crashed.write(report("reported"));
+		crashed.flush();
+		assertTrue(file(4, false).exists());
+
+		new RotatingReportSink(directory, NAME, 1, 0).close();
+
+		assertEquals(Arrays.asList(file(2, true), file(3, true), file(4, true)), indexedFiles());
+		assertEquals(Integer.valueOf(1), Integer.valueOf(roots(4)));
+	}
+
+	@Test(timeout = 60000)
+	public void recoversASegmentThatReusedAnIndexedNumber() throws Exception {
+		RotatingReportSink sink = new RotatingReportSink(directory, NAME, 0, 0);
+		sink.write(report("reported"));
+		sink.close();
+		assertTrue(file(1, true).delete());
+
+		// A sink that numbered its segments by the first free number crashed
+		ReportSink reused = new ReportSink(file(1, false));
+		reused.write(report("first"));
+		reused.write(report("second"));
+		reused.close();
+
+		RotatingReportSink reopened = new RotatingReportSink(directory, NAME, 0, 0);
+		reopened.write(report("reported"));
+		reopened.close();
+
+		assertEquals(Arrays.asList(file(1, true), file(2, true)), indexedFiles());
+		assertEquals(Integer.valueOf(2), Integer.valueOf(roots(1)));
+		assertEquals(Integer.valueOf(1), Integer.valueOf(roots(2)));
+	}
+
+	/**
+	 * @return	A metric with every attribute and stage set
+	 */
+	private static Metric report(String identifier) throws MetricException {
+		Metric metric = MetricFactory.getMetric(TestConfigs.CRITERION, identifier);
+		MetricSchema schema = metric.getConfig().getSchema();
+
+		for (String attribute : metric.getConfig().getAttributes()) {
+			metric.setAttribute(attribute, attribute.toLowerCase());
+		}
+
+		for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+			metric.setMeasure(schema.getHandle(slot), 10 * slot);
+		}
+
+		return metric;
+	}
+
+	private File file(int number, boolean compressed){
+		return new File(directory, NAME + "." + String.format("%06d", number) + ".txt"
+				+ (compressed ? ".gz" : ""));
+	}
+
+	private List<File> indexedFiles() throws IOException {
+		List<File> files = new ArrayList<File>();
+
+		for (RotatingReportSink.Segment segment : RotatingReportSink.readIndex(directory, NAME)) {
+			assertTrue(segment.getFile() + " exists", segment.getFile().exists());
+			assertTrue(segment.getFile() + " range", segment.getStart() <= segment.getEnd());
+			files.add(segment.getFile());
+		}
+
+		return files;
+	}
+
+	/**
+	 * @return	The number of root metrics in a compressed segment
+	 */
+	private int roots(int number) throws Exception {
+		MetricConfig config = MetricFactory.getMetric(TestConfigs.CRITERION, "probe").getConfig();
+		ReportReader reader = new ReportReader(segment(number).open(), config);
+
+		try {
+			return reader.readMetrics().size();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private RotatingReportSink.Segment segment(int number) throws IOException {
+		for (RotatingReportSink.Segment segment : RotatingReportSink.readIndex(directory, NAME)) {
+			if(segment.getFile().equals(file(number, true))){
+				return segment;
+			}
+		}
+
+		throw new AssertionError("Segment " + number + " is not indexed");
+	}
+
+}
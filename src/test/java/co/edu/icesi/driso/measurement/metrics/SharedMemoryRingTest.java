@@ -0,0 +1,176 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This class starts several worker JVMs on this host, each one publishing
+ * the children of a simulated grid node through its own shared-memory
+ * ring, and collects them in this JVM. The collected tree must match the
+ * same tree built in memory. The rings are small, so the workers wrap
+ * around them many times, waiting for the collector.
+ *
+ * The workers run this class's main method.
+ *
+ * @see SharedMemoryCollector
+ * @see SharedMemoryPublisher
+ */
+public class SharedMemoryRingTest {
+
+	private static final int WORKERS = 2;
+	private static final int CHILDREN = 2000;
+	private static final int CAPACITY = 256;
+
+	@BeforeClass
+	public static void registerConfig() throws MetricException {
+		TestConfigs.register();
+	}
+
+	@Test(timeout = 120000)
+	public void collectsTheWorkersChildren() throws Exception {
+		Metric father = MetricFactory.getMetric(TestConfigs.CRITERION, "grid0-control",
+				Metric.Storage.CONCURRENT);
+		SharedMemoryCollector collector = new SharedMemoryCollector(father);
+		String java = System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java";
+		Process[] processes = new Process[WORKERS];
+		BufferedReader[] outputs = new BufferedReader[WORKERS];
+		File[] rings = new File[WORKERS];
+
+		try {
+			for (int n = 0; n < WORKERS; n++) {
+				rings[n] = File.createTempFile("grid" + n + "-", ".ring");
+				rings[n].deleteOnExit();
+
+				processes[n] = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						SharedMemoryRingTest.class.getName(), rings[n].getPath(),
+						String.valueOf(n), String.valueOf(CHILDREN), String.valueOf(CAPACITY))
+						.redirectErrorStream(true).start();
+				outputs[n] = new BufferedReader(new InputStreamReader(processes[n].getInputStream()));
+			}
+
+			// Each worker tells when its ring is initialized
+			for (int n = 0; n < WORKERS; n++) {
+				assertEquals("worker " + n, "ready", outputs[n].readLine());
+				collector.open(rings[n]);
+			}
+
+			for (int n = 0; n < WORKERS; n++) {
+				assertEquals("worker " + n, "done", outputs[n].readLine());
+				assertEquals(Integer.valueOf(0), Integer.valueOf(processes[n].waitFor()));
+			}
+
+			while(collector.getRingCount() > 0){
+				Thread.sleep(1);
+			}
+		} finally {
+			collector.close();
+
+			for (int n = 0; n < WORKERS; n++) {
+				if(processes[n] != null){
+					processes[n].destroy();
+				}
+			}
+		}
+
+		// The same tree, built in memory
+		Metric expected = TestConfigs.gridTree(WORKERS, CHILDREN);
+
+		assertEquals(Long.valueOf(0), Long.valueOf(collector.getRejectedCount()));
+		assertEquals(Double.valueOf(expected.getPhaseValue("Sorting")),
+				Double.valueOf(father.getPhaseValue("Sorting")));
+		assertEquals(Double.valueOf(expected.getPhaseValue("Merge")),
+				Double.valueOf(father.getPhaseValue("Merge")));
+
+		assertEquals(TestConfigs.childRows(expected), TestConfigs.childRows(father));
+	}
+
+	@Test(timeout = 60000)
+	public void givesTheRingsEstimateToItsChildren() throws Exception {
+		Metric father = MetricFactory.getMetric(TestConfigs.CRITERION, "grid0-control",
+				Metric.Storage.CONCURRENT);
+		ClockEstimate estimate = new ClockEstimate(5000, 0, 0, 1);
+		SharedMemoryCollector collector = new SharedMemoryCollector(father);
+		File ring = File.createTempFile("skewed-", ".ring");
+		ring.deleteOnExit();
+
+		SharedMemoryPublisher publisher =
+				new SharedMemoryPublisher(father.getConfig(), ring, CAPACITY);
+
+		try {
+			collector.open(ring, estimate);
+			publisher.setMeasure("skewed", "Sorting", "Start", 1000);
+			publisher.close();
+
+			while(collector.getRingCount() > 0){
+				Thread.sleep(1);
+			}
+		} finally {
+			collector.close();
+		}
+
+		assertSame(estimate, father.getChildren().get(0).getClockEstimate());
+		assertEquals(Long.valueOf(6000), Long.valueOf(father.rollUp().getStart()));
+	}
+
+	@Test(timeout = 60000)
+	public void dropsRecordsNobodyReads() throws Exception {
+		MetricConfig config = MetricFactory.getMetric(TestConfigs.CRITERION, "probe").getConfig();
+		File ring = File.createTempFile("unread-", ".ring");
+		ring.deleteOnExit();
+
+		// No collector opens the ring: the publisher must give up, not hang
+		SharedMemoryPublisher publisher = new SharedMemoryPublisher(config, ring, 4, 50);
+
+		try {
+			for (int i = 0; i < 10; i++) {
+				publisher.setMeasure("unread", "Sorting", "Start", i);
+			}
+
+			assertEquals(Long.valueOf(4), Long.valueOf(publisher.getRecordCount()));
+			assertTrue("dropped " + publisher.getDroppedCount(), publisher.getDroppedCount() >= 6);
+		} finally {
+			publisher.close();
+		}
+	}
+
+	/**
+	 * Publishes the children of a simulated grid node through a ring.
+	 *
+	 * Usage: SharedMemoryRingTest [ring file] [node] [children] [ring capacity]
+	 */
+	public static void main(String[] args) throws Exception {
+		TestConfigs.register();
+
+		int node = Integer.parseInt(args[1]);
+		int children = Integer.parseInt(args[2]);
+		MetricConfig config = MetricFactory.getMetric(TestConfigs.CRITERION, "probe").getConfig();
+		MetricSchema schema = config.getSchema();
+		SharedMemoryPublisher publisher = new SharedMemoryPublisher(config,
+				new File(args[0]), Integer.parseInt(args[3]));
+
+		System.out.println("ready");
+		System.out.flush();
+
+		for (int i = 0; i < children; i++) {
+			String child = "grid" + node + "-child-" + i;
+			publisher.setAttribute(child, "NODE", "grid" + node);
+
+			for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+				publisher.setMeasure(child, schema.getHandle(slot), TestConfigs.value(i, slot));
+			}
+		}
+
+		publisher.close();
+		System.out.println("done");
+	}
+
+}
@@ -0,0 +1,113 @@
+package co.edu.icesi.driso.measurement.metrics;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import co.edu.icesi.driso.measurement.demo.ClientConfig;
+
+/**
+ * This class registers the configurations of the tests: the demo one, and
+ * one with a sampled stage. The tests run in the same JVM, and a criterion
+ * can only be registered once.
+ *
+ * It also builds the simulated grid trees the collection tests publish, and
+ * compares collected trees with them.
+ */
+final class TestConfigs {
+
+	/**
+	 * The criterion of the demo configuration
+	 */
+	static final String CRITERION = "apvillota";
+
+	/**
+	 * The criterion of the configuration with a sampled stage (Latency, the
+	 * last stage of the Sorting phase)
+	 */
+	static final String SAMPLED = "sampled";
+
+	private static boolean registered;
+
+	private TestConfigs(){
+	}
+
+	/**
+	 * Registers the configurations, unless they are already registered.
+	 *
+	 * @throws MetricException	It's thrown when they cannot be registered
+	 */
+	static synchronized void register() throws MetricException {
+		if(registered){
+			return;
+		}
+
+		MetricFactory.registerConfigClass(CRITERION,
+				"co/edu/icesi/driso/measurement/demo/configFile.properties",
+				ClientConfig.class);
+		MetricFactory.registerConfigClass(SAMPLED,
+				"co/edu/icesi/driso/measurement/metrics/sampled.properties",
+				ClientConfig.class);
+		registered = true;
+	}
+
+	/**
+	 * @param child	The child's number in its grid node
+	 * @param slot	The slot of the value
+	 * @return		The value a simulated grid node's child has in a slot
+	 */
+	static long value(int child, int slot){
+		return 1000L * (child % 97) + 10 * slot + (slot % 2) * (child % 13);
+	}
+
+	/**
+	 * Builds in memory the tree simulated grid nodes publish: a father with
+	 * the children of every node, which have the node as attribute and every
+	 * slot's value set.
+	 *
+	 * @param nodes				The number of grid nodes
+	 * @param children			The number of children of each node
+	 * @return					The father
+	 * @throws MetricException	It's thrown when the tree cannot be built
+	 */
+	static Metric gridTree(int nodes, int children) throws MetricException {
+		Metric father = MetricFactory.getMetric(CRITERION, "grid0-control");
+		MetricSchema schema = father.getConfig().getSchema();
+
+		for (int n = 0; n < nodes; n++) {
+			for (int i = 0; i < children; i++) {
+				Metric child = MetricFactory.getMetric(CRITERION, "grid" + n + "-child-" + i);
+				child.setAttribute("NODE", "grid" + n);
+
+				for (int slot = 0; slot < schema.getSlotCount(); slot++) {
+					child.setMeasure(schema.getHandle(slot), value(i, slot));
+				}
+
+				father.merge(child);
+			}
+		}
+
+		return father;
+	}
+
+	/**
+	 * @return				The report rows of a metric's children, sorted (as
+	 * 						collected children arrive interleaved)
+	 * @throws Exception	It's thrown when a row cannot be written
+	 */
+	static List<String> childRows(Metric father) throws Exception {
+		List<String> rows = new ArrayList<String>();
+
+		for (Metric child : father.getChildren()) {
+			StringWriter out = new StringWriter();
+			new ReportWriter(out).writeRow(child);
+			rows.add(out.toString());
+		}
+
+		String[] sorted = rows.toArray(new String[rows.size()]);
+		Arrays.sort(sorted);
+		return Arrays.asList(sorted);
+	}
+
+}